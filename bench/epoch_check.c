@@ -0,0 +1,159 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Epoch end learning of jni/nmea.c: put_nmea_msg() on epochs of different
+ * sentence orders, including GSA and VTG sent at both the start and the end
+ * of the epoch and ZDA sent before the timed sentences. Once the end is learned, the fix of every epoch must be
+ * published by a sentence of the same epoch, before any sentence of the
+ * next one is parsed, and no sentence may arrive after the learned end.
+ */
+
+#include <stdio.h>
+
+#include "usbconverter.c"
+
+#define EPOCH_CNT 20
+/* Epochs closed on the next epoch while the end is learned, more than
+ * EPOCH_END_CONFIRMATIONS of jni/nmea.c */
+#define WARMUP_EPOCHS 8
+#define MAX_SENTENCES 16
+
+struct epoch_order_t {
+  const char *name;
+  const char *sentences[MAX_SENTENCES];
+};
+
+static const struct epoch_order_t ORDERS[] = {
+  { "GGA GSA RMC",
+    { "GPGGA", "GPGSA", "GPRMC", NULL } },
+  { "GSA VTG GGA RMC GSA VTG",
+    { "GPGSA", "GPVTG", "GPGGA", "GPRMC", "GPGSA", "GPVTG", NULL } },
+  { "VTG GGA GSA GSA RMC",
+    { "GPVTG", "GPGGA", "GNGSA", "GNGSA", "GPRMC", NULL } },
+  { "GSA GSA GGA GLL",
+    { "GNGSA", "GNGSA", "GPGGA", "GPGLL", NULL } },
+  { "GGA GSA RMC ZDA",
+    { "GPGGA", "GPGSA", "GPRMC", "GPZDA", NULL } },
+  { "ZDA GSA GGA RMC",
+    { "GPZDA", "GPGSA", "GPGGA", "GPRMC", NULL } },
+};
+
+#define ORDER_CNT (sizeof(ORDERS) / sizeof(ORDERS[0]))
+
+static uint8_t corpus[EPOCH_CNT * MAX_SENTENCES * 128];
+static size_t corpus_size;
+/* Epoch of every sentence of the corpus */
+static unsigned sentence_epoch[EPOCH_CNT * MAX_SENTENCES];
+
+static void put_sentence(const char *id, unsigned epoch)
+{
+  char body[128];
+  char ts[16];
+  unsigned char checksum;
+  const char *p;
+
+  snprintf(ts, sizeof(ts), "1200%02u.00", epoch);
+  if (strcmp(id + 2, "GGA") == 0)
+    snprintf(body, sizeof(body), "%s,%s,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,", id, ts);
+  else if (strcmp(id + 2, "RMC") == 0)
+    snprintf(body, sizeof(body), "%s,%s,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W", id, ts);
+  else if (strcmp(id + 2, "GLL") == 0)
+    snprintf(body, sizeof(body), "%s,4807.038,N,01131.000,E,%s,A,A", id, ts);
+  else if (strcmp(id + 2, "ZDA") == 0)
+    snprintf(body, sizeof(body), "%s,%s,23,03,1994,00,00", id, ts);
+  else if (strcmp(id + 2, "GSA") == 0)
+    snprintf(body, sizeof(body), "%s,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1", id);
+  else
+    snprintf(body, sizeof(body), "%s,054.7,T,034.4,M,005.5,N,010.2,K,A", id);
+
+  checksum = 0;
+  for (p = body; *p != '\0'; ++p)
+    checksum ^= (unsigned char)*p;
+  corpus_size += sprintf((char *)&corpus[corpus_size], "$%s*%02X\r\n", body, checksum);
+}
+
+static unsigned gen_corpus(const struct epoch_order_t *order)
+{
+  unsigned epoch, i, cnt;
+
+  corpus_size = 0;
+  cnt = 0;
+  for (epoch = 0; epoch < EPOCH_CNT; ++epoch) {
+    for (i = 0; order->sentences[i] != NULL; ++i) {
+      put_sentence(order->sentences[i], epoch);
+      sentence_epoch[cnt++] = epoch;
+    }
+  }
+
+  return cnt;
+}
+
+/* Returns the number of errors */
+static unsigned check_order(const struct epoch_order_t *order)
+{
+  struct stats_t stats;
+  struct nmea_parser_t parser;
+  struct msg_framer_t framer;
+  struct gps_msg_metadata_t msg;
+  struct gps_msg_status_t status;
+  int pos, msg_pos;
+  unsigned cnt, idx, errors, published;
+
+  stats_init(&stats);
+  parser.stats = &stats;
+  reset_nmea_parser(&parser);
+  msg_framer_reset(&framer);
+
+  cnt = gen_corpus(order);
+  errors = published = 0;
+  idx = 0;
+  for (pos = 0; (msg_pos = find_msg(corpus, pos, corpus_size, &msg, &framer)) >= 0;
+      pos = msg_pos + msg.size, ++idx) {
+    unsigned epoch, fix_epoch;
+
+    if (!put_nmea_msg(&parser, &corpus[msg_pos], msg.size, msg.nmea_fields, &status)) {
+      printf("%s: sentence %u: %s\n", order->name, idx, status.err);
+      errors += 1;
+    }
+    if (!status.location_changed)
+      continue;
+
+    published += 1;
+    epoch = sentence_epoch[idx];
+    fix_epoch = (unsigned)((status.location.time / 1000) % 60);
+    if ((epoch >= WARMUP_EPOCHS) && (fix_epoch != epoch)) {
+      printf("%s: fix of epoch %u published on sentence %u of epoch %u\n",
+          order->name, fix_epoch, idx, epoch);
+      errors += 1;
+    }
+  }
+
+  if (idx != cnt) {
+    printf("%s: %u of %u sentences framed\n", order->name, idx, cnt);
+    errors += 1;
+  }
+  if (stats.fix.epoch_end_misses != 0) {
+    printf("%s: %llu sentences after the learned end of the epoch\n",
+        order->name, stats.fix.epoch_end_misses);
+    errors += 1;
+  }
+
+  printf("%-24s %u fixes, %llu closed early, %llu misses: %s\n", order->name,
+      published, stats.fix.closed_early, stats.fix.epoch_end_misses,
+      errors == 0 ? "ok" : "FAILED");
+
+  stats_destroy(&stats);
+
+  return errors;
+}
+
+int main(void)
+{
+  unsigned i, errors;
+
+  errors = 0;
+  for (i = 0; i < ORDER_CNT; ++i)
+    errors += check_order(&ORDERS[i]);
+
+  return errors == 0 ? 0 : 1;
+}
@@ -0,0 +1,48 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * NMEA replay corpus: one second epochs of GGA, GSA, 3 GSV, RMC, VTG and
+ * ZDA sentences.
+ *
+ * gen_corpus [epochs] > epoch.nmea
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#define DEFAULT_EPOCHS 20000
+
+static void put_sentence(const char *fmt, const char *ts)
+{
+  char body[128];
+  unsigned char checksum;
+  const char *p;
+
+  snprintf(body, sizeof(body), fmt, ts);
+  checksum = 0;
+  for (p = body; *p != '\0'; ++p)
+    checksum ^= (unsigned char)*p;
+  printf("$%s*%02X\r\n", body, checksum);
+}
+
+int main(int argc, char **argv)
+{
+  unsigned epochs, t;
+  char ts[16];
+
+  epochs = argc > 1 ? (unsigned)strtoul(argv[1], NULL, 10) : DEFAULT_EPOCHS;
+
+  for (t = 0; t < epochs; ++t) {
+    snprintf(ts, sizeof(ts), "%02u%02u%02u.00", (t / 3600) % 24, (t / 60) % 60, t % 60);
+    put_sentence("GPGGA,%s,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,", ts);
+    put_sentence("GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1", ts);
+    put_sentence("GPGSV,3,1,11,03,03,111,00,04,15,270,00,06,01,010,00,13,06,292,00", ts);
+    put_sentence("GPGSV,3,2,11,14,25,170,00,16,57,208,39,18,67,296,40,19,40,246,00", ts);
+    put_sentence("GPGSV,3,3,11,22,42,067,42,24,14,311,43,27,05,244,00,,,,", ts);
+    put_sentence("GPRMC,%s,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W", ts);
+    put_sentence("GPVTG,054.7,T,034.4,M,005.5,N,010.2,K", ts);
+    put_sentence("GPZDA,%s,23,03,1994,00,00", ts);
+  }
+
+  return 0;
+}
@@ -0,0 +1,17 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/* Host build: <android/log.h> subset, messages go to stderr */
+
+#ifndef _HOST_ANDROID_LOG_H
+#define _HOST_ANDROID_LOG_H
+
+#define ANDROID_LOG_VERBOSE 2
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+  __attribute__((format(printf, 3, 4)));
+
+#endif
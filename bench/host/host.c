@@ -0,0 +1,37 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <errno.h>
+#include <stdarg.h>
+#include <stdio.h>
+
+#include "android/log.h"
+#include "host.h"
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+  va_list ap;
+  int res;
+
+  (void)prio;
+  va_start(ap, fmt);
+  fprintf(stderr, "%s: ", tag);
+  res = vfprintf(stderr, fmt, ap);
+  fputc('\n', stderr);
+  va_end(ap);
+  return res;
+}
+
+int pthread_cond_timedwait_relative_np(pthread_cond_t *cond,
+    pthread_mutex_t *mutex, const struct timespec *reltime)
+{
+  struct timespec ts;
+
+  clock_gettime(CLOCK_REALTIME, &ts);
+  ts.tv_sec += reltime->tv_sec;
+  ts.tv_nsec += reltime->tv_nsec;
+  if (ts.tv_nsec >= 1000000000) {
+    ts.tv_sec += 1;
+    ts.tv_nsec -= 1000000000;
+  }
+  return pthread_cond_timedwait(cond, mutex, &ts);
+}
@@ -0,0 +1,15 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/* Host build: bionic extensions used by the native sources. Included
+ * before every source file with -include */
+
+#ifndef _HOST_H
+#define _HOST_H
+
+#include <pthread.h>
+#include <time.h>
+
+int pthread_cond_timedwait_relative_np(pthread_cond_t *cond,
+    pthread_mutex_t *mutex, const struct timespec *reltime);
+
+#endif
@@ -0,0 +1,291 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <stdarg.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "jni_host.h"
+
+#define JNI_HOST_MAX_IDS 64
+
+struct jni_host_object_t {
+  jlong fields[JNI_HOST_MAX_IDS];
+};
+
+static struct JNINativeInterface_ env_functions;
+static struct JNIInvokeInterface_ vm_functions;
+
+static JNIEnv env = &env_functions;
+
+JavaVM jni_host_vm = &vm_functions;
+JNIEnv *jni_host_env = &env;
+struct jni_host_counters_t jni_host_counters;
+
+/* Field and method names. The IDs are index + 1 */
+static const char *ids[JNI_HOST_MAX_IDS];
+static unsigned ids_cnt;
+static jmethodID report_location_id;
+static jmethodID set_stats_id;
+static jmethodID set_nmea_stats_id;
+
+static const JNINativeMethod *natives;
+static jint natives_cnt;
+
+static uintptr_t get_id(const char *name)
+{
+  unsigned i;
+
+  for (i = 0; i < ids_cnt; ++i) {
+    if (strcmp(ids[i], name) == 0)
+      return i + 1;
+  }
+  if (ids_cnt == JNI_HOST_MAX_IDS) {
+    fprintf(stderr, "jni_host: too many field and method names\n");
+    abort();
+  }
+  ids[ids_cnt++] = name;
+  return ids_cnt;
+}
+
+static void unsupported(void)
+{
+  fprintf(stderr, "jni_host: unsupported JNI function\n");
+  abort();
+}
+
+static jint get_env(JavaVM *vm, void **penv, jint version)
+{
+  (void)vm;
+  (void)version;
+  *penv = jni_host_env;
+  return JNI_OK;
+}
+
+static jint attach_current_thread(JavaVM *vm, void **penv, void *args)
+{
+  (void)vm;
+  (void)args;
+  *penv = jni_host_env;
+  return JNI_OK;
+}
+
+static jint detach_current_thread(JavaVM *vm)
+{
+  (void)vm;
+  return JNI_OK;
+}
+
+static jclass find_class(JNIEnv *env, const char *name)
+{
+  (void)env;
+  return (jclass)name;
+}
+
+static jclass get_object_class(JNIEnv *env, jobject obj)
+{
+  (void)env;
+  return (jclass)obj;
+}
+
+static jfieldID get_field_id(JNIEnv *env, jclass clazz, const char *name, const char *sig)
+{
+  (void)env;
+  (void)clazz;
+  (void)sig;
+  return (jfieldID)get_id(name);
+}
+
+static jmethodID get_method_id(JNIEnv *env, jclass clazz, const char *name, const char *sig)
+{
+  jmethodID res;
+
+  (void)env;
+  (void)clazz;
+  (void)sig;
+  res = (jmethodID)get_id(name);
+  if (strcmp(name, "reportLocation") == 0)
+    report_location_id = res;
+  else if (strcmp(name, "setStats") == 0)
+    set_stats_id = res;
+  else if (strcmp(name, "setNmeaStats") == 0)
+    set_nmea_stats_id = res;
+  return res;
+}
+
+static jlong get_long_field(JNIEnv *env, jobject obj, jfieldID field)
+{
+  (void)env;
+  return ((struct jni_host_object_t *)obj)->fields[(uintptr_t)field - 1];
+}
+
+static void set_long_field(JNIEnv *env, jobject obj, jfieldID field, jlong val)
+{
+  (void)env;
+  ((struct jni_host_object_t *)obj)->fields[(uintptr_t)field - 1] = val;
+}
+
+static void call_void_method(JNIEnv *env, jobject obj, jmethodID method, ...)
+{
+  va_list ap;
+
+  (void)env;
+  (void)obj;
+
+  va_start(ap, method);
+  if (method == report_location_id) {
+    /* reportLocation(JDDDFFFIZZZZZ)V: float and boolean are promoted */
+    (void)va_arg(ap, jlong);
+    (void)va_arg(ap, double);
+    (void)va_arg(ap, double);
+    (void)va_arg(ap, double);
+    (void)va_arg(ap, double);
+    (void)va_arg(ap, double);
+    (void)va_arg(ap, double);
+    (void)va_arg(ap, int);
+    if (va_arg(ap, int))
+      __atomic_add_fetch(&jni_host_counters.valid_locations, 1, __ATOMIC_RELAXED);
+    __atomic_add_fetch(&jni_host_counters.locations, 1, __ATOMIC_RELAXED);
+  }else if (method == set_stats_id) {
+    /* setStats(start, first byte, last byte, bytes, junk) */
+    (void)va_arg(ap, jlong);
+    (void)va_arg(ap, jlong);
+    (void)va_arg(ap, jlong);
+    jni_host_counters.rcvd_bytes = va_arg(ap, jlong);
+    jni_host_counters.rcvd_junk = va_arg(ap, jlong);
+  }else if (method == set_nmea_stats_id) {
+    /* setNmeaStats(last msg, total, ...) */
+    (void)va_arg(ap, jlong);
+    jni_host_counters.rcvd_nmea = va_arg(ap, jlong);
+  }
+  va_end(ap);
+}
+
+static jint call_int_method(JNIEnv *env, jobject obj, jmethodID method, ...)
+{
+  (void)env;
+  (void)obj;
+  (void)method;
+  return -1;
+}
+
+static jint throw_new(JNIEnv *env, jclass clazz, const char *msg)
+{
+  (void)env;
+  fprintf(stderr, "jni_host: %s: %s\n", (const char *)clazz, msg);
+  jni_host_counters.exceptions += 1;
+  return 0;
+}
+
+static jthrowable exception_occurred(JNIEnv *env)
+{
+  (void)env;
+  return NULL;
+}
+
+static void exception_clear(JNIEnv *env)
+{
+  (void)env;
+}
+
+static jobject new_global_ref(JNIEnv *env, jobject obj)
+{
+  (void)env;
+  return obj;
+}
+
+static void delete_global_ref(JNIEnv *env, jobject obj)
+{
+  (void)env;
+  (void)obj;
+}
+
+static jobject new_direct_byte_buffer(JNIEnv *env, void *address, jlong capacity)
+{
+  (void)env;
+  (void)capacity;
+  return (jobject)address;
+}
+
+static jint get_java_vm(JNIEnv *env, JavaVM **vm)
+{
+  (void)env;
+  *vm = &jni_host_vm;
+  return JNI_OK;
+}
+
+/* Strings are passed as const char * */
+static const char *get_string_utf_chars(JNIEnv *env, jstring str, jboolean *is_copy)
+{
+  (void)env;
+  if (is_copy != NULL)
+    *is_copy = JNI_FALSE;
+  return (const char *)str;
+}
+
+static void release_string_utf_chars(JNIEnv *env, jstring str, const char *chars)
+{
+  (void)env;
+  (void)str;
+  (void)chars;
+}
+
+static jint register_natives(JNIEnv *env, jclass clazz, const JNINativeMethod *methods,
+    jint methods_cnt)
+{
+  (void)env;
+  (void)clazz;
+  natives = methods;
+  natives_cnt = methods_cnt;
+  return JNI_OK;
+}
+
+static void __attribute__((constructor)) jni_host_init(void)
+{
+  void **slot;
+
+  for (slot = (void **)&env_functions; slot < (void **)(&env_functions + 1); ++slot)
+    *slot = (void *)unsupported;
+  for (slot = (void **)&vm_functions; slot < (void **)(&vm_functions + 1); ++slot)
+    *slot = (void *)unsupported;
+
+  vm_functions.GetEnv = get_env;
+  vm_functions.AttachCurrentThread = attach_current_thread;
+  vm_functions.DetachCurrentThread = detach_current_thread;
+
+  env_functions.FindClass = find_class;
+  env_functions.GetObjectClass = get_object_class;
+  env_functions.GetFieldID = get_field_id;
+  env_functions.GetMethodID = get_method_id;
+  env_functions.GetLongField = get_long_field;
+  env_functions.SetLongField = set_long_field;
+  env_functions.CallVoidMethod = call_void_method;
+  env_functions.CallIntMethod = call_int_method;
+  env_functions.ThrowNew = throw_new;
+  env_functions.ExceptionOccurred = exception_occurred;
+  env_functions.ExceptionClear = exception_clear;
+  env_functions.NewGlobalRef = new_global_ref;
+  env_functions.DeleteGlobalRef = delete_global_ref;
+  env_functions.NewDirectByteBuffer = new_direct_byte_buffer;
+  env_functions.GetJavaVM = get_java_vm;
+  env_functions.GetStringUTFChars = get_string_utf_chars;
+  env_functions.ReleaseStringUTFChars = release_string_utf_chars;
+  env_functions.RegisterNatives = register_natives;
+}
+
+jobject jni_host_new_object(void)
+{
+  return (jobject)calloc(1, sizeof(struct jni_host_object_t));
+}
+
+void *jni_host_find_native(const char *name)
+{
+  jint i;
+
+  for (i = 0; i < natives_cnt; ++i) {
+    if (strcmp(natives[i].name, name) == 0)
+      return natives[i].fnPtr;
+  }
+  return NULL;
+}
@@ -0,0 +1,35 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Host build: JavaVM and JNIEnv for the native sources, without a JVM.
+ * Objects hold long fields only. Calls of UsbServiceThread.reportLocation()
+ * are counted and the byte and NMEA totals of StatsNative.setStats() and
+ * setNmeaStats() are kept. The other java methods are ignored.
+ */
+
+#ifndef _JNI_HOST_H
+#define _JNI_HOST_H
+
+#include <jni.h>
+
+struct jni_host_counters_t {
+  unsigned long long locations;
+  unsigned long long valid_locations;
+  unsigned long long exceptions;
+  /* Last exported stats */
+  long long rcvd_bytes;
+  long long rcvd_junk;
+  long long rcvd_nmea;
+};
+
+extern JavaVM jni_host_vm;
+extern JNIEnv *jni_host_env;
+extern struct jni_host_counters_t jni_host_counters;
+
+/* New object, all fields 0 */
+jobject jni_host_new_object(void);
+
+/* Native method registered with RegisterNatives(), NULL if none */
+void *jni_host_find_native(const char *name);
+
+#endif
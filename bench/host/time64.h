@@ -0,0 +1,14 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/* Host build: bionic <time64.h> on top of the 64-bit time_t of the host */
+
+#ifndef _HOST_TIME64_H
+#define _HOST_TIME64_H
+
+#include <time.h>
+
+typedef long long time64_t;
+
+#define timegm64(tm) ((time64_t)timegm(tm))
+
+#endif
@@ -0,0 +1,120 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Reader thread + ring vs inline reader: read loop of jni/usbconverter.c on
+ * a file source split in USB sized packets, messages framed and parsed, no
+ * onGpsMessageReceived() callbacks.
+ *
+ * inline_bench [file] [runs]
+ */
+
+#include <stdio.h>
+
+#include "usbconverter.c"
+#include "jni_host.h"
+
+#define DEFAULT_FILE "epoch.nmea"
+#define DEFAULT_RUNS 5
+
+struct bench_config_t {
+  const char *name;
+  enum usb_reader_mode_t mode;
+  int max_pkt_size;
+};
+
+struct bench_result_t {
+  double mb_per_s;
+  double cpu_ns_per_byte;
+  unsigned long long bytes;
+  unsigned nmea_msgs;
+};
+
+static double elapsed(clockid_t clock, const struct timespec *start)
+{
+  struct timespec ts;
+  clock_gettime(clock, &ts);
+  return (ts.tv_sec - start->tv_sec) + (ts.tv_nsec - start->tv_nsec) * 1e-9;
+}
+
+static int run(const char *uri, const struct bench_config_t *config,
+    struct bench_result_t *res)
+{
+  JNIEnv *env;
+  jobject this;
+  struct native_ctx_t *reader;
+  struct timespec wall_start, cpu_start;
+  double wall, cpu;
+
+  env = jni_host_env;
+  this = jni_host_new_object();
+  native_create(env, this);
+  native_msg_rcvd_cb(env, this, JNI_FALSE);
+  native_set_usb_reader_mode(env, this, config->mode);
+  reader = get_ctx(env, this);
+
+  if (byte_source_open(&reader->stream.source, uri) < 0) {
+    perror(uri);
+    return -1;
+  }
+  reader->stream.source.max_pkt_size = config->max_pkt_size;
+
+  clock_gettime(CLOCK_MONOTONIC, &wall_start);
+  clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &cpu_start);
+  start_read_loop(env, this, reader);
+  cpu = elapsed(CLOCK_PROCESS_CPUTIME_ID, &cpu_start);
+  wall = elapsed(CLOCK_MONOTONIC, &wall_start);
+  byte_source_close(&reader->stream.source);
+
+  res->bytes = reader->stats.rcvd.bytes;
+  res->nmea_msgs = reader->stats.rcvd.nmea.total;
+  res->mb_per_s = res->bytes / wall / 1e6;
+  res->cpu_ns_per_byte = cpu * 1e9 / res->bytes;
+
+  native_destroy(env, this);
+  free(this);
+  return 0;
+}
+
+int main(int argc, char **argv)
+{
+  static const struct bench_config_t configs[] = {
+    { "reader thread + ring, 64 B packets", USB_READER_MODE_SYNC, 64 },
+    { "inline, 64 B packets", USB_READER_MODE_INLINE, 64 },
+    { "reader thread + ring, 512 B packets", USB_READER_MODE_SYNC, 512 },
+    { "inline, 512 B packets", USB_READER_MODE_INLINE, 512 },
+  };
+  char uri[PATH_MAX + 8];
+  unsigned i;
+  int run_idx, runs;
+
+  snprintf(uri, sizeof(uri), "file:%s", argc > 1 ? argv[1] : DEFAULT_FILE);
+  runs = argc > 2 ? atoi(argv[2]) : DEFAULT_RUNS;
+
+  if (!register_usb_converter_natives(jni_host_env)) {
+    fprintf(stderr, "register_usb_converter_natives() failed\n");
+    return 1;
+  }
+
+  for (i = 0; i < sizeof(configs) / sizeof(configs[0]); ++i) {
+    struct bench_result_t best, res;
+
+    memset(&best, 0, sizeof(best));
+    best.cpu_ns_per_byte = 1e9;
+    for (run_idx = 0; run_idx < runs; ++run_idx) {
+      if (run(uri, &configs[i], &res) < 0)
+        return 1;
+      if (res.mb_per_s > best.mb_per_s)
+        best.mb_per_s = res.mb_per_s;
+      if (res.cpu_ns_per_byte < best.cpu_ns_per_byte)
+        best.cpu_ns_per_byte = res.cpu_ns_per_byte;
+      best.bytes = res.bytes;
+      best.nmea_msgs = res.nmea_msgs;
+    }
+    printf("%-36s %6.1f MB/s, %5.1f ns CPU/B (%llu B, %u NMEA, %llu locations)\n",
+        configs[i].name, best.mb_per_s, best.cpu_ns_per_byte, best.bytes,
+        best.nmea_msgs, jni_host_counters.locations / runs);
+    jni_host_counters.locations = 0;
+  }
+
+  return 0;
+}
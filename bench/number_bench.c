@@ -0,0 +1,187 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * NMEA numbers: parse_nmea_double() and parse_float() of jni/nmea.c against
+ * strtod() and strtof().
+ *
+ * check: random [-]digits[.digits] decimals. Up to 15 significant digits
+ *        the results must be bit-identical. Longer decimals are converted
+ *        stepwise: parse_nmea_double() must stay within MAX_LONG_ULPS, and
+ *        parse_float() is bit-identical after the rounding to float.
+ * bench: CPU ns per field on typical NMEA fields.
+ */
+
+#include <stdio.h>
+
+#include "nmea.c"
+
+#define CHECK_CNT 3000000
+#define BENCH_REPS 200000
+#define BENCH_RUNS 7
+#define EXACT_DIGITS 15
+#define MAX_DIGITS 30
+#define MAX_LONG_ULPS 2
+
+static const char *const TYPICAL_FIELDS[] = {
+  "4807.038", "01131.000", "545.4", "46.9", "0.9", "022.4", "084.4", "2.5",
+  "1.03", "5321.6802", "00630.3372", "0.02", "31.66", "61.7",
+};
+
+#define TYPICAL_FIELDS_CNT (sizeof(TYPICAL_FIELDS) / sizeof(TYPICAL_FIELDS[0]))
+
+static unsigned gen_decimal(char *buf, unsigned max_digits)
+{
+  unsigned digits, point, i, len;
+
+  len = 0;
+  if (rand() % 8 == 0)
+    buf[len++] = '-';
+  digits = 1 + rand() % max_digits;
+  point = rand() % (digits + 1);
+  for (i = 0; i < digits; ++i) {
+    if ((i == point) && (i != 0))
+      buf[len++] = '.';
+    buf[len++] = '0' + rand() % 10;
+  }
+  buf[len] = '\0';
+
+  return len;
+}
+
+/* Distance in ulps of two finite doubles of the same sign */
+static unsigned long long ulps(double a, double b)
+{
+  int64_t ia, ib;
+
+  memcpy(&ia, &a, sizeof(ia));
+  memcpy(&ib, &b, sizeof(ib));
+  return ia > ib ? ia - ib : ib - ia;
+}
+
+static int check(unsigned max_digits, unsigned max_ulps)
+{
+  char buf[MAX_DIGITS + 3];
+  struct nmea_field_t field;
+  double d, ref;
+  float f;
+  bool is_defined;
+  unsigned i, double_mismatches, float_mismatches;
+  unsigned long long dist, max_dist;
+
+  srand(1);
+  double_mismatches = float_mismatches = 0;
+  max_dist = 0;
+  for (i = 0; i < CHECK_CNT; ++i) {
+    field.s = buf;
+    field.len = gen_decimal(buf, max_digits);
+
+    ref = strtod(buf, NULL);
+    d = 0;
+    if (parse_nmea_double(field, &d) != FIELD_VALID)
+      dist = ~0ull;
+    else
+      dist = ulps(d, ref);
+    if (dist > max_dist)
+      max_dist = dist;
+    if (dist > max_ulps) {
+      if (double_mismatches++ < 5)
+        printf("parse_nmea_double(%s): %a, strtod(): %a\n", buf, d, ref);
+    }
+
+    f = 0;
+    if (!parse_float(field, &f, &is_defined)
+        || !is_defined
+        || (f != strtof(buf, NULL))) {
+      if (float_mismatches++ < 5)
+        printf("parse_float(%s): %a, strtof(): %a\n", buf, f, strtof(buf, NULL));
+    }
+  }
+
+  printf("%u decimals of 1-%u digits: %u parse_nmea_double() (max %llu ulp)"
+      " and %u parse_float() mismatches\n",
+      CHECK_CNT, max_digits, double_mismatches, max_dist, float_mismatches);
+
+  return (double_mismatches == 0) && (float_mismatches == 0) ? 0 : -1;
+}
+
+static double cpu_ns(const struct timespec *start)
+{
+  struct timespec end;
+  clock_gettime(CLOCK_THREAD_CPUTIME_ID, &end);
+  return (end.tv_sec - start->tv_sec) * 1e9 + (end.tv_nsec - start->tv_nsec);
+}
+
+static void bench(void)
+{
+  struct nmea_field_t fields[TYPICAL_FIELDS_CNT];
+  struct timespec start;
+  double best[4], ns;
+  volatile double d_sum;
+  volatile float f_sum;
+  double d;
+  float f;
+  bool is_defined;
+  unsigned i, rep, run, total;
+
+  d = 0;
+  f = 0;
+  for (i = 0; i < TYPICAL_FIELDS_CNT; ++i) {
+    fields[i].s = TYPICAL_FIELDS[i];
+    fields[i].len = strlen(TYPICAL_FIELDS[i]);
+  }
+
+  total = BENCH_REPS * TYPICAL_FIELDS_CNT;
+  best[0] = best[1] = best[2] = best[3] = 1e9;
+  d_sum = f_sum = 0;
+  for (run = 0; run < BENCH_RUNS; ++run) {
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
+    for (rep = 0; rep < BENCH_REPS; ++rep) {
+      for (i = 0; i < TYPICAL_FIELDS_CNT; ++i)
+        d_sum += strtod(TYPICAL_FIELDS[i], NULL);
+    }
+    if ((ns = cpu_ns(&start) / total) < best[0])
+      best[0] = ns;
+
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
+    for (rep = 0; rep < BENCH_REPS; ++rep) {
+      for (i = 0; i < TYPICAL_FIELDS_CNT; ++i) {
+        parse_nmea_double(fields[i], &d);
+        d_sum += d;
+      }
+    }
+    if ((ns = cpu_ns(&start) / total) < best[1])
+      best[1] = ns;
+
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
+    for (rep = 0; rep < BENCH_REPS; ++rep) {
+      for (i = 0; i < TYPICAL_FIELDS_CNT; ++i)
+        f_sum += strtof(TYPICAL_FIELDS[i], NULL);
+    }
+    if ((ns = cpu_ns(&start) / total) < best[2])
+      best[2] = ns;
+
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
+    for (rep = 0; rep < BENCH_REPS; ++rep) {
+      for (i = 0; i < TYPICAL_FIELDS_CNT; ++i) {
+        parse_float(fields[i], &f, &is_defined);
+        f_sum += f;
+      }
+    }
+    if ((ns = cpu_ns(&start) / total) < best[3])
+      best[3] = ns;
+  }
+
+  printf("typical fields: strtod() %.1f ns, parse_nmea_double() %.1f ns,"
+      " strtof() %.1f ns, parse_float() %.1f ns\n", best[0], best[1], best[2], best[3]);
+}
+
+int main(void)
+{
+  int res;
+
+  res = check(EXACT_DIGITS, 0);
+  res |= check(MAX_DIGITS, MAX_LONG_ULPS);
+  bench();
+
+  return res == 0 ? 0 : 1;
+}
@@ -0,0 +1,119 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * NMEA detection plus parse: find_msg() of jni/usbconverter.c and
+ * put_nmea_msg() of jni/nmea.c on one second bursts of GGA, GSA, GSV, RMC,
+ * VTG, ZDA and GLL sentences, CPU ns per sentence. The host is shared: the
+ * wall-clock time is not stable.
+ */
+
+#include <stdio.h>
+
+#include "usbconverter.c"
+
+#define BURST_CNT 2000
+#define BENCH_RUNS 7
+
+static uint8_t *corpus;
+static size_t corpus_size;
+
+static void put_sentence(const char *fmt, const char *ts)
+{
+  char body[128];
+  unsigned char checksum;
+  const char *p;
+
+  snprintf(body, sizeof(body), fmt, ts);
+  checksum = 0;
+  for (p = body; *p != '\0'; ++p)
+    checksum ^= (unsigned char)*p;
+  corpus_size += sprintf((char *)&corpus[corpus_size], "$%s*%02X\r\n", body, checksum);
+}
+
+static void gen_corpus(void)
+{
+  unsigned t;
+  char ts[16];
+
+  corpus = malloc(BURST_CNT * 7 * 128);
+  corpus_size = 0;
+  for (t = 0; t < BURST_CNT; ++t) {
+    snprintf(ts, sizeof(ts), "%02u%02u%02u.00", (t / 3600) % 24, (t / 60) % 60, t % 60);
+    put_sentence("GPGGA,%s,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,", ts);
+    put_sentence("GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1", ts);
+    put_sentence("GPGSV,3,1,11,03,03,111,00,04,15,270,00,06,01,010,00,13,06,292,00", ts);
+    put_sentence("GPRMC,%s,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W", ts);
+    put_sentence("GPVTG,054.7,T,034.4,M,005.5,N,010.2,K", ts);
+    put_sentence("GPZDA,%s,23,03,1994,00,00", ts);
+    put_sentence("GPGLL,4807.038,N,01131.000,E,%s,A,A", ts);
+  }
+}
+
+/* Returns the number of sentences, counts the valid ones and the fixes */
+static unsigned parse_all(struct nmea_parser_t *parser, bool parse,
+    unsigned *valid, unsigned *fixes)
+{
+  struct msg_framer_t framer;
+  struct gps_msg_metadata_t msg;
+  struct gps_msg_status_t status;
+  int pos, msg_pos;
+  unsigned cnt;
+
+  reset_nmea_parser(parser);
+  msg_framer_reset(&framer);
+  cnt = *valid = *fixes = 0;
+  for (pos = 0; (msg_pos = find_msg(corpus, pos, corpus_size, &msg, &framer)) >= 0;
+      pos = msg_pos + msg.size) {
+    if (msg.is_truncated || (msg.type != MSG_TYPE_NMEA))
+      break;
+    cnt += 1;
+    if (!parse)
+      continue;
+    if (put_nmea_msg(parser, &corpus[msg_pos], msg.size, msg.nmea_fields, &status))
+      *valid += 1;
+    if (status.location_changed)
+      *fixes += 1;
+  }
+
+  return cnt;
+}
+
+static double best_ns(struct nmea_parser_t *parser, bool parse,
+    unsigned *cnt, unsigned *valid, unsigned *fixes)
+{
+  struct timespec start, end;
+  double ns, best;
+  int run;
+
+  best = 1e9;
+  for (run = 0; run < BENCH_RUNS; ++run) {
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
+    *cnt = parse_all(parser, parse, valid, fixes);
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &end);
+    ns = ((end.tv_sec - start.tv_sec) * 1e9 + (end.tv_nsec - start.tv_nsec)) / *cnt;
+    if (ns < best)
+      best = ns;
+  }
+
+  return best;
+}
+
+int main(void)
+{
+  struct stats_t stats;
+  struct nmea_parser_t parser;
+  unsigned cnt, valid, fixes;
+  double detect_ns, parse_ns;
+
+  gen_corpus();
+  stats_init(&stats);
+  parser.stats = &stats;
+
+  detect_ns = best_ns(&parser, false, &cnt, &valid, &fixes);
+  parse_ns = best_ns(&parser, true, &cnt, &valid, &fixes);
+
+  printf("%u sentences, %u valid, %u fixes: detection %.0f ns/sentence,"
+      " detection plus parse %.0f ns/sentence\n", cnt, valid, fixes, detect_ns, parse_ns);
+
+  return valid == BURST_CNT * 7 ? 0 : 1;
+}
@@ -0,0 +1,362 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Replays a recorded stream through the JNI entry points of the library:
+ * JNI_OnLoad(), then the registered natives of UsbServiceThread, with
+ * native_read_loop_uri() as the read loop.
+ *
+ * replay [-m sync|urb|inline] [-b baudrate] [-r bytes/s] <file> [file|pty|tcp|<uri>]
+ *
+ *   file:  reads <file> as a regular file source
+ *   pty:   writes <file> into a pseudo terminal read as "tty:<path>"
+ *   tcp:   serves <file> on a loopback socket read as "tcp://127.0.0.1:<port>"
+ *   <uri>: any other byte source, nothing is fed
+ *
+ * -b sets the line rate of the wakeup scheduler, -r paces the pty and tcp
+ * feeders. A tcp source is paced like a device: without -r, the reader
+ * thread drops what does not fit in the ring.
+ */
+
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <netinet/in.h>
+#include <arpa/inet.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <termios.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "jni_host.h"
+
+#define FEED_CHUNK_SIZE 4096
+#define STATS_POLL_US 10000
+#define IDLE_TIMEOUT_MS 2000
+
+JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved);
+
+static struct {
+  void (*create)(JNIEnv *env, jobject this);
+  void (*destroy)(JNIEnv *env, jobject this);
+  void (*read_loop_uri)(JNIEnv *env, jobject this, jstring uri);
+  void (*cancel_read_loop)(JNIEnv *env, jobject this);
+  void (*get_stats)(JNIEnv *env, jobject this, jobject dst);
+  void (*msg_rcvd_cb)(JNIEnv *env, jobject this, jboolean enable);
+  void (*set_usb_reader_mode)(JNIEnv *env, jobject this, jint mode);
+  void (*set_serial_line_rate)(JNIEnv *env, jobject this, jint baudrate, jint bits_per_char);
+} natives;
+
+enum feeder_t {
+  FEEDER_NONE,
+  FEEDER_PTY,
+  FEEDER_TCP
+};
+
+struct replay_ctx_t {
+  jobject this;
+  jobject stats;
+  enum feeder_t feeder;
+  int fd;
+  const uint8_t *data;
+  size_t data_size;
+  unsigned feed_rate;
+  struct timespec end_ts;
+};
+
+static double timespec_diff(const struct timespec *end, const struct timespec *start)
+{
+  return (end->tv_sec - start->tv_sec) + (end->tv_nsec - start->tv_nsec) * 1e-9;
+}
+
+static int find_natives(void)
+{
+  natives.create = jni_host_find_native("native_create");
+  natives.destroy = jni_host_find_native("native_destroy");
+  natives.read_loop_uri = jni_host_find_native("native_read_loop_uri");
+  natives.cancel_read_loop = jni_host_find_native("native_cancel_read_loop");
+  natives.get_stats = jni_host_find_native("native_get_stats");
+  natives.msg_rcvd_cb = jni_host_find_native("native_msg_rcvd_cb");
+  natives.set_usb_reader_mode = jni_host_find_native("native_set_usb_reader_mode");
+  natives.set_serial_line_rate = jni_host_find_native("native_set_serial_line_rate");
+
+  if ((natives.create == NULL)
+      || (natives.destroy == NULL)
+      || (natives.read_loop_uri == NULL)
+      || (natives.cancel_read_loop == NULL)
+      || (natives.get_stats == NULL)
+      || (natives.msg_rcvd_cb == NULL)
+      || (natives.set_usb_reader_mode == NULL)
+      || (natives.set_serial_line_rate == NULL))
+    return -1;
+
+  return 0;
+}
+
+static uint8_t *read_file(const char *path, size_t *size)
+{
+  FILE *f;
+  uint8_t *data;
+  struct stat st;
+
+  f = fopen(path, "rb");
+  if (f == NULL)
+    return NULL;
+
+  data = NULL;
+  if ((fstat(fileno(f), &st) == 0)
+      && ((data = malloc(st.st_size + 1)) != NULL)) {
+    *size = fread(data, 1, st.st_size, f);
+  }
+  fclose(f);
+
+  return data;
+}
+
+static int write_all(int fd, const uint8_t *data, size_t size, unsigned rate)
+{
+  size_t pos;
+  ssize_t written;
+  struct timespec start_ts, ts;
+  long long ahead_us;
+
+  clock_gettime(CLOCK_MONOTONIC, &start_ts);
+  for (pos = 0; pos < size; pos += written) {
+    written = write(fd, &data[pos], size - pos < FEED_CHUNK_SIZE ? size - pos : FEED_CHUNK_SIZE);
+    if (written < 0) {
+      if (errno == EINTR) {
+        written = 0;
+        continue;
+      }
+      return -1;
+    }
+    if (rate != 0) {
+      clock_gettime(CLOCK_MONOTONIC, &ts);
+      ahead_us = (long long)(pos + written) * 1000000 / rate
+        - (long long)(timespec_diff(&ts, &start_ts) * 1e6);
+      if (ahead_us > 0)
+        usleep(ahead_us);
+    }
+  }
+
+  return 0;
+}
+
+/* Waits for the read loop to receive the whole stream, then cancels it */
+static void wait_rcvd(struct replay_ctx_t *ctx)
+{
+  long long last_bytes;
+  unsigned idle_ms;
+
+  last_bytes = -1;
+  idle_ms = 0;
+  for (;;) {
+    natives.get_stats(jni_host_env, ctx->this, ctx->stats);
+    if (jni_host_counters.rcvd_bytes >= (long long)ctx->data_size)
+      break;
+    if (jni_host_counters.rcvd_bytes != last_bytes) {
+      last_bytes = jni_host_counters.rcvd_bytes;
+      idle_ms = 0;
+    }else {
+      idle_ms += STATS_POLL_US / 1000;
+      if (idle_ms >= IDLE_TIMEOUT_MS)
+        break;
+    }
+    usleep(STATS_POLL_US);
+  }
+  clock_gettime(CLOCK_MONOTONIC, &ctx->end_ts);
+  natives.cancel_read_loop(jni_host_env, ctx->this);
+}
+
+static void *feeder_thread(void *arg)
+{
+  struct replay_ctx_t *ctx;
+  int fd;
+
+  ctx = (struct replay_ctx_t *)arg;
+
+  if (ctx->feeder == FEEDER_TCP) {
+    fd = accept(ctx->fd, NULL, NULL);
+    if (fd < 0) {
+      perror("accept()");
+      return NULL;
+    }
+    if (write_all(fd, ctx->data, ctx->data_size, ctx->feed_rate) < 0)
+      perror("write()");
+    /* EOF ends the read loop */
+    close(fd);
+  }else {
+    if (write_all(ctx->fd, ctx->data, ctx->data_size, ctx->feed_rate) < 0)
+      perror("write()");
+    wait_rcvd(ctx);
+  }
+
+  return NULL;
+}
+
+static int open_pty(struct replay_ctx_t *ctx, char *uri, size_t uri_size)
+{
+  int slave;
+  struct termios tios;
+
+  ctx->fd = posix_openpt(O_RDWR | O_NOCTTY);
+  if ((ctx->fd < 0) || (grantpt(ctx->fd) < 0) || (unlockpt(ctx->fd) < 0))
+    return -1;
+
+  /* Raw mode before the first byte is written. Kept open so the writes
+   * do not fail while the read loop reopens the slave */
+  slave = open(ptsname(ctx->fd), O_RDWR | O_NOCTTY);
+  if (slave < 0)
+    return -1;
+  if (tcgetattr(slave, &tios) == 0) {
+    cfmakeraw(&tios);
+    tcsetattr(slave, TCSANOW, &tios);
+  }
+
+  snprintf(uri, uri_size, "tty:%s", ptsname(ctx->fd));
+  return 0;
+}
+
+static int open_tcp_server(struct replay_ctx_t *ctx, char *uri, size_t uri_size)
+{
+  struct sockaddr_in addr;
+  socklen_t addr_len;
+
+  ctx->fd = socket(AF_INET, SOCK_STREAM, 0);
+  if (ctx->fd < 0)
+    return -1;
+
+  memset(&addr, 0, sizeof(addr));
+  addr.sin_family = AF_INET;
+  addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+  addr_len = sizeof(addr);
+  if ((bind(ctx->fd, (struct sockaddr *)&addr, sizeof(addr)) < 0)
+      || (listen(ctx->fd, 1) < 0)
+      || (getsockname(ctx->fd, (struct sockaddr *)&addr, &addr_len) < 0))
+    return -1;
+
+  snprintf(uri, uri_size, "tcp://127.0.0.1:%u", ntohs(addr.sin_port));
+  return 0;
+}
+
+static void usage(void)
+{
+  fprintf(stderr, "usage: replay [-m sync|urb|inline] [-b baudrate] [-r bytes/s] <file>"
+      " [file|pty|tcp|<uri>]\n");
+  exit(2);
+}
+
+int main(int argc, char **argv)
+{
+  struct replay_ctx_t ctx;
+  const char *path, *source;
+  char uri[PATH_MAX + 8];
+  int opt, mode, baudrate;
+  pthread_t feeder;
+  struct timespec start_ts;
+  double duration;
+
+  memset(&ctx, 0, sizeof(ctx));
+  ctx.fd = -1;
+  mode = 0;
+  baudrate = 0;
+  while ((opt = getopt(argc, argv, "m:b:r:")) != -1) {
+    switch (opt) {
+      case 'm':
+        if (strcmp(optarg, "sync") == 0)
+          mode = 0;
+        else if (strcmp(optarg, "urb") == 0)
+          mode = 1;
+        else if (strcmp(optarg, "inline") == 0)
+          mode = 2;
+        else
+          usage();
+        break;
+      case 'b':
+        baudrate = atoi(optarg);
+        break;
+      case 'r':
+        ctx.feed_rate = (unsigned)strtoul(optarg, NULL, 10);
+        break;
+      default:
+        usage();
+    }
+  }
+  if (optind >= argc)
+    usage();
+  path = argv[optind];
+  source = optind + 1 < argc ? argv[optind + 1] : "file";
+
+  ctx.data = read_file(path, &ctx.data_size);
+  if (ctx.data == NULL) {
+    perror(path);
+    return 1;
+  }
+
+  if (strcmp(source, "file") == 0) {
+    ctx.feeder = FEEDER_NONE;
+    snprintf(uri, sizeof(uri), "file:%s", path);
+  }else if (strcmp(source, "pty") == 0) {
+    ctx.feeder = FEEDER_PTY;
+    if (open_pty(&ctx, uri, sizeof(uri)) < 0) {
+      perror("pty");
+      return 1;
+    }
+  }else if (strcmp(source, "tcp") == 0) {
+    ctx.feeder = FEEDER_TCP;
+    if (open_tcp_server(&ctx, uri, sizeof(uri)) < 0) {
+      perror("tcp");
+      return 1;
+    }
+  }else {
+    ctx.feeder = FEEDER_NONE;
+    snprintf(uri, sizeof(uri), "%s", source);
+  }
+
+  if (JNI_OnLoad(&jni_host_vm, NULL) < 0) {
+    fprintf(stderr, "JNI_OnLoad() failed\n");
+    return 1;
+  }
+  if (find_natives() < 0) {
+    fprintf(stderr, "native method not registered\n");
+    return 1;
+  }
+
+  ctx.this = jni_host_new_object();
+  ctx.stats = jni_host_new_object();
+  natives.create(jni_host_env, ctx.this);
+  natives.msg_rcvd_cb(jni_host_env, ctx.this, JNI_FALSE);
+  natives.set_usb_reader_mode(jni_host_env, ctx.this, mode);
+  if (baudrate > 0)
+    natives.set_serial_line_rate(jni_host_env, ctx.this, baudrate, 10);
+
+  clock_gettime(CLOCK_MONOTONIC, &start_ts);
+  if ((ctx.feeder != FEEDER_NONE)
+      && (pthread_create(&feeder, NULL, feeder_thread, &ctx) != 0)) {
+    perror("pthread_create()");
+    return 1;
+  }
+
+  natives.read_loop_uri(jni_host_env, ctx.this, (jstring)uri);
+
+  if (ctx.feeder != FEEDER_NONE)
+    pthread_join(feeder, NULL);
+  if (ctx.feeder != FEEDER_PTY)
+    clock_gettime(CLOCK_MONOTONIC, &ctx.end_ts);
+
+  natives.get_stats(jni_host_env, ctx.this, ctx.stats);
+  natives.destroy(jni_host_env, ctx.this);
+
+  duration = timespec_diff(&ctx.end_ts, &start_ts);
+  printf("%s: %lld/%zu B, %lld junk, %lld NMEA, %llu locations, %.3f s, %.1f MB/s, %s\n",
+      uri, jni_host_counters.rcvd_bytes, ctx.data_size, jni_host_counters.rcvd_junk,
+      jni_host_counters.rcvd_nmea, jni_host_counters.locations, duration,
+      jni_host_counters.rcvd_bytes / duration / 1e6,
+      jni_host_counters.rcvd_bytes == (long long)ctx.data_size ? "no loss" : "LOSS");
+
+  return jni_host_counters.exceptions == 0 ? 0 : 1;
+}
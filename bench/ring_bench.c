@@ -0,0 +1,173 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Reader thread to read loop handoff: share() and usb_read() of
+ * jni/usbreader.c, ns per byte.
+ *
+ * paced:    one thread, every chunk is drained by 200 byte reads before the
+ *           next one, as on a paced GPS stream.
+ * threaded: producer and consumer threads, free running. The producer keeps
+ *           the bytes that do not fit in the ring, as the reader thread does.
+ */
+
+#include <sched.h>
+#include <stdlib.h>
+
+#include "usbreader.c"
+
+#define BENCH_TOTAL_BYTES (32u * 1024 * 1024)
+#define BENCH_READ_SIZE 200
+#define BENCH_RUNS 7
+
+static struct JNIInvokeInterface_ invoke_interface;
+static JavaVM jvm = &invoke_interface;
+static struct usb_reader_thread_ctx_t ctx;
+static unsigned chunk_size;
+
+static double now(void)
+{
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static void reset_ctx(void)
+{
+  memset(&ctx, 0, sizeof(ctx));
+  ctx.jvm = &jvm;
+  pthread_mutex_init(&ctx.mtx, NULL);
+  pthread_cond_init(&ctx.data_available_cond, NULL);
+  ctx.is_running = true;
+}
+
+static double run_paced(void)
+{
+  static uint8_t rx_buf[USB_READER_BUF_SIZE];
+  static uint8_t dst[USB_READER_BUF_SIZE];
+  const struct timespec timeout = {1, 0};
+  struct timespec ts;
+  unsigned long long rcvd;
+  double start;
+
+  reset_ctx();
+  memset(rx_buf, '$', sizeof(rx_buf));
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  rcvd = 0;
+
+  start = now();
+  while (rcvd < BENCH_TOTAL_BYTES) {
+    unsigned left;
+
+    share(&ctx, rx_buf, chunk_size, &ts);
+    for (left = chunk_size; left != 0; ) {
+      ssize_t res = usb_read(&ctx, dst, BENCH_READ_SIZE, &timeout, &ts);
+      if (res <= 0)
+        abort();
+      left -= res;
+      rcvd += res;
+    }
+  }
+
+  return (now() - start) * 1e9 / rcvd;
+}
+
+static void *producer(void *arg)
+{
+  static uint8_t rx_buf[USB_READER_BUF_SIZE];
+  struct timespec ts;
+  unsigned long long sent;
+  unsigned rxbuf_pos;
+
+  (void)arg;
+  memset(rx_buf, '$', sizeof(rx_buf));
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  rxbuf_pos = 0;
+  for (sent = 0; sent < BENCH_TOTAL_BYTES; sent += chunk_size) {
+    while (rxbuf_pos + chunk_size > sizeof(rx_buf)) {
+      rxbuf_pos = share(&ctx, rx_buf, rxbuf_pos, &ts);
+      sched_yield();
+    }
+    rxbuf_pos += chunk_size;
+    rxbuf_pos = share(&ctx, rx_buf, rxbuf_pos, &ts);
+  }
+  while (rxbuf_pos != 0) {
+    rxbuf_pos = share(&ctx, rx_buf, rxbuf_pos, &ts);
+    sched_yield();
+  }
+
+  usb_reader_cleanup(&ctx);
+  return NULL;
+}
+
+static double run_threaded(void)
+{
+  static uint8_t dst[USB_READER_BUF_SIZE];
+  const struct timespec timeout = {1, 0};
+  struct timespec ts;
+  unsigned long long rcvd;
+  pthread_t thread;
+  double start;
+
+  reset_ctx();
+  rcvd = 0;
+
+  start = now();
+  pthread_create(&thread, NULL, producer, NULL);
+  for (;;) {
+    ssize_t res = usb_read(&ctx, dst, BENCH_READ_SIZE, &timeout, &ts);
+    if (res < 0) {
+      if (errno == ETIMEDOUT)
+        continue;
+      break;
+    }
+    rcvd += res;
+  }
+  pthread_join(thread, NULL);
+
+  if (rcvd != BENCH_TOTAL_BYTES)
+    fprintf(stderr, "lost %llu bytes\n", BENCH_TOTAL_BYTES - rcvd);
+
+  return (now() - start) * 1e9 / rcvd;
+}
+
+static jint attach_current_thread(JavaVM *vm, JNIEnv **env, void *args)
+{
+  (void)vm;
+  (void)args;
+  *env = NULL;
+  return JNI_OK;
+}
+
+static jint detach_current_thread(JavaVM *vm)
+{
+  (void)vm;
+  return JNI_OK;
+}
+
+int main(void)
+{
+  static const unsigned chunks[] = {64, 512, 4096};
+  unsigned i;
+  int run;
+
+  invoke_interface.AttachCurrentThread = (void *)attach_current_thread;
+  invoke_interface.DetachCurrentThread = detach_current_thread;
+
+  for (i = 0; i < sizeof(chunks) / sizeof(chunks[0]); ++i) {
+    double paced, threaded;
+
+    chunk_size = chunks[i];
+    paced = threaded = 1e9;
+    for (run = 0; run < BENCH_RUNS; ++run) {
+      double res;
+      res = run_paced();
+      if (res < paced) paced = res;
+      res = run_threaded();
+      if (res < threaded) threaded = res;
+    }
+    printf("chunk %4u B: paced %.3f ns/B, threaded %.3f ns/B\n",
+        chunk_size, paced, threaded);
+  }
+
+  return 0;
+}
@@ -0,0 +1,170 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Message search: find_msg() of jni/usbconverter.c against a reference scan
+ * that calls the three detectors at every offset. Both must find the same
+ * messages (position, type, size, truncation) on every corpus.
+ *
+ * Each corpus is walked in BUF_SIZE buffers as handle_rcvd() does: the
+ * messages found are skipped, the walk ends at the first truncated one.
+ */
+
+#include <stdio.h>
+
+#include "usbconverter.c"
+
+#define BUF_SIZE 4096
+#define BUF_CNT 16
+#define BENCH_REPS 500
+#define BENCH_RUNS 7
+
+typedef int (*find_msg_fn)(uint8_t *buf, int start_pos, int buf_size,
+    struct gps_msg_metadata_t *res, struct msg_framer_t *framer);
+
+static const char CLEAN_NMEA[] =
+  "$GPGGA,092750.000,5321.6802,N,00630.3372,W,1,8,1.03,61.7,M,55.2,M,,*76\r\n"
+  "$GPGSA,A,3,10,07,05,02,29,04,08,13,,,,,1.72,1.03,1.38*0A\r\n"
+  "$GPGSV,3,1,11,10,63,137,17,07,61,098,15,05,59,290,20,08,54,157,30*70\r\n"
+  "$GPRMC,092750.000,A,5321.6802,N,00630.3372,W,0.02,31.66,280511,,,A*43\r\n";
+
+static uint8_t corpus[BUF_CNT * BUF_SIZE];
+
+/* Search of the detectors at every offset, without the framer */
+static int find_msg_every_offset(uint8_t *buf, int start_pos, int buf_size,
+    struct gps_msg_metadata_t *res, struct msg_framer_t *framer)
+{
+  int msg_pos;
+  int msg_size;
+  int msg_type;
+
+  (void)framer;
+  msg_type = -1;
+  msg_size = LOOKS_NOT_LIKE_GPS_MSG;
+  for (msg_pos = start_pos; msg_pos < buf_size; ++msg_pos) {
+    msg_size = looks_like_nmea(&buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+      msg_type = MSG_TYPE_NMEA;
+      break;
+    }
+    msg_size = looks_like_sirf(&buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+      msg_type = MSG_TYPE_SIRF;
+      break;
+    }
+    msg_size = looks_like_ublox(&buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+      msg_type = MSG_TYPE_UBLOX;
+      break;
+    }
+  }
+
+  if (msg_type < 0)
+    return -1;
+
+  res->type = msg_type;
+  res->is_truncated = msg_size == LOOKS_LIKE_TRUNCATED_MSG;
+  res->size = res->is_truncated ? buf_size - msg_pos : msg_size;
+  return msg_pos;
+}
+
+/* Walks one buffer, returns the number of messages and hashes the matches */
+static unsigned walk(find_msg_fn find, uint8_t *buf, unsigned long long *hash)
+{
+  struct msg_framer_t framer;
+  struct gps_msg_metadata_t msg;
+  int pos, msg_pos;
+  unsigned cnt;
+
+  msg_framer_reset(&framer);
+  cnt = 0;
+  for (pos = 0; (msg_pos = find(buf, pos, BUF_SIZE, &msg, &framer)) >= 0; pos = msg_pos + msg.size) {
+    *hash = *hash * 31 + msg_pos * 7 + msg.type + msg.size * 3 + msg.is_truncated;
+    cnt += 1;
+    if (msg.is_truncated)
+      break;
+  }
+
+  return cnt;
+}
+
+static double best_mb_per_s(find_msg_fn find)
+{
+  struct timespec start, end;
+  unsigned long long hash;
+  double best, sec;
+  int run, rep, i;
+
+  best = 0;
+  hash = 0;
+  for (run = 0; run < BENCH_RUNS; ++run) {
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    for (rep = 0; rep < BENCH_REPS; ++rep) {
+      for (i = 0; i < BUF_CNT; ++i)
+        walk(find, &corpus[i * BUF_SIZE], &hash);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    sec = (end.tv_sec - start.tv_sec) + (end.tv_nsec - start.tv_nsec) * 1e-9;
+    if (BENCH_REPS * sizeof(corpus) / sec / 1e6 > best)
+      best = BENCH_REPS * sizeof(corpus) / sec / 1e6;
+  }
+
+  return best;
+}
+
+static int run(const char *name)
+{
+  unsigned long long hash_ref, hash;
+  unsigned msgs;
+  int i;
+
+  hash_ref = hash = 0;
+  msgs = 0;
+  for (i = 0; i < BUF_CNT; ++i) {
+    walk(find_msg_every_offset, &corpus[i * BUF_SIZE], &hash_ref);
+    msgs += walk(find_msg, &corpus[i * BUF_SIZE], &hash);
+  }
+  if (hash != hash_ref) {
+    printf("%-28s MISMATCH\n", name);
+    return -1;
+  }
+
+  printf("%-28s every offset %7.1f MB/s, find_msg() %7.1f MB/s (%u msgs)\n",
+      name, best_mb_per_s(find_msg_every_offset), best_mb_per_s(find_msg), msgs);
+  return 0;
+}
+
+int main(void)
+{
+  unsigned i;
+  int res;
+
+  srand(1);
+  res = 0;
+
+  for (i = 0; i < sizeof(corpus); ++i)
+    corpus[i] = CLEAN_NMEA[i % (sizeof(CLEAN_NMEA) - 1)];
+  res |= run("clean NMEA");
+
+  for (i = 0; i < sizeof(corpus); ++i)
+    corpus[i] = rand();
+  res |= run("random junk");
+
+  /* 8N1 NMEA read at a lower line rate: mostly high bytes */
+  for (i = 0; i < sizeof(corpus); ++i)
+    corpus[i] = 0x80 | (rand() & 0x7f);
+  res |= run("wrong-baud junk");
+
+  for (i = 0; i < sizeof(corpus); ++i)
+    corpus[i] = i % 97 == 0 ? 'x' : CLEAN_NMEA[i % (sizeof(CLEAN_NMEA) - 1)];
+  res |= run("NMEA, 1% corrupted");
+
+  for (i = 0; i < sizeof(corpus); ++i) {
+    if (rand() % 8 == 0)
+      corpus[i] = '$';
+    else
+      corpus[i] = rand() % 3 == 0 ? 0xa0 : 'A' + rand() % 20;
+  }
+  res |= run("junk dense with sync bytes");
+
+  return res == 0 ? 0 : 1;
+}
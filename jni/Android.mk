@@ -6,6 +6,7 @@ LOCAL_CFLAGS += -fvisibility=hidden -W -Wall -D_POSIX_C_SOURCE=200112L
 LOCAL_LDLIBS += -llog
 
 LOCAL_SRC_FILES := \
+        bytesource.c \
         datalogger.c \
         nmea.c \
         onload.c \
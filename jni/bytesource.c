@@ -0,0 +1,342 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <netdb.h>
+#include <poll.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <termios.h>
+#include <unistd.h>
+#include <sys/ioctl.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+
+#include <linux/usbdevice_fs.h>
+
+#include <android/log.h>
+
+#include "bytesource.h"
+
+#define TAG "NativeByteSource"
+#ifdef ENABLE_LOG
+#define LOGV(x...) __android_log_print(ANDROID_LOG_VERBOSE,TAG,x)
+#else
+#define LOGV(...)  do {} while (0)
+#endif
+
+static int open_fd(struct byte_source_t *src, const char *str);
+static int open_tty(struct byte_source_t *src, const char *path);
+static int open_file(struct byte_source_t *src, const char *path);
+static int open_tcp(struct byte_source_t *src, const char *hostport);
+static ssize_t read_usbdevfs(struct byte_source_t *src,
+    uint8_t *dst, size_t dst_size, unsigned timeout_ms);
+static ssize_t read_fd(struct byte_source_t *src,
+    uint8_t *dst, size_t dst_size, unsigned timeout_ms);
+
+/*
+ * The cancel flag is kept: a byte_source_cancel() before or during the open
+ * stops the first read. The fd is published last, byte_source_cancel()
+ * reads the type after it.
+ */
+static void init(struct byte_source_t *src, enum byte_source_type_t type, int fd, bool owns_fd)
+{
+  __atomic_store_n(&src->type, type, __ATOMIC_RELAXED);
+  src->owns_fd = owns_fd;
+  src->endpoint = -1;
+  src->max_pkt_size = BYTE_SOURCE_FD_CHUNK_SIZE;
+  src->pkt_hdr_size = 0;
+  src->status_endpoint = -1;
+  src->status_max_pkt_size = 0;
+  src->status_format = 0;
+  src->status_pkts = 0;
+  __atomic_store_n(&src->fd, fd, __ATOMIC_SEQ_CST);
+}
+
+void byte_source_init_usbdevfs(struct byte_source_t *src,
+    int fd, int endpoint, int max_pkt_size, int pkt_hdr_size)
+{
+  init(src, BYTE_SOURCE_USBDEVFS, fd, false);
+  src->endpoint = endpoint;
+  src->max_pkt_size = max_pkt_size;
+  src->pkt_hdr_size = pkt_hdr_size;
+}
+
+void byte_source_set_status_endpoint(struct byte_source_t *src,
+    int endpoint, int max_pkt_size, int format)
+{
+  if ((src->type != BYTE_SOURCE_USBDEVFS) || (endpoint < 0) || (max_pkt_size <= 0)) {
+    src->status_endpoint = -1;
+    src->status_max_pkt_size = 0;
+    src->status_format = 0;
+    return;
+  }
+  src->status_endpoint = endpoint;
+  src->status_max_pkt_size = max_pkt_size;
+  src->status_format = format;
+}
+
+int byte_source_open(struct byte_source_t *src, const char *uri)
+{
+  LOGV("byte_source_open(%s)", uri);
+
+  if (strncmp(uri, "fd:", 3) == 0)
+    return open_fd(src, uri + 3);
+  else if (strncmp(uri, "tty:", 4) == 0)
+    return open_tty(src, uri + 4);
+  else if (strncmp(uri, "file:", 5) == 0)
+    return open_file(src, uri + 5);
+  else if (strncmp(uri, "tcp://", 6) == 0)
+    return open_tcp(src, uri + 6);
+
+  errno = EINVAL;
+  return -1;
+}
+
+void byte_source_close(struct byte_source_t *src)
+{
+  int fd;
+
+  fd = src->fd;
+  __atomic_store_n(&src->fd, -1, __ATOMIC_SEQ_CST);
+  if (src->owns_fd && (fd >= 0))
+    close(fd);
+}
+
+/*
+ * Stops the reads. Sockets are shut down to wake up the reader; other
+ * sources are stopped on the next read or read timeout.
+ */
+void byte_source_cancel(struct byte_source_t *src)
+{
+  int fd;
+
+  __atomic_store_n(&src->cancelled, 1, __ATOMIC_SEQ_CST);
+  /* fd < 0: not open yet, the first read sees the flag */
+  fd = __atomic_load_n(&src->fd, __ATOMIC_SEQ_CST);
+  if ((fd >= 0) && (__atomic_load_n(&src->type, __ATOMIC_RELAXED) == BYTE_SOURCE_TCP))
+    shutdown(fd, SHUT_RDWR);
+}
+
+ssize_t byte_source_read(struct byte_source_t *src,
+    uint8_t *dst, size_t dst_size, unsigned timeout_ms)
+{
+  if (__atomic_load_n(&src->cancelled, __ATOMIC_RELAXED)) {
+    errno = ECANCELED;
+    return -1;
+  }
+
+  if (src->type == BYTE_SOURCE_USBDEVFS)
+    return read_usbdevfs(src, dst, dst_size, timeout_ms);
+  else
+    return read_fd(src, dst, dst_size, timeout_ms);
+}
+
+size_t byte_source_strip_pkt_headers(struct byte_source_t *src,
+    uint8_t *dst, const uint8_t *data, size_t size)
+{
+  size_t pos, pkt_size;
+  uint8_t *d;
+
+  if (src->pkt_hdr_size == 0) {
+    if (dst != data)
+      memmove(dst, data, size);
+    return size;
+  }
+
+  d = dst;
+  for (pos = 0; pos < size; pos += pkt_size) {
+    pkt_size = size - pos;
+    if (pkt_size > (size_t)src->max_pkt_size)
+      pkt_size = src->max_pkt_size;
+    if (pkt_size <= (size_t)src->pkt_hdr_size) {
+      src->status_pkts += 1;
+      continue;
+    }
+    memmove(d, &data[pos + src->pkt_hdr_size], pkt_size - src->pkt_hdr_size);
+    d += pkt_size - src->pkt_hdr_size;
+  }
+
+  return d - dst;
+}
+
+static ssize_t read_usbdevfs(struct byte_source_t *src,
+    uint8_t *dst, size_t dst_size, unsigned timeout_ms)
+{
+  struct usbdevfs_bulktransfer ctrl;
+  int rcvd;
+
+  memset(&ctrl, 0, sizeof(ctrl));
+  ctrl.ep = src->endpoint;
+  ctrl.len = dst_size;
+  ctrl.data = dst;
+  ctrl.timeout = timeout_ms;
+
+  rcvd = ioctl(src->fd, USBDEVFS_BULK, &ctrl);
+  if ((rcvd <= 0) || (src->pkt_hdr_size == 0))
+    return rcvd;
+
+  return byte_source_strip_pkt_headers(src, dst, dst, rcvd);
+}
+
+static ssize_t read_fd(struct byte_source_t *src,
+    uint8_t *dst, size_t dst_size, unsigned timeout_ms)
+{
+  struct pollfd pfd;
+  ssize_t rcvd;
+  int rc;
+
+  pfd.fd = src->fd;
+  pfd.events = POLLIN;
+  pfd.revents = 0;
+  rc = poll(&pfd, 1, timeout_ms);
+  if (rc == 0) {
+    errno = ETIMEDOUT;
+    return -1;
+  }else if (rc < 0) {
+    if (errno == EINTR) {
+      errno = ETIMEDOUT;
+    }
+    return -1;
+  }
+
+  if (__atomic_load_n(&src->cancelled, __ATOMIC_RELAXED)) {
+    errno = ECANCELED;
+    return -1;
+  }
+
+  rcvd = read(src->fd, dst, dst_size);
+  if (rcvd == 0) {
+    errno = ENODATA;
+    return -1;
+  }else if ((rcvd < 0) && (errno == EAGAIN || errno == EINTR)) {
+    errno = ETIMEDOUT;
+  }
+
+  return rcvd;
+}
+
+static int open_fd(struct byte_source_t *src, const char *str)
+{
+  char *endptr;
+  long fd;
+
+  fd = strtol(str, &endptr, 10);
+  if ((*str == '\0') || (*endptr != '\0') || (fd < 0) || (fd > INT_MAX)) {
+    errno = EINVAL;
+    return -1;
+  }
+
+  init(src, BYTE_SOURCE_FD, (int)fd, false);
+  return 0;
+}
+
+static int open_tty(struct byte_source_t *src, const char *path)
+{
+  int fd;
+  struct termios tios;
+
+  fd = open(path, O_RDONLY | O_NOCTTY);
+  if (fd < 0)
+    return -1;
+
+  /* Raw mode, the line rate is left as is */
+  if (tcgetattr(fd, &tios) == 0) {
+    tios.c_iflag &= ~(IGNBRK | BRKINT | PARMRK | ISTRIP | INLCR | IGNCR | ICRNL | IXON);
+    tios.c_lflag &= ~(ECHO | ECHONL | ICANON | ISIG | IEXTEN);
+    tios.c_cc[VMIN] = 1;
+    tios.c_cc[VTIME] = 0;
+    if (tcsetattr(fd, TCSANOW, &tios) != 0)
+      LOGV("tcsetattr() error: %s", strerror(errno));
+  }else {
+    LOGV("tcgetattr() error: %s", strerror(errno));
+  }
+
+  init(src, BYTE_SOURCE_FD, fd, true);
+  return 0;
+}
+
+static int open_file(struct byte_source_t *src, const char *path)
+{
+  int fd;
+  struct stat st;
+
+  fd = open(path, O_RDONLY);
+  if (fd < 0)
+    return -1;
+
+  if ((fstat(fd, &st) == 0) && !S_ISREG(st.st_mode)) {
+    /* Named pipe or character device: paced by the writer */
+    init(src, BYTE_SOURCE_FD, fd, true);
+  }else {
+    init(src, BYTE_SOURCE_FILE, fd, true);
+  }
+
+  return 0;
+}
+
+static int open_tcp(struct byte_source_t *src, const char *hostport)
+{
+  char host[256];
+  const char *port;
+  size_t host_len;
+  struct addrinfo hints;
+  struct addrinfo *res, *ai;
+  int fd;
+  int rc;
+
+  port = strrchr(hostport, ':');
+  if ((port == NULL) || (port[1] == '\0')) {
+    errno = EINVAL;
+    return -1;
+  }
+
+  /* [ipv6]:port */
+  if ((hostport[0] == '[') && (port > hostport) && (port[-1] == ']')) {
+    hostport += 1;
+    host_len = port - hostport - 1;
+  }else {
+    host_len = port - hostport;
+  }
+  if ((host_len == 0) || (host_len >= sizeof(host))) {
+    errno = EINVAL;
+    return -1;
+  }
+  memcpy(host, hostport, host_len);
+  host[host_len] = '\0';
+  port += 1;
+
+  memset(&hints, 0, sizeof(hints));
+  hints.ai_family = AF_UNSPEC;
+  hints.ai_socktype = SOCK_STREAM;
+
+  rc = getaddrinfo(host, port, &hints, &res);
+  if (rc != 0) {
+    LOGV("getaddrinfo(%s, %s) error: %s", host, port, gai_strerror(rc));
+    errno = EHOSTUNREACH;
+    return -1;
+  }
+
+  fd = -1;
+  for (ai = res; ai != NULL; ai = ai->ai_next) {
+    fd = socket(ai->ai_family, ai->ai_socktype, ai->ai_protocol);
+    if (fd < 0)
+      continue;
+    if (connect(fd, ai->ai_addr, ai->ai_addrlen) == 0)
+      break;
+    rc = errno;
+    close(fd);
+    fd = -1;
+    errno = rc;
+  }
+  freeaddrinfo(res);
+
+  if (fd < 0)
+    return -1;
+
+  init(src, BYTE_SOURCE_TCP, fd, true);
+  return 0;
+}
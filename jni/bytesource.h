@@ -0,0 +1,116 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#ifndef _BYTE_SOURCE_H
+#define _BYTE_SOURCE_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <sys/types.h>
+
+/* Read size of the fd-based sources */
+#define BYTE_SOURCE_FD_CHUNK_SIZE 4096
+
+enum byte_source_type_t {
+  /* Bulk-in endpoint of an usbdevfs device, opened by the java side */
+  BYTE_SOURCE_USBDEVFS = 0,
+  /* Serial port, pty or pipe: "fd:<n>", "tty:<path>" */
+  BYTE_SOURCE_FD = 1,
+  /* Regular file, read as fast as it is consumed: "file:<path>" */
+  BYTE_SOURCE_FILE = 2,
+  /* TCP client: "tcp://<host>:<port>" */
+  BYTE_SOURCE_TCP = 3
+};
+
+struct byte_source_t {
+  enum byte_source_type_t type;
+  int fd;
+  bool owns_fd;
+
+  /* usbdevfs only */
+  int endpoint;
+
+  /* Read size: max packet size for usbdevfs */
+  int max_pkt_size;
+
+  /* usbdevfs only: status bytes at the start of every max_pkt_size packet,
+   * removed from the read data (FTDI) */
+  int pkt_hdr_size;
+
+  /* usbdevfs only: interrupt-in endpoint with the serial state
+   * notifications, -1 if none. status_format: enum usb_reader_status_format_t */
+  int status_endpoint;
+  int status_max_pkt_size;
+  int status_format;
+
+  /* Packets without data since the last byte_source_take_status_pkts().
+   * Accessed by the reading thread only */
+  unsigned status_pkts;
+
+  /* Set by byte_source_cancel() from other threads. Not cleared by the
+   * open: zeroed with the reader context, a cancelled reader is not reused */
+  int cancelled;
+};
+
+void byte_source_init_usbdevfs(struct byte_source_t *src,
+    int fd, int endpoint, int max_pkt_size, int pkt_hdr_size);
+
+void byte_source_set_status_endpoint(struct byte_source_t *src,
+    int endpoint, int max_pkt_size, int format);
+
+int byte_source_open(struct byte_source_t *src, const char *uri);
+
+void byte_source_close(struct byte_source_t *src);
+
+void byte_source_cancel(struct byte_source_t *src);
+
+/*
+ * Reads at most dst_size bytes. Returns the number of bytes read, or -1 with
+ * errno set: ETIMEDOUT on timeout, ENODATA at the end of stream, ECANCELED
+ * after byte_source_cancel().
+ * usbdevfs sources can return 0 on zero-length packets and on packets
+ * with the status bytes only.
+ */
+ssize_t byte_source_read(struct byte_source_t *src,
+    uint8_t *dst, size_t dst_size, unsigned timeout_ms);
+
+/*
+ * Copies size bytes of a bulk-in transfer from data to dst without the
+ * packet headers. dst can be equal to data: the payload is moved in place.
+ * Returns the number of data bytes.
+ */
+size_t byte_source_strip_pkt_headers(struct byte_source_t *src,
+    uint8_t *dst, const uint8_t *data, size_t size);
+
+/*
+ * Returns data capacity of a read of read_size bytes
+ */
+static inline size_t byte_source_payload_size(const struct byte_source_t *src,
+    size_t read_size)
+{
+  size_t pkt_cnt;
+
+  if (src->pkt_hdr_size == 0)
+    return read_size;
+  pkt_cnt = (read_size + src->max_pkt_size - 1) / src->max_pkt_size;
+  return read_size - pkt_cnt * src->pkt_hdr_size;
+}
+
+static inline unsigned byte_source_take_status_pkts(struct byte_source_t *src)
+{
+  unsigned res;
+
+  res = src->status_pkts;
+  src->status_pkts = 0;
+  return res;
+}
+
+/*
+ * false if the data is not lost when the source is not read in time: the
+ * reader waits for the consumer instead of dropping data
+ */
+static inline bool byte_source_is_paced(const struct byte_source_t *src)
+{
+  return src->type != BYTE_SOURCE_FILE;
+}
+
+#endif
@@ -2,11 +2,13 @@
 
 #include <assert.h>
 #include <ctype.h>
-#include <errno.h>
+#include <float.h>
+#include <limits.h>
 #include <math.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <stdarg.h>
+#include <string.h>
 
 #include <jni.h>
 #include <android/log.h>
@@ -20,61 +22,154 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
+/* Epochs with the same last sentence before the fix is closed on it */
+#define EPOCH_END_CONFIRMATIONS 3
+
 #define KNOTS_TO_MPS 0.514444
 #define KMPH_TO_MPS (1000.0 / 3600.0)
 
+/* Exactly representable powers of 10 */
+#define POW10_MAX 22
+#define POW10F_MAX 10
+
+static const double pow10_tbl[POW10_MAX + 1] = {
+  1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+  1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+};
+
+static const float pow10f_tbl[POW10F_MAX + 1] = {
+  1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+};
+
 typedef enum {
   FIELD_INVALID = -1,
   FIELD_UNDEFINED = 0,
   FIELD_VALID = 1
 } parse_error_t;
 
+/* Talker ID: first two letters of the sentence address */
+typedef enum {
+  NMEA_TALKER_UNKNOWN = 0,
+  NMEA_TALKER_GP,   /* GPS */
+  NMEA_TALKER_GN,   /* Combined GNSS */
+  NMEA_TALKER_GL,   /* GLONASS */
+  NMEA_TALKER_GA,   /* Galileo */
+  NMEA_TALKER_GB,   /* BeiDou, NMEA 4.11 */
+  NMEA_TALKER_BD,   /* BeiDou */
+  NMEA_TALKER_GQ,   /* QZSS */
+  NMEA_TALKER_PROPRIETARY /* $P<manufacturer> */
+} nmea_talker_t;
+
+/* Dispatch keys: 3-letter sentence formatter, or manufacturer of the
+ * proprietary sentence */
+#define NMEA_FORMATTER(c1, c2, c3) \
+  (((unsigned)(uint8_t)(c1) << 16) | ((unsigned)(uint8_t)(c2) << 8) | (unsigned)(uint8_t)(c3))
+#define NMEA_PROPRIETARY(c1, c2, c3) ((1u << 24) | NMEA_FORMATTER(c1, c2, c3))
+
+
+/* Field of the sentence, not NUL-terminated */
+struct nmea_field_t {
+  const char *s;
+  unsigned len;
+};
+
+/*
+ * Decimal number of the field: [+-]digits[.digits], value is
+ * mantissa * 10^exp10. Only the first NMEA_DECIMAL_DIGITS significant
+ * digits are kept in mantissa, is_exact is false if there were more.
+ */
+#define NMEA_DECIMAL_DIGITS 19
+struct nmea_decimal_t {
+  uint64_t mantissa;
+  int exp10;
+  bool negative;
+  bool is_exact;
+};
 
-static bool parse_gga(const uint8_t *msg, size_t msg_size, struct nmea_gpgga_t *dst,
+static bool parse_gga(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields, struct nmea_gpgga_t *dst,
     struct gps_msg_status_t *status);
 static bool parse_rmc(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gprmc_t *dst, struct gps_msg_status_t *status);
-static bool parse_gll(const uint8_t *msg, size_t msg_size, struct nmea_gpgll_t *dst,
+static bool parse_gll(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields, struct nmea_gpgll_t *dst,
     struct gps_msg_status_t *status);
 static bool parse_vtg(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpvtg_t *dst, struct gps_msg_status_t *status);
 static bool parse_gsa(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpgsa_t *dst, struct gps_msg_status_t *status);
 static bool parse_zda(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpzda_t *dst, struct gps_msg_status_t *status);
 static bool parse_gst(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpgst_t *dst, struct gps_msg_status_t *status);
 
-static unsigned split_nmea_str(const uint8_t *msg, size_t msg_size,
-    const char **fields, int fields_size, char *buf);
-static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix_time_t *dst);
-static bool parse_nmea_latitude(const char * __restrict deg_str,
-    const char * __restrict ns,
+static inline void close_nmea_fields(struct nmea_fields_t *fields, unsigned pos);
+static unsigned get_nmea_fields(const uint8_t *msg, const struct nmea_fields_t *src,
+    struct nmea_field_t *fields, unsigned fields_size);
+static inline const char *field_end(struct nmea_field_t field);
+static inline char field_char(struct nmea_field_t field);
+static inline nmea_talker_t get_nmea_talker(char c1, char c2);
+static unsigned get_nmea_talker_system_id(nmea_talker_t talker);
+static unsigned get_nmea_msg_key(struct nmea_field_t msg_id);
+static parse_error_t parse_nmea_fix_time(struct nmea_field_t hhmmss_mss, struct nmea_fix_time_t *dst);
+static bool parse_nmea_latitude(struct nmea_field_t deg_str,
+    struct nmea_field_t ns,
     double * __restrict dst,
     bool * dst_is_defined);
-static bool parse_nmea_longitude(const char * __restrict deg_str,
-    const char * __restrict ew,
+static bool parse_nmea_longitude(struct nmea_field_t deg_str,
+    struct nmea_field_t ew,
     double * __restrict dst,
     bool * __restrict dst_is_defined
     );
-static bool parse_float(const char * __restrict str,
+static bool parse_float(struct nmea_field_t str,
     float * __restrict dst,
     bool * __restrict dst_is_defined
     );
-
-static void open_nmea_fix(struct nmea_fix_t *fix, struct nmea_fix_time_t time);
+static parse_error_t parse_nmea_decimal(struct nmea_field_t str, struct nmea_decimal_t *dst);
+static double decimal_to_double(const struct nmea_decimal_t *d, int *side);
+static parse_error_t parse_nmea_double(struct nmea_field_t str, double *dst);
+static parse_error_t parse_nmea_ulong(struct nmea_field_t str, unsigned long *dst);
+static parse_error_t parse_nmea_long(struct nmea_field_t str, long *dst);
+static inline int hex_digit_val(uint8_t c);
+
+static void open_nmea_fix(struct nmea_parser_t *ctx, struct nmea_fix_time_t time);
+static void add_gsa_satellites(struct nmea_parser_t *ctx, const struct nmea_gpgsa_t *gsa);
+static void learn_epoch_end(struct nmea_parser_t *ctx);
+static void account_fix_sentence(struct nmea_parser_t *ctx, enum nmea_sentence_t sentence,
+    bool has_fix_time, struct gps_msg_status_t *status);
+static inline bool fix_ready_to_close(const struct nmea_parser_t *ctx);
 static inline bool is_same_fix_time(struct nmea_fix_time_t t1, struct nmea_fix_time_t t2);
 static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *status);
+static void account_fix_latency(struct stats_t *stats, const struct timespec *open_ts);
 static void merge_full_time(struct nmea_parser_t *ctx);
 static bool compose_location(const struct nmea_parser_t *ctx, struct location_t *dst);
 static bool set_nmea_error(struct gps_msg_status_t *status,
     const uint8_t *nmea_msg, size_t nmea_msg_size, char *fmt, ...);
 
 inline int looks_like_nmea(const uint8_t *msg, size_t max_len)
+{
+  struct msg_framer_t f;
+
+  msg_framer_start(&f, MSG_TYPE_NMEA);
+  return resume_nmea_msg(&f, msg, max_len);
+}
+
+/*
+ * looks_like_nmea() resumed at f->pos: the bytes before it have been
+ * examined by the previous calls on the same message. The fields are split
+ * in the same pass
+ */
+int resume_nmea_msg(struct msg_framer_t *f, const uint8_t *msg, size_t max_len)
 {
   unsigned i;
+  unsigned csum;
   int crlf_pos;
-  int csum_pos;
+  struct nmea_fields_t *fields;
 
   assert(max_len > 0);
 
@@ -82,53 +177,64 @@ inline int looks_like_nmea(const uint8_t *msg, size_t max_len)
     return LOOKS_NOT_LIKE_GPS_MSG;
 
   crlf_pos = -1;
-  csum_pos = -1;
+  csum = f->csum;
+  fields = &f->fields;
 
-  for (i=1; i < max_len; ++i) {
+  for (i=f->pos; i < max_len; ++i) {
 
     if (i > NMEA_MAX)
         return LOOKS_NOT_LIKE_GPS_MSG;
 
-    if (msg[i] == '*') {
-      csum_pos = (int)i;
+    if (msg[i] == ',') {
+      if (!fields->closed) {
+        fields->end[fields->nb - 1] = (uint16_t)i;
+        if (fields->nb < NMEA_MAX_FIELDS)
+          fields->nb += 1;
+        else
+          fields->closed = true;
+      }
+    }else if (msg[i] == '*') {
+      f->csum_pos = (int)i;
+      f->star_csum = csum;
+      close_nmea_fields(fields, i);
     }else if (msg[i] == 0x0d) {
       if (i + 1 == max_len) {
-        return LOOKS_LIKE_TRUNCATED_MSG;
+        /* <CR> is examined again with the next byte */
+        break;
       }else if (msg[i+1] != 0x0a) {
         return LOOKS_NOT_LIKE_GPS_MSG;
       }else {
         crlf_pos = (int)i;
+        close_nmea_fields(fields, i);
         break;
       }
     }else if (!isprint(msg[i])) {
       return LOOKS_NOT_LIKE_GPS_MSG;
     }
+    csum ^= msg[i] & 0x7f;
   }
 
-  if (crlf_pos < 0)
+  if (crlf_pos < 0) {
+    f->pos = i;
+    f->csum = csum;
     return LOOKS_LIKE_TRUNCATED_MSG;
+  }
 
-  if (csum_pos > 0) {
+  if (f->csum_pos > 0) {
+    int csum_hi, csum_lo;
     unsigned msg_csum;
-    unsigned our_csum;
-    unsigned char csum_str[3];
-    char *endptr;
 
     // Optional checksum (*XX<CR><LF>)
-    if (csum_pos + 3 != crlf_pos)
+    if (f->csum_pos + 3 != crlf_pos)
       return LOOKS_NOT_LIKE_GPS_MSG;
-    csum_str[0] = msg[csum_pos+1];
-    csum_str[1] = msg[csum_pos+2];
-    csum_str[2] = '\0';
-
-    msg_csum = (unsigned)strtol((const char *)csum_str, &endptr, 16);
-    if (*endptr != '\0')
+    csum_hi = hex_digit_val(msg[f->csum_pos+1]);
+    csum_lo = hex_digit_val(msg[f->csum_pos+2]);
+    if (csum_hi < 0 || csum_lo < 0)
       return LOOKS_NOT_LIKE_GPS_MSG;
+    msg_csum = ((unsigned)csum_hi << 4) | (unsigned)csum_lo;
 
-    our_csum = 0;
-    for (i=1; i < (unsigned)csum_pos; ++i) our_csum ^= msg[i] & 0x7f;
-    if (our_csum != msg_csum) {
-      LOGV("NMEA Checksum mismatch. 0x%x != 0x%x", msg_csum, our_csum);
+    if (f->star_csum != msg_csum) {
+      LOGV("NMEA Checksum mismatch. 0x%x != 0x%x", msg_csum, f->star_csum);
       return LOOKS_NOT_LIKE_GPS_MSG;
     }
   }
@@ -137,13 +243,14 @@ inline int looks_like_nmea(const uint8_t *msg, size_t max_len)
 }
 
 
-bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status)
+bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *fields, struct gps_msg_status_t *status)
 {
-  unsigned i;
-  char msg_id[9];
+  struct nmea_field_t msg_id;
 
   assert(msg_size > 1 &&  msg_size <= NMEA_MAX);
   assert((size_t)looks_like_nmea(msg, msg_size) == msg_size);
+  assert(fields->closed);
 
   status->is_valid = false;
   status->location_changed = false;
@@ -152,108 +259,125 @@ bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size
   ctx->stats->rcvd.nmea.last_msg_ts = ctx->stats->rcvd.last_byte_ts;
   ctx->stats->rcvd.nmea.total += 1;
 
-  for (i=0; i < sizeof(msg_id); ++i) {
-    if (i >= msg_size) {
-      msg_id[i] = '\0';
+  /* Sentence address: up to the first ',' */
+  if ((get_nmea_fields(msg, fields, &msg_id, 1) == 0)
+      || (msg[msg_id.len] != ',')) {
+    msg_id.s = (const char *)msg;
+    msg_id.len = 0;
+  }
+
+  switch (get_nmea_msg_key(msg_id)) {
+    case NMEA_FORMATTER('G', 'G', 'A'):
+      {
+        struct nmea_gpgga_t gxgga;
+        if (parse_gga(msg, msg_size, fields, &gxgga, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxgga.fix_time)) {
+            close_nmea_fix(ctx, status);
+            open_nmea_fix(ctx, gxgga.fix_time);
+          }
+          ctx->fix.gpgga_active = true;
+          ctx->fix.gpgga = gxgga;
+          ctx->stats->rcvd.nmea.gga += 1;
+          account_fix_sentence(ctx, NMEA_SENTENCE_GGA, true, status);
+        }
+      }
       break;
-    }else {
-      if (msg[i] == ',') {
-        msg_id[i] = '\0';
-        break;
-      }else {
-        msg_id[i] = (char)msg[i];
+    case NMEA_FORMATTER('R', 'M', 'C'):
+      {
+        struct nmea_gprmc_t gxrmc;
+        if (parse_rmc(msg, msg_size, fields, &gxrmc, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxrmc.fix_time)) {
+            close_nmea_fix(ctx, status);
+            open_nmea_fix(ctx, gxrmc.fix_time);
+          }
+          ctx->fix.gprmc_active = true;
+          ctx->fix.gprmc = gxrmc;
+          ctx->stats->rcvd.nmea.rmc += 1;
+          account_fix_sentence(ctx, NMEA_SENTENCE_RMC, true, status);
+        }
       }
-    }
-  }
-  msg_id[sizeof(msg_id)-1] = '\0';
-
-  if (
-      (strcmp("$GPGGA", msg_id) == 0)
-      || (strcmp("$GNGGA", msg_id) == 0)
-      || (strcmp("$GLGGA", msg_id) == 0)
-      || (strcmp("$GAGGA", msg_id) == 0)
-      ) {
-    struct nmea_gpgga_t gxgga;
-    if (parse_gga(msg, msg_size, &gxgga, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gxgga.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gxgga.fix_time);
+      break;
+    case NMEA_FORMATTER('G', 'L', 'L'):
+      {
+        struct nmea_gpgll_t gxgll;
+        if (parse_gll(msg, msg_size, fields, &gxgll, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxgll.fix_time)) {
+            close_nmea_fix(ctx, status);
+            open_nmea_fix(ctx, gxgll.fix_time);
+          }
+          ctx->fix.gpgll_active = true;
+          ctx->fix.gpgll = gxgll;
+          ctx->stats->rcvd.nmea.gll += 1;
+          account_fix_sentence(ctx, NMEA_SENTENCE_GLL, true, status);
+        }
       }
-      ctx->fix.gpgga_active = true;
-      ctx->fix.gpgga = gxgga;
-      ctx->stats->rcvd.nmea.gga += 1;
-    }
-  }else if (
-      (strcmp("$GPRMC", msg_id) == 0)
-      || (strcmp("$GNRMC", msg_id) == 0)
-      || (strcmp("$GLRMC", msg_id) == 0)
-      || (strcmp("$GARMC", msg_id) == 0)
-      ) {
-    struct nmea_gprmc_t gxrmc;
-    if (parse_rmc(msg, msg_size, &gxrmc, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gxrmc.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gxrmc.fix_time);
+      break;
+    case NMEA_FORMATTER('G', 'S', 'T'):
+      {
+        struct nmea_gpgst_t gxgst;
+        if (parse_gst(msg, msg_size, fields, &gxgst, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxgst.fix_time)) {
+            close_nmea_fix(ctx, status);
+            open_nmea_fix(ctx, gxgst.fix_time);
+          }
+          ctx->fix.gpgst_active = true;
+          ctx->fix.gpgst = gxgst;
+          ctx->stats->rcvd.nmea.gst += 1;
+          account_fix_sentence(ctx, NMEA_SENTENCE_GST, true, status);
+        }
       }
-      ctx->fix.gprmc_active = true;
-      ctx->fix.gprmc = gxrmc;
-      ctx->stats->rcvd.nmea.rmc += 1;
-    }
-  }else if (strcmp("$GPGLL", msg_id) == 0) {
-    struct nmea_gpgll_t gxgll;
-    if (parse_gll(msg, msg_size, &gxgll, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gxgll.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gxgll.fix_time);
+      break;
+    case NMEA_FORMATTER('G', 'S', 'A'):
+      {
+        struct nmea_gpgsa_t gxgsa;
+        memset(&gxgsa, 0, sizeof(gxgsa));
+        if (parse_gsa(msg, msg_size, fields, &gxgsa, status)) {
+          gxgsa.is_valid = true;
+          add_gsa_satellites(ctx, &gxgsa);
+          ctx->stats->rcvd.nmea.gsa += 1;
+          account_fix_sentence(ctx, NMEA_SENTENCE_GSA, false, status);
+        }
       }
-      ctx->fix.gpgll_active = true;
-      ctx->fix.gpgll = gxgll;
-      ctx->stats->rcvd.nmea.gll += 1;
-    }
-  }else if (strcmp("$GPGST", msg_id) == 0) {
-    struct nmea_gpgst_t gpgst;
-    if (parse_gst(msg, msg_size, &gpgst, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gpgst.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gpgst.fix_time);
+      break;
+    case NMEA_FORMATTER('V', 'T', 'G'):
+      {
+        struct nmea_gpvtg_t gxvtg;
+        if (parse_vtg(msg, msg_size, fields, &gxvtg, status)) {
+          gxvtg.is_valid = true;
+          ctx->gpvtg = gxvtg;
+          ctx->stats->rcvd.nmea.vtg += 1;
+          account_fix_sentence(ctx, NMEA_SENTENCE_VTG, false, status);
+        }
       }
-      ctx->fix.gpgst_active = true;
-      ctx->fix.gpgst = gpgst;
-      ctx->stats->rcvd.nmea.gst += 1;
-    }
-  }else if (strcmp("$GPGSA", msg_id) == 0) {
-    struct nmea_gpgsa_t gpgsa;
-    if (parse_gsa(msg, msg_size, &gpgsa, status)) {
-      gpgsa.is_valid = true;
-      ctx->gpgsa = gpgsa;
-      ctx->stats->rcvd.nmea.gsa += 1;
-    }
-  }else if (strcmp("$GPVTG", msg_id) == 0) {
-    struct nmea_gpvtg_t gpvtg;
-    if (parse_vtg(msg, msg_size, &gpvtg, status)) {
-      gpvtg.is_valid = true;
-      ctx->gpvtg = gpvtg;
-      ctx->stats->rcvd.nmea.vtg += 1;
-    }
-  }else if (strcmp("$GPZDA", msg_id) == 0) {
-    struct nmea_gpzda_t gpzda;
-    if (parse_zda(msg, msg_size, &gpzda, status)) {
-      ctx->fix.gpzda_active = true;
-      ctx->fix.gpzda = gpzda;
-      ctx->stats->rcvd.nmea.zda += 1;
-    }
-  }else if (strcmp("$GPGSV", msg_id) == 0) {
-    // TODO
-    status->is_valid = true;
-    ctx->stats->rcvd.nmea.gsv += 1;
-  }else if (strcmp("$PUBX", msg_id) == 0) {
-    // TODO
-    status->is_valid = true;
-    ctx->stats->rcvd.nmea.pubx += 1;
-  } else {
-    set_nmea_error(status, msg, msg_size, "unk msg");
-    status->is_valid = true;
-    ctx->stats->rcvd.nmea.other += 1;
+      break;
+    case NMEA_FORMATTER('Z', 'D', 'A'):
+      {
+        struct nmea_gpzda_t gxzda;
+        if (parse_zda(msg, msg_size, fields, &gxzda, status)) {
+          ctx->fix.gpzda_active = true;
+          ctx->fix.gpzda = gxzda;
+          ctx->stats->rcvd.nmea.zda += 1;
+          /* ZDA of the next epoch may come before its GGA or RMC */
+          account_fix_sentence(ctx, NMEA_SENTENCE_ZDA,
+              is_same_fix_time(ctx->fix.fix_time, gxzda.fix_time), status);
+        }
+      }
+      break;
+    case NMEA_FORMATTER('G', 'S', 'V'):
+      // TODO
+      status->is_valid = true;
+      ctx->stats->rcvd.nmea.gsv += 1;
+      break;
+    case NMEA_PROPRIETARY('U', 'B', 'X'):
+      // TODO
+      status->is_valid = true;
+      ctx->stats->rcvd.nmea.pubx += 1;
+      break;
+    default:
+      set_nmea_error(status, msg, msg_size, "unk msg");
+      status->is_valid = true;
+      ctx->stats->rcvd.nmea.other += 1;
+      break;
   }
 
   return status->is_valid;
@@ -264,19 +388,19 @@ void put_nmea_timedout(struct nmea_parser_t *ctx, struct gps_msg_status_t *statu
   status->is_valid = false;
   status->err[0] = '\0';
   close_nmea_fix(ctx, status);
+  /* The epoch may be incomplete: do not learn its end */
+  ctx->fix.last_sentence = NMEA_SENTENCE_NONE;
 }
 
 static bool parse_gga(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpgga_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   struct nmea_gpgga_t gpgga;
-  const char *fields[15];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
+  struct nmea_field_t fields[15];
 
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
   if (fields_nb < 15) {
     return set_nmea_error(status, msg, msg_size,
@@ -290,25 +414,22 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
   /* Fields 2,3 latitude */
   if (!parse_nmea_latitude(fields[2], fields[3], &gpgga.latitude, &gpgga.has_latitude))
     return set_nmea_error(status, msg, msg_size,
-        "Invalid latitude '%s:%s'", fields[2], fields[3]);
+        "Invalid latitude '%.*s:%.*s'",
+        (int)fields[2].len, fields[2].s, (int)fields[3].len, fields[3].s);
 
   /* Fields 4,5 longitude */
   if (!parse_nmea_longitude(fields[4], fields[5], &gpgga.longitude, &gpgga.has_longitude))
     return set_nmea_error(status, msg, msg_size,
-        "Invalid longitude '%s:%s'", fields[4], fields[5]);
+        "Invalid longitude '%.*s:%.*s'",
+        (int)fields[4].len, fields[4].s, (int)fields[5].len, fields[5].s);
 
   /* Field 6 fix quality */
-  if (fields[6][0] == '\0') {
+  if (fields[6].len == 0) {
     return set_nmea_error(status, msg, msg_size,
         "Undefined fix quality");
   }else {
-    char *endptr;
     unsigned long fixq;
-    errno = 0;
-    fixq = strtoul(fields[6], &endptr, 10);
-    if ((errno == ERANGE && fixq == ULONG_MAX)
-        || (errno != 0 && fixq == 0)
-        || *endptr != '\0') {
+    if (parse_nmea_ulong(fields[6], &fixq) != FIELD_VALID) {
       return set_nmea_error(status, msg, msg_size,
           "Invalid fix quality");
     }
@@ -316,14 +437,9 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 7. Number of satellites being tracked */
-  if ( (gpgga.has_sattelites_nb = (fields[7][0] != '\0'))) {
+  if ( (gpgga.has_sattelites_nb = (fields[7].len != 0))) {
     unsigned long sat_nb;
-    char *endptr;
-    errno = 0;
-    sat_nb = strtoul(fields[7], &endptr, 10);
-    if ((errno == ERANGE && sat_nb == LONG_MAX)
-        || (errno != 0 && sat_nb == 0)
-        || *endptr != '\0') {
+    if (parse_nmea_ulong(fields[7], &sat_nb) != FIELD_VALID) {
       return set_nmea_error(status, msg, msg_size,
           "Invalid number of satellites");
     }
@@ -335,27 +451,15 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
       return set_nmea_error(status, msg, msg_size, "Invalid HDOP");
 
   /* Field 9.  Altitude above mean sea level */
-  if ( (gpgga.has_altitude = (fields[9][0] != '\0'))) {
-    char *endptr;
-    errno = 0;
-    gpgga.altitude = strtod(fields[9], &endptr);
-    if ((errno == ERANGE && (gpgga.altitude == HUGE_VAL || gpgga.altitude == -HUGE_VAL))
-        || (errno != 0 && gpgga.altitude == 0)
-        || (*endptr != '\0')
-       ) {
+  if ( (gpgga.has_altitude = (fields[9].len != 0))) {
+    if (parse_nmea_double(fields[9], &gpgga.altitude) != FIELD_VALID) {
       return set_nmea_error(status, msg, msg_size, "Invalid altitude");
     }
   }
 
   /* Field 11. Geoid height */
-  if ( (gpgga.has_geoid_height = (fields[11][0] != '\0'))) {
-    char *endptr;
-    errno = 0;
-    gpgga.geoid_height = strtod(fields[11], &endptr);
-    if ((errno == ERANGE && (gpgga.geoid_height == HUGE_VAL || gpgga.geoid_height == -HUGE_VAL))
-        || (errno != 0 && gpgga.geoid_height == 0)
-        || (*endptr != '\0')
-       ) {
+  if ( (gpgga.has_geoid_height = (fields[11].len != 0))) {
+    if (parse_nmea_double(fields[11], &gpgga.geoid_height) != FIELD_VALID) {
       return set_nmea_error(status, msg, msg_size, "Invalid geoid height");
     }
   }
@@ -367,15 +471,14 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_rmc(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gprmc_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   struct nmea_gprmc_t gprmc;
-  const char *fields[12];
-  char buf[NMEA_MAX];
+  struct nmea_field_t fields[12];
 
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
   if (fields_nb < 12)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
@@ -385,7 +488,7 @@ static bool parse_rmc(const uint8_t *msg, size_t msg_size,
     return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
 
   /* Field 2. Status */
-  gprmc.status_active = fields[2][0] == 'A';
+  gprmc.status_active = field_char(fields[2]) == 'A';
 
   /* Fields 3,4 latitude */
   if (!parse_nmea_latitude(fields[3], fields[4], &gprmc.latitude, &gprmc.has_latitude))
@@ -408,17 +511,15 @@ static bool parse_rmc(const uint8_t *msg, size_t msg_size,
     return set_nmea_error(status, msg, msg_size, "Invalid course");
 
   /* Field 9. Date */
-  if ( (gprmc.has_ddmmyy = (fields[9][0] != '\0'))) {
-    char *endptr;
+  if ( (gprmc.has_ddmmyy = (fields[9].len != 0))) {
     unsigned long ddmmyy;
-    errno = 0;
-    ddmmyy = strtoul(fields[9], &endptr, 10);
-    if ((ddmmyy > 311299)
-        || (errno != 0 && ddmmyy == 0)
-        || *endptr != '\0') {
+    if ((parse_nmea_ulong(fields[9], &ddmmyy) != FIELD_VALID)
+        || (ddmmyy > 311299)) {
       return set_nmea_error(status, msg, msg_size, "Invalid date");
     }
     gprmc.ddmmyy = ddmmyy;
+  }else {
+    gprmc.ddmmyy = 0;
   }
 
   status->is_valid = true;
@@ -428,18 +529,16 @@ static bool parse_rmc(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_gll(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpgll_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   struct nmea_gpgll_t gpgll;
-  const char *fields[6];
-  char buf[NMEA_MAX];
+  struct nmea_field_t fields[7];
 
-  assert(msg_size <= sizeof(buf));
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
-
-  if (fields_nb < 5) {
+  if (fields_nb < 6) {
     return set_nmea_error(status, msg, msg_size,
         "Invalid field count %u", fields_nb);
   }
@@ -454,10 +553,15 @@ static bool parse_gll(const uint8_t *msg, size_t msg_size,
     return set_nmea_error(status, msg, msg_size,
         "Invalid longitude");
 
-  if (fields_nb < 6) {
+  /* Field 5 UTC time of the fix */
+  if (parse_nmea_fix_time(fields[5], &gpgll.fix_time) != FIELD_VALID)
+    return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
+
+  /* Field 6 status */
+  if (fields_nb < 7) {
     gpgll.status = true;
   }else {
-    gpgll.status = fields[5][0] != 'N';
+    gpgll.status = field_char(fields[6]) != 'V';
   }
 
   status->is_valid = true;
@@ -467,15 +571,14 @@ static bool parse_gll(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_vtg(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpvtg_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   struct nmea_gpvtg_t gpvtg;
-  const char *fields[10];
-  char buf[NMEA_MAX];
+  struct nmea_field_t fields[10];
 
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
   if (fields_nb < 9)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
@@ -500,7 +603,7 @@ static bool parse_vtg(const uint8_t *msg, size_t msg_size,
   if (fields_nb < 10) {
     gpvtg.fix_mode = 0;
   }else {
-    gpvtg.fix_mode = fields[9][0];
+    gpvtg.fix_mode = field_char(fields[9]);
   }
 
   gpvtg.is_valid = true;
@@ -512,34 +615,28 @@ static bool parse_vtg(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_gsa(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpgsa_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   unsigned i;
   struct nmea_gpgsa_t gpgsa;
-  const char *fields[18];
-  char buf[NMEA_MAX];
+  struct nmea_field_t fields[19];
 
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
   if (fields_nb < 18)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
 
   /* Field 1. Fix mode */
-  gpgsa.fix_mode = (int)fields[1];
+  gpgsa.fix_mode = field_char(fields[1]);
 
   /* Field 2. Fix type */
-  if (fields[2][0] == '\0')
+  if (fields[2].len == 0)
     gpgsa.fix_type = -1;
   else {
-    char *endptr;
     unsigned long type;
-    errno = 0;
-    type = strtoul(fields[2], &endptr, 10);
-    if ((errno == ERANGE && type == ULONG_MAX)
-        || (errno != 0 && type == 0)
-        || *endptr != '\0') {
+    if (parse_nmea_ulong(fields[2], &type) != FIELD_VALID) {
       return set_nmea_error(status, msg, msg_size, "Invalid fix type");
     }
     gpgsa.fix_type = (int)type;
@@ -547,16 +644,11 @@ static bool parse_gsa(const uint8_t *msg, size_t msg_size,
 
   /* Field 3-14 PRN's of Satellite Vechicles */
   for (i=0; i<12; ++i) {
-    if (fields[3+i][0] == '\0')
-      gpgsa.prn[0] = 0;
+    if (fields[3+i].len == 0)
+      gpgsa.prn[i] = 0;
     else {
-      char *endptr;
       unsigned long prn;
-      errno = 0;
-      prn = strtoul(fields[3+i], &endptr, 10);
-      if ((errno == ERANGE && prn == ULONG_MAX)
-          || (errno != 0 && prn == 0)
-          || *endptr != '\0') {
+      if (parse_nmea_ulong(fields[3+i], &prn) != FIELD_VALID) {
         return set_nmea_error(status, msg, msg_size, "Invalid PRN");
       }
       gpgsa.prn[i] = (unsigned)prn;
@@ -575,6 +667,16 @@ static bool parse_gsa(const uint8_t *msg, size_t msg_size,
   if (!parse_float(fields[17], &gpgsa.vdop, &gpgsa.has_vdop))
     return set_nmea_error(status, msg, msg_size, "Invalid VDOP");
 
+  /* Field 18. GNSS system ID, NMEA 4.11 */
+  gpgsa.system_id = get_nmea_talker_system_id(get_nmea_talker(msg[1], msg[2]));
+  if ((fields_nb > 18) && (fields[18].len != 0)) {
+    unsigned long system_id;
+    if (parse_nmea_ulong(fields[18], &system_id) != FIELD_VALID) {
+      return set_nmea_error(status, msg, msg_size, "Invalid GNSS system ID");
+    }
+    gpgsa.system_id = (unsigned)system_id;
+  }
+
   *dst = gpgsa;
   status->is_valid = true;
   status->err[0] = '\0';
@@ -582,15 +684,14 @@ static bool parse_gsa(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_zda(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpzda_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   struct nmea_gpzda_t gpzda;
-  const char *fields[8];
-  char buf[NMEA_MAX];
+  struct nmea_field_t fields[8];
 
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
   if (fields_nb < 5)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
@@ -600,14 +701,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
     return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
 
   /* Field 2 UTC day */
-  if (fields[2][0] == '\0')
+  if (fields[2].len == 0)
     gpzda.day = 0;
   else {
-    char *endptr;
     unsigned long day;
-    errno = 0;
-    day = strtoul(fields[2], &endptr, 10);
-    if ((*endptr != '\0')
+    if ((parse_nmea_ulong(fields[2], &day) != FIELD_VALID)
         || (day < 1 || day > 31)
         ) {
       return set_nmea_error(status, msg, msg_size, "Invalid day");
@@ -616,14 +714,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 3 UTC month */
-  if (fields[3][0] == '\0')
+  if (fields[3].len == 0)
     gpzda.month = 0;
   else {
-    char *endptr;
     unsigned long month;
-    errno = 0;
-    month = strtoul(fields[3], &endptr, 10);
-    if ((*endptr != '\0')
+    if ((parse_nmea_ulong(fields[3], &month) != FIELD_VALID)
         || ( month < 1 || month > 12)
         ) {
       return set_nmea_error(status, msg, msg_size, "Invalid month");
@@ -632,14 +727,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 4 UTC 4-digit year */
-  if (fields[4][0] == '\0')
+  if (fields[4].len == 0)
     gpzda.year = 0;
   else {
-    char *endptr;
     unsigned long year;
-    errno = 0;
-    year = strtoul(fields[4], &endptr, 10);
-    if ((*endptr != '\0')
+    if ((parse_nmea_ulong(fields[4], &year) != FIELD_VALID)
         || (year < 1990 || year > 2089)
         ) {
       return set_nmea_error(status, msg, msg_size, "Invalid year");
@@ -651,15 +743,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   if (fields_nb <= 5) {
     gpzda.zone_hours = 0;
   }else {
-    if (fields[5][0] == '\0'){
+    if (fields[5].len == 0){
       gpzda.zone_hours = 0;
     }else {
-      char *endptr;
       long zone_hours;
-      errno = 0;
-      zone_hours = strtol(fields[5], &endptr, 10);
-      if ((errno != 0 && zone_hours == 0)
-          || *endptr != '\0'
+      if ((parse_nmea_long(fields[5], &zone_hours) != FIELD_VALID)
           || (zone_hours < -13 || zone_hours > 13)
          ) {
         return set_nmea_error(status, msg, msg_size, "Invalid local zone hours");
@@ -672,16 +760,12 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   if (fields_nb <= 6) {
     gpzda.zone_minutes = 0;
   }else {
-    if (fields[6][0] == '\0'){
+    if (fields[6].len == 0){
       gpzda.zone_minutes = 0;
     }else {
-      char *endptr;
       unsigned long min;
-      errno = 0;
 
-      min = strtoul(fields[6], &endptr, 10);
-      if ((errno != 0 && min == 0)
-          || (*endptr != '\0')
+      if ((parse_nmea_ulong(fields[6], &min) != FIELD_VALID)
           || (min > 59)
           ) {
         return set_nmea_error(status, msg, msg_size, "Invalid local zone minutes");
@@ -697,15 +781,14 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_gst(const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *nmea_fields,
     struct nmea_gpgst_t *dst, struct gps_msg_status_t *status)
 {
   unsigned fields_nb;
   struct nmea_gpgst_t gpgst;
-  const char *fields[9];
-  char buf[NMEA_MAX];
+  struct nmea_field_t fields[9];
 
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
+  fields_nb = get_nmea_fields(msg, nmea_fields, fields, sizeof(fields)/sizeof(fields[0]));
 
   if (fields_nb < 9)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
@@ -749,38 +832,107 @@ static bool parse_gst(const uint8_t *msg, size_t msg_size,
   return status->is_valid;
 }
 
-static unsigned split_nmea_str(const uint8_t *msg, size_t msg_size,
-    const char **fields, int fields_size, char *buf)
+static inline void close_nmea_fields(struct nmea_fields_t *fields, unsigned pos)
+{
+  if (!fields->closed) {
+    fields->end[fields->nb - 1] = (uint16_t)pos;
+    fields->closed = true;
+  }
+}
+
+/*
+ * Fields of the sentence split by the framer, at most fields_size.
+ * Returns the number of fields
+ */
+static unsigned get_nmea_fields(const uint8_t *msg, const struct nmea_fields_t *src,
+    struct nmea_field_t *fields, unsigned fields_size)
 {
   unsigned i;
-  int fields_nb;
+  unsigned fields_nb;
+  unsigned start;
+
+  fields_nb = src->nb < fields_size ? src->nb : fields_size;
+  start = 0;
+  for (i=0; i < fields_nb; ++i) {
+    fields[i].s = (const char *)&msg[start];
+    fields[i].len = src->end[i] - start;
+    start = src->end[i] + 1;
+  }
 
-  buf[0] = msg[0];
-  fields[0] = &buf[0];
-  fields_nb = 1;
-  for (i=1; i < msg_size; ++i) {
-    if (msg[i] == ',') {
-      buf[i] = '\0';
-    }else {
-      buf[i] = (char)msg[i];
-    }
+  return fields_nb;
+}
 
-    if (msg[i-1] == ',') {
-      if (fields_nb >= fields_size)
-        break;
-      else
-        fields[fields_nb++] = &buf[i];
-    }
+static inline const char *field_end(struct nmea_field_t field)
+{
+  return field.s + field.len;
+}
 
-    if ((msg[i] == '*') || (msg[i] == 0x0d) || (msg[i] == 0x0a)) {
-      buf[i] = '\0';
-      break;
-    }
+/*
+ * Returns the first character of the field, '\0' if empty
+ */
+static inline char field_char(struct nmea_field_t field)
+{
+  return field.len == 0 ? '\0' : field.s[0];
+}
 
+static inline nmea_talker_t get_nmea_talker(char c1, char c2)
+{
+  if (c1 == 'P')
+    return NMEA_TALKER_PROPRIETARY;
+
+  switch (((unsigned)(uint8_t)c1 << 8) | (uint8_t)c2) {
+    case ('G' << 8) | 'P': return NMEA_TALKER_GP;
+    case ('G' << 8) | 'N': return NMEA_TALKER_GN;
+    case ('G' << 8) | 'L': return NMEA_TALKER_GL;
+    case ('G' << 8) | 'A': return NMEA_TALKER_GA;
+    case ('G' << 8) | 'B': return NMEA_TALKER_GB;
+    case ('B' << 8) | 'D': return NMEA_TALKER_BD;
+    case ('G' << 8) | 'Q': return NMEA_TALKER_GQ;
+    default: break;
   }
-  buf[msg_size-1] = '\0';
+  return NMEA_TALKER_UNKNOWN;
+}
 
-  return fields_nb;
+/*
+ * @return NMEA 4.11 GNSS system ID of the talker. 0 for GN: the
+ * constellations are told apart by the PRN ranges.
+ */
+static unsigned get_nmea_talker_system_id(nmea_talker_t talker)
+{
+  switch (talker) {
+    case NMEA_TALKER_GP: return 1;
+    case NMEA_TALKER_GL: return 2;
+    case NMEA_TALKER_GA: return 3;
+    case NMEA_TALKER_GB:
+    case NMEA_TALKER_BD: return 4;
+    case NMEA_TALKER_GQ: return 5;
+    default: break;
+  }
+  return 0;
+}
+
+/*
+ * Dispatch key of the sentence address "$ttfff" or "$Pmmm...":
+ * NMEA_FORMATTER(fff) for the known talkers, NMEA_PROPRIETARY(mmm) for the
+ * proprietary sentences, 0 otherwise.
+ */
+static unsigned get_nmea_msg_key(struct nmea_field_t msg_id)
+{
+  const char *s = msg_id.s;
+
+  if (msg_id.len < 5)
+    return 0;
+
+  switch (get_nmea_talker(s[1], s[2])) {
+    case NMEA_TALKER_UNKNOWN:
+      return 0;
+    case NMEA_TALKER_PROPRIETARY:
+      return NMEA_PROPRIETARY(s[2], s[3], s[4]);
+    default:
+      break;
+  }
+
+  return msg_id.len == 6 ? NMEA_FORMATTER(s[3], s[4], s[5]) : 0;
 }
 
 void reset_nmea_parser(struct nmea_parser_t *ctx)
@@ -790,6 +942,8 @@ void reset_nmea_parser(struct nmea_parser_t *ctx)
   ctx->fix.fix_time.hhmmss = 0;
   ctx->fix.fix_time.mss = 0;
   ctx->fix.is_closed = true;
+  ctx->fix.is_closed_early = false;
+  ctx->fix.last_sentence = NMEA_SENTENCE_NONE;
   ctx->fix.gpgga_active = false;
   ctx->fix.gpgll_active = false;
   ctx->fix.gprmc_active = false;
@@ -799,14 +953,35 @@ void reset_nmea_parser(struct nmea_parser_t *ctx)
   time(&curtime);
   gmtime_r(&curtime, &ctx->time_full);
 
-  ctx->gpgsa.is_valid = false;
+  ctx->gsa_satellites.cnt = 0;
+  ctx->gsa_satellites.is_pending = false;
+  ctx->gsa_satellites.is_valid = false;
   ctx->gpvtg.is_valid = false;
+
+  ctx->epoch_end.sentence = NMEA_SENTENCE_NONE;
+  ctx->epoch_end.cnt = 0;
+  ctx->epoch_end.confirmations = 0;
 }
 
-static void open_nmea_fix(struct nmea_fix_t *fix, struct nmea_fix_time_t time)
+static void open_nmea_fix(struct nmea_parser_t *ctx, struct nmea_fix_time_t time)
 {
+  struct nmea_fix_t *fix;
+
+  learn_epoch_end(ctx);
+
+  /* GSA sentences received after the last timed sentence lead this epoch */
+  if (!ctx->gsa_satellites.is_pending) {
+    ctx->gsa_satellites.cnt = 0;
+    ctx->gsa_satellites.is_valid = false;
+  }
+
+  fix = &ctx->fix;
   fix->fix_time = time;
   fix->is_closed = false;
+  fix->is_closed_early = false;
+  fix->open_ts = ctx->stats->rcvd.last_byte_ts;
+  fix->last_sentence = NMEA_SENTENCE_NONE;
+  memset(fix->sentence_cnt, 0, sizeof(fix->sentence_cnt));
   fix->gpgga_active = false;
   fix->gpgll_active = false;
   fix->gprmc_active = false;
@@ -814,12 +989,114 @@ static void open_nmea_fix(struct nmea_fix_t *fix, struct nmea_fix_time_t time)
   fix->gpzda_active = false;
 }
 
-static inline bool fix_ready_to_close(struct nmea_fix_t *fix)
+/*
+ * Adds the satellites of the GSA sentence to the set of the epoch. The
+ * first GSA after a timed sentence starts a new set.
+ */
+static void add_gsa_satellites(struct nmea_parser_t *ctx, const struct nmea_gpgsa_t *gsa)
 {
-  if (fix) {}
-  /* XXX */
-  /* return fix->gpgga_active && fix->gprmc_active && fix->gpgst_active; */
-  return false;
+  struct nmea_gsa_satellites_t *sats;
+  unsigned i, j;
+
+  sats = &ctx->gsa_satellites;
+  if (!sats->is_pending)
+    sats->cnt = 0;
+  sats->is_pending = true;
+  sats->is_valid = true;
+
+  for (i=0; i<sizeof(gsa->prn)/sizeof(gsa->prn[0]); ++i) {
+    unsigned id;
+    if (gsa->prn[i] == 0)
+      continue;
+    id = (gsa->system_id << 16) | gsa->prn[i];
+    for (j=0; j<sats->cnt; ++j) {
+      if (sats->id[j] == id)
+        break;
+    }
+    if ((j == sats->cnt) && (sats->cnt < NMEA_GSA_MAX_SATELLITES))
+      sats->id[sats->cnt++] = id;
+  }
+}
+
+/*
+ * Called when the next epoch starts: the last sentence with the time of the
+ * previous fix is the end of the epoch. The receiver repeats the same order
+ * of sentences on every epoch, the end is trusted after
+ * EPOCH_END_CONFIRMATIONS epochs. GSA and VTG have no time: they may be sent
+ * at both the start and the end of the epoch and are never the end.
+ */
+static void learn_epoch_end(struct nmea_parser_t *ctx)
+{
+  const struct nmea_fix_t *fix;
+  unsigned cnt;
+
+  fix = &ctx->fix;
+  if (fix->last_sentence == NMEA_SENTENCE_NONE)
+    return;
+
+  cnt = fix->sentence_cnt[fix->last_sentence];
+  if ((ctx->epoch_end.sentence == fix->last_sentence)
+      && (ctx->epoch_end.cnt == cnt)) {
+    if (ctx->epoch_end.confirmations < EPOCH_END_CONFIRMATIONS)
+      ctx->epoch_end.confirmations += 1;
+  }else {
+    ctx->epoch_end.sentence = fix->last_sentence;
+    ctx->epoch_end.cnt = cnt;
+    ctx->epoch_end.confirmations = 1;
+  }
+}
+
+/*
+ * Called on every sentence that updates the fix. Closes the fix on the
+ * learned end of the epoch instead of waiting for the next epoch.
+ * @param has_fix_time the sentence carries the time of the current fix
+ */
+static void account_fix_sentence(struct nmea_parser_t *ctx, enum nmea_sentence_t sentence,
+    bool has_fix_time, struct gps_msg_status_t *status)
+{
+  struct nmea_fix_t *fix;
+
+  fix = &ctx->fix;
+
+  if (has_fix_time)
+    ctx->gsa_satellites.is_pending = false;
+
+  if (fix->is_closed) {
+    /* Sentences without the time after the end may lead the next epoch */
+    if (!fix->is_closed_early || !has_fix_time)
+      return;
+    /* The fix has been published without this sentence: the order of the
+     * sentences has changed */
+    LOGV("Sentence %u after the end of the epoch", sentence);
+    ctx->epoch_end.confirmations = 0;
+    fix->is_closed_early = false;
+    ctx->stats->fix.epoch_end_misses += 1;
+  }
+
+  if (has_fix_time)
+    fix->last_sentence = sentence;
+  fix->sentence_cnt[sentence] += 1;
+
+  /* Do not overwrite the location of the previous fix closed by this sentence */
+  if (status->location_changed)
+    return;
+
+  if (fix_ready_to_close(ctx)) {
+    close_nmea_fix(ctx, status);
+    fix->is_closed_early = true;
+    ctx->stats->fix.closed_early += 1;
+  }
+}
+
+static inline bool fix_ready_to_close(const struct nmea_parser_t *ctx)
+{
+  const struct nmea_fix_t *fix;
+
+  fix = &ctx->fix;
+  return !fix->is_closed
+    && (ctx->epoch_end.confirmations >= EPOCH_END_CONFIRMATIONS)
+    && (fix->last_sentence == ctx->epoch_end.sentence)
+    && (fix->sentence_cnt[fix->last_sentence] == ctx->epoch_end.cnt);
 }
 
 static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *status)
@@ -834,20 +1111,39 @@ static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *s
     return false;
 
   status->location_changed = true;
+  fix->is_closed = true;
   if (!fix->gpgga_active && !fix->gprmc_active && !fix->gpgll_active) {
     snprintf(status->err, sizeof(status->err),
         "No GPGGA/GPGLL/GPRMC sentences received on NMEA fix time %06u.%03u",
         fix->fix_time.hhmmss, fix->fix_time.mss);
-    fix->is_closed = true;
     status->location.is_valid = false;
   }else {
     merge_full_time(ctx);
     compose_location(ctx, &status->location);
   }
 
+  account_fix_latency(ctx->stats, &fix->open_ts);
+
   return status->location_changed;
 }
 
+static void account_fix_latency(struct stats_t *stats, const struct timespec *open_ts)
+{
+  struct timespec now;
+  long long latency_us;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  latency_us = 1000000ll * (now.tv_sec - open_ts->tv_sec)
+    + (now.tv_nsec - open_ts->tv_nsec) / 1000;
+  if (latency_us < 0)
+    latency_us = 0;
+
+  stats->fix.total += 1;
+  stats->fix.latency_us_total += latency_us;
+  if (latency_us > stats->fix.latency_us_max)
+    stats->fix.latency_us_max = (unsigned)latency_us;
+}
+
 static void merge_full_time(struct nmea_parser_t *ctx)
 {
   unsigned gpzda_year;
@@ -928,13 +1224,8 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
   // Satellites
   if (min_gga && fix->gpgga.has_sattelites_nb) {
     dst->satellites = fix->gpgga.sattelites_nb;
-  }else if (ctx->gpgsa.is_valid) {
-    unsigned i;
-    dst->satellites = 0;
-    for (i=0; i<sizeof(ctx->gpgsa.prn)/sizeof(ctx->gpgsa.prn[0]); ++i) {
-      if (ctx->gpgsa.prn[i] > 0)
-        dst->satellites += 1;
-    }
+  }else if (ctx->gsa_satellites.is_valid) {
+    dst->satellites = ctx->gsa_satellites.cnt;
   }else {
     dst->satellites = -1;
   }
@@ -993,24 +1284,28 @@ static inline bool is_same_fix_time(struct nmea_fix_time_t t1, struct nmea_fix_t
     return abs((int)t2.mss - (int)t1.mss) < 50;
 }
 
-static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix_time_t *dst)
+static parse_error_t parse_nmea_fix_time(struct nmea_field_t hhmmss_mss, struct nmea_fix_time_t *dst)
 {
-  char *endptr;
+  const char *dot, *end;
+  struct nmea_field_t hhmmss_str;
   unsigned long hhmmss;
   unsigned mss;
+  unsigned i;
 
   assert(dst);
 
-  if (hhmmss_mss[0] == '\0') {
+  end = field_end(hhmmss_mss);
+  if (hhmmss_mss.len == 0) {
     dst->hhmmss = 0;
     dst->mss = 0;
     return FIELD_UNDEFINED;
   }
 
-  hhmmss = strtoul(hhmmss_mss, &endptr, 10);
-  if ((*endptr != '.') && (*endptr != '\0')) {
+  dot = memchr(hhmmss_mss.s, '.', hhmmss_mss.len);
+  hhmmss_str.s = hhmmss_mss.s;
+  hhmmss_str.len = dot ? (unsigned)(dot - hhmmss_mss.s) : hhmmss_mss.len;
+  if (parse_nmea_ulong(hhmmss_str, &hhmmss) != FIELD_VALID)
     return FIELD_INVALID;
-  }
 
   if (hhmmss > 240000)
     return FIELD_INVALID;
@@ -1021,24 +1316,19 @@ static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix
   if ((hhmmss % 100) > 60)
     return FIELD_INVALID;
 
-  if (endptr[0] == '.' && (endptr[1] != '\0') ) {
-    unsigned i;
-    char mss_s[4] = "000";
-
-    for (i=0; i<3; ++i) {
-      if (endptr[i+1] == '\0')
-        break;
-      else
-        mss_s[i] = endptr[i+1];
+  /* Milliseconds: first 3 digits of the fraction */
+  mss = 0;
+  if (dot != NULL) {
+    for (i=1; dot + i != end; ++i) {
+      if (dot[i] < '0' || dot[i] > '9')
+        return FIELD_INVALID;
+      if (i <= 3)
+        mss = 10 * mss + (unsigned)(dot[i] - '0');
     }
-
-    mss = strtoul(mss_s, &endptr, 10);
-    if (*endptr != '\0')
-      return FIELD_INVALID;
-    assert(mss < 1000);
-  }else {
-    mss = 0;
+    for (; i <= 3; ++i)
+      mss *= 10;
   }
+  assert(mss < 1000);
 
   dst->hhmmss = hhmmss;
   dst->mss = mss;
@@ -1046,29 +1336,25 @@ static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix
   return FIELD_VALID;
 }
 
-static inline bool parse_nmea_degrees(const char * __restrict deg_str,
+static inline bool parse_nmea_degrees(struct nmea_field_t deg_str,
     bool reverse_direction,
     double * __restrict dst,
     bool * __restrict dst_is_defined)
 {
-  char *endptr;
   double res, degrees, minutes;
 
-  if (deg_str[0] == '\0') {
+  if (deg_str.len == 0) {
     *dst_is_defined = false;
     return true;
   }else {
     *dst_is_defined = true;
   }
 
-  errno = 0;
-  res = strtod(deg_str, &endptr);
-  if ((errno == ERANGE && (res == HUGE_VAL || res == -HUGE_VAL))
-      || (errno != 0 && res == 0)
-      || (*endptr != '\0')
-      )
+  if (parse_nmea_double(deg_str, &res) != FIELD_VALID)
     return false;
 
+  /* Same arithmetic as before the dedicated parser: the positions must not
+   * change by an ulp */
   minutes = 100.0 * modf(res / 100.0, &degrees);
 
   *dst = (reverse_direction ? -1.0 : 1.0) * (degrees + minutes / 60.0);
@@ -1076,53 +1362,278 @@ static inline bool parse_nmea_degrees(const char * __restrict deg_str,
   return true;
 }
 
-static bool parse_nmea_latitude(const char * __restrict deg_str,
-    const char * __restrict ns,
+static bool parse_nmea_latitude(struct nmea_field_t deg_str,
+    struct nmea_field_t ns,
     double * __restrict dst,
     bool * dst_is_defined)
 {
-  if (!parse_nmea_degrees(deg_str, *ns == 'S', dst, dst_is_defined))
+  if (!parse_nmea_degrees(deg_str, field_char(ns) == 'S', dst, dst_is_defined))
     return false;
   if (!*dst_is_defined)
     return true;
   return ((*dst >= -90.0) && (*dst <= 90.0));
 }
 
-static bool parse_nmea_longitude(const char * __restrict deg_str,
-    const char * __restrict ew,
+static bool parse_nmea_longitude(struct nmea_field_t deg_str,
+    struct nmea_field_t ew,
     double * __restrict dst,
     bool * __restrict dst_is_defined
     )
 {
-  if (!parse_nmea_degrees(deg_str, *ew == 'W', dst, dst_is_defined))
+  if (!parse_nmea_degrees(deg_str, field_char(ew) == 'W', dst, dst_is_defined))
     return false;
   if (!*dst_is_defined)
     return true;
   return ((*dst >= -180.0) && (*dst <= 180.0));
 }
 
-static bool parse_float(const char * __restrict str,
+static bool parse_float(struct nmea_field_t str,
     float * __restrict dst,
     bool * __restrict dst_is_defined
     )
 {
-  char *endptr;
-  errno = 0;
-  if (*str == '\0') {
-    *dst_is_defined = false;
-  }else {
-    *dst_is_defined = true;
-    *dst = strtof(str, &endptr);
-    if ((errno == ERANGE && (*dst == HUGE_VALF || *dst == -HUGE_VALF))
-        || (errno != 0 && *dst == 0)
-        || (*endptr != '\0')
-       ) {
+  struct nmea_decimal_t d;
+  float res;
+
+  switch (parse_nmea_decimal(str, &d)) {
+    case FIELD_UNDEFINED:
+      *dst_is_defined = false;
+      return true;
+    case FIELD_INVALID:
+      *dst_is_defined = true;
       return false;
+    default:
+      *dst_is_defined = true;
+      break;
+  }
+
+  if (d.is_exact
+      && (d.mantissa <= (1ull << FLT_MANT_DIG))
+      && (d.exp10 >= -POW10F_MAX && d.exp10 <= POW10F_MAX)) {
+    /* Both operands are exact, the result is correctly rounded */
+    res = (float)d.mantissa;
+    res = d.exp10 < 0 ? res / pow10f_tbl[-d.exp10] : res * pow10f_tbl[d.exp10];
+  }else {
+    double r;
+    int side;
+
+    /* Rounded to double, then to float. The second rounding is wrong only
+     * if the double is a midpoint between two floats and not the exact
+     * value: the exact value is then on the side of the other float */
+    r = decimal_to_double(&d, &side);
+    res = (float)r;
+    if ((side != 0) && ((double)res != r)) {
+      float other;
+
+      other = (double)res < r ? nextafterf(res, HUGE_VALF) : nextafterf(res, 0.0f);
+      if ((r - (double)res == (double)other - r)
+          && ((side > 0) == ((double)other > r)))
+        res = other;
     }
+    if (res > FLT_MAX)
+      return false;
   }
+
+  *dst = d.negative ? -res : res;
   return true;
 }
 
+/*
+ * Parses the decimal number of the field. Only the plain NMEA syntax is
+ * accepted: no leading spaces, exponent, hex, inf or nan.
+ */
+static parse_error_t parse_nmea_decimal(struct nmea_field_t str, struct nmea_decimal_t *dst)
+{
+  const char *p, *end;
+  unsigned digits;
+  bool has_digits, in_fraction;
+
+  dst->mantissa = 0;
+  dst->exp10 = 0;
+  dst->negative = false;
+  dst->is_exact = true;
+
+  if (str.len == 0)
+    return FIELD_UNDEFINED;
+
+  p = str.s;
+  end = field_end(str);
+  if (*p == '+' || *p == '-') {
+    dst->negative = (*p == '-');
+    ++p;
+  }
+
+  digits = 0;
+  has_digits = false;
+  in_fraction = false;
+  for (; p != end; ++p) {
+    unsigned d;
+
+    if (*p == '.') {
+      if (in_fraction)
+        return FIELD_INVALID;
+      in_fraction = true;
+      continue;
+    }
+
+    d = (unsigned)(*p - '0');
+    if (d > 9)
+      return FIELD_INVALID;
+    has_digits = true;
+
+    if (digits < NMEA_DECIMAL_DIGITS) {
+      if (in_fraction)
+        dst->exp10 -= 1;
+      /* Leading zeros are not significant */
+      if (dst->mantissa == 0 && d == 0)
+        continue;
+      dst->mantissa = 10 * dst->mantissa + d;
+      digits += 1;
+    }else {
+      if (!in_fraction)
+        dst->exp10 += 1;
+      if (d != 0)
+        dst->is_exact = false;
+    }
+  }
+
+  return has_digits ? FIELD_VALID : FIELD_INVALID;
+}
+
+/*
+ * Decimal field to double, rounded as strtod() does up to 15 significant
+ * digits
+ */
+static parse_error_t parse_nmea_double(struct nmea_field_t str, double *dst)
+{
+  struct nmea_decimal_t d;
+  parse_error_t err;
+  double res;
+
+  err = parse_nmea_decimal(str, &d);
+  if (err != FIELD_VALID)
+    return err;
+
+  res = decimal_to_double(&d, NULL);
+  if (res > DBL_MAX)
+    return FIELD_INVALID;
+
+  *dst = d.negative ? -res : res;
+  return FIELD_VALID;
+}
+
+/*
+ * Absolute value of the decimal. Correctly rounded if the mantissa and the
+ * power of 10 are exact doubles. This covers the NMEA 0183 fields: the
+ * longest, dddmm.mmmmmmm coordinates, have 12 significant digits. If side
+ * is not NULL, it is set to the sign of the rounding error (exact value -
+ * result) in this case, 0 otherwise.
+ * Longer decimals are rounded at each step, within a few ulp.
+ */
+static double decimal_to_double(const struct nmea_decimal_t *d, int *side)
+{
+  double m, res, err;
+  int exp10;
+
+  m = (double)d->mantissa;
+  if (side != NULL)
+    *side = 0;
+
+  if (d->is_exact
+      && (d->mantissa <= (1ull << DBL_MANT_DIG))
+      && (d->exp10 >= -POW10_MAX && d->exp10 <= POW10_MAX)) {
+    /* Both operands are exact, the result is correctly rounded. The
+     * rounding error is exactly representable: fma() computes it */
+    if (d->exp10 < 0) {
+      res = m / pow10_tbl[-d->exp10];
+      if (side != NULL) {
+        err = fma(res, pow10_tbl[-d->exp10], -m);
+        *side = err > 0 ? -1 : (err < 0 ? 1 : 0);
+      }
+    }else {
+      res = m * pow10_tbl[d->exp10];
+      if (side != NULL) {
+        err = fma(m, pow10_tbl[d->exp10], -res);
+        *side = err > 0 ? 1 : (err < 0 ? -1 : 0);
+      }
+    }
+    return res;
+  }
+
+  res = m;
+  for (exp10 = d->exp10; exp10 > POW10_MAX; exp10 -= POW10_MAX)
+    res *= pow10_tbl[POW10_MAX];
+  for (; exp10 < -POW10_MAX; exp10 += POW10_MAX)
+    res /= pow10_tbl[POW10_MAX];
+  return exp10 < 0 ? res / pow10_tbl[-exp10] : res * pow10_tbl[exp10];
+}
+
+/*
+ * Unsigned integer field: digits only
+ */
+static parse_error_t parse_nmea_ulong(struct nmea_field_t str, unsigned long *dst)
+{
+  const char *p, *end;
+  unsigned long res;
+
+  if (str.len == 0)
+    return FIELD_UNDEFINED;
+
+  res = 0;
+  end = field_end(str);
+  for (p = str.s; p != end; ++p) {
+    unsigned d = (unsigned)(*p - '0');
+    if (d > 9)
+      return FIELD_INVALID;
+    if (res > (ULONG_MAX - d) / 10)
+      return FIELD_INVALID;
+    res = 10 * res + d;
+  }
+
+  *dst = res;
+  return FIELD_VALID;
+}
+
+/*
+ * Signed integer field: [+-]digits
+ */
+static parse_error_t parse_nmea_long(struct nmea_field_t str, long *dst)
+{
+  struct nmea_field_t digits;
+  unsigned long val;
+  bool negative;
+
+  if (str.len == 0)
+    return FIELD_UNDEFINED;
+
+  digits = str;
+  negative = false;
+  if (str.s[0] == '+' || str.s[0] == '-') {
+    negative = (str.s[0] == '-');
+    digits.s += 1;
+    digits.len -= 1;
+  }
+
+  if (parse_nmea_ulong(digits, &val) != FIELD_VALID)
+    return FIELD_INVALID;
+  if (val > LONG_MAX)
+    return FIELD_INVALID;
+
+  *dst = negative ? -(long)val : (long)val;
+  return FIELD_VALID;
+}
+
+static inline int hex_digit_val(uint8_t c)
+{
+  if (c >= '0' && c <= '9')
+    return c - '0';
+  if (c >= 'A' && c <= 'F')
+    return c - 'A' + 10;
+  if (c >= 'a' && c <= 'f')
+    return c - 'a' + 10;
+  return -1;
+}
+
 static bool set_nmea_error(struct gps_msg_status_t *status,
     const uint8_t *nmea_msg, size_t nmea_msg_size, char *fmt, ...)
 {
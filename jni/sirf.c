@@ -2,6 +2,7 @@
 
 #include <arpa/inet.h>
 #include <assert.h>
+#include <math.h>
 #include <stdio.h>
 #include <string.h>
 
@@ -17,17 +18,42 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
+/* M_PI is not declared with _POSIX_C_SOURCE */
+#define SIRF_PI 3.14159265358979323846
+
+static void parse_measured_nav_data(struct sirf_parser_t *ctx, const uint8_t *msg,
+    struct gps_msg_status_t *status);
+static void parse_measured_tracker_data(struct sirf_parser_t *ctx, const uint8_t *msg,
+    struct gps_msg_status_t *status);
+static void parse_clock_status(struct sirf_parser_t *ctx, const uint8_t *msg,
+    struct gps_msg_status_t *status);
 static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
     struct gps_msg_status_t *status);
-static unsigned sirf_csum(const uint8_t *payload, unsigned payload_length);
+static bool check_payload_size(const uint8_t *msg, unsigned size,
+    struct gps_msg_status_t *status);
+static void ecef_to_wgs84(double x, double y, double z, double *lat, double *lon, double *alt);
 
 static inline uint16_t get2u(const uint8_t *buf);
+static inline int16_t get2s(const uint8_t *buf);
 static inline uint32_t get4u(const uint8_t *buf);
 static inline int32_t get4s(const uint8_t *buf);
 
 inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
+{
+  struct msg_framer_t f;
+
+  msg_framer_start(&f, MSG_TYPE_SIRF);
+  return resume_sirf_msg(&f, msg, max_len);
+}
+
+/*
+ * looks_like_sirf() resumed at f->pos: the checksum of the payload received
+ * by the previous calls is kept in f->csum
+ */
+int resume_sirf_msg(struct msg_framer_t *f, const uint8_t *msg, size_t max_len)
 {
   unsigned payload_length;
+  unsigned i, end;
   unsigned computed_csum, msg_csum;
 
   assert(max_len > 0);
@@ -38,15 +64,32 @@ inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
   if (max_len < 8)
     return LOOKS_LIKE_TRUNCATED_MSG;
 
-  if (msg[1] != 0xa2)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+  if (f->size == 0) {
+    if (msg[1] != 0xa2)
+      return LOOKS_NOT_LIKE_GPS_MSG;
 
-  payload_length = get2u(&msg[2]);
+    payload_length = get2u(&msg[2]);
 
-  if (payload_length > SIRF_MAX)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+    if (payload_length > SIRF_MAX)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+
+    f->size = payload_length + 8;
+    f->pos = 4;
+    f->csum = 0;
+  }
 
-  if (max_len < payload_length + 8)
+  payload_length = f->size - 8;
+  end = 4 + payload_length;
+  if (end > max_len)
+    end = max_len;
+
+  computed_csum = f->csum;
+  for (i=f->pos; i<end; ++i)
+    computed_csum = 0x7fff & (computed_csum + msg[i]);
+  f->pos = i;
+  f->csum = computed_csum;
+
+  if (max_len < f->size)
     return LOOKS_LIKE_TRUNCATED_MSG;
 
   if (msg[4 + payload_length + 2] != 0xb0
@@ -54,7 +97,6 @@ inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
     return LOOKS_NOT_LIKE_GPS_MSG;
 
   msg_csum = get2u(&msg[4+payload_length]);
-  computed_csum = sirf_csum(&msg[4], payload_length);
 
   if (msg_csum != computed_csum) {
     LOGV("SiRF checksum mismatch. 0x%04x != 0x%04x",
@@ -67,6 +109,8 @@ inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
 
 void reset_sirf_parser(struct sirf_parser_t *ctx)
 {
+  ctx->week = -1;
+  ctx->has_mid41 = false;
 }
 
 bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg,
@@ -80,29 +124,156 @@ bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg,
   ctx->stats->rcvd.sirf.total += 1;
   ctx->stats->rcvd.sirf.last_msg_ts = ctx->stats->rcvd.last_byte_ts;
 
+  status->is_valid = true;
+  status->location_changed = false;
+  status->err[0] = '\0';
+
   mid = msg[4];
   switch (mid) {
+    case 2:
+      parse_measured_nav_data(ctx, msg, status);
+      ctx->stats->rcvd.sirf.mid2 += 1;
+      break;
+    case 4:
+      parse_measured_tracker_data(ctx, msg, status);
+      ctx->stats->rcvd.sirf.mid4 += 1;
+      break;
+    case 7:
+      parse_clock_status(ctx, msg, status);
+      ctx->stats->rcvd.sirf.mid7 += 1;
+      break;
     case 41:
+      ctx->has_mid41 = true;
       parse_tracker_data(msg, msg_size, status);
       ctx->stats->rcvd.sirf.mid41 += 1;
       break;
     default:
-      status->is_valid = true;
-      status->location_changed = false;
-      status->err[0] = '\0';
+      ctx->stats->rcvd.sirf.other += 1;
       break;
   }
 
   return status->is_valid;
 }
 
+/*
+ * MID 2 Measured Navigation Data: ECEF position and velocity. Published only
+ * if the receiver does not output MID 41 (SiRFstar II)
+ */
+static void parse_measured_nav_data(struct sirf_parser_t *ctx, const uint8_t *msg,
+    struct gps_msg_status_t *status)
+{
+  unsigned pmode;
+  int week;
+  int d;
+  double vx, vy, vz;
+  double sin_lat, cos_lat, sin_lon, cos_lon;
+  double v_east, v_north;
+  struct location_t l;
+
+  if (!check_payload_size(msg, 41, status))
+    return;
+
+  if (ctx->has_mid41)
+    return;
+
+  /* Mode 1: 0 - no navigation solution, 1, 2 - 1-SV, 2-SV KF solution */
+  pmode = msg[23] & 0x07;
+  l.is_valid = pmode >= 3;
+
+  /* Time. The week is truncated to 10 bits: MID 7 has the extended week */
+  week = get2u(&msg[26]) & 0x3ff;
+  if (ctx->week >= 0) {
+    d = (week - ctx->week) & 0x3ff;
+    if (d >= 0x200)
+      d -= 0x400;
+    week = ctx->week + d;
+  }else {
+    week = -1;
+  }
+  l.time = gps_time_to_utc(week, 10 * get4u(&msg[28]));
+
+  /* latitude, longitude, height above the WGS84 ellipsoid */
+  ecef_to_wgs84(get4s(&msg[5]), get4s(&msg[9]), get4s(&msg[13]),
+      &l.latitude, &l.longitude, &l.altitude);
+  l.has_altitude = true;
+
+  /* Speed, bearing: ECEF velocity (m/s * 8) to east and north */
+  vx = get2s(&msg[17]) / 8.0;
+  vy = get2s(&msg[19]) / 8.0;
+  vz = get2s(&msg[21]) / 8.0;
+  sin_lat = sin(l.latitude * SIRF_PI / 180.0);
+  cos_lat = cos(l.latitude * SIRF_PI / 180.0);
+  sin_lon = sin(l.longitude * SIRF_PI / 180.0);
+  cos_lon = cos(l.longitude * SIRF_PI / 180.0);
+  v_east = -sin_lon * vx + cos_lon * vy;
+  v_north = -sin_lat * cos_lon * vx - sin_lat * sin_lon * vy + cos_lat * vz;
+
+  l.has_speed = true;
+  l.speed = hypot(v_east, v_north);
+  l.has_bearing = true;
+  l.bearing = atan2(v_east, v_north) * 180.0 / SIRF_PI;
+  if (l.bearing < 0)
+    l.bearing += 360.0;
+
+  /* HDOP only */
+  l.has_accuracy = false;
+  l.accuracy = 0;
+
+  /* Number of satellites used to derive the fix */
+  l.satellites = msg[32];
+
+  status->location = l;
+  status->location_changed = true;
+}
+
+/* MID 4 Measured Tracker Data: 12 channels with 10 C/N0 values per second */
+static void parse_measured_tracker_data(struct sirf_parser_t *ctx, const uint8_t *msg,
+    struct gps_msg_status_t *status)
+{
+  unsigned i, j;
+  unsigned tracked, cn0_sum;
+  unsigned ch_cn0;
+  const uint8_t *ch;
+
+  if (!check_payload_size(msg, 188, status))
+    return;
+
+  tracked = 0;
+  cn0_sum = 0;
+  for (i=0; i < 12; ++i) {
+    ch = &msg[12 + 15 * i];
+    if (ch[0] == 0)
+      continue;
+    ch_cn0 = 0;
+    for (j=0; j < 10; ++j)
+      ch_cn0 += ch[5 + j];
+    if (ch_cn0 == 0)
+      continue;
+    tracked += 1;
+    cn0_sum += ch_cn0;
+  }
+
+  ctx->stats->rcvd.sirf.tracked_svs = tracked;
+  ctx->stats->rcvd.sirf.tracked_cn0_avg = tracked == 0 ? 0 : cn0_sum / (10 * tracked);
+}
+
+/* MID 7 Clock Status Data: extended GPS week */
+static void parse_clock_status(struct sirf_parser_t *ctx, const uint8_t *msg,
+    struct gps_msg_status_t *status)
+{
+  if (!check_payload_size(msg, 20, status))
+    return;
+
+  ctx->week = get2u(&msg[5]);
+}
+
+/* MID 41 Geodetic Navigation Data */
 static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
     struct gps_msg_status_t *status)
 {
   unsigned payload_size;
   unsigned nav_type;
   unsigned mss;
-  time_t cur_time;
   struct tm loc_tm;
   struct location_t l;
 
@@ -119,8 +290,7 @@ static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
   l.is_valid = nav_type != 0;
 
   /* Time */
-  cur_time = time(NULL);
-  gmtime_r(&cur_time, &loc_tm);
+  memset(&loc_tm, 0, sizeof(loc_tm));
   loc_tm.tm_year = get2u(&msg[15]) - 1900;
   loc_tm.tm_mon = msg[17] - 1;
   loc_tm.tm_mday = msg[18];
@@ -160,17 +330,47 @@ static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
   status->err[0] = '\0';
 }
 
-static unsigned sirf_csum(const uint8_t *payload, unsigned payload_length)
+static bool check_payload_size(const uint8_t *msg, unsigned size,
+    struct gps_msg_status_t *status)
 {
-  unsigned i;
-  unsigned csum;
+  unsigned payload_size;
 
-  csum = 0;
-  for (i=0; i<payload_length; ++i) {
-    csum = 0x7fff & (csum + (payload[i] & 0xff));
+  payload_size = get2u(&msg[2]);
+  if (payload_size != size) {
+    snprintf(status->err, sizeof(status->err), "Wrong SiRF MID%u payload size %u",
+        msg[4], payload_size);
+    status->is_valid = false;
+    return false;
   }
+  return true;
+}
 
-  return csum;
+/* Bowring's method: below 1 mm error up to the low Earth orbit */
+static void ecef_to_wgs84(double x, double y, double z, double *lat, double *lon, double *alt)
+{
+  static const double a = 6378137.0;
+  static const double f = 1.0 / 298.257223563;
+  double b, e2, ep2;
+  double p, theta, sin_theta, cos_theta;
+  double phi, sin_phi, n;
+
+  b = a * (1.0 - f);
+  e2 = f * (2.0 - f);
+  ep2 = e2 / (1.0 - e2);
+
+  p = hypot(x, y);
+  theta = atan2(z * a, p * b);
+  sin_theta = sin(theta);
+  cos_theta = cos(theta);
+
+  phi = atan2(z + ep2 * b * sin_theta * sin_theta * sin_theta,
+      p - e2 * a * cos_theta * cos_theta * cos_theta);
+  sin_phi = sin(phi);
+  n = a / sqrt(1.0 - e2 * sin_phi * sin_phi);
+
+  *lat = phi * 180.0 / SIRF_PI;
+  *lon = atan2(y, x) * 180.0 / SIRF_PI;
+  *alt = p / cos(phi) - n;
 }
 
 static inline uint16_t get2u(const uint8_t *buf)
@@ -178,6 +378,11 @@ static inline uint16_t get2u(const uint8_t *buf)
   return (buf[0] << 8) | buf[1];
 }
 
+static inline int16_t get2s(const uint8_t *buf)
+{
+  return (int16_t)get2u(buf);
+}
+
 static inline uint32_t get4u(const uint8_t *buf)
 {
   return (buf[0] << 24) | (buf[1] << 16) | (buf[2] << 8) | buf[3];
@@ -18,7 +18,7 @@
 
 void stats_init(struct stats_t *stats)
 {
-  memset(&stats, 0, sizeof(stats));
+  memset(stats, 0, sizeof(*stats));
   pthread_mutex_init(&stats->mtx, NULL);
 }
 
@@ -40,6 +40,11 @@ void stats_unlock(struct stats_t *stats)
 void stats_reset_unlocked(struct stats_t *stats)
 {
   memset(&stats->rcvd, 0, sizeof(stats->rcvd));
+  memset(&stats->reader, 0, sizeof(stats->reader));
+  memset(&stats->sched, 0, sizeof(stats->sched));
+  memset(&stats->fix, 0, sizeof(stats->fix));
+  memset(&stats->line, 0, sizeof(stats->line));
+  memset(&stats->junk_sample, 0, sizeof(stats->junk_sample));
   stats->start_ts.tv_sec = 0;
   stats->start_ts.tv_nsec = 0;
 }
@@ -51,6 +56,26 @@ void stats_start_unlocked(struct stats_t *stats)
   clock_gettime(CLOCK_MONOTONIC, &stats->start_ts);
 }
 
+void stats_account_junk_unlocked(struct stats_t *stats, const uint8_t *junk, size_t size)
+{
+  size_t i;
+  uint8_t prev;
+
+  stats->rcvd.junk += size;
+
+  prev = stats->junk_sample.prev;
+  for (i = 0; i < size; ++i) {
+    stats->junk_sample.hist[junk[i]] += 1;
+    /* Partial sync: a rate close to the right one */
+    if (((prev == '$') && ((junk[i] == 'G') || (junk[i] == 'P')))
+        || ((prev == 0xa0) && (junk[i] == 0xa2))
+        || ((prev == 0xb5) && (junk[i] == 0x62)))
+      stats->junk_sample.sync_hits += 1;
+    prev = junk[i];
+  }
+  stats->junk_sample.prev = prev;
+}
+
 static inline jlong timespec2java_ts(struct timespec ts)
 {
   return (jlong)1000 * ts.tv_sec + ts.tv_nsec / 1000000;
@@ -62,6 +87,10 @@ void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst)
   static jmethodID method_set_nmea_stats;
   static jmethodID method_set_sirf_stats;
   static jmethodID method_set_ublox_stats;
+  static jmethodID method_set_reader_stats;
+  static jmethodID method_set_scheduler_stats;
+  static jmethodID method_set_fix_stats;
+  static jmethodID method_set_line_status_stats;
 
  if (method_set_stats == NULL) {
     jclass class_stats_native;
@@ -69,7 +98,7 @@ void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst)
     class_stats_native = (*env)->GetObjectClass(env, j_dst);
 
     method_set_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setStats", "(JJJJ)V");
+        class_stats_native, "setStats", "(JJJJJ)V");
     if (method_set_stats == NULL)
       return;
     method_set_nmea_stats = (*env)->GetMethodID(env,
@@ -77,19 +106,36 @@ void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst)
     if (method_set_nmea_stats == NULL)
       return;
     method_set_sirf_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setSirfStats", "(JJJ)V");
+        class_stats_native, "setSirfStats", "(JJJJJJJJJ)V");
     if (method_set_sirf_stats == NULL)
       return;
     method_set_ublox_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setUbloxStats", "(JJ)V");
+        class_stats_native, "setUbloxStats", "(JJJJJJJJJJ)V");
     if (method_set_ublox_stats == NULL)
       return;
+    method_set_reader_stats = (*env)->GetMethodID(env,
+        class_stats_native, "setReaderStats", "(JJJJJJJ)V");
+    if (method_set_reader_stats == NULL)
+      return;
+    method_set_scheduler_stats = (*env)->GetMethodID(env,
+        class_stats_native, "setSchedulerStats", "(JJJJJJJJ)V");
+    if (method_set_scheduler_stats == NULL)
+      return;
+    method_set_fix_stats = (*env)->GetMethodID(env,
+        class_stats_native, "setFixStats", "(JJJJJ)V");
+    if (method_set_fix_stats == NULL)
+      return;
+    method_set_line_status_stats = (*env)->GetMethodID(env,
+        class_stats_native, "setLineStatusStats", "(JJJJJ)V");
+    if (method_set_line_status_stats == NULL)
+      return;
   }
 
   stats_lock(stats);
 
   (*env)->CallVoidMethod(env, j_dst, method_set_stats,
       timespec2java_ts(stats->start_ts),
+      timespec2java_ts(stats->rcvd.first_byte_ts),
       timespec2java_ts(stats->rcvd.last_byte_ts),
       (jlong)stats->rcvd.bytes,
       (jlong)stats->rcvd.junk
@@ -117,14 +163,70 @@ void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst)
   (*env)->CallVoidMethod(env, j_dst, method_set_sirf_stats,
       timespec2java_ts(stats->rcvd.sirf.last_msg_ts),
       (jlong)stats->rcvd.sirf.total,
-      (jlong)stats->rcvd.sirf.mid41
+      (jlong)stats->rcvd.sirf.mid2,
+      (jlong)stats->rcvd.sirf.mid4,
+      (jlong)stats->rcvd.sirf.mid7,
+      (jlong)stats->rcvd.sirf.mid41,
+      (jlong)stats->rcvd.sirf.other,
+      (jlong)stats->rcvd.sirf.tracked_svs,
+      (jlong)stats->rcvd.sirf.tracked_cn0_avg
       );
   if ((*env)->ExceptionOccurred(env))
     goto stats_to_java_return;
 
   (*env)->CallVoidMethod(env, j_dst, method_set_ublox_stats,
       timespec2java_ts(stats->rcvd.ublox.last_msg_ts),
-      (jlong)stats->rcvd.ublox.total);
+      (jlong)stats->rcvd.ublox.total,
+      (jlong)stats->rcvd.ublox.nav_pvt,
+      (jlong)stats->rcvd.ublox.nav_posllh,
+      (jlong)stats->rcvd.ublox.nav_velned,
+      (jlong)stats->rcvd.ublox.nav_timeutc,
+      (jlong)stats->rcvd.ublox.nav_sol,
+      (jlong)stats->rcvd.ublox.nav_status,
+      (jlong)stats->rcvd.ublox.ack,
+      (jlong)stats->rcvd.ublox.other
+      );
+  if ((*env)->ExceptionOccurred(env))
+    goto stats_to_java_return;
+
+  (*env)->CallVoidMethod(env, j_dst, method_set_reader_stats,
+      (jlong)stats->reader.ioctls,
+      (jlong)stats->reader.reaps,
+      (jlong)stats->reader.bytes,
+      (jlong)stats->reader.status_pkts,
+      (jlong)stats->reader.handoffs,
+      (jlong)stats->reader.handoff_latency_us_total,
+      (jlong)stats->reader.handoff_latency_us_max);
+  if ((*env)->ExceptionOccurred(env))
+    goto stats_to_java_return;
+
+  (*env)->CallVoidMethod(env, j_dst, method_set_scheduler_stats,
+      (jlong)stats->sched.wakeups,
+      (jlong)stats->sched.sleep_us,
+      (jlong)stats->sched.delayed_reads,
+      (jlong)stats->sched.added_latency_us_total,
+      (jlong)stats->sched.added_latency_us_max,
+      (jlong)stats->sched.cycle_us,
+      (jlong)stats->sched.burst_interval_us,
+      (jlong)stats->sched.burst_duration_us);
+  if ((*env)->ExceptionOccurred(env))
+    goto stats_to_java_return;
+
+  (*env)->CallVoidMethod(env, j_dst, method_set_fix_stats,
+      (jlong)stats->fix.total,
+      (jlong)stats->fix.closed_early,
+      (jlong)stats->fix.epoch_end_misses,
+      (jlong)stats->fix.latency_us_total,
+      (jlong)stats->fix.latency_us_max);
+  if ((*env)->ExceptionOccurred(env))
+    goto stats_to_java_return;
+
+  (*env)->CallVoidMethod(env, j_dst, method_set_line_status_stats,
+      (jlong)stats->line.notifications,
+      (jlong)stats->line.overruns,
+      (jlong)stats->line.parity_errors,
+      (jlong)stats->line.framing_errors,
+      (jlong)stats->line.breaks);
   if ((*env)->ExceptionOccurred(env))
     goto stats_to_java_return;
 
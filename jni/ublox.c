@@ -1,6 +1,8 @@
 /* vim: set tabstop=2 shiftwidth=2 expandtab: */
 
 #include <assert.h>
+#include <stdio.h>
+#include <string.h>
 
 #include <jni.h>
 #include <android/log.h>
@@ -14,10 +16,57 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
+#define UBLOX_CLASS_ID(cls, id) ((cls) << 8 | (id))
+
+#define UBLOX_NAV_POSLLH  UBLOX_CLASS_ID(0x01, 0x02)
+#define UBLOX_NAV_STATUS  UBLOX_CLASS_ID(0x01, 0x03)
+#define UBLOX_NAV_SOL     UBLOX_CLASS_ID(0x01, 0x06)
+#define UBLOX_NAV_PVT     UBLOX_CLASS_ID(0x01, 0x07)
+#define UBLOX_NAV_VELNED  UBLOX_CLASS_ID(0x01, 0x12)
+#define UBLOX_NAV_TIMEUTC UBLOX_CLASS_ID(0x01, 0x21)
+#define UBLOX_NAV_EOE     UBLOX_CLASS_ID(0x01, 0x61)
+#define UBLOX_ACK_NAK     UBLOX_CLASS_ID(0x05, 0x00)
+#define UBLOX_ACK_ACK     UBLOX_CLASS_ID(0x05, 0x01)
+
+/* Messages of the navigation epoch, ublox_nav_epoch_t.msgs bits */
+#define NAV_EPOCH_POSLLH  (1 << 0)
+#define NAV_EPOCH_VELNED  (1 << 1)
+#define NAV_EPOCH_TIMEUTC (1 << 2)
+#define NAV_EPOCH_SOL     (1 << 3)
+#define NAV_EPOCH_STATUS  (1 << 4)
+
+static void parse_nav_pvt(const uint8_t *payload, unsigned payload_size,
+    struct gps_msg_status_t *status);
+static void put_nav_epoch_msg(struct ublox_parser_t *ctx, unsigned msg_bit,
+    const uint8_t *payload, unsigned payload_size, struct gps_msg_status_t *status);
+static void put_nav_eoe(struct ublox_parser_t *ctx, const uint8_t *payload,
+    unsigned payload_size, struct gps_msg_status_t *status);
+static void open_nav_epoch(struct ublox_nav_epoch_t *epoch, uint32_t itow);
+static void close_nav_epoch(struct ublox_nav_epoch_t *epoch, struct gps_msg_status_t *status);
+static inline bool is_fix_ok(unsigned gps_fix, unsigned flags);
+static long long utc_time(unsigned year, unsigned month, unsigned day,
+    unsigned hour, unsigned min, unsigned sec, int32_t nano);
+
+static inline uint16_t get2u(const uint8_t *buf);
+static inline int16_t get2s(const uint8_t *buf);
+static inline uint32_t get4u(const uint8_t *buf);
+static inline int32_t get4s(const uint8_t *buf);
+
 inline int looks_like_ublox(const uint8_t *msg, size_t max_len) {
+  struct msg_framer_t f;
+
+  msg_framer_start(&f, MSG_TYPE_UBLOX);
+  return resume_ublox_msg(&f, msg, max_len);
+}
+
+/*
+ * looks_like_ublox() resumed at f->pos: the Fletcher checksum of the bytes
+ * received by the previous calls is kept in f->csum
+ */
+int resume_ublox_msg(struct msg_framer_t *f, const uint8_t *msg, size_t max_len) {
   unsigned payload_length;
   uint8_t ck_a, ck_b;
-  unsigned i;
+  unsigned i, end;
 
   assert(max_len > 0);
 
@@ -27,22 +76,36 @@ inline int looks_like_ublox(const uint8_t *msg, size_t max_len) {
   if (max_len < 8)
     return LOOKS_LIKE_TRUNCATED_MSG;
 
-  if (msg[1] != 0x62)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+  if (f->size == 0) {
+    if (msg[1] != 0x62)
+      return LOOKS_NOT_LIKE_GPS_MSG;
 
-  payload_length = (msg[4] & 0xff) | (msg[5] << 8 & 0xff00);
+    payload_length = (msg[4] & 0xff) | (msg[5] << 8 & 0xff00);
 
-  if (payload_length > UBLOX_MAX)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+    if (payload_length > UBLOX_MAX)
+      return LOOKS_NOT_LIKE_GPS_MSG;
 
-  if (max_len < payload_length + 8)
-    return LOOKS_LIKE_TRUNCATED_MSG;
+    f->size = payload_length + 8;
+    f->pos = 2;
+    f->csum = 0;
+  }
+
+  payload_length = f->size - 8;
+  end = payload_length + 4 + 2;
+  if (end > max_len)
+    end = max_len;
 
-  ck_a = ck_b = 0;
-  for (i=2; i < payload_length + 4 + 2; ++i) {
+  ck_a = f->csum & 0xff;
+  ck_b = (f->csum >> 8) & 0xff;
+  for (i=f->pos; i < end; ++i) {
     ck_a = (ck_a + msg[i]) & 0xff;
     ck_b = (ck_b + ck_a) & 0xff;
   }
+  f->pos = i;
+  f->csum = ck_a | (ck_b << 8);
+
+  if (max_len < f->size)
+    return LOOKS_LIKE_TRUNCATED_MSG;
 
   if ((ck_a != msg[payload_length + 6]) ||
       (ck_b != msg[payload_length + 7])) {
@@ -55,4 +118,325 @@ inline int looks_like_ublox(const uint8_t *msg, size_t max_len) {
   return payload_length + 8;
 }
 
+void reset_ublox_parser(struct ublox_parser_t *ctx)
+{
+  open_nav_epoch(&ctx->epoch, 0);
+  ctx->expected_msgs = 0;
+  ctx->has_nav_pvt = false;
+}
+
+bool put_ublox_msg(struct ublox_parser_t *ctx, const uint8_t *msg,
+    size_t msg_size, struct gps_msg_status_t *status)
+{
+  const uint8_t *payload;
+  unsigned payload_size;
+
+  assert(msg_size >= 8 && msg_size <= UBLOX_MAX + 8);
+  assert((size_t)looks_like_ublox(msg, msg_size) == msg_size);
+
+  ctx->stats->rcvd.ublox.total += 1;
+  ctx->stats->rcvd.ublox.last_msg_ts = ctx->stats->rcvd.last_byte_ts;
+
+  status->is_valid = true;
+  status->location_changed = false;
+  status->err[0] = '\0';
+
+  payload = &msg[6];
+  payload_size = msg_size - 8;
+
+  switch (UBLOX_CLASS_ID(msg[2], msg[3])) {
+    case UBLOX_NAV_PVT:
+      ctx->stats->rcvd.ublox.nav_pvt += 1;
+      ctx->has_nav_pvt = true;
+      parse_nav_pvt(payload, payload_size, status);
+      break;
+    case UBLOX_NAV_POSLLH:
+      ctx->stats->rcvd.ublox.nav_posllh += 1;
+      put_nav_epoch_msg(ctx, NAV_EPOCH_POSLLH, payload, payload_size, status);
+      break;
+    case UBLOX_NAV_VELNED:
+      ctx->stats->rcvd.ublox.nav_velned += 1;
+      put_nav_epoch_msg(ctx, NAV_EPOCH_VELNED, payload, payload_size, status);
+      break;
+    case UBLOX_NAV_TIMEUTC:
+      ctx->stats->rcvd.ublox.nav_timeutc += 1;
+      put_nav_epoch_msg(ctx, NAV_EPOCH_TIMEUTC, payload, payload_size, status);
+      break;
+    case UBLOX_NAV_SOL:
+      ctx->stats->rcvd.ublox.nav_sol += 1;
+      put_nav_epoch_msg(ctx, NAV_EPOCH_SOL, payload, payload_size, status);
+      break;
+    case UBLOX_NAV_STATUS:
+      ctx->stats->rcvd.ublox.nav_status += 1;
+      put_nav_epoch_msg(ctx, NAV_EPOCH_STATUS, payload, payload_size, status);
+      break;
+    case UBLOX_NAV_EOE:
+      ctx->stats->rcvd.ublox.other += 1;
+      put_nav_eoe(ctx, payload, payload_size, status);
+      break;
+    case UBLOX_ACK_ACK:
+    case UBLOX_ACK_NAK:
+      ctx->stats->rcvd.ublox.ack += 1;
+      break;
+    default:
+      LOGV("U-BLOX: 0x%02hhx:%02hhx", msg[2], msg[3]);
+      ctx->stats->rcvd.ublox.other += 1;
+      break;
+  }
+
+  return status->is_valid;
+}
+
+/* UBX-NAV-PVT: complete fix in one message (u-blox 7 and later) */
+static void parse_nav_pvt(const uint8_t *payload, unsigned payload_size,
+    struct gps_msg_status_t *status)
+{
+  unsigned valid;
+  struct location_t l;
+
+  /* 84 bytes on u-blox 7, 92 on u-blox 8 and later */
+  if (payload_size < 84) {
+    snprintf(status->err, sizeof(status->err), "Wrong u-blox NAV-PVT payload size %u", payload_size);
+    status->is_valid = false;
+    return;
+  }
+
+  l.is_valid = is_fix_ok(payload[20], payload[21]);
+
+  /* Time. validDate, validTime */
+  valid = payload[11];
+  if ((valid & 0x03) == 0x03) {
+    l.time = utc_time(get2u(&payload[4]), payload[6], payload[7],
+        payload[8], payload[9], payload[10], get4s(&payload[16]));
+  }else {
+    l.time = gps_time_to_utc(-1, get4u(&payload[0]));
+  }
+
+  /* latitude, longitude */
+  l.latitude = 1.0e-7 * get4s(&payload[28]);
+  l.longitude = 1.0e-7 * get4s(&payload[24]);
+
+  /* Altitude MSL */
+  l.has_altitude = true;
+  l.altitude = 1.0e-3 * get4s(&payload[36]);
+
+  /* Ground speed */
+  l.has_speed = true;
+  l.speed = 1.0e-3 * get4s(&payload[60]);
+
+  /* Heading of motion */
+  l.has_bearing = true;
+  l.bearing = 1.0e-5 * get4s(&payload[64]);
+
+  /* Horizontal accuracy estimate */
+  l.has_accuracy = true;
+  l.accuracy = 1.0e-3 * get4u(&payload[40]);
+
+  /* Number of satellites used in the navigation solution */
+  l.satellites = payload[23];
+
+  status->location = l;
+  status->location_changed = true;
+}
+
+/*
+ * UBX-NAV-POSLLH, NAV-VELNED, NAV-TIMEUTC, NAV-SOL, NAV-STATUS: receivers
+ * without NAV-PVT. Messages of the same epoch share the iTOW. The epoch is
+ * closed once the messages of the previous epoch are all received, on
+ * NAV-EOE, or on the first message of the next epoch
+ */
+static void put_nav_epoch_msg(struct ublox_parser_t *ctx, unsigned msg_bit,
+    const uint8_t *payload, unsigned payload_size, struct gps_msg_status_t *status)
+{
+  unsigned min_size;
+  uint32_t itow;
+  bool has_prev;
+  struct ublox_nav_epoch_t prev;
+  struct ublox_nav_epoch_t *epoch;
+
+  switch (msg_bit) {
+    case NAV_EPOCH_POSLLH: min_size = 28; break;
+    case NAV_EPOCH_VELNED: min_size = 36; break;
+    case NAV_EPOCH_TIMEUTC: min_size = 20; break;
+    case NAV_EPOCH_SOL: min_size = 52; break;
+    case NAV_EPOCH_STATUS: min_size = 16; break;
+    default:
+      assert(0);
+      return;
+  }
+
+  if (payload_size < min_size) {
+    snprintf(status->err, sizeof(status->err),
+        "Wrong u-blox NAV 0x%02x payload size %u", msg_bit, payload_size);
+    status->is_valid = false;
+    return;
+  }
+
+  epoch = &ctx->epoch;
+  itow = get4u(&payload[0]);
+
+  has_prev = false;
+  if ((epoch->msgs == 0) || (itow != epoch->itow)) {
+    if (epoch->msgs != 0) {
+      ctx->expected_msgs = epoch->msgs;
+      if (!epoch->is_closed) {
+        prev = *epoch;
+        has_prev = true;
+      }
+    }
+    open_nav_epoch(epoch, itow);
+  }
+
+  switch (msg_bit) {
+    case NAV_EPOCH_POSLLH:
+      epoch->longitude = 1.0e-7 * get4s(&payload[4]);
+      epoch->latitude = 1.0e-7 * get4s(&payload[8]);
+      epoch->altitude = 1.0e-3 * get4s(&payload[16]);
+      epoch->accuracy = 1.0e-3 * get4u(&payload[20]);
+      break;
+    case NAV_EPOCH_VELNED:
+      epoch->speed = 1.0e-2 * get4u(&payload[20]);
+      epoch->bearing = 1.0e-5 * get4s(&payload[24]);
+      break;
+    case NAV_EPOCH_TIMEUTC:
+      /* validUTC */
+      if (payload[19] & 0x04) {
+        epoch->utc_time = utc_time(get2u(&payload[12]), payload[14], payload[15],
+            payload[16], payload[17], payload[18], get4s(&payload[8]));
+      }
+      break;
+    case NAV_EPOCH_SOL:
+      epoch->fix_ok &= is_fix_ok(payload[10], payload[11]);
+      /* WKNSET */
+      if (payload[11] & 0x04)
+        epoch->week = get2s(&payload[8]);
+      epoch->satellites = payload[47];
+      break;
+    case NAV_EPOCH_STATUS:
+      epoch->fix_ok &= is_fix_ok(payload[4], payload[5]);
+      break;
+  }
+  epoch->msgs |= msg_bit;
+
+  if (ctx->has_nav_pvt)
+    return;
+
+  if (!epoch->is_closed
+      && (epoch->msgs & NAV_EPOCH_POSLLH)
+      && (ctx->expected_msgs != 0)
+      && ((epoch->msgs & ctx->expected_msgs) == ctx->expected_msgs)) {
+    /* Supersedes the previous epoch if it is still open */
+    close_nav_epoch(epoch, status);
+  }else if (has_prev && (prev.msgs & NAV_EPOCH_POSLLH)) {
+    close_nav_epoch(&prev, status);
+  }
+}
+
+/* UBX-NAV-EOE: end of the navigation epoch (u-blox 8 and later) */
+static void put_nav_eoe(struct ublox_parser_t *ctx, const uint8_t *payload,
+    unsigned payload_size, struct gps_msg_status_t *status)
+{
+  struct ublox_nav_epoch_t *epoch;
+
+  if (payload_size < 4) {
+    snprintf(status->err, sizeof(status->err), "Wrong u-blox NAV-EOE payload size %u", payload_size);
+    status->is_valid = false;
+    return;
+  }
+
+  epoch = &ctx->epoch;
+  if (ctx->has_nav_pvt
+      || epoch->is_closed
+      || !(epoch->msgs & NAV_EPOCH_POSLLH)
+      || (epoch->itow != get4u(&payload[0])))
+    return;
+
+  close_nav_epoch(epoch, status);
+}
+
+static void open_nav_epoch(struct ublox_nav_epoch_t *epoch, uint32_t itow)
+{
+  memset(epoch, 0, sizeof(*epoch));
+  epoch->itow = itow;
+  epoch->week = -1;
+  epoch->fix_ok = true;
+  epoch->satellites = -1;
+}
+
+static void close_nav_epoch(struct ublox_nav_epoch_t *epoch, struct gps_msg_status_t *status)
+{
+  struct location_t l;
 
+  assert(epoch->msgs & NAV_EPOCH_POSLLH);
+
+  epoch->is_closed = true;
+
+  l.is_valid = epoch->fix_ok;
+  if (epoch->utc_time != 0)
+    l.time = epoch->utc_time;
+  else
+    l.time = gps_time_to_utc(epoch->week, epoch->itow);
+
+  l.latitude = epoch->latitude;
+  l.longitude = epoch->longitude;
+  l.has_altitude = true;
+  l.altitude = epoch->altitude;
+  l.has_accuracy = true;
+  l.accuracy = epoch->accuracy;
+  l.has_speed = l.has_bearing = (epoch->msgs & NAV_EPOCH_VELNED) != 0;
+  l.speed = epoch->speed;
+  l.bearing = epoch->bearing;
+  l.satellites = epoch->satellites;
+
+  status->location = l;
+  status->location_changed = true;
+}
+
+/* gpsFix 2D, 3D or GPS + dead reckoning, gpsFixOK */
+static inline bool is_fix_ok(unsigned gps_fix, unsigned flags)
+{
+  return (gps_fix >= 2) && (gps_fix <= 4) && (flags & 0x01);
+}
+
+static long long utc_time(unsigned year, unsigned month, unsigned day,
+    unsigned hour, unsigned min, unsigned sec, int32_t nano)
+{
+  struct tm tm;
+  int ms;
+
+  memset(&tm, 0, sizeof(tm));
+  tm.tm_year = year - 1900;
+  tm.tm_mon = month - 1;
+  tm.tm_mday = day;
+  tm.tm_hour = hour;
+  tm.tm_min = min;
+  tm.tm_sec = sec;
+
+  /* nano is signed: round to the nearest millisecond */
+  if (nano >= 0)
+    ms = (nano + 500000) / 1000000;
+  else
+    ms = -((-nano + 500000) / 1000000);
+
+  return 1000ll * (long long)timegm64(&tm) + ms;
+}
+
+static inline uint16_t get2u(const uint8_t *buf)
+{
+  return buf[0] | (buf[1] << 8);
+}
+
+static inline int16_t get2s(const uint8_t *buf)
+{
+  return (int16_t)get2u(buf);
+}
+
+static inline uint32_t get4u(const uint8_t *buf)
+{
+  return buf[0] | (buf[1] << 8) | (buf[2] << 16) | ((uint32_t)buf[3] << 24);
+}
+
+static inline int32_t get4s(const uint8_t *buf)
+{
+  return (int32_t)get4u(buf);
+}
@@ -3,6 +3,7 @@
 #include <sys/ioctl.h>
 #include <assert.h>
 #include <errno.h>
+#include <limits.h>
 #include <stdbool.h>
 #include <stdlib.h>
 #include <string.h>
@@ -31,36 +32,58 @@ static const struct timespec READ_TIMEOUT = {
   1, 500l*1e6
 };
 
+/* Minimal interval between the exports of the last received byte time */
+#define LAST_BYTE_TS_EXPORT_MS 100
+
 static jfieldID m_object_field;
+static jfieldID m_last_byte_ts_field;
 static jmethodID method_report_location;
 static jmethodID method_on_gps_message_received;
 
 struct usb_read_stream_t {
+  struct byte_source_t source;
   pthread_t read_thread;
   struct usb_reader_thread_ctx_t read_thread_ctx;
 
   struct timespec last_event_ts;
+  /* Arrival time of the first byte of the last usb_read() chunk */
+  struct timespec arrival_ts;
 
   int rxbuf_pos;
+  /* Message truncated at the start of rx_buf */
+  struct msg_framer_t framer;
   jobject rx_buf_direct;
   uint8_t rx_buf[USB_READER_BUF_SIZE];
 };
 
 struct native_ctx_t {
   bool msg_rcvd_cb_active;
+  /* Last received byte time written to the Java field, ms */
+  long long exported_byte_ts_ms;
+  enum usb_reader_mode_t reader_mode;
+  unsigned baudrate;
+  unsigned bits_per_char;
 
   struct nmea_parser_t nmea;
   struct sirf_parser_t sirf;
+  struct ublox_parser_t ublox;
   struct stats_t       stats;
   struct usb_read_stream_t stream;
   struct datalogger_t datalogger;
 };
 
+static void start_read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader);
 static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *stream);
 static void handle_rcvd(JNIEnv *env, jobject this,
     struct native_ctx_t *reader, unsigned rcvd_last);
 static void handle_timedout(JNIEnv *env, jobject this, struct native_ctx_t *reader);
-static int find_msg(uint8_t *buf, int start_pos, int buf_size, struct gps_msg_metadata_t *res);
+static inline void account_handoff_latency(struct stats_t *stats,
+    const struct timespec *arrival_ts, const struct timespec *ts);
+static inline void export_last_byte_ts(JNIEnv *env, jobject this, struct native_ctx_t *reader);
+static int find_msg(uint8_t *buf, int start_pos, int buf_size,
+    struct gps_msg_metadata_t *res, struct msg_framer_t *framer);
+static inline int resume_msg(struct msg_framer_t *framer, const uint8_t *msg, size_t max_len);
+static inline int find_sync_byte(const uint8_t *buf, int pos, int buf_size);
 static bool handle_msg(JNIEnv *env, jobject this, struct native_ctx_t *reader, uint8_t *msg, struct gps_msg_metadata_t *metadata);
 static void report_msg_rcvd(JNIEnv *env, jobject this, struct native_ctx_t *reader, uint8_t *msg, struct gps_msg_metadata_t *metadata);
 static void report_location(JNIEnv *env, jobject this, struct location_t *location);
@@ -85,8 +108,10 @@ static void native_create(JNIEnv* env, jobject thiz)
   stats_init(&nctx->stats);
   nctx->nmea.stats = &nctx->stats;
   nctx->sirf.stats = &nctx->stats;
+  nctx->ublox.stats = &nctx->stats;
 
   nctx->msg_rcvd_cb_active = true;
+  nctx->reader_mode = USB_READER_MODE_SYNC;
   datalogger_init(&nctx->datalogger);
 
   (*env)->SetLongField(env, thiz, m_object_field, (long)nctx);
@@ -118,10 +143,13 @@ static void native_read_loop(JNIEnv *env, jobject this,
   static jmethodID method_get_ostream_fd;
   static jmethodID method_get_istream_max_pkt_size;
   static jmethodID method_get_istream_ep_addr;
-  jobject direct_buf;
-  JavaVM *jvm;
+  static jmethodID method_get_istream_pkt_hdr_size;
+  static jmethodID method_get_istream_status_ep_addr;
+  static jmethodID method_get_istream_status_max_pkt_size;
+  static jmethodID method_get_istream_status_format;
   struct native_ctx_t *reader;
-  int fd, max_pkt_size, endpoint;
+  int fd, max_pkt_size, endpoint, pkt_hdr_size;
+  int status_endpoint, status_max_pkt_size, status_format;
 
   reader = get_ctx(env, this);
   if (reader == NULL)
@@ -153,6 +181,26 @@ static void native_read_loop(JNIEnv *env, jobject this,
     if (method_get_istream_ep_addr == NULL)
       return;
 
+    method_get_istream_pkt_hdr_size = (*env)->GetMethodID(env,
+        class_usb_input_stream, "getPacketHeaderSize", "()I");
+    if (method_get_istream_pkt_hdr_size == NULL)
+      return;
+
+    method_get_istream_status_ep_addr = (*env)->GetMethodID(env,
+        class_usb_input_stream, "getStatusEndpointAddress", "()I");
+    if (method_get_istream_status_ep_addr == NULL)
+      return;
+
+    method_get_istream_status_max_pkt_size = (*env)->GetMethodID(env,
+        class_usb_input_stream, "getStatusEndpointMaxPacketSize", "()I");
+    if (method_get_istream_status_max_pkt_size == NULL)
+      return;
+
+    method_get_istream_status_format = (*env)->GetMethodID(env,
+        class_usb_input_stream, "getStatusFormat", "()I");
+    if (method_get_istream_status_format == NULL)
+      return;
+
     method_get_ostream_fd = (*env)->GetMethodID(env,
         (*env)->GetObjectClass(env, j_output_stream),
         "getFileDescriptor", "()I"
@@ -161,21 +209,6 @@ static void native_read_loop(JNIEnv *env, jobject this,
       return;
   }
 
-  direct_buf = (*env)->NewDirectByteBuffer(env, reader->stream.rx_buf,
-      sizeof(reader->stream.rx_buf));
-  if (direct_buf == NULL)
-    return;
- reader->stream.rx_buf_direct = (*env)->NewGlobalRef(env, direct_buf);
-
- if ( (*env)->GetJavaVM(env, &jvm) < 0) {
-   LOGV("GetJavaVM() failure");
-   return;
- }
- if (jvm == NULL) {
-   LOGV("GetJavaVM(): JavaVM is NULL");
-   return;
- }
-
  fd = (*env)->CallIntMethod(env, j_input_stream, method_get_istream_fd);
  if (fd < 0)
    return;
@@ -186,12 +219,96 @@ static void native_read_loop(JNIEnv *env, jobject this,
 
  endpoint = (*env)->CallIntMethod(env, j_input_stream, method_get_istream_ep_addr);
 
- usb_reader_init(&reader->stream.read_thread_ctx,
-     jvm, fd, endpoint, max_pkt_size);
+ pkt_hdr_size = (*env)->CallIntMethod(env, j_input_stream, method_get_istream_pkt_hdr_size);
+ if ((pkt_hdr_size < 0) || (pkt_hdr_size >= max_pkt_size))
+   return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "invalid packet header size");
 
- read_loop(env, this, reader);
+ byte_source_init_usbdevfs(&reader->stream.source, fd, endpoint, max_pkt_size, pkt_hdr_size);
 
- (*env)->DeleteGlobalRef(env, reader->stream.rx_buf_direct);
+ status_endpoint = (*env)->CallIntMethod(env, j_input_stream, method_get_istream_status_ep_addr);
+ status_max_pkt_size = (*env)->CallIntMethod(env, j_input_stream, method_get_istream_status_max_pkt_size);
+ status_format = (*env)->CallIntMethod(env, j_input_stream, method_get_istream_status_format);
+ byte_source_set_status_endpoint(&reader->stream.source,
+     status_endpoint, status_max_pkt_size, status_format);
+
+ start_read_loop(env, this, reader);
+}
+
+/*
+ * Runs the read loop on a non-USB source: "fd:<n>", "tty:<path>",
+ * "file:<path>" or "tcp://<host>:<port>"
+ */
+static void native_read_loop_uri(JNIEnv *env, jobject this, jstring j_uri)
+{
+  const char *uri;
+  struct native_ctx_t *reader;
+  int rc;
+
+  reader = get_ctx(env, this);
+  if (reader == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+
+  if (j_uri == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "uri is null");
+
+  uri = (*env)->GetStringUTFChars(env, j_uri, NULL);
+  if (uri == NULL)
+    return;
+
+  rc = byte_source_open(&reader->stream.source, uri);
+  if (rc < 0)
+    LOGV("byte_source_open(%s) error: %s", uri, strerror(errno));
+
+  (*env)->ReleaseStringUTFChars(env, j_uri, uri);
+
+  if (rc < 0)
+    return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "can not open source");
+
+  start_read_loop(env, this, reader);
+
+  byte_source_close(&reader->stream.source);
+}
+
+static void native_cancel_read_loop(JNIEnv *env, jobject this)
+{
+  struct native_ctx_t *reader;
+  reader = get_ctx(env, this);
+  if (reader == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+
+  byte_source_cancel(&reader->stream.source);
+}
+
+static void start_read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
+{
+  jobject direct_buf;
+  JavaVM *jvm;
+
+  direct_buf = (*env)->NewDirectByteBuffer(env, reader->stream.rx_buf,
+      sizeof(reader->stream.rx_buf));
+  if (direct_buf == NULL)
+    return;
+
+  if ( (*env)->GetJavaVM(env, &jvm) < 0) {
+    LOGV("GetJavaVM() failure");
+    return;
+  }
+  if (jvm == NULL) {
+    LOGV("GetJavaVM(): JavaVM is NULL");
+    return;
+  }
+
+  reader->stream.rx_buf_direct = (*env)->NewGlobalRef(env, direct_buf);
+
+  usb_reader_init(&reader->stream.read_thread_ctx,
+      jvm, &reader->stream.source,
+      reader->reader_mode, &reader->stats);
+  usb_reader_set_line_rate(&reader->stream.read_thread_ctx,
+      reader->baudrate, reader->bits_per_char);
+
+  read_loop(env, this, reader);
+
+  (*env)->DeleteGlobalRef(env, reader->stream.rx_buf_direct);
 }
 
 static void native_get_stats(JNIEnv *env, jobject this, jobject dst)
@@ -208,6 +325,41 @@ static void native_get_stats(JNIEnv *env, jobject this, jobject dst)
   stats_export_to_java(env, &reader->stats, dst);
 }
 
+/*
+ * Copies the histogram of the junk bytes received since the last call to
+ * j_hist and clears the sample. Returns the number of the partial sync hits.
+ */
+static jint native_read_junk_sample(JNIEnv *env, jobject this, jintArray j_hist)
+{
+  struct native_ctx_t *reader;
+  jint sync_hits;
+
+  if (j_hist == NULL) {
+    throw_exception(env, EXCEPTION_NULL_POINTER, "histogram is null");
+    return 0;
+  }
+
+  if ((*env)->GetArrayLength(env, j_hist) != 256) {
+    throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "histogram size must be 256");
+    return 0;
+  }
+
+  reader = get_ctx(env, this);
+  if (reader == NULL) {
+    throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+    return 0;
+  }
+
+  stats_lock(&reader->stats);
+  (*env)->SetIntArrayRegion(env, j_hist, 0, 256,
+      (const jint *)reader->stats.junk_sample.hist);
+  sync_hits = (jint)reader->stats.junk_sample.sync_hits;
+  memset(&reader->stats.junk_sample, 0, sizeof(reader->stats.junk_sample));
+  stats_unlock(&reader->stats);
+
+  return sync_hits;
+}
+
 static void native_msg_rcvd_cb(JNIEnv *env, jobject this, jboolean enable)
 {
   struct native_ctx_t *reader;
@@ -218,6 +370,40 @@ static void native_msg_rcvd_cb(JNIEnv *env, jobject this, jboolean enable)
   reader->msg_rcvd_cb_active = enable;
 }
 
+static void native_set_usb_reader_mode(JNIEnv *env, jobject this, jint mode)
+{
+  struct native_ctx_t *reader;
+  reader = get_ctx(env, this);
+  if (reader == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+
+  switch (mode) {
+    case USB_READER_MODE_SYNC:
+    case USB_READER_MODE_ASYNC_URB:
+    case USB_READER_MODE_INLINE:
+      reader->reader_mode = (enum usb_reader_mode_t)mode;
+      break;
+    default:
+      return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "invalid reader mode");
+  }
+}
+
+static void native_set_serial_line_rate(JNIEnv *env, jobject this,
+    jint baudrate, jint bits_per_char)
+{
+  struct native_ctx_t *reader;
+  reader = get_ctx(env, this);
+  if (reader == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+
+  if (baudrate <= 0 || bits_per_char <= 0)
+    return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "invalid line rate");
+
+  reader->baudrate = baudrate;
+  reader->bits_per_char = bits_per_char;
+  usb_reader_set_line_rate(&reader->stream.read_thread_ctx, baudrate, bits_per_char);
+}
+
 static void native_datalogger_configure(JNIEnv *env, jobject this,
     jboolean enabled, jint format, jstring j_tracks_dir, jstring j_file_prefix)
 {
@@ -272,10 +458,12 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 {
   int rcvd;
   int last_errno;
+  bool is_inline;
   struct usb_read_stream_t *stream;
 
   reset_nmea_parser(&reader->nmea);
   reset_sirf_parser(&reader->sirf);
+  reset_ublox_parser(&reader->ublox);
 
   stats_lock(&reader->stats);
   stats_start_unlocked(&reader->stats);
@@ -283,20 +471,41 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 
   stream = &reader->stream;
   stream->rxbuf_pos = 0;
+  msg_framer_reset(&stream->framer);
   stream->last_event_ts.tv_sec = 0;
   stream->last_event_ts.tv_nsec = 0;
 
-  if (pthread_create(&stream->read_thread, NULL, usb_reader_thread,
+  is_inline = reader->reader_mode == USB_READER_MODE_INLINE;
+
+  if (is_inline) {
+    usb_reader_start_status(&stream->read_thread_ctx);
+  }else if (pthread_create(&stream->read_thread, NULL, usb_reader_thread,
         &stream->read_thread_ctx) != 0) {
     // XXX
     return;
   }
 
   for (;;) {
-    rcvd = usb_read(&stream->read_thread_ctx,
-        &stream->rx_buf[stream->rxbuf_pos],
-        sizeof(stream->rx_buf)-stream->rxbuf_pos,
-        &READ_TIMEOUT);
+    if (is_inline) {
+      /* The transfer lands in rx_buf: keep room for a full packet */
+      if (sizeof(stream->rx_buf) - stream->rxbuf_pos < (unsigned)stream->read_thread_ctx.max_pkt_size) {
+        stats_lock(&reader->stats);
+        stats_account_junk_unlocked(&reader->stats, stream->rx_buf, stream->rxbuf_pos);
+        stats_unlock(&reader->stats);
+        stream->rxbuf_pos = 0;
+        msg_framer_reset(&stream->framer);
+      }
+      rcvd = usb_read_inline(&stream->read_thread_ctx,
+          &stream->rx_buf[stream->rxbuf_pos],
+          sizeof(stream->rx_buf)-stream->rxbuf_pos,
+          &stream->arrival_ts);
+    }else {
+      rcvd = usb_read(&stream->read_thread_ctx,
+          &stream->rx_buf[stream->rxbuf_pos],
+          sizeof(stream->rx_buf)-stream->rxbuf_pos,
+          &READ_TIMEOUT,
+          &stream->arrival_ts);
+    }
     last_errno = errno;
     clock_gettime(CLOCK_MONOTONIC, &stream->last_event_ts);
     if (rcvd < 0) {
@@ -317,7 +526,10 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
     }
   }
 
-  pthread_join(stream->read_thread, NULL);
+  if (is_inline)
+    usb_reader_stop_status(&stream->read_thread_ctx);
+  else
+    pthread_join(stream->read_thread, NULL);
 
   datalogger_stop(&reader->datalogger);
 }
@@ -325,7 +537,9 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 static void handle_timedout(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 {
   struct gps_msg_status_t status;
+  stats_lock(&reader->stats);
   put_nmea_timedout(&reader->nmea, &status);
+  stats_unlock(&reader->stats);
   if (status.location_changed)
     report_location(env, this, &status.location);
   datalogger_flush(&reader->datalogger);
@@ -344,24 +558,33 @@ static void handle_rcvd(JNIEnv *env, jobject this,
     return;
 
   stats_lock(&reader->stats);
+  if (reader->stats.rcvd.bytes == 0)
+    reader->stats.rcvd.first_byte_ts = stream->arrival_ts;
   reader->stats.rcvd.bytes += rcvd_last;
   reader->stats.rcvd.last_byte_ts = reader->stream.last_event_ts;
+  account_handoff_latency(&reader->stats, &stream->arrival_ts, &stream->last_event_ts);
+  export_last_byte_ts(env, this, reader);
 
   pred_msg_pos = 0;
   pred_msg_len = 0;
-  msg_pos = find_msg(stream->rx_buf, 0, stream->rxbuf_pos, &msg);
+  /* Resumes the message truncated by the previous read, if any */
+  msg_pos = find_msg(stream->rx_buf, 0, stream->rxbuf_pos, &msg, &stream->framer);
   for (;;) {
 
     // No nessages found in buffer
     if (msg_pos < 0) {
       // LOGV("junk %u", stream->rxbuf_pos);
-      reader->stats.rcvd.junk += stream->rxbuf_pos;
+      stats_account_junk_unlocked(&reader->stats,
+          &stream->rx_buf[pred_msg_pos + pred_msg_len],
+          stream->rxbuf_pos - pred_msg_pos - pred_msg_len);
       stream->rxbuf_pos = 0;
       break;
     }
     // Junk between messages
     if (pred_msg_pos + pred_msg_len != msg_pos) {
-      reader->stats.rcvd.junk += msg_pos - pred_msg_pos - pred_msg_len;
+      stats_account_junk_unlocked(&reader->stats,
+          &stream->rx_buf[pred_msg_pos + pred_msg_len],
+          msg_pos - pred_msg_pos - pred_msg_len);
       //LOGV("inter msg junk %u", msg_pos - pred_msg_pos - pred_msg_len);
     }
 
@@ -375,7 +598,8 @@ static void handle_rcvd(JNIEnv *env, jobject this,
         if (stream->rxbuf_pos == sizeof(stream->rx_buf)) {
           pred_msg_pos = msg_pos+1;
           pred_msg_len = 0;
-          reader->stats.rcvd.junk += 1;
+          msg_framer_reset(&stream->framer);
+          stats_account_junk_unlocked(&reader->stats, &stream->rx_buf[msg_pos], 1);
           // FALLTHROUGH
         }else {
           break;
@@ -393,47 +617,117 @@ static void handle_rcvd(JNIEnv *env, jobject this,
     }
 
     assert(pred_msg_pos+pred_msg_len < stream->rxbuf_pos);
-    msg_pos = find_msg(stream->rx_buf, pred_msg_pos+pred_msg_len, stream->rxbuf_pos, &msg);
+    msg_pos = find_msg(stream->rx_buf, pred_msg_pos+pred_msg_len, stream->rxbuf_pos,
+        &msg, &stream->framer);
   }
   stats_unlock(&reader->stats);
 }
 
-static int find_msg(uint8_t *buf, int start_pos, int buf_size, struct gps_msg_metadata_t *res)
+static inline void account_handoff_latency(struct stats_t *stats,
+    const struct timespec *arrival_ts, const struct timespec *ts)
+{
+  long long latency_us;
+
+  latency_us = 1000000ll * (ts->tv_sec - arrival_ts->tv_sec)
+    + (ts->tv_nsec - arrival_ts->tv_nsec) / 1000;
+  if (latency_us < 0)
+    latency_us = 0;
+
+  stats->reader.handoffs += 1;
+  stats->reader.handoff_latency_us_total += latency_us;
+  if (latency_us > stats->reader.handoff_latency_us_max)
+    stats->reader.handoff_latency_us_max = (unsigned)latency_us;
+}
+
+/*
+ * Publishes the last received byte time to the Java field read by the
+ * failover check, without a stats export
+ */
+static inline void export_last_byte_ts(JNIEnv *env, jobject this, struct native_ctx_t *reader)
+{
+  long long ts_ms;
+
+  ts_ms = 1000ll * reader->stream.last_event_ts.tv_sec
+    + reader->stream.last_event_ts.tv_nsec / 1000000;
+  if (ts_ms - reader->exported_byte_ts_ms < LAST_BYTE_TS_EXPORT_MS)
+    return;
+
+  reader->exported_byte_ts_ms = ts_ms;
+  (*env)->SetLongField(env, this, m_last_byte_ts_field, (jlong)ts_ms);
+}
+
+/* First byte of the messages: 1 + message type, 0 if not a sync byte */
+static const uint8_t SYNC_BYTE_CLASS[256] = {
+  ['$'] = 1 + MSG_TYPE_NMEA,
+  [0xa0] = 1 + MSG_TYPE_SIRF, /* 0xa0a2 */
+  [0xb5] = 1 + MSG_TYPE_UBLOX /* 0xb562 */
+};
+
+/*
+ * Returns position of the next possible message start, buf_size if none
+ */
+static inline int find_sync_byte(const uint8_t *buf, int pos, int buf_size)
+{
+  /* Junk runs are long: test 4 bytes per iteration */
+  while (pos + 4 <= buf_size) {
+    if (SYNC_BYTE_CLASS[buf[pos]] | SYNC_BYTE_CLASS[buf[pos + 1]]
+        | SYNC_BYTE_CLASS[buf[pos + 2]] | SYNC_BYTE_CLASS[buf[pos + 3]])
+      break;
+    pos += 4;
+  }
+
+  while ((pos < buf_size) && (SYNC_BYTE_CLASS[buf[pos]] == 0))
+    pos += 1;
+
+  return pos;
+}
+
+/*
+ * Finds the next message at or after start_pos. A message truncated at the
+ * end of the buffer leaves its detector state in framer: the next call
+ * resumes it at start_pos, the message must not be moved in between
+ * other than to start_pos.
+ */
+static int find_msg(uint8_t *buf, int start_pos, int buf_size,
+    struct gps_msg_metadata_t *res, struct msg_framer_t *framer)
 {
   int msg_pos;
   int msg_size;
   int msg_type;
 
-  msg_pos = start_pos;
   msg_type = -1;
-  while (msg_pos < buf_size) {
+  msg_size = LOOKS_NOT_LIKE_GPS_MSG;
+  msg_pos = start_pos;
 
-    /* Check for NMEA message */
-    msg_size = looks_like_nmea(&buf[msg_pos], buf_size - msg_pos);
-    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
-      msg_type = MSG_TYPE_NMEA;
-      break;
-    }
+  if (framer->type >= 0) {
+    msg_size = resume_msg(framer, &buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG)
+      msg_type = framer->type;
+    else
+      msg_pos += 1;
+  }
 
-    /* Check for SiRF message */
-    msg_size = looks_like_sirf(&buf[msg_pos], buf_size - msg_pos);
-    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
-      msg_type = MSG_TYPE_SIRF;
-      break;
-    }
+  if (msg_type < 0) {
+    for (msg_pos = find_sync_byte(buf, msg_pos, buf_size);
+        msg_pos < buf_size;
+        msg_pos = find_sync_byte(buf, msg_pos + 1, buf_size)) {
 
-    /* Check for u-blox message */
-    msg_size = looks_like_ublox(&buf[msg_pos], buf_size - msg_pos);
-    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
-      msg_type = MSG_TYPE_UBLOX;
-      break;
+      /* Only the detector of the sync byte can match */
+      msg_framer_start(framer, SYNC_BYTE_CLASS[buf[msg_pos]] - 1);
+      msg_size = resume_msg(framer, &buf[msg_pos], buf_size - msg_pos);
+      if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+        msg_type = framer->type;
+        break;
+      }
     }
-
-    msg_pos += 1;
   }
 
+  if (msg_size != LOOKS_LIKE_TRUNCATED_MSG)
+    msg_framer_reset(framer);
+
   if (msg_type >= 0) {
     res->type = msg_type;
+    res->nmea_fields = &framer->fields;
     if (msg_size == LOOKS_LIKE_TRUNCATED_MSG) {
       res->size = buf_size - msg_pos;
       res->is_truncated = true;
@@ -447,6 +741,22 @@ static int find_msg(uint8_t *buf, int start_pos, int buf_size, struct gps_msg_me
   return -1;
 }
 
+static inline int resume_msg(struct msg_framer_t *framer, const uint8_t *msg, size_t max_len)
+{
+  switch (framer->type) {
+    case MSG_TYPE_NMEA:
+      return resume_nmea_msg(framer, msg, max_len);
+    case MSG_TYPE_SIRF:
+      return resume_sirf_msg(framer, msg, max_len);
+    case MSG_TYPE_UBLOX:
+      return resume_ublox_msg(framer, msg, max_len);
+    default:
+      assert(0);
+      break;
+  }
+  return LOOKS_NOT_LIKE_GPS_MSG;
+}
+
 static bool handle_msg(JNIEnv *env,
     jobject this,
     struct native_ctx_t *reader,
@@ -470,23 +780,13 @@ static bool handle_msg(JNIEnv *env,
 
   switch (metadata->type) {
     case MSG_TYPE_NMEA:
-      put_nmea_msg(&reader->nmea, msg, metadata->size, &result);
+      put_nmea_msg(&reader->nmea, msg, metadata->size, metadata->nmea_fields, &result);
       break;
     case MSG_TYPE_SIRF:
       put_sirf_msg(&reader->sirf, msg,  metadata->size, &result);
       break;
     case MSG_TYPE_UBLOX:
-      {
-        assert(metadata->size > 8);
-        assert(msg[0] == 0xb5);
-        LOGV("U-BLOX: 0x%02hhx:%02hhx", msg[2], msg[3]);
-        result.is_valid = true;
-        result.location_changed = false;
-        result.err[0] = '\0';
-
-        reader->stats.rcvd.ublox.total += 1;
-        reader->stats.rcvd.ublox.last_msg_ts = reader->stats.rcvd.last_byte_ts;
-      }
+      put_ublox_msg(&reader->ublox, msg, metadata->size, &result);
       break;
     default:
       result.is_valid = true;
@@ -560,10 +860,15 @@ static JNINativeMethod native_methods[] = {
     "Lorg/broeuschmeul/android/gps/usb/UsbSerialController$UsbSerialInputStream;"
       "Lorg/broeuschmeul/android/gps/usb/UsbSerialController$UsbSerialOutputStream;"
       ")V", (void*)native_read_loop},
+  { "native_read_loop_uri", "(Ljava/lang/String;)V", (void*)native_read_loop_uri },
+  { "native_cancel_read_loop", "()V", (void*)native_cancel_read_loop },
   { "native_get_stats",
     "(Lorg/broeuschmeul/android/gps/usb/provider/StatsNative;)V",
     (void*)native_get_stats},
+  { "native_read_junk_sample", "([I)I", (void*)native_read_junk_sample },
   { "native_msg_rcvd_cb", "(Z)V", (void*)native_msg_rcvd_cb },
+  { "native_set_usb_reader_mode", "(I)V", (void*)native_set_usb_reader_mode },
+  { "native_set_serial_line_rate", "(II)V", (void*)native_set_serial_line_rate },
   { "native_datalogger_configure", "(ZILjava/lang/String;Ljava/lang/String;)V", (void*)native_datalogger_configure },
   { "native_datalogger_start", "()V", (void*)native_datalogger_start },
   { "native_datalogger_stop", "()V", (void*)native_datalogger_stop },
@@ -583,6 +888,10 @@ int register_usb_converter_natives(JNIEnv* env) {
   if (m_object_field == NULL)
     return JNI_FALSE;
 
+  m_last_byte_ts_field = (*env)->GetFieldID(env, clazz, "mLastReceivedByteTs", "J");
+  if (m_last_byte_ts_field == NULL)
+    return JNI_FALSE;
+
   method_report_location = (*env)->GetMethodID(env,
       clazz, "reportLocation", "(JDDDFFFIZZZZZ)V");
   if (method_report_location == NULL)
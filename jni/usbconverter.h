@@ -8,12 +8,15 @@
 #include <stddef.h>
 #include <stdint.h>
 #include <stdio.h>
+#include <time.h>
 #include <time64.h>
 
 #include "jni.h"
 
 // $PUBX,00 ~ 120 bytes
 #define NMEA_MAX 512
+/* GSV: 20, PUBX,00: 21 */
+#define NMEA_MAX_FIELDS 40
 #define SIRF_MAX 1023
 #define UBLOX_MAX 4096
 
@@ -114,6 +117,7 @@ struct nmea_gpgsa_t {
   int fix_mode;     /* 'M' - manual, 'A' - automatic, 0 - undefiend */
   int fix_type;     /* -1 - undefined, 1 - Fix not available, 2 - 2D, 3 - 3D */
   unsigned prn[12]; /* PRN's of Satellite Vechicles. 0 - unused */
+  unsigned system_id; /* GNSS system ID, from the talker if not sent. 0 - unknown */
   float pdop;
   float hdop;
   float vdop;
@@ -154,11 +158,32 @@ struct nmea_gpzda_t {
   unsigned zone_minutes; /* Offset to local time zone in minutes (00 to 59) */
 };
 
+/* Sentences that update the fix, index of nmea_fix_t.sentence_cnt */
+enum nmea_sentence_t {
+  NMEA_SENTENCE_NONE = 0,
+  NMEA_SENTENCE_GGA,
+  NMEA_SENTENCE_RMC,
+  NMEA_SENTENCE_GLL,
+  NMEA_SENTENCE_GST,
+  NMEA_SENTENCE_GSA,
+  NMEA_SENTENCE_VTG,
+  NMEA_SENTENCE_ZDA,
+  NMEA_SENTENCE_CNT
+};
+
 struct nmea_fix_t {
   /* Current NMEA fix */
   struct nmea_fix_time_t fix_time; /* Current epoch time (hhmmss mss, UTC) */
 
   bool is_closed;
+  bool is_closed_early;   /* Closed on the learned end of the epoch */
+
+  /* Arrival of the first sentence of the fix */
+  struct timespec open_ts;
+
+  /* Last sentence with the fix time and the number of sentences of each type */
+  enum nmea_sentence_t last_sentence;
+  unsigned sentence_cnt[NMEA_SENTENCE_CNT];
 
   bool gpgga_active;
   bool gprmc_active;
@@ -173,17 +198,73 @@ struct nmea_fix_t {
   struct nmea_gpzda_t gpzda;
 };
 
+#define NMEA_GSA_MAX_SATELLITES 64
+
+/* Satellites used in the solution, from all the GSA sentences of the epoch.
+ * Multi-GNSS receivers send one GSA per constellation */
+struct nmea_gsa_satellites_t {
+  unsigned id[NMEA_GSA_MAX_SATELLITES]; /* system_id << 16 | PRN */
+  unsigned cnt;
+  /* GSA received after the last timed sentence: may lead the next epoch */
+  bool is_pending;
+  bool is_valid;
+};
+
 struct nmea_parser_t {
   struct tm time_full;        /* Curent time and date, UTC */
   struct nmea_fix_t fix;
 
-  struct nmea_gpgsa_t gpgsa;
+  struct nmea_gsa_satellites_t gsa_satellites;
   struct nmea_gpvtg_t gpvtg;
 
+  /* Last sentence of the epoch learned on the previous fixes: cnt-th
+   * sentence of this type closes the fix */
+  struct {
+    enum nmea_sentence_t sentence;
+    unsigned cnt;
+    unsigned confirmations;
+  } epoch_end;
+
   struct stats_t *stats;
 };
 
 struct sirf_parser_t {
+  /* MID 7 extended GPS week. -1 - not received */
+  int week;
+  /* MID 41 received: MID 2 is not used for the fix */
+  bool has_mid41;
+
+  struct stats_t *stats;
+};
+
+/* u-blox NAV-POSLLH, NAV-VELNED, NAV-TIMEUTC, NAV-SOL, NAV-STATUS of one
+ * navigation epoch */
+struct ublox_nav_epoch_t {
+  uint32_t itow;       /* GPS time of week of the epoch, ms */
+  unsigned msgs;       /* Messages received, NAV_EPOCH_* bits */
+  bool is_closed;
+
+  double latitude;
+  double longitude;
+  double altitude;     /* Height above mean sea level, m */
+  float accuracy;      /* Horizontal accuracy estimate, m */
+  float speed;         /* Ground speed, m/s */
+  float bearing;       /* Heading of motion, degrees */
+
+  long long utc_time;  /* NAV-TIMEUTC, ms. 0 - not valid */
+  int week;            /* NAV-SOL GPS week. -1 - not valid */
+  bool fix_ok;         /* NAV-SOL, NAV-STATUS. true if not received */
+  int satellites;      /* NAV-SOL. -1 - unknown */
+};
+
+struct ublox_parser_t {
+  struct ublox_nav_epoch_t epoch;
+  /* Messages of the previous epoch: the epoch is closed as soon as they
+   * are all received */
+  unsigned expected_msgs;
+  /* NAV-PVT received: the other NAV messages are not used for the fix */
+  bool has_nav_pvt;
+
   struct stats_t *stats;
 };
 
@@ -203,6 +284,7 @@ struct stats_t {
     unsigned long long bytes;
     unsigned long long junk;
 
+    struct timespec first_byte_ts;
     struct timespec last_byte_ts;
 
     struct {
@@ -223,16 +305,95 @@ struct stats_t {
 
     struct {
       unsigned total;
+      unsigned mid2;
+      unsigned mid4;
+      unsigned mid7;
       unsigned mid41;
+      unsigned other;
+      /* MID 4 of the last epoch: satellites tracked and their mean C/N0 */
+      unsigned tracked_svs;
+      unsigned tracked_cn0_avg;
       struct timespec last_msg_ts;
     } sirf;
 
     struct {
       unsigned total;
+      unsigned nav_pvt;
+      unsigned nav_posllh;
+      unsigned nav_velned;
+      unsigned nav_timeutc;
+      unsigned nav_sol;
+      unsigned nav_status;
+      unsigned ack;
+      unsigned other;
       struct timespec last_msg_ts;
     } ublox;
 
   } rcvd;
+
+  struct {
+    unsigned long long ioctls;
+    unsigned long long reaps;
+    unsigned long long bytes;
+    /* Packets with the status bytes only (FTDI) */
+    unsigned long long status_pkts;
+    /* Reader thread to read loop handoffs */
+    unsigned long long handoffs;
+    unsigned long long handoff_latency_us_total;
+    unsigned handoff_latency_us_max;
+  } reader;
+
+  /* NMEA fixes published */
+  struct {
+    unsigned long long total;
+    /* Closed on the learned end of the epoch */
+    unsigned long long closed_early;
+    /* Sentences received after the early close: learned end dropped */
+    unsigned long long epoch_end_misses;
+    /* From the first sentence of the fix to the publication */
+    unsigned long long latency_us_total;
+    unsigned latency_us_max;
+  } fix;
+
+  /* Serial state notifications of the interrupt endpoint (CDC, PL2303) */
+  struct {
+    unsigned long long notifications;
+    unsigned long long overruns;
+    unsigned long long parity_errors;
+    unsigned long long framing_errors;
+    unsigned long long breaks;
+  } line;
+
+  /* Reader thread wakeup scheduler */
+  struct {
+    unsigned long long wakeups;
+    unsigned long long sleep_us;
+    /* Reads that returned data buffered while the reader slept */
+    unsigned long long delayed_reads;
+    unsigned long long added_latency_us_total;
+    unsigned added_latency_us_max;
+    unsigned cycle_us;
+    unsigned burst_interval_us;
+    unsigned burst_duration_us;
+  } sched;
+
+  /* Junk bytes sample for the baudrate detection. Read and cleared by java */
+  struct {
+    unsigned hist[256];
+    /* "$G", "$P", 0xa0a2, 0xb562 pairs in the junk */
+    unsigned sync_hits;
+    uint8_t prev;
+  } junk_sample;
+};
+
+/* Fields of a NMEA sentence, split by the framer: field i is
+ * msg[i == 0 ? 0 : end[i-1] + 1, end[i]). Split at ',' up to the first '*'
+ * or <CR>, at most NMEA_MAX_FIELDS fields */
+struct nmea_fields_t {
+  unsigned nb;
+  /* end[nb-1] is set */
+  bool closed;
+  uint16_t end[NMEA_MAX_FIELDS];
 };
 
 struct gps_msg_metadata_t {
@@ -243,8 +404,65 @@ struct gps_msg_metadata_t {
   } type;
   size_t size;
   bool is_truncated;
+  /* NMEA only. Valid until the next find_msg() */
+  const struct nmea_fields_t *nmea_fields;
+};
+
+/* Detector state of a message truncated at the end of the buffer. The next
+ * read resumes the detection at pos: each byte is examined once */
+struct msg_framer_t {
+  /* MSG_TYPE_*, -1 if no message is pending */
+  int type;
+  /* Bytes examined */
+  unsigned pos;
+  /* Binary messages: total size, 0 until the header is received */
+  unsigned size;
+  /* NMEA: XOR; SiRF: 15-bit sum; u-blox: ck_a | ck_b << 8 */
+  unsigned csum;
+  /* NMEA: position of the last '*', -1 if none, and the XOR before it */
+  int csum_pos;
+  unsigned star_csum;
+  /* NMEA: fields found so far */
+  struct nmea_fields_t fields;
 };
 
+static inline void msg_framer_start(struct msg_framer_t *f, int type)
+{
+  f->type = type;
+  f->pos = 1;
+  f->size = 0;
+  f->csum = 0;
+  f->csum_pos = -1;
+  f->star_csum = 0;
+  f->fields.nb = 1;
+  f->fields.closed = false;
+}
+
+static inline void msg_framer_reset(struct msg_framer_t *f)
+{
+  f->type = -1;
+}
+
+/* 1980-01-06, ms */
+#define GPS_EPOCH_MS 315964800000ll
+#define GPS_WEEK_MS  604800000ll
+/* GPS - UTC. Used only when the receiver does not report the UTC time */
+#define GPS_UTC_LEAP_SECONDS 18
+
+/* GPS week and time of week to UTC, ms. week < 0: the week nearest to the
+ * system time */
+static inline long long gps_time_to_utc(int week, uint32_t tow_ms)
+{
+  long long gps_ms;
+
+  if (week < 0) {
+    gps_ms = 1000ll * time(NULL) - GPS_EPOCH_MS + 1000ll * GPS_UTC_LEAP_SECONDS;
+    week = (gps_ms - tow_ms + GPS_WEEK_MS / 2) / GPS_WEEK_MS;
+  }
+
+  return GPS_EPOCH_MS + week * GPS_WEEK_MS + tow_ms - 1000ll * GPS_UTC_LEAP_SECONDS;
+}
+
 struct datalogger_t;
 
 /* usbconverter.c */
@@ -252,17 +470,23 @@ int register_usb_converter_natives(JNIEnv* env);
 
 /* nmea.c */
 int looks_like_nmea(const uint8_t *msg, size_t max_len);
+int resume_nmea_msg(struct msg_framer_t *f, const uint8_t *msg, size_t max_len);
 void reset_nmea_parser(struct nmea_parser_t *ctx);
-bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
+bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size,
+    const struct nmea_fields_t *fields, struct gps_msg_status_t *res);
 void put_nmea_timedout(struct nmea_parser_t *ctx, struct gps_msg_status_t *status);
 
 /* sirf.c */
 int looks_like_sirf(const uint8_t *msg, size_t max_len);
+int resume_sirf_msg(struct msg_framer_t *f, const uint8_t *msg, size_t max_len);
 void reset_sirf_parser(struct sirf_parser_t *ctx);
 bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
 
 /* ublox.c */
 int looks_like_ublox(const uint8_t *msg, size_t max_len);
+int resume_ublox_msg(struct msg_framer_t *f, const uint8_t *msg, size_t max_len);
+void reset_ublox_parser(struct ublox_parser_t *ctx);
+bool put_ublox_msg(struct ublox_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
 
 /* stats.c */
 void stats_init(struct stats_t *stats);
@@ -271,6 +495,7 @@ void stats_lock(struct stats_t *stats);
 void stats_unlock(struct stats_t *stats);
 void stats_reset_unlocked(struct stats_t *stats);
 void stats_start_unlocked(struct stats_t *stats);
+void stats_account_junk_unlocked(struct stats_t *stats, const uint8_t *junk, size_t size);
 void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst);
 
 #endif /* _USBCONVERTER_H  */
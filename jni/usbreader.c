@@ -7,6 +7,7 @@
 #include <string.h>
 #include <time.h>
 #include <unistd.h>
+#include <poll.h>
 #include <sys/ioctl.h>
 
 #include <linux/usbdevice_fs.h>
@@ -15,13 +16,31 @@
 #include <jni.h>
 #include <android/log.h>
 
+#include "usbconverter.h"
 #include "usbreader.h"
 
 #define READ_TIMEOUT_MS 1100
 #define DEFAULT_CYCLE_US 16666 /* (192 * (1+8+0+1) * 1000000ll / 115200) */
+#define MIN_CYCLE_US 1000
+#define MAX_CYCLE_US 200000
+
+/* Extra idle time after which the next received byte starts a new burst */
+#define BURST_GAP_US 10000
 
 #define USB_IOCTL_WATERMARK 64
 
+#define STATS_PUBLISH_INTERVAL_MS 500
+
+/* CDC PSTN SERIAL_STATE notification */
+#define CDC_REQ_TYPE_NOTIFICATION 0xa1
+#define CDC_NOTIFY_SERIAL_STATE 0x20
+#define SERIAL_STATE_NOTIFICATION_SIZE 10
+/* UART state bitmap, same bits on PL2303 */
+#define SERIAL_STATE_BREAK 0x04
+#define SERIAL_STATE_FRAMING 0x10
+#define SERIAL_STATE_PARITY 0x20
+#define SERIAL_STATE_OVERRUN 0x40
+
 #define MIN(a, b) ((a)<(b)?(a):(b))
 
 #define TAG "NativeUsbReader"
@@ -38,25 +57,60 @@ static const JavaVMAttachArgs USB_READER_THREAD_ATTACH_ARGS = {
 };
 
 static unsigned share(struct usb_reader_thread_ctx_t * ctx,
-    uint8_t *buf, unsigned rxbuf_pos);
+    uint8_t *buf, unsigned rxbuf_pos, const struct timespec *arrival_ts);
+static void read_loop_sync(struct usb_reader_thread_ctx_t *ctx);
+static void read_loop_async_urb(struct usb_reader_thread_ctx_t *ctx);
+static int reap_urb_ndelay(struct usb_reader_thread_ctx_t *ctx, struct usb_reader_urb_t **urb);
+static bool move_urb_data(struct usb_reader_urb_t *urb, uint8_t *rx_buf, unsigned *rxbuf_pos);
+static ssize_t read_src(struct usb_reader_thread_ctx_t *ctx,
+    uint8_t *dst, unsigned dst_size, unsigned timeout_ms);
+static ssize_t read_bulk_urb(struct usb_reader_thread_ctx_t *ctx,
+    uint8_t *dst, unsigned dst_size, unsigned timeout_ms);
+static int submit_urb(struct usb_reader_thread_ctx_t *ctx, struct usb_reader_urb_t *urb);
+static void discard_urbs(struct usb_reader_thread_ctx_t *ctx, unsigned submitted_cnt);
+static int submit_status_urb(struct usb_reader_thread_ctx_t *ctx);
+static void on_status_urb(struct usb_reader_thread_ctx_t *ctx);
+static void decode_serial_state(struct usb_reader_thread_ctx_t *ctx,
+    const uint8_t *data, unsigned size);
+static void publish_counters(struct usb_reader_thread_ctx_t *ctx, bool force);
 static void usb_reader_cleanup(void *arg);
 static inline void sleep_cycle(struct usb_reader_thread_ctx_t *ctx);
+static void sleep_reaping_status(struct usb_reader_thread_ctx_t *ctx, long long sleep_us);
+static void sched_on_rx(struct usb_reader_thread_ctx_t *ctx, const struct timespec *arrival_ts);
+static inline long long timespec_diff_us(const struct timespec *end, const struct timespec *start);
 
 void usb_reader_init(struct usb_reader_thread_ctx_t *ctx,
         JavaVM *jvm,
-        int fd, int endpoint, int max_pkt_size)
+        struct byte_source_t *src,
+        enum usb_reader_mode_t mode, struct stats_t *stats)
 {
   ctx->jvm = jvm;
-  ctx->fd = fd;
-  ctx->endpoint = endpoint;
-  ctx->max_pkt_size = max_pkt_size;
+  ctx->src = src;
+  ctx->fd = src->fd;
+  ctx->endpoint = src->endpoint;
+  ctx->max_pkt_size = src->max_pkt_size;
+  if ((mode == USB_READER_MODE_ASYNC_URB) && (src->type != BYTE_SOURCE_USBDEVFS)) {
+    LOGV("URB reader mode not supported on source type %i", src->type);
+    mode = USB_READER_MODE_SYNC;
+  }
+  ctx->mode = mode;
+  ctx->stats = stats;
+  memset(&ctx->counters, 0, sizeof(ctx->counters));
+
+  memset(&ctx->status, 0, sizeof(ctx->status));
+  ctx->status.endpoint = src->status_endpoint;
+  ctx->status.max_pkt_size = src->status_max_pkt_size;
+  ctx->status.format = src->status_format;
 
-  ctx->cycle_us = DEFAULT_CYCLE_US;
-  ctx->fast_cycle = true;
+  memset(&ctx->sched, 0, sizeof(ctx->sched));
+  ctx->sched.cycle_us = DEFAULT_CYCLE_US;
+  ctx->sched.fast_cycle = true;
 
   pthread_mutex_init(&ctx->mtx, NULL);
   pthread_cond_init(&ctx->data_available_cond, NULL);
-  ctx->shared_rxbuf_pos = 0;
+  ctx->ring_head = 0;
+  ctx->ring_tail = 0;
+  ctx->consumer_waiting = 0;
   ctx->is_running = true; // XXX
   ctx->last_event_errno = 0;
 }
@@ -67,16 +121,30 @@ void usb_reader_destroy(struct usb_reader_thread_ctx_t *ctx)
   pthread_cond_destroy(&ctx->data_available_cond);
 }
 
+void usb_reader_set_line_rate(struct usb_reader_thread_ctx_t *ctx,
+    unsigned baudrate, unsigned bits_per_char)
+{
+  long long cycle_us;
+
+  if (baudrate == 0 || bits_per_char == 0) {
+    cycle_us = DEFAULT_CYCLE_US;
+  }else {
+    cycle_us = (long long)USB_READER_CYCLE_CHARS * bits_per_char * 1000000ll / baudrate;
+    if (cycle_us < MIN_CYCLE_US)
+      cycle_us = MIN_CYCLE_US;
+    else if (cycle_us > MAX_CYCLE_US)
+      cycle_us = MAX_CYCLE_US;
+  }
+
+  LOGV("line rate: %u baud, %u bits per char, cycle: %lli us", baudrate, bits_per_char, cycle_us);
+
+  __atomic_store_n(&ctx->sched.cycle_us, (unsigned)cycle_us, __ATOMIC_RELAXED);
+}
+
 void *usb_reader_thread(void *arg)
 {
-  int rcvd;
-  int last_event_errno;
   struct usb_reader_thread_ctx_t *ctx;
-  struct usbdevfs_bulktransfer ctrl;
   JavaVMAttachArgs attachArgs;
-  unsigned rxbuf_pos;
-  unsigned req_len;
-  uint8_t rx_buf[USB_READER_BUF_SIZE];
 
   ctx = (struct usb_reader_thread_ctx_t *)arg;
   attachArgs = USB_READER_THREAD_ATTACH_ARGS;
@@ -85,109 +153,756 @@ void *usb_reader_thread(void *arg)
 
   pthread_mutex_lock(&ctx->mtx);
   ctx->is_running = true;
-  ctx->cycle_us = DEFAULT_CYCLE_US;
-  ctx->fast_cycle = true;
+  ctx->sched.fast_cycle = true;
   pthread_mutex_unlock(&ctx->mtx);
 
-  LOGV("istream_fd: %i, endpoint: 0x%x, max_pkt_size: %i", ctx->fd,
-      ctx->endpoint, ctx->max_pkt_size);
+  LOGV("source: %i, istream_fd: %i, endpoint: 0x%x, max_pkt_size: %i, mode: %i",
+      ctx->src->type, ctx->fd, ctx->endpoint, ctx->max_pkt_size, ctx->mode);
+
+  clock_gettime(CLOCK_MONOTONIC, &ctx->counters.last_publish_ts);
 
+  usb_reader_start_status(ctx);
+
+  if (ctx->mode == USB_READER_MODE_ASYNC_URB)
+    read_loop_async_urb(ctx);
+  else
+    read_loop_sync(ctx);
+
+  usb_reader_stop_status(ctx);
+  publish_counters(ctx, true);
+
+  pthread_cleanup_pop(1);
+
+  return NULL;
+}
+
+static void read_loop_sync(struct usb_reader_thread_ctx_t *ctx)
+{
+  int rcvd;
+  int last_event_errno;
+  bool is_paced;
+  struct timespec arrival_ts;
+  unsigned rxbuf_pos;
+  unsigned req_len;
+  uint8_t rx_buf[USB_READER_BUF_SIZE];
+
+  is_paced = byte_source_is_paced(ctx->src);
   rxbuf_pos = 0;
   for (;;) {
+    if (!is_paced && (rxbuf_pos != 0)) {
+      /* Ring is full: wait for the consumer instead of dropping data */
+      if (__atomic_load_n(&ctx->src->cancelled, __ATOMIC_RELAXED)) {
+        last_event_errno = ECANCELED;
+        pthread_mutex_lock(&ctx->mtx);
+        ctx->last_event_errno = last_event_errno;
+        pthread_mutex_unlock(&ctx->mtx);
+        break;
+      }
+      usleep(MIN_CYCLE_US);
+      rxbuf_pos = share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
+      continue;
+    }
+
     sleep_cycle(ctx);
 
     req_len = MIN(ctx->max_pkt_size, (int)(sizeof(rx_buf)-rxbuf_pos));
 
-    memset(&ctrl, 0, sizeof(ctrl));
-    ctrl.ep = ctx->endpoint;
-    ctrl.len = req_len;
-    ctrl.data = &rx_buf[rxbuf_pos];
-    ctrl.timeout = READ_TIMEOUT_MS;
-
-    rcvd = ioctl(ctx->fd, USBDEVFS_BULK, &ctrl);
+    rcvd = read_src(ctx, &rx_buf[rxbuf_pos], req_len, READ_TIMEOUT_MS);
     last_event_errno = errno;
+    ctx->counters.ioctls += 1;
+    ctx->counters.wakeups += 1;
     //LOGV("rcvd %i pos %i req_len %i", rcvd, rxbuf_pos, req_len);
     if (rcvd < 0) {
+      ctx->sched.pending_sleep_us = 0;
       if (last_event_errno == ETIMEDOUT) {
         LOGV("usb read timeout");
+        publish_counters(ctx, false);
         continue;
       }else {
         pthread_mutex_lock(&ctx->mtx);
         ctx->last_event_errno = last_event_errno;
         pthread_mutex_unlock(&ctx->mtx);
-        LOGV("read_loop(): rcvd %i, error: %s", rcvd, strerror(errno));
+        LOGV("read_loop(): rcvd %i, error: %s", rcvd, strerror(last_event_errno));
         break;
       }
     }else if (rcvd == 0) {
       // XXX: EOF
       continue;
     }else {
-      if ((unsigned)rcvd >= req_len) {
-        ctx->fast_cycle = true;
+      clock_gettime(CLOCK_MONOTONIC, &arrival_ts);
+      ctx->counters.reaps += 1;
+      ctx->counters.bytes += rcvd;
+      sched_on_rx(ctx, &arrival_ts);
+
+      if ((unsigned)rcvd >= byte_source_payload_size(ctx->src, req_len)) {
+        ctx->sched.fast_cycle = true;
       }
 
       rxbuf_pos += rcvd;
-      rxbuf_pos = share(ctx, rx_buf, rxbuf_pos);
+      rxbuf_pos = share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
       if (rxbuf_pos >= sizeof(rx_buf)-USB_IOCTL_WATERMARK) {
         // XXX
         rxbuf_pos = 0;
       }
+      publish_counters(ctx, false);
     }
   } //
 
   if (rxbuf_pos != 0) {
-    share(ctx, rx_buf, rxbuf_pos);
+    share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
   }
+}
 
-  pthread_cleanup_pop(1);
+static void read_loop_async_urb(struct usb_reader_thread_ctx_t *ctx)
+{
+  unsigned i;
+  unsigned submitted_cnt;
+  unsigned urb_size;
+  unsigned prev_rxbuf_pos;
+  int last_event_errno;
+  struct usb_reader_urb_t *urb;
+  /* Reaped URB with the data that does not fit in rx_buf yet */
+  struct usb_reader_urb_t *held_urb;
+  struct timespec arrival_ts;
+  unsigned rxbuf_pos;
+  uint8_t rx_buf[USB_READER_BUF_SIZE];
 
-  return NULL;
+  urb_size = MIN(ctx->max_pkt_size * USB_READER_URB_PKT_CNT,
+      (int)(sizeof(ctx->urb_buf) / USB_READER_URB_CNT));
+  urb_size -= urb_size % ctx->max_pkt_size;
+
+  submitted_cnt = 0;
+  for (i=0; i<USB_READER_URB_CNT; ++i) {
+    ctx->urbs[i].buf = &ctx->urb_buf[i * urb_size];
+    memset(&ctx->urbs[i].urb, 0, sizeof(ctx->urbs[i].urb));
+    ctx->urbs[i].urb.type = USBDEVFS_URB_TYPE_BULK;
+    ctx->urbs[i].urb.endpoint = ctx->endpoint;
+    ctx->urbs[i].urb.buffer = ctx->urbs[i].buf;
+    ctx->urbs[i].urb.buffer_length = urb_size;
+    ctx->urbs[i].urb.usercontext = &ctx->urbs[i];
+    if (submit_urb(ctx, &ctx->urbs[i]) < 0) {
+      last_event_errno = errno;
+      LOGV("USBDEVFS_SUBMITURB error: %s", strerror(last_event_errno));
+      discard_urbs(ctx, submitted_cnt);
+      pthread_mutex_lock(&ctx->mtx);
+      ctx->last_event_errno = last_event_errno;
+      pthread_mutex_unlock(&ctx->mtx);
+      return;
+    }
+    submitted_cnt += 1;
+  }
+
+  LOGV("%u URBs of %u bytes in flight", submitted_cnt, urb_size);
+
+  rxbuf_pos = 0;
+  held_urb = NULL;
+  for (;;) {
+    if (__atomic_load_n(&ctx->src->cancelled, __ATOMIC_RELAXED)) {
+      last_event_errno = ECANCELED;
+      break;
+    }
+
+    if (held_urb != NULL) {
+      /* Ring is full: the URB is resubmitted once its data is moved, the
+       * device buffers the data meanwhile */
+      rxbuf_pos = share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
+      if (!move_urb_data(held_urb, rx_buf, &rxbuf_pos)) {
+        usleep(MIN_CYCLE_US);
+        continue;
+      }
+      if (submit_urb(ctx, held_urb) < 0) {
+        last_event_errno = errno;
+        LOGV("USBDEVFS_SUBMITURB error: %s", strerror(last_event_errno));
+        break;
+      }
+      submitted_cnt += 1;
+      held_urb = NULL;
+      rxbuf_pos = share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
+      continue;
+    }
+
+    sleep_cycle(ctx);
+
+    /* Wait for completion with a timeout: a blocking USBDEVFS_REAPURB would
+     * not return if the connection is closed from the java side */
+    if (reap_urb_ndelay(ctx, &urb) < 0) {
+      struct pollfd pfd;
+      int rc;
+
+      if (errno != EAGAIN) {
+        last_event_errno = errno;
+        break;
+      }
+
+      pfd.fd = ctx->fd;
+      pfd.events = POLLOUT;
+      pfd.revents = 0;
+      rc = poll(&pfd, 1, READ_TIMEOUT_MS);
+      ctx->counters.wakeups += 1;
+      if (rc == 0) {
+        ctx->sched.pending_sleep_us = 0;
+        publish_counters(ctx, false);
+        continue;
+      }else if (rc < 0) {
+        if (errno == EINTR)
+          continue;
+        last_event_errno = errno;
+        break;
+      }
+
+      if (reap_urb_ndelay(ctx, &urb) < 0) {
+        if (errno == EAGAIN)
+          continue;
+        last_event_errno = errno;
+        break;
+      }
+    }
+
+    clock_gettime(CLOCK_MONOTONIC, &arrival_ts);
+    prev_rxbuf_pos = rxbuf_pos;
+
+    while (urb != NULL) {
+      ctx->counters.reaps += 1;
+
+      if (urb->urb.status != 0) {
+        if (urb->urb.status == -ENOENT || urb->urb.status == -ECONNRESET) {
+          /* Discarded */
+          submitted_cnt -= 1;
+          last_event_errno = -urb->urb.status;
+          goto read_loop_async_urb_error;
+        }
+        LOGV("URB status: %i", urb->urb.status);
+      }
+
+      urb->data_pos = 0;
+      urb->data_len = 0;
+      if (urb->urb.actual_length > 0) {
+        /* FTDI status bytes are dropped in place */
+        urb->data_len = byte_source_strip_pkt_headers(ctx->src, urb->buf, urb->buf,
+            (unsigned)urb->urb.actual_length);
+        ctx->counters.bytes += urb->data_len;
+
+        if (urb->urb.actual_length == urb->urb.buffer_length)
+          ctx->sched.fast_cycle = true;
+      }
+
+      if (!move_urb_data(urb, rx_buf, &rxbuf_pos)) {
+        /* Not resubmitted: the next URBs stay queued in the kernel */
+        held_urb = urb;
+        submitted_cnt -= 1;
+        break;
+      }
+
+      if (submit_urb(ctx, urb) < 0) {
+        last_event_errno = errno;
+        submitted_cnt -= 1;
+        LOGV("USBDEVFS_SUBMITURB error: %s", strerror(last_event_errno));
+        goto read_loop_async_urb_error;
+      }
+
+      if (reap_urb_ndelay(ctx, &urb) < 0) {
+        if (errno != EAGAIN) {
+          last_event_errno = errno;
+          goto read_loop_async_urb_error;
+        }
+      }
+    }
+
+    /* Status-only packets are not data */
+    if (rxbuf_pos != prev_rxbuf_pos)
+      sched_on_rx(ctx, &arrival_ts);
+
+    rxbuf_pos = share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
+    publish_counters(ctx, false);
+  }
+
+read_loop_async_urb_error:
+  LOGV("read_loop_async_urb(): error: %s", strerror(last_event_errno));
+  discard_urbs(ctx, submitted_cnt);
+
+  if (rxbuf_pos != 0) {
+    share(ctx, rx_buf, rxbuf_pos, &arrival_ts);
+  }
+
+  pthread_mutex_lock(&ctx->mtx);
+  ctx->last_event_errno = last_event_errno;
+  pthread_mutex_unlock(&ctx->mtx);
+}
+
+/*
+ * Reaps a completed bulk-in URB. The status URB is handled and resubmitted
+ * here: -1 with EAGAIN if it was the only completed one
+ */
+static int reap_urb_ndelay(struct usb_reader_thread_ctx_t *ctx, struct usb_reader_urb_t **urb)
+{
+  struct usbdevfs_urb *res;
+
+  *urb = NULL;
+  for (;;) {
+    res = NULL;
+    ctx->counters.ioctls += 1;
+    if (ioctl(ctx->fd, USBDEVFS_REAPURBNDELAY, &res) < 0)
+      return -1;
+    if (res != &ctx->status.urb)
+      break;
+    on_status_urb(ctx);
+  }
+
+  if ((res == NULL)
+      || (res < &ctx->urbs[0].urb)
+      || (res > &ctx->urbs[USB_READER_URB_CNT-1].urb)) {
+    LOGV("reaped unknown URB %p", res);
+    errno = EAGAIN;
+    return -1;
+  }
+
+  *urb = (struct usb_reader_urb_t *)res->usercontext;
+  return 0;
+}
+
+/*
+ * Moves the data of the reaped URB to rx_buf, as much as fits.
+ * Returns true if all the data is moved
+ */
+static bool move_urb_data(struct usb_reader_urb_t *urb, uint8_t *rx_buf, unsigned *rxbuf_pos)
+{
+  unsigned len;
+
+  len = MIN(urb->data_len - urb->data_pos, USB_READER_BUF_SIZE - *rxbuf_pos);
+  memcpy(&rx_buf[*rxbuf_pos], &urb->buf[urb->data_pos], len);
+  urb->data_pos += len;
+  *rxbuf_pos += len;
+
+  return urb->data_pos == urb->data_len;
+}
+
+/*
+ * Read of the synchronous modes. With the status URB in flight a blocking
+ * USBDEVFS_BULK would hold its completion until the bulk transfer ends: the
+ * bulk transfer is submitted as an URB instead, and both are reaped as they
+ * complete
+ */
+static ssize_t read_src(struct usb_reader_thread_ctx_t *ctx,
+    uint8_t *dst, unsigned dst_size, unsigned timeout_ms)
+{
+  if (ctx->status.submitted)
+    return read_bulk_urb(ctx, dst, dst_size, timeout_ms);
+  return byte_source_read(ctx->src, dst, dst_size, timeout_ms);
+}
+
+/*
+ * Bulk-in transfer of up to dst_size bytes into dst on urbs[0], same
+ * return values as byte_source_read(). Completed status URBs are handled
+ * while waiting
+ */
+static ssize_t read_bulk_urb(struct usb_reader_thread_ctx_t *ctx,
+    uint8_t *dst, unsigned dst_size, unsigned timeout_ms)
+{
+  struct usb_reader_urb_t *bulk, *urb;
+  struct timespec deadline, now;
+  bool discarded;
+  long long remaining_ms;
+
+  if (__atomic_load_n(&ctx->src->cancelled, __ATOMIC_RELAXED)) {
+    errno = ECANCELED;
+    return -1;
+  }
+
+  bulk = &ctx->urbs[0];
+  memset(&bulk->urb, 0, sizeof(bulk->urb));
+  bulk->urb.type = USBDEVFS_URB_TYPE_BULK;
+  bulk->urb.endpoint = ctx->endpoint;
+  bulk->urb.buffer = dst;
+  bulk->urb.buffer_length = dst_size;
+  bulk->urb.usercontext = bulk;
+  bulk->buf = dst;
+  if (submit_urb(ctx, bulk) < 0)
+    return -1;
+
+  clock_gettime(CLOCK_MONOTONIC, &deadline);
+  deadline.tv_sec += timeout_ms / 1000;
+  deadline.tv_nsec += (timeout_ms % 1000) * 1000000;
+  if (deadline.tv_nsec >= 1000000000) {
+    deadline.tv_sec += 1;
+    deadline.tv_nsec -= 1000000000;
+  }
+
+  discarded = false;
+  for (;;) {
+    struct pollfd pfd;
+    int rc;
+
+    if (reap_urb_ndelay(ctx, &urb) == 0)
+      break;
+    if (errno != EAGAIN)
+      return -1;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    remaining_ms = discarded ? READ_TIMEOUT_MS : timespec_diff_us(&deadline, &now) / 1000;
+    if (remaining_ms <= 0) {
+      /* Timeout: the data received so far is returned with the discarded URB */
+      ioctl(ctx->fd, USBDEVFS_DISCARDURB, &bulk->urb);
+      discarded = true;
+      continue;
+    }
+
+    pfd.fd = ctx->fd;
+    pfd.events = POLLOUT;
+    pfd.revents = 0;
+    rc = poll(&pfd, 1, (int)remaining_ms);
+    if (rc < 0) {
+      if (errno == EINTR)
+        continue;
+      return -1;
+    }else if ((rc == 0) && discarded) {
+      /* Discarded URB not returned */
+      errno = EIO;
+      return -1;
+    }
+  }
+
+  if ((bulk->urb.status != 0)
+      && !(discarded && ((bulk->urb.status == -ENOENT) || (bulk->urb.status == -ECONNRESET)))) {
+    errno = -bulk->urb.status;
+    return -1;
+  }
+
+  if (bulk->urb.actual_length <= 0) {
+    if (discarded) {
+      errno = ETIMEDOUT;
+      return -1;
+    }
+    return 0;
+  }
+
+  return byte_source_strip_pkt_headers(ctx->src, dst, dst, (unsigned)bulk->urb.actual_length);
+}
+
+static int submit_urb(struct usb_reader_thread_ctx_t *ctx, struct usb_reader_urb_t *urb)
+{
+  urb->urb.status = 0;
+  urb->urb.actual_length = 0;
+  ctx->counters.ioctls += 1;
+  return ioctl(ctx->fd, USBDEVFS_SUBMITURB, &urb->urb);
+}
+
+static void discard_urbs(struct usb_reader_thread_ctx_t *ctx, unsigned submitted_cnt)
+{
+  unsigned i;
+  struct usb_reader_urb_t *urb;
+
+  for (i=0; i<USB_READER_URB_CNT; ++i) {
+    ioctl(ctx->fd, USBDEVFS_DISCARDURB, &ctx->urbs[i].urb);
+  }
+
+  if (ctx->status.submitted) {
+    ctx->status.stopping = true;
+    ioctl(ctx->fd, USBDEVFS_DISCARDURB, &ctx->status.urb);
+  }
+
+  /* Discarded URBs must still be reaped */
+  while ((submitted_cnt > 0) || ctx->status.submitted) {
+    if (reap_urb_ndelay(ctx, &urb) < 0) {
+      struct pollfd pfd;
+      if (errno != EAGAIN)
+        break;
+      if ((submitted_cnt == 0) && !ctx->status.submitted)
+        break;
+      pfd.fd = ctx->fd;
+      pfd.events = POLLOUT;
+      pfd.revents = 0;
+      if (poll(&pfd, 1, READ_TIMEOUT_MS) <= 0)
+        break;
+      continue;
+    }
+    submitted_cnt -= 1;
+  }
+}
+
+/*
+ * Submits the interrupt-in URB of the serial state notifications, if the
+ * device has one. Called from the reading thread: the reader thread, or the
+ * read loop in USB_READER_MODE_INLINE mode
+ */
+void usb_reader_start_status(struct usb_reader_thread_ctx_t *ctx)
+{
+  struct usb_reader_status_urb_t *s;
+
+  s = &ctx->status;
+  if ((s->endpoint < 0) || (s->format == USB_READER_STATUS_FORMAT_NONE) || s->submitted)
+    return;
+
+  memset(&s->urb, 0, sizeof(s->urb));
+  s->urb.type = USBDEVFS_URB_TYPE_INTERRUPT;
+  s->urb.endpoint = s->endpoint;
+  s->urb.buffer = s->buf;
+  s->urb.buffer_length = MIN(s->max_pkt_size, (int)sizeof(s->buf));
+  s->urb.usercontext = s;
+  s->stopping = false;
+
+  if (submit_status_urb(ctx) < 0) {
+    LOGV("status URB on endpoint 0x%x: USBDEVFS_SUBMITURB error: %s",
+        s->endpoint, strerror(errno));
+  }
+}
+
+/*
+ * Discards and reaps the status URB. In USB_READER_MODE_ASYNC_URB mode
+ * discard_urbs() has already done it
+ */
+void usb_reader_stop_status(struct usb_reader_thread_ctx_t *ctx)
+{
+  struct usb_reader_urb_t *urb;
+
+  if (!ctx->status.submitted)
+    return;
+
+  ctx->status.stopping = true;
+  ioctl(ctx->fd, USBDEVFS_DISCARDURB, &ctx->status.urb);
+
+  /* No bulk-in URBs in the synchronous modes */
+  while (ctx->status.submitted) {
+    struct pollfd pfd;
+
+    if (reap_urb_ndelay(ctx, &urb) == 0)
+      continue;
+    if ((errno != EAGAIN) || !ctx->status.submitted)
+      break;
+    pfd.fd = ctx->fd;
+    pfd.events = POLLOUT;
+    pfd.revents = 0;
+    if (poll(&pfd, 1, READ_TIMEOUT_MS) <= 0)
+      break;
+  }
+  ctx->status.submitted = false;
+
+  publish_counters(ctx, true);
+}
+
+static int submit_status_urb(struct usb_reader_thread_ctx_t *ctx)
+{
+  int rc;
+
+  ctx->status.urb.status = 0;
+  ctx->status.urb.actual_length = 0;
+  ctx->counters.ioctls += 1;
+  rc = ioctl(ctx->fd, USBDEVFS_SUBMITURB, &ctx->status.urb);
+  ctx->status.submitted = rc == 0;
+  return rc;
+}
+
+static void on_status_urb(struct usb_reader_thread_ctx_t *ctx)
+{
+  struct usb_reader_status_urb_t *s;
+
+  s = &ctx->status;
+  s->submitted = false;
+
+  if (s->urb.status != 0) {
+    /* Discarded, stalled or disconnected: not resubmitted */
+    LOGV("status URB status: %i", s->urb.status);
+    return;
+  }
+
+  decode_serial_state(ctx, s->buf, (unsigned)s->urb.actual_length);
+
+  if (!s->stopping && (submit_status_urb(ctx) < 0))
+    LOGV("status URB: USBDEVFS_SUBMITURB error: %s", strerror(errno));
+}
+
+static void decode_serial_state(struct usb_reader_thread_ctx_t *ctx,
+    const uint8_t *data, unsigned size)
+{
+  uint8_t state;
+
+  if (size < SERIAL_STATE_NOTIFICATION_SIZE)
+    return;
+
+  switch (ctx->status.format) {
+    case USB_READER_STATUS_FORMAT_CDC:
+      /* bmRequestType, bNotification, wValue, wIndex, wLength, UART state.
+       * Other notifications are ignored */
+      if ((data[0] != CDC_REQ_TYPE_NOTIFICATION) || (data[1] != CDC_NOTIFY_SERIAL_STATE))
+        return;
+      state = data[8];
+      break;
+    case USB_READER_STATUS_FORMAT_PL2303:
+      state = data[8];
+      break;
+    default:
+      return;
+  }
+
+  ctx->counters.line_notifications += 1;
+  if (state & SERIAL_STATE_OVERRUN)
+    ctx->counters.line_overruns += 1;
+  if (state & SERIAL_STATE_PARITY)
+    ctx->counters.line_parity_errors += 1;
+  if (state & SERIAL_STATE_FRAMING)
+    ctx->counters.line_framing_errors += 1;
+  if (state & SERIAL_STATE_BREAK)
+    ctx->counters.line_breaks += 1;
+
+  LOGV("serial state: 0x%02x", state);
+}
+
+static void publish_counters(struct usb_reader_thread_ctx_t *ctx, bool force)
+{
+  struct timespec ts;
+  long long diff_ms;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  diff_ms = 1000ll * (ts.tv_sec - ctx->counters.last_publish_ts.tv_sec)
+    + (ts.tv_nsec - ctx->counters.last_publish_ts.tv_nsec) / 1000000;
+  if (!force && (diff_ms < STATS_PUBLISH_INTERVAL_MS))
+    return;
+
+  stats_lock(ctx->stats);
+  ctx->stats->reader.ioctls += ctx->counters.ioctls;
+  ctx->stats->reader.reaps += ctx->counters.reaps;
+  ctx->stats->reader.bytes += ctx->counters.bytes;
+  ctx->stats->reader.status_pkts += byte_source_take_status_pkts(ctx->src);
+  ctx->stats->sched.wakeups += ctx->counters.wakeups;
+  ctx->stats->sched.sleep_us += ctx->counters.sleep_us;
+  ctx->stats->sched.delayed_reads += ctx->counters.delayed_reads;
+  ctx->stats->sched.added_latency_us_total += ctx->counters.added_latency_us_total;
+  if (ctx->counters.added_latency_us_max > ctx->stats->sched.added_latency_us_max)
+    ctx->stats->sched.added_latency_us_max = ctx->counters.added_latency_us_max;
+  ctx->stats->sched.cycle_us = __atomic_load_n(&ctx->sched.cycle_us, __ATOMIC_RELAXED);
+  ctx->stats->sched.burst_interval_us = ctx->sched.burst_interval_us;
+  ctx->stats->sched.burst_duration_us = ctx->sched.burst_duration_us;
+  ctx->stats->line.notifications += ctx->counters.line_notifications;
+  ctx->stats->line.overruns += ctx->counters.line_overruns;
+  ctx->stats->line.parity_errors += ctx->counters.line_parity_errors;
+  ctx->stats->line.framing_errors += ctx->counters.line_framing_errors;
+  ctx->stats->line.breaks += ctx->counters.line_breaks;
+  stats_unlock(ctx->stats);
+
+  ctx->counters.ioctls = 0;
+  ctx->counters.reaps = 0;
+  ctx->counters.bytes = 0;
+  ctx->counters.wakeups = 0;
+  ctx->counters.sleep_us = 0;
+  ctx->counters.delayed_reads = 0;
+  ctx->counters.added_latency_us_total = 0;
+  ctx->counters.added_latency_us_max = 0;
+  ctx->counters.line_notifications = 0;
+  ctx->counters.line_overruns = 0;
+  ctx->counters.line_parity_errors = 0;
+  ctx->counters.line_framing_errors = 0;
+  ctx->counters.line_breaks = 0;
+  ctx->counters.last_publish_ts = ts;
 }
 
 ssize_t usb_read(struct usb_reader_thread_ctx_t *ctx,
     uint8_t *dst,
     size_t dst_size,
-    const struct timespec *timeout)
+    const struct timespec *timeout,
+    struct timespec *arrival_ts)
 {
-  ssize_t bytes_read;
+  unsigned head, tail, pos;
+  unsigned bytes_read, chunk;
 
-  pthread_mutex_lock(&ctx->mtx);
+  tail = ctx->ring_tail;
+  head = __atomic_load_n(&ctx->ring_head, __ATOMIC_ACQUIRE);
 
-  if ( (ctx->shared_rxbuf_pos == 0) && (!ctx->is_running)) {
-    errno = ctx->last_event_errno;
-    pthread_mutex_unlock(&ctx->mtx);
-    return -1;
-  }
+  if (head == tail) {
+    int res;
 
-  if (ctx->shared_rxbuf_pos == 0)  {
-    if (pthread_cond_timedwait_relative_np(&ctx->data_available_cond, &ctx->mtx, timeout) != 0) {
+    res = 0;
+    pthread_mutex_lock(&ctx->mtx);
+    __atomic_store_n(&ctx->consumer_waiting, 1, __ATOMIC_SEQ_CST);
+    head = __atomic_load_n(&ctx->ring_head, __ATOMIC_SEQ_CST);
+    if ((head == tail) && ctx->is_running) {
+      res = pthread_cond_timedwait_relative_np(&ctx->data_available_cond, &ctx->mtx, timeout);
+      head = __atomic_load_n(&ctx->ring_head, __ATOMIC_ACQUIRE);
+    }
+    __atomic_store_n(&ctx->consumer_waiting, 0, __ATOMIC_RELAXED);
+
+    if (head == tail) {
       if (!ctx->is_running) {
         errno = ctx->last_event_errno;
       }else {
-        errno = ETIMEDOUT;
+        errno = res != 0 ? res : ETIMEDOUT;
       }
       pthread_mutex_unlock(&ctx->mtx);
       return -1;
     }
+    pthread_mutex_unlock(&ctx->mtx);
   }
 
-  if (dst_size == 0) {
-    pthread_mutex_unlock(&ctx->mtx);
+  if (dst_size == 0)
     return 0;
-  }
 
-  bytes_read = MIN(dst_size, ctx->shared_rxbuf_pos);
-  memcpy(dst, ctx->shared_rxbuf, bytes_read);
-  if ((unsigned)bytes_read != ctx->shared_rxbuf_pos) {
-    memmove(ctx->shared_rxbuf, &ctx->shared_rxbuf[bytes_read], ctx->shared_rxbuf_pos - bytes_read);
+  /* ring_ts is not modified by the producer until the ring is drained */
+  *arrival_ts = ctx->ring_ts;
+
+  bytes_read = MIN(dst_size, head - tail);
+  pos = tail & (USB_READER_RING_SIZE - 1);
+  /* Single copy unless the data wraps around: a copy size bounded by the
+   * ring size is expanded inline by gcc (rep movs on x86), several times
+   * slower than memcpy() on short copies */
+  if (bytes_read <= USB_READER_RING_SIZE - pos) {
+    memcpy(dst, &ctx->ring[pos], bytes_read);
+  }else {
+    chunk = USB_READER_RING_SIZE - pos;
+    memcpy(dst, &ctx->ring[pos], chunk);
+    memcpy(&dst[chunk], &ctx->ring[0], bytes_read - chunk);
   }
-  ctx->shared_rxbuf_pos -= bytes_read;
 
-  pthread_mutex_unlock(&ctx->mtx);
+  __atomic_store_n(&ctx->ring_tail, tail + bytes_read, __ATOMIC_RELEASE);
 
   return bytes_read;
 }
 
+/*
+ * Reads from the source in the calling thread, without the reader
+ * thread. dst_size must be at least max_pkt_size.
+ */
+ssize_t usb_read_inline(struct usb_reader_thread_ctx_t *ctx,
+    uint8_t *dst,
+    size_t dst_size,
+    struct timespec *arrival_ts)
+{
+  int rcvd;
+  int last_event_errno;
+  unsigned req_len;
+
+  if (dst_size < (unsigned)ctx->max_pkt_size) {
+    errno = ENOBUFS;
+    return -1;
+  }
+
+  sleep_cycle(ctx);
+
+  req_len = MIN(dst_size, (unsigned)ctx->max_pkt_size * USB_READER_URB_PKT_CNT);
+  req_len -= req_len % ctx->max_pkt_size;
+
+  rcvd = read_src(ctx, dst, req_len, READ_TIMEOUT_MS);
+  last_event_errno = errno;
+  ctx->counters.ioctls += 1;
+  ctx->counters.wakeups += 1;
+
+  if (rcvd < 0) {
+    ctx->sched.pending_sleep_us = 0;
+    publish_counters(ctx, last_event_errno != ETIMEDOUT);
+    errno = last_event_errno;
+    return -1;
+  }else if (rcvd == 0) {
+    return 0;
+  }
+
+  clock_gettime(CLOCK_MONOTONIC, arrival_ts);
+  ctx->counters.reaps += 1;
+  ctx->counters.bytes += rcvd;
+  sched_on_rx(ctx, arrival_ts);
+  if ((unsigned)rcvd >= byte_source_payload_size(ctx->src, req_len))
+    ctx->sched.fast_cycle = true;
+  publish_counters(ctx, false);
+
+  return rcvd;
+}
+
 static void usb_reader_cleanup(void *arg)
 {
   struct usb_reader_thread_ctx_t *ctx;
@@ -196,55 +911,186 @@ static void usb_reader_cleanup(void *arg)
   ctx = (struct usb_reader_thread_ctx_t *)arg;
   pthread_mutex_lock(&ctx->mtx);
   ctx->is_running = false;
+  pthread_cond_signal(&ctx->data_available_cond);
   pthread_mutex_unlock(&ctx->mtx);
   (*ctx->jvm)->DetachCurrentThread(ctx->jvm);
 }
 
 static unsigned share(struct usb_reader_thread_ctx_t *ctx,
-    uint8_t *buf, unsigned rxbuf_pos)
+    uint8_t *buf, unsigned rxbuf_pos, const struct timespec *arrival_ts)
 {
-  unsigned moved_bytes;
+  unsigned head, tail, pos;
+  unsigned moved_bytes, chunk;
 
   if (rxbuf_pos == 0)
     return 0;
 
-  pthread_mutex_lock(&ctx->mtx);
-  moved_bytes = MIN(rxbuf_pos, sizeof(ctx->shared_rxbuf) - ctx->shared_rxbuf_pos);
-  if (moved_bytes > 0) {
-    memcpy(&ctx->shared_rxbuf[ctx->shared_rxbuf_pos], buf, moved_bytes);
-    ctx->shared_rxbuf_pos += moved_bytes;
-    if (ctx->shared_rxbuf_pos == moved_bytes)
-      pthread_cond_signal(&ctx->data_available_cond);
+  head = ctx->ring_head;
+  tail = __atomic_load_n(&ctx->ring_tail, __ATOMIC_ACQUIRE);
+
+  moved_bytes = MIN(rxbuf_pos, USB_READER_RING_SIZE - (head - tail));
+  if (moved_bytes == 0)
+    return rxbuf_pos;
+
+  pos = head & (USB_READER_RING_SIZE - 1);
+  /* Single copy unless the data wraps around, as in usb_read() */
+  if (moved_bytes <= USB_READER_RING_SIZE - pos) {
+    memcpy(&ctx->ring[pos], buf, moved_bytes);
+  }else {
+    chunk = USB_READER_RING_SIZE - pos;
+    memcpy(&ctx->ring[pos], buf, chunk);
+    memcpy(&ctx->ring[0], &buf[chunk], moved_bytes - chunk);
   }
-  pthread_mutex_unlock(&ctx->mtx);
 
-  if ((rxbuf_pos != moved_bytes) && (moved_bytes > 0)) {
+  /* The consumer reads ring_ts only while the ring is not empty */
+  if (head == tail)
+    ctx->ring_ts = *arrival_ts;
+
+  __atomic_store_n(&ctx->ring_head, head + moved_bytes, __ATOMIC_SEQ_CST);
+
+  /* Wake up the consumer if it sleeps on the empty ring */
+  if (__atomic_load_n(&ctx->consumer_waiting, __ATOMIC_SEQ_CST)) {
+    pthread_mutex_lock(&ctx->mtx);
+    pthread_cond_signal(&ctx->data_available_cond);
+    pthread_mutex_unlock(&ctx->mtx);
+  }
+
+  if (rxbuf_pos != moved_bytes) {
     memmove(buf, &buf[moved_bytes], rxbuf_pos - moved_bytes);
   }
 
   return rxbuf_pos - moved_bytes;
 }
 
+/*
+ * Sleeps before the next read to let the receiver fill the device FIFO.
+ *
+ * The cycle is derived from the line rate. When the receiver sends its
+ * messages in periodic bursts (one per navigation epoch), the sleep is cut
+ * at the expected end of the burst, and skipped once the burst is expected
+ * to be over: the next read then blocks in the kernel until the first byte of
+ * the next epoch.
+ */
 static inline void sleep_cycle(struct usb_reader_thread_ctx_t *ctx)
 {
-  if (ctx->fast_cycle) {
-    ctx->fast_cycle = false;
-    clock_gettime(CLOCK_MONOTONIC, &ctx->last_cycle_ts);
-  }else {
-    int diff_sec;
-    struct timespec ts;
+  long long sleep_us;
+  struct timespec now;
+
+  ctx->sched.pending_sleep_us = 0;
+
+  if (ctx->sched.fast_cycle) {
+    ctx->sched.fast_cycle = false;
+    return;
+  }
+
+  /* Nothing received yet: block in the read */
+  if (!ctx->sched.has_rx)
+    return;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  sleep_us = __atomic_load_n(&ctx->sched.cycle_us, __ATOMIC_RELAXED)
+    - timespec_diff_us(&now, &ctx->sched.last_rx_ts);
+
+  if ((sleep_us > 0)
+      && ctx->sched.has_burst
+      && (ctx->sched.burst_interval_us != 0)
+      /* Not a continuous stream */
+      && (10ll * ctx->sched.burst_duration_us < 8ll * ctx->sched.burst_interval_us)) {
+    long long remaining_us;
+
+    remaining_us = ctx->sched.burst_duration_us
+      - timespec_diff_us(&now, &ctx->sched.burst_start_ts);
+    if (remaining_us < sleep_us)
+      sleep_us = remaining_us;
+  }
+
+  if (sleep_us > 0) {
+    /* Synchronous modes: no bulk-in URB in flight during the sleep */
+    if (ctx->status.submitted && (ctx->mode != USB_READER_MODE_ASYNC_URB))
+      sleep_reaping_status(ctx, sleep_us);
+    else
+      usleep((useconds_t)sleep_us);
+    ctx->counters.wakeups += 1;
+    ctx->counters.sleep_us += sleep_us;
+    ctx->sched.pending_sleep_us = (unsigned)sleep_us;
+  }
+}
 
-    ts = ctx->last_cycle_ts;
-    clock_gettime(CLOCK_MONOTONIC, &ctx->last_cycle_ts);
+/*
+ * Sleeps sleep_us, rounded up to ms, handling the status URB completions
+ */
+static void sleep_reaping_status(struct usb_reader_thread_ctx_t *ctx, long long sleep_us)
+{
+  struct timespec start, now;
+  long long remaining_us;
+  struct usb_reader_urb_t *urb;
+
+  clock_gettime(CLOCK_MONOTONIC, &start);
+  remaining_us = sleep_us;
+  while (remaining_us > 0) {
+    struct pollfd pfd;
+
+    pfd.fd = ctx->fd;
+    pfd.events = POLLOUT;
+    pfd.revents = 0;
+    if (poll(&pfd, 1, (int)((remaining_us + 999) / 1000)) > 0) {
+      if ((reap_urb_ndelay(ctx, &urb) < 0) && (errno != EAGAIN))
+        break;
+    }
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    remaining_us = sleep_us - timespec_diff_us(&now, &start);
+    /* Status URB failed and was not resubmitted */
+    if (!ctx->status.submitted && (remaining_us > 0)) {
+      usleep((useconds_t)remaining_us);
+      break;
+    }
+  }
+}
+
+/*
+ * Updates the receiver epoch model and added latency stats on received data
+ */
+static void sched_on_rx(struct usb_reader_thread_ctx_t *ctx, const struct timespec *arrival_ts)
+{
+  long long gap_us;
+  unsigned cycle_us;
+
+  cycle_us = __atomic_load_n(&ctx->sched.cycle_us, __ATOMIC_RELAXED);
+
+  gap_us = ctx->sched.has_rx ? timespec_diff_us(arrival_ts, &ctx->sched.last_rx_ts) : -1;
+  if ((gap_us < 0) || (gap_us > cycle_us + BURST_GAP_US)) {
+    /* New burst */
+    if (ctx->sched.has_burst) {
+      long long interval_us, duration_us;
 
-    diff_sec = ctx->last_cycle_ts.tv_sec - ts.tv_sec;
-    if (diff_sec >= 0 && diff_sec <= 1) {
-      long diff_usec;
-      diff_usec = 1000 * diff_sec + (long)(ctx->last_cycle_ts.tv_nsec / 1000) - (long)(ts.tv_nsec / 1000);
-      if (diff_usec < DEFAULT_CYCLE_US && diff_usec >= 0) {
-        usleep(DEFAULT_CYCLE_US - (useconds_t)diff_usec);
-        clock_gettime(CLOCK_MONOTONIC, &ctx->last_cycle_ts);
+      interval_us = timespec_diff_us(arrival_ts, &ctx->sched.burst_start_ts);
+      duration_us = timespec_diff_us(&ctx->sched.last_rx_ts, &ctx->sched.burst_start_ts);
+      if (ctx->sched.burst_interval_us == 0) {
+        ctx->sched.burst_interval_us = interval_us;
+        ctx->sched.burst_duration_us = duration_us;
+      }else {
+        ctx->sched.burst_interval_us += (interval_us - (long long)ctx->sched.burst_interval_us) / 4;
+        ctx->sched.burst_duration_us += (duration_us - (long long)ctx->sched.burst_duration_us) / 4;
       }
     }
+    ctx->sched.has_burst = true;
+    ctx->sched.burst_start_ts = *arrival_ts;
   }
+  ctx->sched.has_rx = true;
+  ctx->sched.last_rx_ts = *arrival_ts;
+
+  /* Data was waiting in the device while we slept */
+  if (ctx->sched.pending_sleep_us != 0) {
+    ctx->counters.delayed_reads += 1;
+    ctx->counters.added_latency_us_total += ctx->sched.pending_sleep_us;
+    if (ctx->sched.pending_sleep_us > ctx->counters.added_latency_us_max)
+      ctx->counters.added_latency_us_max = ctx->sched.pending_sleep_us;
+    ctx->sched.pending_sleep_us = 0;
+  }
+}
+
+static inline long long timespec_diff_us(const struct timespec *end, const struct timespec *start)
+{
+  return 1000000ll * (end->tv_sec - start->tv_sec)
+    + (end->tv_nsec - start->tv_nsec) / 1000;
 }
@@ -3,13 +3,77 @@
 #ifndef _USB_READER_H
 #define _USB_READER_H
 
+#include <linux/usbdevice_fs.h>
+
+#include "bytesource.h"
+
 #define USB_READER_BUF_SIZE 8192
 
+/* Size of the reader thread to read loop ring buffer. Must be a power of 2 */
+#define USB_READER_RING_SIZE 8192
+
+/* The reader sleeps about the time to receive this number of characters
+ * between reads during a burst: 16.6ms at 115200 8N1 */
+#define USB_READER_CYCLE_CHARS 192
+
+/* Number of bulk-in URBs kept in flight in USB_READER_MODE_ASYNC_URB mode */
+#define USB_READER_URB_CNT 4
+/* Size of each URB in max_pkt_size packets */
+#define USB_READER_URB_PKT_CNT 8
+
+/* Serial state notification buffer: CDC SERIAL_STATE and PL2303 are 10 bytes */
+#define USB_READER_STATUS_BUF_SIZE 64
+
+/* Same values as UsbSerialController.STATUS_FORMAT_* */
+enum usb_reader_status_format_t {
+  USB_READER_STATUS_FORMAT_NONE = 0,
+  /* CDC PSTN SERIAL_STATE notification */
+  USB_READER_STATUS_FORMAT_CDC = 1,
+  /* PL2303: UART state at offset 8 */
+  USB_READER_STATUS_FORMAT_PL2303 = 2
+};
+
+enum usb_reader_mode_t {
+  /* One synchronous byte_source_read() per max_pkt_size packet */
+  USB_READER_MODE_SYNC = 0,
+  /* Several USBDEVFS_SUBMITURB/USBDEVFS_REAPURB transfers in flight.
+   * usbdevfs sources only, other sources fall back to USB_READER_MODE_SYNC */
+  USB_READER_MODE_ASYNC_URB = 1,
+  /* No reader thread: usb_read_inline() transfers directly into the parser
+   * buffer */
+  USB_READER_MODE_INLINE = 2
+};
+
+struct usb_reader_urb_t {
+  struct usbdevfs_urb urb;
+  uint8_t *buf;
+  /* Reaped URB: payload without the packet headers, and the part of it
+   * already moved to the reader buffer */
+  unsigned data_len;
+  unsigned data_pos;
+};
+
+/* Interrupt-in URB of the serial state notifications. Always in flight
+ * while the reader runs, reaped without blocking */
+struct usb_reader_status_urb_t {
+  struct usbdevfs_urb urb;
+  int endpoint;
+  int max_pkt_size;
+  enum usb_reader_status_format_t format;
+  bool submitted;
+  /* Set on stop: the completed URB is not resubmitted */
+  bool stopping;
+  uint8_t buf[USB_READER_STATUS_BUF_SIZE];
+};
+
 struct usb_reader_thread_ctx_t {
+  struct byte_source_t *src;
   int fd;
   int endpoint;
   int max_pkt_size;
-  useconds_t cycle_us;
+  enum usb_reader_mode_t mode;
+
+  struct stats_t *stats;
 
   JavaVM *jvm;
   JNIEnv *jniEnv;
@@ -17,25 +81,88 @@ struct usb_reader_thread_ctx_t {
   pthread_mutex_t mtx;
   pthread_cond_t data_available_cond;
 
-  struct timespec last_cycle_ts;
-  bool fast_cycle;
+  /* Wakeup scheduler */
+  struct {
+    /* Time to receive USB_READER_CYCLE_CHARS characters at the configured
+     * line rate. Written from other threads, accessed atomically */
+    unsigned cycle_us;
+    bool fast_cycle;
+    /* Sleep time before the current read, if any */
+    unsigned pending_sleep_us;
+
+    /* Receiver epoch tracking */
+    bool has_rx;
+    struct timespec last_rx_ts;
+    bool has_burst;
+    struct timespec burst_start_ts;
+    unsigned burst_interval_us; /* EWMA */
+    unsigned burst_duration_us; /* EWMA */
+  } sched;
+
+  /* Reader thread counters, published to stats periodically */
+  struct {
+    unsigned long long ioctls;
+    unsigned long long reaps;
+    unsigned long long bytes;
+    unsigned long long wakeups;
+    unsigned long long sleep_us;
+    unsigned long long delayed_reads;
+    unsigned long long added_latency_us_total;
+    unsigned added_latency_us_max;
+    unsigned long long line_notifications;
+    unsigned long long line_overruns;
+    unsigned long long line_parity_errors;
+    unsigned long long line_framing_errors;
+    unsigned long long line_breaks;
+    struct timespec last_publish_ts;
+  } counters;
+
+  struct usb_reader_status_urb_t status;
+
+  /* Async URB mode */
+  struct usb_reader_urb_t urbs[USB_READER_URB_CNT];
+  uint8_t urb_buf[USB_READER_URB_CNT * USB_READER_URB_PKT_CNT * 512];
 
+  /* Guarded by mtx */
   bool is_running;
   int last_event_errno;
-  unsigned shared_rxbuf_pos;
-  uint8_t shared_rxbuf[USB_READER_BUF_SIZE];
+
+  /* Single-producer/single-consumer ring buffer. head and tail are
+   * free-running counters: head is written by the reader thread only, tail by
+   * the read loop only. mtx and data_available_cond are used only when the
+   * consumer sleeps on an empty ring (consumer_waiting).
+   * Producer and consumer fields are kept apart by the ring itself */
+  unsigned ring_head;
+  struct timespec ring_ts; /* Arrival time of the oldest byte in ring, written on empty ring only */
+  uint8_t ring[USB_READER_RING_SIZE];
+  unsigned ring_tail;
+  int consumer_waiting;
 };
 
 void usb_reader_init(struct usb_reader_thread_ctx_t *ctx,
-    JavaVM *jvm, int fd, int endpoint, int max_pkt_size);
+    JavaVM *jvm, struct byte_source_t *src,
+    enum usb_reader_mode_t mode, struct stats_t *stats);
 
 void usb_reader_destroy(struct usb_reader_thread_ctx_t *ctx);
 
+void usb_reader_start_status(struct usb_reader_thread_ctx_t *ctx);
+
+void usb_reader_stop_status(struct usb_reader_thread_ctx_t *ctx);
+
+void usb_reader_set_line_rate(struct usb_reader_thread_ctx_t *ctx,
+    unsigned baudrate, unsigned bits_per_char);
+
 void *usb_reader_thread(void *ctx);
 
 ssize_t usb_read(struct usb_reader_thread_ctx_t *ctx,
     uint8_t *dst,
     size_t dst_size,
-    const struct timespec *timeout);
+    const struct timespec *timeout,
+    struct timespec *arrival_ts);
+
+ssize_t usb_read_inline(struct usb_reader_thread_ctx_t *ctx,
+    uint8_t *dst,
+    size_t dst_size,
+    struct timespec *arrival_ts);
 
 #endif
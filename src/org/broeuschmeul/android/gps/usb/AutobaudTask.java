@@ -2,6 +2,7 @@ package org.broeuschmeul.android.gps.usb;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -9,7 +10,10 @@ import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
 import org.broeuschmeul.android.gps.usb.provider.R;
 import org.broeuschmeul.android.gps.usb.provider.UsbGpsProviderService;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -20,11 +24,36 @@ public class AutobaudTask extends Thread {
     private static final boolean DBG = BuildConfig.DEBUG & true;
 
     public static final int WAIT_MSG_TIMEOUT_MS = 3000;
+
+    /* NMEA messages without checksum required to lock. Any checksummed message locks at once */
     public static final int MIN_VALID_MSG_CNT = 2;
 
+    /* Junk bytes needed to rank the candidate baudrates */
+    public static final int MIN_JUNK_SAMPLE_SIZE = 64;
+
+    public static final int JUNK_POLL_INTERVAL_MS = 50;
+
+    /* Baudrate upshift: stream check at the new rate, covers a 1 Hz epoch */
+    public static final int UPSHIFT_VERIFY_TIMEOUT_MS = 1500;
+
+    /* Added to the command transmission time before the bridge is switched */
+    public static final int UPSHIFT_DRAIN_MARGIN_MS = 50;
+
+    /* gps_msg_metadata_t types */
+    private static final int MSG_TYPE_NMEA = 0;
+
+    /* Validation of the line configuration applied from the device profile */
+    public static final int VERIFY_TIMEOUT_MS = 1000;
+
     private static AutobaudTask.Callbacks sDummyCallbacks = new Callbacks() {
         @Override
         public void onAutobaudCompleted(boolean isSuccessful, int baudrate) {}
+
+        @Override
+        public int readJunkSample(int[] histogram) {
+            Arrays.fill(histogram, 0);
+            return 0;
+        }
     };
 
     private final UsbSerialController mUsbController;
@@ -32,62 +61,349 @@ public class AutobaudTask extends Thread {
     private final int[] mDefaultBaudrateProbeList;
     private AutobaudTask.Callbacks mCallbacks;
 
+    /* Verification of the current configuration only, no probing */
+    private final boolean mIsVerification;
+
+    /* Verification: rate tried if the stream is not valid at the current one, 0 - none */
+    private final int mVerifyAltBaudrate;
+
+    /* Target rate of the receiver port speed upshift, 0 - no upshift */
+    private final int mUpshiftBaudrate;
+
+    /* Protocols spoken by the receiver, selects the upshift commands */
+    private final int mUpshiftProtocols;
+
+    private final BaudrateRanker mRanker;
+
     @GuardedBy("this")
     private volatile int mReceivedMsgCnt;
 
+    @GuardedBy("this")
+    private int mChecksummedMsgCnt;
+
+    private volatile long mTimeToLockMs;
+
+    /* Mask of the received message types, 1 << type */
+    @GuardedBy("this")
+    private int mReceivedProtocols;
+
 
     public static interface Callbacks {
         void onAutobaudCompleted(boolean isSuccessful, int baudrate);
+
+        /**
+         * Copies the histogram of the junk bytes received since the last call
+         * and clears it.
+         * @param histogram destination, 256 entries
+         * @return number of the partial sync sequences in the junk
+         */
+        int readJunkSample(int[] histogram);
     };
 
 
     public AutobaudTask(Context ctx, UsbSerialController usbController, AutobaudTask.Callbacks callbacks) {
+        this(ctx, usbController, callbacks, false, 0, 0, 0);
+    }
+
+    private AutobaudTask(Context ctx, UsbSerialController usbController,
+            AutobaudTask.Callbacks callbacks, boolean isVerification, int verifyAltBaudrate,
+            int upshiftBaudrate, int upshiftProtocols) {
         mDefaultBaudrateProbeList = ctx.getResources().getIntArray(R.array.usb_serial_auto_baudrate_probe_list);
         mUsbController = usbController;
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(ctx);
         mCallbacks = callbacks != null ? callbacks : sDummyCallbacks;
+        mIsVerification = isVerification;
+        mVerifyAltBaudrate = verifyAltBaudrate;
+        mUpshiftBaudrate = upshiftBaudrate;
+        mUpshiftProtocols = upshiftProtocols;
+        mRanker = new BaudrateRanker();
+        mTimeToLockMs = -1;
+    }
+
+    /**
+     * Creates task that checks the line configuration already set on the
+     * controller (quick attach) within {@link #VERIFY_TIMEOUT_MS}
+     * @param altBaudrate rate checked next if the stream is not valid at the
+     * current rate: the receiver was upshifted and not power cycled. 0 - none
+     */
+    public static AutobaudTask createVerification(Context ctx,
+            UsbSerialController usbController, AutobaudTask.Callbacks callbacks,
+            int altBaudrate) {
+        return new AutobaudTask(ctx, usbController, callbacks, true, altBaudrate, 0, 0);
+    }
+
+    /**
+     * Creates task that raises the port speed of the receiver to baudrate
+     * and switches the bridge. The previous rate is restored if the stream
+     * can not be verified at the new rate.
+     * @param protocols protocols received from the device, {@link DeviceProfileStore#PROTOCOL_NMEA} etc.
+     */
+    public static AutobaudTask createUpshift(Context ctx,
+            UsbSerialController usbController, AutobaudTask.Callbacks callbacks,
+            int baudrate, int protocols) {
+        return new AutobaudTask(ctx, usbController, callbacks, false, 0, baudrate, protocols);
+    }
+
+    public boolean isVerification() {
+        return mIsVerification;
+    }
+
+    public boolean isUpshift() {
+        return mUpshiftBaudrate > 0;
+    }
+
+    /**
+     * @return mask of the message types received at the valid baudrate,
+     * {@link DeviceProfileStore#PROTOCOL_NMEA} etc.
+     */
+    public synchronized int getReceivedProtocols() {
+        return mReceivedProtocols;
+    }
+
+    /**
+     * @return time from the task start to the lock on the valid baudrate,
+     * -1 if not locked
+     */
+    public long getTimeToLockMs() {
+        return mTimeToLockMs;
     }
 
     @Override
     public void run() {
-        final int[] bauds;
-        boolean baudFound;
-        int validBaudrate;
+        if (isUpshift()) {
+            runUpshift();
+            return;
+        }
+        runAutobaud();
+    }
+
+    private void runUpshift() {
+        final SerialLineConfiguration oldConf, newConf;
+        final int oldBaudrate;
+        final long startTs;
+        boolean isSuccessful;
+        int baudrate;
+
+        oldConf = mUsbController.getSerialLineConfiguration().setAutoBaudrateDetection(false);
+        oldBaudrate = oldConf.getBaudrate();
+        newConf = new SerialLineConfiguration(oldConf).setBaudrate(mUpshiftBaudrate);
+        startTs = SystemClock.uptimeMillis();
+        isSuccessful = false;
+        baudrate = 0;
+
+        try {
+            Log.i(TAG, "Upshift " + oldBaudrate + " -> " + mUpshiftBaudrate);
+            sendSetBaudrate(mUpshiftBaudrate, oldBaudrate);
+            mUsbController.setSerialLineConfiguration(newConf);
+            if (runAttempt(mUpshiftBaudrate,
+                    SystemClock.uptimeMillis() + UPSHIFT_VERIFY_TIMEOUT_MS,
+                    new ArrayList<Integer>()) == mUpshiftBaudrate) {
+                isSuccessful = true;
+                baudrate = mUpshiftBaudrate;
+                Log.i(TAG, "Upshift to " + mUpshiftBaudrate + " in "
+                        + (SystemClock.uptimeMillis() - startTs) + " ms");
+                return;
+            }
+
+            /* Roll back. The receiver may have ignored the command */
+            Log.i(TAG, "Upshift to " + mUpshiftBaudrate + " failed, rolling back");
+            mUsbController.setSerialLineConfiguration(oldConf);
+            if (runAttempt(oldBaudrate, SystemClock.uptimeMillis() + UPSHIFT_VERIFY_TIMEOUT_MS,
+                    new ArrayList<Integer>()) == oldBaudrate) {
+                isSuccessful = true;
+                baudrate = oldBaudrate;
+                return;
+            }
+
+            /* Receiver switched, the stream is not valid at the new rate: switch it back */
+            mUsbController.setSerialLineConfiguration(newConf);
+            sendSetBaudrate(oldBaudrate, mUpshiftBaudrate);
+            mUsbController.setSerialLineConfiguration(oldConf);
+            if (runAttempt(oldBaudrate, SystemClock.uptimeMillis() + UPSHIFT_VERIFY_TIMEOUT_MS,
+                    new ArrayList<Integer>()) == oldBaudrate) {
+                isSuccessful = true;
+                baudrate = oldBaudrate;
+            }
+        }catch (IOException e) {
+            Log.i(TAG, "Upshift error: " + e.toString());
+            mUsbController.setSerialLineConfiguration(oldConf);
+        }catch (InterruptedException e) {
+            Log.i(TAG, "Interrupted: " + e.toString());
+        }finally {
+            if (isSuccessful) {
+                setLastKnownBaudrate(baudrate);
+            }
+            mCallbacks.onAutobaudCompleted(isSuccessful, baudrate);
+        }
+    }
+
+    /**
+     * Sends the port speed commands at the current rate and waits for
+     * their transmission
+     */
+    private void sendSetBaudrate(int baudrate, int lineBaudrate)
+            throws IOException, InterruptedException {
+        final UsbSerialController.UsbSerialOutputStream os;
+        final byte[] cmd;
+
+        os = mUsbController.getOutputStream();
+        if (os == null) throw new IOException("not connected");
+
+        cmd = ReceiverCommands.concat(ReceiverCommands.setBaudrate(baudrate, mUpshiftProtocols));
+        os.write(cmd, 0, cmd.length);
+        /* The bulk transfer completes when the bridge has queued the data, not sent it */
+        Thread.sleep(10000L * cmd.length / lineBaudrate + UPSHIFT_DRAIN_MARGIN_MS);
+    }
+
+    private void runAutobaud() {
+        final List<Integer> candidates;
+        final int timeout;
         final SerialLineConfiguration serialConf;
+        final long startTs;
+        boolean baudFound;
+        int baud;
 
-        bauds = getBaudrateProbeList();
-        baudFound = false;
-        validBaudrate = 0;
         serialConf = mUsbController.getSerialLineConfiguration();
+        candidates = new ArrayList<Integer>();
+        if (mIsVerification) {
+            timeout = VERIFY_TIMEOUT_MS;
+        }else {
+            for (int b: getBaudrateProbeList()) candidates.add(b);
+            serialConf.setBaudrate(candidates.remove(0));
+            timeout = WAIT_MSG_TIMEOUT_MS;
+        }
         serialConf.setAutoBaudrateDetection(false);
+
+        startTs = SystemClock.uptimeMillis();
+        baudFound = false;
+        baud = serialConf.getBaudrate();
         try {
-            synchronized (this) {
-                for (int baud: bauds) {
+            while (true) {
+                final long attemptStartTs;
+                final int nextBaud;
+
+                if (mIsVerification) {
+                    if (DBG) Log.v(TAG, "Verifying " + serialConf);
+                }else {
                     serialConf.setBaudrate(baud);
                     if (DBG) Log.v(TAG, "Trying " + serialConf);
                     mUsbController.setSerialLineConfiguration(serialConf);
-                    mReceivedMsgCnt = 0;
-                    wait(WAIT_MSG_TIMEOUT_MS);
-                    if (mReceivedMsgCnt >= MIN_VALID_MSG_CNT) {
-                        baudFound = true;
-                        validBaudrate = baud;
-                        break;
-                    }
                 }
+
+                attemptStartTs = SystemClock.uptimeMillis();
+                nextBaud = runAttempt(baud, attemptStartTs + timeout, candidates);
+                if (nextBaud == baud) {
+                    baudFound = true;
+                    mTimeToLockMs = SystemClock.uptimeMillis() - startTs;
+                    Log.i(TAG, "Attempt " + baud + ": locked in "
+                            + (SystemClock.uptimeMillis() - attemptStartTs) + " ms, time to lock: "
+                            + mTimeToLockMs + " ms");
+                    break;
+                }
+                if (nextBaud < 0) {
+                    if (!mIsVerification || (mVerifyAltBaudrate <= 0)
+                            || (baud == mVerifyAltBaudrate)) break;
+                    /* Reconnected without power cycle: the receiver keeps the upshifted rate */
+                    Log.i(TAG, "Verifying at the upshifted rate " + mVerifyAltBaudrate);
+                    serialConf.setBaudrate(mVerifyAltBaudrate);
+                    mUsbController.setSerialLineConfiguration(serialConf);
+                    baud = mVerifyAltBaudrate;
+                    continue;
+                }
+                candidates.remove(Integer.valueOf(nextBaud));
+                baud = nextBaud;
             }
         } catch (InterruptedException e) {
             Log.i(TAG, "Interrupted: " + e.toString());
         }finally {
             if (baudFound) {
-                setLastKnownBaudrate(validBaudrate);
+                setLastKnownBaudrate(baud);
+            }
+            mCallbacks.onAutobaudCompleted(baudFound, baudFound ? baud : 0);
+        }
+    }
+
+    /**
+     * Waits for a valid message at the current baudrate, or for the junk
+     * sample large enough to rank the remaining candidates.
+     * @return baud if locked, next baudrate to try, or -1 if there are no candidates left
+     */
+    private int runAttempt(int baud, long deadline, List<Integer> candidates)
+            throws InterruptedException {
+        final int[] junk = new int[256];
+        final int[] sample = new int[256];
+        final long attemptStartTs = SystemClock.uptimeMillis();
+        long sampleSize;
+        int syncHits;
+        boolean locked;
+
+        /* Drop the junk received at the previous rate */
+        mCallbacks.readJunkSample(junk);
+        synchronized (this) {
+            mReceivedMsgCnt = 0;
+            mChecksummedMsgCnt = 0;
+            mReceivedProtocols = 0;
+        }
+
+        sampleSize = 0;
+        syncHits = 0;
+        while (true) {
+            final long now = SystemClock.uptimeMillis();
+            synchronized (this) {
+                locked = isLocked();
+                if (!locked && now < deadline) {
+                    wait(Math.min(JUNK_POLL_INTERVAL_MS, deadline - now));
+                    locked = isLocked();
+                }
+            }
+            if (locked) return baud;
+
+            syncHits += mCallbacks.readJunkSample(junk);
+            for (int i = 0; i < 256; ++i) {
+                sample[i] += junk[i];
+                sampleSize += junk[i];
+            }
+
+            if (candidates.isEmpty()) {
+                if (SystemClock.uptimeMillis() < deadline) continue;
+                Log.i(TAG, "Attempt " + baud + ": timeout in "
+                        + (SystemClock.uptimeMillis() - attemptStartTs) + " ms, no candidates left");
+                return -1;
+            }
+
+            /* Partial sync hits: the rate is right or close, wait for a message */
+            if (syncHits == 0 && sampleSize >= MIN_JUNK_SAMPLE_SIZE) {
+                final int next = mRanker.rank(sample, baud, candidates).get(0);
+                Log.i(TAG, "Attempt " + baud + ": " + sampleSize + " junk bytes in "
+                        + (SystemClock.uptimeMillis() - attemptStartTs) + " ms, next " + next);
+                return next;
+            }
+
+            if (SystemClock.uptimeMillis() >= deadline) {
+                final int next = sampleSize > 0
+                        ? mRanker.rank(sample, baud, candidates).get(0)
+                        : candidates.get(0);
+                Log.i(TAG, "Attempt " + baud + ": timeout in "
+                        + (SystemClock.uptimeMillis() - attemptStartTs) + " ms, "
+                        + sampleSize + " junk bytes, " + syncHits + " sync hits, next " + next);
+                return next;
             }
-            mCallbacks.onAutobaudCompleted(baudFound, validBaudrate);
         }
     }
 
+    @GuardedBy("this")
+    private boolean isLocked() {
+        return mChecksummedMsgCnt > 0 || mReceivedMsgCnt >= MIN_VALID_MSG_CNT;
+    }
+
     public synchronized void onGpsMessageReceived(java.nio.ByteBuffer buf, int start, int size, int type) {
         mReceivedMsgCnt += 1;
-        if (mReceivedMsgCnt >= MIN_VALID_MSG_CNT) {
+        if (type >= 0 && type < Integer.SIZE) mReceivedProtocols |= 1 << type;
+        /* SiRF and u-blox messages are always checksummed, NMEA optionally: "*XX\r\n" */
+        if (type != MSG_TYPE_NMEA || (size >= 5 && buf.get(start + size - 5) == '*')) {
+            mChecksummedMsgCnt += 1;
+        }
+        if (isLocked()) {
             notifyAll();
         }
     }
@@ -0,0 +1,171 @@
+package org.broeuschmeul.android.gps.usb;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Ranks the candidate baudrates by the junk bytes received at a wrong rate.
+ * <p>
+ * A UART set to one rate receiving a stream sent at another rate produces
+ * bytes with a distribution specific to the rate pair: the start bit edges,
+ * the sampling points and the framing are shifted in a deterministic way.
+ * The expected distribution is obtained by simulating the reception of a
+ * typical NMEA burst at each candidate rate, the candidates are ordered by
+ * the likelihood of the observed junk histogram.
+ */
+final class BaudrateRanker {
+
+    private static final String SAMPLE_NMEA =
+            "$GPGGA,092750.000,5321.6802,N,00630.3372,W,1,8,1.03,61.7,M,55.2,M,,*76\r\n"
+            + "$GPGSA,A,3,10,07,05,02,29,04,08,13,,,,,1.72,1.03,1.38*0A\r\n"
+            + "$GPGSV,3,1,11,10,63,137,17,07,61,098,15,05,59,290,20,08,54,157,30*70\r\n"
+            + "$GPGSV,3,2,11,02,39,223,19,13,28,070,17,26,23,252,,04,14,186,14*79\r\n"
+            + "$GPGSV,3,3,11,29,09,301,24,16,09,020,,36,,,*76\r\n"
+            + "$GPRMC,092750.000,A,5321.6802,N,00630.3372,W,0.02,31.66,280511,,,A*43\r\n"
+            + "$GPVTG,31.66,T,,M,0.02,N,0.04,K,A*3A\r\n";
+
+    /* Additive smoothing of the simulated distributions, counts per bin */
+    private static final double SMOOTHING = 0.5;
+
+    private static final byte[] sSampleBits = toUartBits(
+            SAMPLE_NMEA.getBytes(Charset.forName("US-ASCII")));
+
+    /* Simulated log-probabilities, keyed by "lineRate/uartRate" */
+    private final HashMap<String, double[]> mLogProbCache = new HashMap<String, double[]>();
+
+    /**
+     * @param histogram junk bytes histogram received at uartRate
+     * @param uartRate current rate of the UART
+     * @param candidates candidate line rates
+     * @return candidates, most likely first
+     */
+    public List<Integer> rank(int[] histogram, final int uartRate, List<Integer> candidates) {
+        final HashMap<Integer, Double> scores;
+        final List<Integer> res;
+
+        scores = new HashMap<Integer, Double>(candidates.size());
+        for (Integer rate: candidates) {
+            scores.put(rate, getLogLikelihood(histogram, rate, uartRate));
+        }
+
+        res = new ArrayList<Integer>(candidates);
+        Collections.sort(res, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(scores.get(rhs), scores.get(lhs));
+            }
+        });
+        return res;
+    }
+
+    /**
+     * @return log-likelihood of the histogram per received byte
+     */
+    double getLogLikelihood(int[] histogram, int lineRate, int uartRate) {
+        final double[] logProb = getLogProb(lineRate, uartRate);
+        double res;
+        long total;
+
+        res = 0;
+        total = 0;
+        for (int i = 0; i < 256; ++i) {
+            if (histogram[i] == 0) continue;
+            res += histogram[i] * logProb[i];
+            total += histogram[i];
+        }
+        return total == 0 ? 0 : res / total;
+    }
+
+    private double[] getLogProb(int lineRate, int uartRate) {
+        final String key = lineRate + "/" + uartRate;
+        double[] res = mLogProbCache.get(key);
+        if (res == null) {
+            res = toLogProb(simulate(sSampleBits, lineRate, uartRate));
+            mLogProbCache.put(key, res);
+        }
+        return res;
+    }
+
+    private static double[] toLogProb(int[] histogram) {
+        final double[] res = new double[256];
+        long total = 0;
+
+        for (int cnt: histogram) total += cnt;
+        for (int i = 0; i < 256; ++i) {
+            res[i] = Math.log((histogram[i] + SMOOTHING) / (total + 256 * SMOOTHING));
+        }
+        return res;
+    }
+
+    /**
+     * 8-N-1 line levels, one entry per bit, idle line on both ends
+     */
+    static byte[] toUartBits(byte[] data) {
+        final byte[] bits = new byte[10 * data.length + 20];
+        int pos;
+
+        pos = 0;
+        for (int i = 0; i < 10; ++i) bits[pos++] = 1;
+        for (byte b: data) {
+            bits[pos++] = 0;
+            for (int i = 0; i < 8; ++i) bits[pos++] = (byte)((b >> i) & 1);
+            bits[pos++] = 1;
+        }
+        for (int i = 0; i < 10; ++i) bits[pos++] = 1;
+        return bits;
+    }
+
+    /**
+     * Simulates the reception of the bits sent at lineRate by the 8-N-1
+     * UART at uartRate. Bytes with framing errors are kept: most
+     * controllers pass them through.
+     * @return histogram of the received bytes
+     */
+    static int[] simulate(byte[] bits, int lineRate, int uartRate) {
+        final int[] histogram = new int[256];
+        final double lineBit = 1.0 / lineRate;
+        final double uartBit = 1.0 / uartRate;
+        final double end = bits.length * lineBit;
+        double t;
+
+        t = 0;
+        while (t < end) {
+            final double edge;
+            int k;
+            int b;
+
+            /* Next falling edge: high to low transition at a bit boundary */
+            k = (int)Math.ceil(t * lineRate);
+            if (k < 1) k = 1;
+            while (k < bits.length && !(bits[k - 1] == 1 && bits[k] == 0)) ++k;
+            if (k >= bits.length) break;
+            edge = k * lineBit;
+
+            /* Start bit check in the middle of the bit */
+            if (level(bits, edge + 0.5 * uartBit, lineRate) != 0) {
+                t = edge + 0.5 * uartBit;
+                continue;
+            }
+
+            b = 0;
+            for (int i = 0; i < 8; ++i) {
+                b |= level(bits, edge + (1.5 + i) * uartBit, lineRate) << i;
+            }
+            histogram[b] += 1;
+
+            t = edge + 9.5 * uartBit;
+        }
+
+        return histogram;
+    }
+
+    private static int level(byte[] bits, double t, int lineRate) {
+        final int pos = (int)(t * lineRate);
+        return pos < bits.length ? bits[pos] : 1;
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.broeuschmeul.android.gps.usb;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
+
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+/**
+ * Connection profiles of the known devices, keyed by VID:PID:serial number.
+ * <p>
+ * A profile is saved once the serial line configuration has been verified by
+ * the received messages. On the next attach the controller skips the vendor
+ * init sequence and the baudrate detection, and applies the stored line
+ * configuration only.
+ * <p>
+ * The line configuration keeps the power-on rate of the receiver. The rate
+ * of the last successful upshift is stored separately: the receiver keeps it
+ * until the power cycle, e.g. on the reconnect.
+ */
+public class DeviceProfileStore {
+
+    // Debugging
+    private static final String TAG = DeviceProfileStore.class.getSimpleName();
+    private static final boolean DBG = BuildConfig.DEBUG & true;
+
+    private static final String PREFS_NAME = "usb_device_profiles";
+
+    /* Protocol mask bits, 1 << native message type */
+    public static final int PROTOCOL_NMEA = 1 << 0;
+    public static final int PROTOCOL_SIRF = 1 << 1;
+    public static final int PROTOCOL_UBX = 1 << 2;
+
+    public static class Profile {
+
+        private final String mKey;
+        private final SerialLineConfiguration mLineConfiguration;
+        private final int mProtocols;
+        private final String mVariant;
+        private final int mUpshiftBaudrate;
+
+        public Profile(String key, SerialLineConfiguration lineConfiguration,
+                int protocols, String variant) {
+            this(key, lineConfiguration, protocols, variant, 0);
+        }
+
+        public Profile(String key, SerialLineConfiguration lineConfiguration,
+                int protocols, String variant, int upshiftBaudrate) {
+            if (key == null || lineConfiguration == null || variant == null) {
+                throw new NullPointerException();
+            }
+            mKey = key;
+            mLineConfiguration = new SerialLineConfiguration(lineConfiguration)
+                .setAutoBaudrateDetection(false);
+            mProtocols = protocols;
+            mVariant = variant;
+            mUpshiftBaudrate = upshiftBaudrate;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return verified serial line configuration
+         */
+        public SerialLineConfiguration getLineConfiguration() {
+            return new SerialLineConfiguration(mLineConfiguration);
+        }
+
+        /**
+         * @return mask of PROTOCOL_* received from the device
+         */
+        public int getProtocols() {
+            return mProtocols;
+        }
+
+        /**
+         * @return controller chip variant, {@link UsbSerialController#getDeviceVariant()}
+         */
+        public String getVariant() {
+            return mVariant;
+        }
+
+        /**
+         * @return receiver rate after the last successful upshift, 0 - none
+         */
+        public int getUpshiftBaudrate() {
+            return mUpshiftBaudrate;
+        }
+
+        String encode() {
+            return mLineConfiguration.toString() + "|" + mProtocols + "|" + mVariant
+                    + "|" + mUpshiftBaudrate;
+        }
+
+        static Profile decode(String key, String value) throws IllegalArgumentException {
+            final String fields[] = value.split("\\|", -1);
+            /* 3 fields: saved before the upshift rate was stored */
+            if (fields.length != 3 && fields.length != 4) throw new IllegalArgumentException();
+            return new Profile(key,
+                    new SerialLineConfiguration().setLineCoding(fields[0]),
+                    Integer.parseInt(fields[1]),
+                    fields[2],
+                    fields.length == 4 ? Integer.parseInt(fields[3]) : 0);
+        }
+
+        @Override
+        public String toString() {
+            return mKey + " " + encode();
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public DeviceProfileStore(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param serial serial number of the device, null if unknown. Devices
+     * without serial number share the profile with the same VID:PID.
+     */
+    public static String getKey(UsbDevice d, @Nullable String serial) {
+        return String.format(Locale.US, "%04x:%04x:%s",
+                d.getVendorId(), d.getProductId(), serial == null ? "" : serial);
+    }
+
+    @Nullable
+    public Profile get(String key) {
+        final String value = mPrefs.getString(key, null);
+        if (value == null) return null;
+        try {
+            return Profile.decode(key, value);
+        }catch (IllegalArgumentException iae) {
+            Log.e(TAG, "Invalid profile " + key + ": " + value);
+            remove(key);
+            return null;
+        }
+    }
+
+    public void put(Profile profile) {
+        if (DBG) Log.v(TAG, "put() " + profile);
+        mPrefs.edit().putString(profile.getKey(), profile.encode()).commit();
+    }
+
+    public void remove(String key) {
+        if (DBG) Log.v(TAG, "remove() " + key);
+        mPrefs.edit().remove(key).commit();
+    }
+
+}
@@ -0,0 +1,375 @@
+package org.broeuschmeul.android.gps.usb;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+/**
+ * Vendor commands sent to the GPS receiver
+ */
+public final class ReceiverCommands {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /* UBX-CFG-PRT */
+    public static final int UBX_CLASS_CFG = 0x06;
+    private static final int UBX_ID_CFG_PRT = 0x00;
+    public static final int UBX_ID_CFG_MSG = 0x01;
+    public static final int UBX_ID_CFG_RATE = 0x08;
+    /* UBX-ACK-NAK, UBX-ACK-ACK */
+    public static final int UBX_CLASS_ACK = 0x05;
+    public static final int UBX_ID_ACK_NAK = 0x00;
+    public static final int UBX_ID_ACK_ACK = 0x01;
+    /* Class of the NMEA sentences in UBX-CFG-MSG */
+    private static final int UBX_CLASS_NMEA = 0xf0;
+    /* Time reference of the navigation rate: GPS time */
+    private static final int UBX_RATE_TIME_REF_GPS = 1;
+    private static final int UBX_PORT_UART1 = 1;
+    /* 8 data bits, no parity, 1 stop bit */
+    private static final int UBX_PRT_MODE_8N1 = 0x000008d0;
+    /* UBX + NMEA + RTCM in, UBX + NMEA out */
+    private static final int UBX_PRT_IN_PROTO_MASK = 0x0007;
+    private static final int UBX_PRT_OUT_PROTO_MASK = 0x0003;
+
+    /* SiRF binary: Set Binary Serial Port */
+    private static final int SIRF_MID_SET_BINARY_SERIAL_PORT = 134;
+    /* SiRF binary: Set Message Rate */
+    public static final int SIRF_MID_SET_MESSAGE_RATE = 166;
+    private static final int SIRF_MESSAGE_RATE_MODE_ONE = 0;
+    private static final int SIRF_MESSAGE_RATE_MODE_DEBUG_OFF = 4;
+    /* SiRF binary: Switch To NMEA Protocol, Set DGPS Source, Static Navigation */
+    private static final int SIRF_MID_SWITCH_TO_NMEA = 129;
+    /* MID 129: 16-bit baud rate field */
+    public static final int SIRF_MID129_MAX_BAUDRATE = 57600;
+    public static final int SIRF_MID_SET_DGPS_SOURCE = 133;
+    public static final int SIRF_MID_STATIC_NAVIGATION = 143;
+    private static final int SIRF_DGPS_SOURCE_NONE = 0;
+    private static final int SIRF_DGPS_SOURCE_SBAS = 1;
+    /* SiRF binary: Command Acknowledgment, Command NAcknowledgment */
+    public static final int SIRF_MID_ACK = 11;
+    public static final int SIRF_MID_NAK = 12;
+
+    /* MediaTek packet types. PMTK001: acknowledgment */
+    public static final int MTK_PKT_ACK = 1;
+    public static final int MTK_PKT_SET_FIX_CTL = 220;
+    public static final int MTK_PKT_SET_NMEA_OUTPUT = 314;
+    /* PMTK001 flag: valid packet, action succeeded */
+    public static final int MTK_ACK_SUCCEEDED = 3;
+
+    /* Sentence codes, indexed by ReceiverConfiguration.NMEA_*. -1 - not supported */
+    private static final int[] UBX_NMEA_ID = {
+        /* GGA, GLL, GSA, GSV, RMC, VTG, GST, ZDA */
+        0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x07, 0x08
+    };
+    private static final int[] SIRF_NMEA_MSG = {
+        0, 1, 2, 3, 4, 5, -1, 8
+    };
+    /* Field of $PMTK314 */
+    private static final int[] MTK_NMEA_FIELD = {
+        3, 0, 4, 5, 1, 2, 7, 17
+    };
+    private static final int MTK_NMEA_FIELD_CNT = 19;
+    /* Sentence order of MID 129: GGA, GLL, GSA, GSV, RMC, VTG, MSS, unused, ZDA, unused */
+    private static final int[] SIRF_MID129_ORDER = {
+        ReceiverConfiguration.NMEA_GGA, ReceiverConfiguration.NMEA_GLL,
+        ReceiverConfiguration.NMEA_GSA, ReceiverConfiguration.NMEA_GSV,
+        ReceiverConfiguration.NMEA_RMC, ReceiverConfiguration.NMEA_VTG,
+        -1, -1, ReceiverConfiguration.NMEA_ZDA, -1
+    };
+
+    /* SiRF $PSRF100 protocols */
+    private static final int SIRF_PSRF100_BINARY = 0;
+    private static final int SIRF_PSRF100_NMEA = 1;
+
+    private ReceiverCommands() {}
+
+    /**
+     * @param body sentence without '$' and checksum
+     * @return NMEA sentence with checksum and CRLF
+     */
+    public static byte[] nmea(String body) {
+        int csum = 0;
+        for (int i = 0; i < body.length(); ++i) csum ^= body.charAt(i) & 0x7f;
+        return String.format(Locale.US, "$%s*%02X\r\n", body, csum).getBytes(US_ASCII);
+    }
+
+    /**
+     * @return u-blox UBX frame with the Fletcher checksum
+     */
+    public static byte[] ubx(int msgClass, int msgId, byte[] payload) {
+        final byte[] msg = new byte[payload.length + 8];
+        int ckA, ckB;
+
+        msg[0] = (byte)0xb5;
+        msg[1] = (byte)0x62;
+        msg[2] = (byte)msgClass;
+        msg[3] = (byte)msgId;
+        msg[4] = (byte)(payload.length & 0xff);
+        msg[5] = (byte)((payload.length >> 8) & 0xff);
+        System.arraycopy(payload, 0, msg, 6, payload.length);
+
+        ckA = ckB = 0;
+        for (int i = 2; i < payload.length + 6; ++i) {
+            ckA = (ckA + (msg[i] & 0xff)) & 0xff;
+            ckB = (ckB + ckA) & 0xff;
+        }
+        msg[payload.length + 6] = (byte)ckA;
+        msg[payload.length + 7] = (byte)ckB;
+        return msg;
+    }
+
+    /**
+     * @return SiRF binary frame: A0A2, length, payload, 15-bit checksum, B0B3
+     */
+    public static byte[] sirf(byte[] payload) {
+        final byte[] msg = new byte[payload.length + 8];
+        int csum;
+
+        msg[0] = (byte)0xa0;
+        msg[1] = (byte)0xa2;
+        msg[2] = (byte)((payload.length >> 8) & 0x7f);
+        msg[3] = (byte)(payload.length & 0xff);
+        System.arraycopy(payload, 0, msg, 4, payload.length);
+
+        csum = 0;
+        for (byte b: payload) csum = (csum + (b & 0xff)) & 0x7fff;
+        msg[payload.length + 4] = (byte)((csum >> 8) & 0xff);
+        msg[payload.length + 5] = (byte)(csum & 0xff);
+        msg[payload.length + 6] = (byte)0xb0;
+        msg[payload.length + 7] = (byte)0xb3;
+        return msg;
+    }
+
+    /**
+     * UBX-CFG-PRT: UART1 8-N-1 at baudrate, UBX and NMEA protocols
+     */
+    public static byte[] ubxSetBaudrate(int baudrate) {
+        final byte[] payload = new byte[20];
+
+        payload[0] = (byte)UBX_PORT_UART1;
+        putLe(payload, 4, UBX_PRT_MODE_8N1, 4);
+        putLe(payload, 8, baudrate, 4);
+        putLe(payload, 12, UBX_PRT_IN_PROTO_MASK, 2);
+        putLe(payload, 14, UBX_PRT_OUT_PROTO_MASK, 2);
+        return ubx(UBX_CLASS_CFG, UBX_ID_CFG_PRT, payload);
+    }
+
+    /**
+     * SiRF MID 134: binary protocol, 8-N-1 at baudrate
+     */
+    public static byte[] sirfSetBaudrate(int baudrate) {
+        final byte[] payload = new byte[9];
+
+        payload[0] = (byte)SIRF_MID_SET_BINARY_SERIAL_PORT;
+        payload[1] = (byte)((baudrate >> 24) & 0xff);
+        payload[2] = (byte)((baudrate >> 16) & 0xff);
+        payload[3] = (byte)((baudrate >> 8) & 0xff);
+        payload[4] = (byte)(baudrate & 0xff);
+        payload[5] = 8; /* data bits */
+        payload[6] = 1; /* stop bits */
+        payload[7] = 0; /* parity: none */
+        payload[8] = 0; /* reserved */
+        return sirf(payload);
+    }
+
+    /**
+     * UBX-CFG-MSG: output rate of the NMEA sentence on the current port, in
+     * navigation solutions. 0 - disabled
+     * @param sentence {@link ReceiverConfiguration#NMEA_GGA} etc.
+     */
+    public static byte[] ubxSetNmeaRate(int sentence, int rate) {
+        final byte[] payload = new byte[3];
+
+        payload[0] = (byte)UBX_CLASS_NMEA;
+        payload[1] = (byte)UBX_NMEA_ID[sentence];
+        payload[2] = (byte)rate;
+        return ubx(UBX_CLASS_CFG, UBX_ID_CFG_MSG, payload);
+    }
+
+    /**
+     * UBX-CFG-RATE: one navigation solution every rateMs
+     */
+    public static byte[] ubxSetNavigationRate(int rateMs) {
+        final byte[] payload = new byte[6];
+
+        putLe(payload, 0, rateMs, 2);
+        putLe(payload, 2, 1, 2); /* navRate: cycles per solution */
+        putLe(payload, 4, UBX_RATE_TIME_REF_GPS, 2);
+        return ubx(UBX_CLASS_CFG, UBX_ID_CFG_RATE, payload);
+    }
+
+    /**
+     * SiRF MID 166: output rate of the message, in seconds. 0 - disabled
+     */
+    public static byte[] sirfSetMessageRate(int mid, int rate) {
+        final byte[] payload = new byte[8];
+
+        payload[0] = (byte)SIRF_MID_SET_MESSAGE_RATE;
+        payload[1] = (byte)SIRF_MESSAGE_RATE_MODE_ONE;
+        payload[2] = (byte)mid;
+        payload[3] = (byte)rate;
+        return sirf(payload);
+    }
+
+    /**
+     * SiRF MID 166: disables the development data messages
+     */
+    public static byte[] sirfDisableDebugMessages() {
+        final byte[] payload = new byte[8];
+
+        payload[0] = (byte)SIRF_MID_SET_MESSAGE_RATE;
+        payload[1] = (byte)SIRF_MESSAGE_RATE_MODE_DEBUG_OFF;
+        return sirf(payload);
+    }
+
+    /**
+     * SiRF MID 133: SBAS or no DGPS corrections
+     */
+    public static byte[] sirfSetSbas(boolean enabled) {
+        final byte[] payload = new byte[7];
+
+        payload[0] = (byte)SIRF_MID_SET_DGPS_SOURCE;
+        payload[1] = (byte)(enabled ? SIRF_DGPS_SOURCE_SBAS : SIRF_DGPS_SOURCE_NONE);
+        return sirf(payload);
+    }
+
+    /**
+     * SiRF MID 143: static navigation (position pinned at low speed)
+     */
+    public static byte[] sirfSetStaticNavigation(boolean enabled) {
+        final byte[] payload = new byte[2];
+
+        payload[0] = (byte)SIRF_MID_STATIC_NAVIGATION;
+        payload[1] = (byte)(enabled ? 1 : 0);
+        return sirf(payload);
+    }
+
+    /**
+     * SiRF MID 129: switches the receiver from binary to NMEA with the
+     * sentences of conf at 1 Hz, 8-N-1 at baudrate. No acknowledgment
+     * @throws IllegalArgumentException baudrate is above {@link #SIRF_MID129_MAX_BAUDRATE}
+     */
+    public static byte[] sirfSetNmea(ReceiverConfiguration conf, int baudrate) {
+        final byte[] payload = new byte[4 + 2 * SIRF_MID129_ORDER.length];
+        int pos;
+
+        if (baudrate <= 0 || baudrate > SIRF_MID129_MAX_BAUDRATE) throw new IllegalArgumentException();
+
+        payload[0] = (byte)SIRF_MID_SWITCH_TO_NMEA;
+        payload[1] = 2; /* mode: enable the debug messages as set before */
+        pos = 2;
+        for (int sentence: SIRF_MID129_ORDER) {
+            payload[pos++] = (byte)((sentence >= 0 && conf.isSentenceEnabled(sentence)) ? 1 : 0);
+            payload[pos++] = 1; /* checksum */
+        }
+        payload[pos++] = (byte)((baudrate >> 8) & 0xff);
+        payload[pos] = (byte)(baudrate & 0xff);
+        return sirf(payload);
+    }
+
+    /**
+     * SiRF $PSRF103: output rate of the NMEA sentence, in seconds. 0 - disabled
+     * @return null if the receiver does not output the sentence
+     */
+    @Nullable
+    public static byte[] sirfNmeaSetRate(int sentence, int rate) {
+        if (SIRF_NMEA_MSG[sentence] < 0) return null;
+        return nmea(String.format(Locale.US, "PSRF103,%02d,00,%02d,01",
+                SIRF_NMEA_MSG[sentence], rate));
+    }
+
+    /**
+     * SiRF $PSRF151: SBAS
+     */
+    public static byte[] sirfNmeaSetSbas(boolean enabled) {
+        return nmea(enabled ? "PSRF151,01" : "PSRF151,00");
+    }
+
+    /**
+     * SiRF $PSRF100: NMEA protocol, 8-N-1 at baudrate
+     */
+    public static byte[] sirfNmeaSetBaudrate(int baudrate) {
+        return nmea(String.format(Locale.US, "PSRF100,%d,%d,8,1,0",
+                SIRF_PSRF100_NMEA, baudrate));
+    }
+
+    /**
+     * SiRF $PSRF100: switches the receiver from NMEA to the SiRF binary
+     * protocol, 8-N-1 at baudrate. The receiver answers at the new rate with
+     * its default binary output (MID 2, 4, 7, 41 on SiRFstar III)
+     */
+    public static byte[] sirfNmeaSetBinary(int baudrate) {
+        return nmea(String.format(Locale.US, "PSRF100,%d,%d,8,1,0",
+                SIRF_PSRF100_BINARY, baudrate));
+    }
+
+    /**
+     * MediaTek $PMTK251
+     */
+    public static byte[] mtkSetBaudrate(int baudrate) {
+        return nmea(String.format(Locale.US, "PMTK251,%d", baudrate));
+    }
+
+    /**
+     * MediaTek $PMTK314: sentences of conf in every navigation solution
+     */
+    public static byte[] mtkSetNmeaOutput(ReceiverConfiguration conf) {
+        final int[] rates = new int[MTK_NMEA_FIELD_CNT];
+        final StringBuilder sb;
+
+        for (int i = 0; i < ReceiverConfiguration.NMEA_SENTENCE_CNT; ++i) {
+            if (conf.isSentenceEnabled(i)) rates[MTK_NMEA_FIELD[i]] = 1;
+        }
+        sb = new StringBuilder("PMTK").append(MTK_PKT_SET_NMEA_OUTPUT);
+        for (int rate: rates) sb.append(',').append(rate);
+        return nmea(sb.toString());
+    }
+
+    /**
+     * MediaTek $PMTK220: one navigation solution every rateMs
+     */
+    public static byte[] mtkSetNavigationRate(int rateMs) {
+        return nmea(String.format(Locale.US, "PMTK%d,%d", MTK_PKT_SET_FIX_CTL, rateMs));
+    }
+
+    /**
+     * Port speed commands for the receiver that speaks the protocols.
+     * The NMEA-only receivers get the commands of all the vendors: each
+     * receiver ignores the unknown ones.
+     * @param protocols mask of {@link DeviceProfileStore#PROTOCOL_NMEA} etc.
+     */
+    public static List<byte[]> setBaudrate(int baudrate, int protocols) {
+        final List<byte[]> res = new ArrayList<byte[]>(4);
+
+        if ((protocols & DeviceProfileStore.PROTOCOL_UBX) != 0) {
+            res.add(ubxSetBaudrate(baudrate));
+        }else if ((protocols & DeviceProfileStore.PROTOCOL_SIRF) != 0) {
+            res.add(sirfSetBaudrate(baudrate));
+        }else {
+            res.add(ubxSetBaudrate(baudrate));
+            res.add(sirfNmeaSetBaudrate(baudrate));
+            res.add(mtkSetBaudrate(baudrate));
+        }
+        return res;
+    }
+
+    /**
+     * @return commands concatenated
+     */
+    public static byte[] concat(List<byte[]> commands) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (byte[] cmd: commands) os.write(cmd, 0, cmd.length);
+        return os.toByteArray();
+    }
+
+    private static void putLe(byte[] dst, int pos, int val, int size) {
+        for (int i = 0; i < size; ++i) {
+            dst[pos + i] = (byte)((val >> (8 * i)) & 0xff);
+        }
+    }
+
+}
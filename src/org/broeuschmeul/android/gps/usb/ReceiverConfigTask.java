@@ -0,0 +1,339 @@
+package org.broeuschmeul.android.gps.usb;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Sends the output configuration commands to the receiver one by one. The
+ * acknowledged commands are matched against the ACK/NAK replies from the
+ * message stream and retried on timeout.
+ */
+public class ReceiverConfigTask extends Thread {
+
+    // Debugging
+    private static final String TAG = ReceiverConfigTask.class.getSimpleName();
+    private static final boolean DBG = BuildConfig.DEBUG & true;
+
+    /* Covers a 1 Hz epoch: the replies are queued behind the navigation messages */
+    public static final int ACK_TIMEOUT_MS = 1000;
+
+    public static final int MAX_ATTEMPTS = 3;
+
+    /* Added to the command transmission time when no reply is expected */
+    public static final int DRAIN_MARGIN_MS = 50;
+
+    /* gps_msg_metadata_t types */
+    private static final int MSG_TYPE_NMEA = 0;
+    private static final int MSG_TYPE_SIRF = 1;
+    private static final int MSG_TYPE_UBX = 2;
+
+    static final int ACK_NONE = 0;
+    static final int ACK_UBX = 1;
+    static final int ACK_SIRF = 2;
+    static final int ACK_MTK = 3;
+
+    /* Reply states */
+    private static final int REPLY_NONE = 0;
+    private static final int REPLY_ACK = 1;
+    private static final int REPLY_NAK = 2;
+
+    private static ReceiverConfigTask.Callbacks sDummyCallbacks = new Callbacks() {
+        @Override
+        public void onReceiverConfigured(int acked, int rejected, int unanswered) {}
+    };
+
+    private final UsbSerialController mUsbController;
+    private final List<Command> mCommands;
+    private final ReceiverConfigTask.Callbacks mCallbacks;
+
+    /* Command waiting for the reply */
+    @GuardedBy("this")
+    private Command mPending;
+
+    @GuardedBy("this")
+    private int mReply;
+
+    public static interface Callbacks {
+        /**
+         * @param acked commands acknowledged by the receiver
+         * @param rejected commands rejected by the receiver
+         * @param unanswered acknowledged commands without reply. Commands
+         * without acknowledgment are not counted.
+         */
+        void onReceiverConfigured(int acked, int rejected, int unanswered);
+    }
+
+    static class Command {
+        final byte[] data;
+
+        /* ACK_NONE, ACK_UBX etc. */
+        final int ackType;
+
+        /* UBX: class << 8 | id, SiRF: MID, MTK: packet type */
+        final int ackId;
+
+        /* Probe of the vendor: the rest of the group is skipped if not answered */
+        final boolean isProbe;
+
+        final int group;
+
+        Command(byte[] data, int ackType, int ackId, boolean isProbe, int group) {
+            this.data = data;
+            this.ackType = ackType;
+            this.ackId = ackId;
+            this.isProbe = isProbe;
+            this.group = group;
+        }
+    }
+
+    public ReceiverConfigTask(UsbSerialController usbController,
+            ReceiverConfiguration conf, int protocols,
+            ReceiverConfigTask.Callbacks callbacks) {
+        mUsbController = usbController;
+        mCommands = createCommands(conf, protocols,
+                usbController.getSerialLineConfiguration().getBaudrate());
+        mCallbacks = callbacks != null ? callbacks : sDummyCallbacks;
+    }
+
+    /**
+     * Builds the command queue for the protocols received from the device.
+     * The vendor of an NMEA-only receiver is unknown: the MediaTek commands
+     * are sent after an acknowledged probe, the SiRF and u-blox NMEA commands
+     * are sent without acknowledgment and are ignored by the other receivers.
+     * @param protocols {@link DeviceProfileStore#PROTOCOL_NMEA} etc.
+     */
+    static List<Command> createCommands(ReceiverConfiguration conf, int protocols, int baudrate) {
+        final List<Command> commands = new ArrayList<Command>();
+        int group = 0;
+
+        if ((protocols & DeviceProfileStore.PROTOCOL_UBX) != 0) {
+            addUbxCommands(commands, conf, true, group++);
+        }else if ((protocols & DeviceProfileStore.PROTOCOL_SIRF) != 0) {
+            final int sirfGroup = group++;
+            commands.add(new Command(ReceiverCommands.sirfSetStaticNavigation(conf.isStaticNavigationEnabled()),
+                    ACK_SIRF, ReceiverCommands.SIRF_MID_STATIC_NAVIGATION, false, sirfGroup));
+            commands.add(new Command(ReceiverCommands.sirfSetSbas(conf.isSbasEnabled()),
+                    ACK_SIRF, ReceiverCommands.SIRF_MID_SET_DGPS_SOURCE, false, sirfGroup));
+            commands.add(new Command(ReceiverCommands.sirfDisableDebugMessages(),
+                    ACK_SIRF, ReceiverCommands.SIRF_MID_SET_MESSAGE_RATE, false, sirfGroup));
+            /* SiRF binary has no navigation rate command: the receiver
+             * reports at 1 Hz. MID 129 can not set a line rate above 57600:
+             * the receiver stays in SiRF binary, which is parsed as well */
+            if (conf.isNmeaEnabled() && baudrate <= ReceiverCommands.SIRF_MID129_MAX_BAUDRATE) {
+                commands.add(new Command(ReceiverCommands.sirfSetNmea(conf, baudrate),
+                        ACK_NONE, 0, false, sirfGroup));
+            }
+        }else {
+            final int mtkGroup = group++;
+            final int sirfGroup = group++;
+
+            /* The first MediaTek command is the probe */
+            if (conf.isNavigationRateSet()) {
+                commands.add(new Command(ReceiverCommands.mtkSetNavigationRate(conf.getNavigationRateMs()),
+                        ACK_MTK, ReceiverCommands.MTK_PKT_SET_FIX_CTL, true, mtkGroup));
+            }
+            commands.add(new Command(ReceiverCommands.mtkSetNmeaOutput(conf),
+                    ACK_MTK, ReceiverCommands.MTK_PKT_SET_NMEA_OUTPUT, !conf.isNavigationRateSet(), mtkGroup));
+
+            for (int i = 0; i < ReceiverConfiguration.NMEA_SENTENCE_CNT; ++i) {
+                final byte[] cmd = ReceiverCommands.sirfNmeaSetRate(i, conf.isSentenceEnabled(i) ? 1 : 0);
+                if (cmd != null) commands.add(new Command(cmd, ACK_NONE, 0, false, sirfGroup));
+            }
+            commands.add(new Command(ReceiverCommands.sirfNmeaSetSbas(conf.isSbasEnabled()),
+                    ACK_NONE, 0, false, sirfGroup));
+
+            addUbxCommands(commands, conf, false, group++);
+
+            /* Last: the receiver does not parse NMEA after the switch */
+            if (!conf.isNmeaEnabled()) {
+                commands.add(new Command(ReceiverCommands.sirfNmeaSetBinary(baudrate),
+                        ACK_NONE, 0, false, sirfGroup));
+            }
+        }
+
+        return commands;
+    }
+
+    private static void addUbxCommands(List<Command> commands, ReceiverConfiguration conf,
+            boolean acked, int group) {
+        final int ackType = acked ? ACK_UBX : ACK_NONE;
+        for (int i = 0; i < ReceiverConfiguration.NMEA_SENTENCE_CNT; ++i) {
+            commands.add(new Command(ReceiverCommands.ubxSetNmeaRate(i, conf.isSentenceEnabled(i) ? 1 : 0),
+                    ackType, ubxAckId(ReceiverCommands.UBX_ID_CFG_MSG), false, group));
+        }
+        if (conf.isNavigationRateSet()) {
+            commands.add(new Command(ReceiverCommands.ubxSetNavigationRate(conf.getNavigationRateMs()),
+                    ackType, ubxAckId(ReceiverCommands.UBX_ID_CFG_RATE), false, group));
+        }
+    }
+
+    private static int ubxAckId(int msgId) {
+        return (ReceiverCommands.UBX_CLASS_CFG << 8) | msgId;
+    }
+
+    @Override
+    public void run() {
+        final long startTs = SystemClock.uptimeMillis();
+        int acked = 0, rejected = 0, unanswered = 0;
+        int skipGroup = -1;
+
+        try {
+            for (Command cmd: mCommands) {
+                if (cmd.group == skipGroup) continue;
+                switch (send(cmd)) {
+                    case REPLY_ACK:
+                        acked += 1;
+                        break;
+                    case REPLY_NAK:
+                        rejected += 1;
+                        break;
+                    default:
+                        if (cmd.ackType == ACK_NONE) break;
+                        unanswered += 1;
+                        if (cmd.isProbe) skipGroup = cmd.group;
+                        break;
+                }
+            }
+            Log.i(TAG, "Configured in " + (SystemClock.uptimeMillis() - startTs) + " ms, acked: "
+                    + acked + " rejected: " + rejected + " unanswered: " + unanswered);
+        }catch (IOException e) {
+            Log.i(TAG, "Write error: " + e.toString());
+        }catch (InterruptedException e) {
+            Log.i(TAG, "Interrupted: " + e.toString());
+        }finally {
+            synchronized (this) {
+                mPending = null;
+            }
+            mCallbacks.onReceiverConfigured(acked, rejected, unanswered);
+        }
+    }
+
+    /**
+     * @return REPLY_ACK, REPLY_NAK, or REPLY_NONE if not answered or no reply expected
+     */
+    private int send(Command cmd) throws IOException, InterruptedException {
+        final UsbSerialController.UsbSerialOutputStream os;
+
+        /* Blocking write, not UsbServiceThread.write(): the ACK timeout starts
+         * once the command is sent. The stream queues it behind the pending
+         * asynchronous writes when the writer is running */
+        os = mUsbController.getOutputStream();
+        if (os == null) throw new IOException("not connected");
+
+        if (cmd.ackType == ACK_NONE) {
+            os.write(cmd.data, 0, cmd.data.length);
+            /* The receiver drops the commands that overlap in its input buffer */
+            Thread.sleep(10000L * cmd.data.length
+                    / mUsbController.getSerialLineConfiguration().getBaudrate() + DRAIN_MARGIN_MS);
+            return REPLY_NONE;
+        }
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; ++attempt) {
+            final long deadline;
+
+            synchronized (this) {
+                mPending = cmd;
+                mReply = REPLY_NONE;
+            }
+            os.write(cmd.data, 0, cmd.data.length);
+            deadline = SystemClock.uptimeMillis() + ACK_TIMEOUT_MS;
+            synchronized (this) {
+                long now = SystemClock.uptimeMillis();
+                while (mReply == REPLY_NONE && now < deadline) {
+                    wait(deadline - now);
+                    now = SystemClock.uptimeMillis();
+                }
+                mPending = null;
+                if (mReply != REPLY_NONE) return mReply;
+            }
+            if (DBG) Log.v(TAG, "No reply, attempt " + attempt + ", ack id 0x" + Integer.toHexString(cmd.ackId));
+            /* A vendor probe is not retried: the receiver does not speak the protocol */
+            if (cmd.isProbe) break;
+        }
+        return REPLY_NONE;
+    }
+
+    public synchronized void onGpsMessageReceived(ByteBuffer buf, int start, int size, int type) {
+        final int reply;
+
+        if (mPending == null || mReply != REPLY_NONE) return;
+
+        switch (mPending.ackType) {
+            case ACK_UBX:
+                reply = type == MSG_TYPE_UBX ? parseUbxAck(buf, start, size, mPending.ackId) : REPLY_NONE;
+                break;
+            case ACK_SIRF:
+                reply = type == MSG_TYPE_SIRF ? parseSirfAck(buf, start, size, mPending.ackId) : REPLY_NONE;
+                break;
+            case ACK_MTK:
+                reply = type == MSG_TYPE_NMEA ? parseMtkAck(buf, start, size, mPending.ackId) : REPLY_NONE;
+                break;
+            default:
+                reply = REPLY_NONE;
+                break;
+        }
+
+        if (reply != REPLY_NONE) {
+            mReply = reply;
+            notifyAll();
+        }
+    }
+
+    /**
+     * UBX-ACK-ACK, UBX-ACK-NAK: B5 62 05 01|00 02 00 clsID msgID CK_A CK_B
+     */
+    static int parseUbxAck(ByteBuffer buf, int start, int size, int ackId) {
+        if (size < 10) return REPLY_NONE;
+        if ((buf.get(start + 2) & 0xff) != ReceiverCommands.UBX_CLASS_ACK) return REPLY_NONE;
+        if ((((buf.get(start + 6) & 0xff) << 8) | (buf.get(start + 7) & 0xff)) != ackId) return REPLY_NONE;
+        switch (buf.get(start + 3) & 0xff) {
+            case ReceiverCommands.UBX_ID_ACK_ACK:
+                return REPLY_ACK;
+            case ReceiverCommands.UBX_ID_ACK_NAK:
+                return REPLY_NAK;
+            default:
+                return REPLY_NONE;
+        }
+    }
+
+    /**
+     * SiRF MID 11, MID 12: A0 A2 00 02 0B|0C MID CK CK B0 B3
+     */
+    static int parseSirfAck(ByteBuffer buf, int start, int size, int ackId) {
+        if (size < 10) return REPLY_NONE;
+        if ((buf.get(start + 5) & 0xff) != ackId) return REPLY_NONE;
+        switch (buf.get(start + 4) & 0xff) {
+            case ReceiverCommands.SIRF_MID_ACK:
+                return REPLY_ACK;
+            case ReceiverCommands.SIRF_MID_NAK:
+                return REPLY_NAK;
+            default:
+                return REPLY_NONE;
+        }
+    }
+
+    /**
+     * $PMTK001,Cmd,Flag*CS: flag 3 - succeeded, 0..2 - invalid, unsupported, failed
+     */
+    static int parseMtkAck(ByteBuffer buf, int start, int size, int ackId) {
+        final String prefix = String.format(Locale.US, "$PMTK%03d,%d,",
+                ReceiverCommands.MTK_PKT_ACK, ackId);
+        final int flagPos = start + prefix.length();
+
+        if (size <= prefix.length()) return REPLY_NONE;
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (buf.get(start + i) != prefix.charAt(i)) return REPLY_NONE;
+        }
+        return buf.get(flagPos) - '0' == ReceiverCommands.MTK_ACK_SUCCEEDED ? REPLY_ACK : REPLY_NAK;
+    }
+}
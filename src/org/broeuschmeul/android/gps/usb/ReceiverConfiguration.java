@@ -0,0 +1,147 @@
+package org.broeuschmeul.android.gps.usb;
+
+/**
+ * Receiver output settings: NMEA sentences, navigation rate, SBAS, static
+ * navigation, NMEA or binary protocol
+ */
+public class ReceiverConfiguration {
+
+    /* NMEA sentences, index of the sentence bit */
+    public static final int NMEA_GGA = 0;
+    public static final int NMEA_GLL = 1;
+    public static final int NMEA_GSA = 2;
+    public static final int NMEA_GSV = 3;
+    public static final int NMEA_RMC = 4;
+    public static final int NMEA_VTG = 5;
+    public static final int NMEA_GST = 6;
+    public static final int NMEA_ZDA = 7;
+    public static final int NMEA_SENTENCE_CNT = 8;
+
+    /* GGA, RMC: position, altitude, speed, bearing, date. GST: accuracy */
+    public static final int DEFAULT_SENTENCES = (1 << NMEA_GGA) | (1 << NMEA_RMC) | (1 << NMEA_GST);
+
+    /* Navigation rate: not sent, the receiver keeps its own */
+    public static final int NAVIGATION_RATE_UNCHANGED = 0;
+
+    private boolean mEnabled;
+
+    private int mSentences;
+
+    private int mNavigationRateMs;
+
+    private boolean mSbasEnabled;
+
+    private boolean mStaticNavigationEnabled;
+
+    private boolean mNmeaEnabled;
+
+    public ReceiverConfiguration() {
+        mEnabled = false;
+        mSentences = DEFAULT_SENTENCES;
+        mNavigationRateMs = NAVIGATION_RATE_UNCHANGED;
+        mSbasEnabled = true;
+        mStaticNavigationEnabled = false;
+        mNmeaEnabled = true;
+    }
+
+    public ReceiverConfiguration(final ReceiverConfiguration src) {
+        this();
+        set(src);
+    }
+
+    public ReceiverConfiguration set(final ReceiverConfiguration src) {
+        mEnabled = src.mEnabled;
+        mSentences = src.mSentences;
+        mNavigationRateMs = src.mNavigationRateMs;
+        mSbasEnabled = src.mSbasEnabled;
+        mStaticNavigationEnabled = src.mStaticNavigationEnabled;
+        mNmeaEnabled = src.mNmeaEnabled;
+        return this;
+    }
+
+    /**
+     * @return true if the receiver should be configured on connection
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public ReceiverConfiguration setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * @param sentence {@link #NMEA_GGA} etc.
+     */
+    public boolean isSentenceEnabled(int sentence) {
+        return (mSentences & (1 << sentence)) != 0;
+    }
+
+    public ReceiverConfiguration setSentenceEnabled(int sentence, boolean enabled) {
+        if (sentence < 0 || sentence >= NMEA_SENTENCE_CNT) throw new IllegalArgumentException();
+        if (enabled) {
+            mSentences |= 1 << sentence;
+        }else {
+            mSentences &= ~(1 << sentence);
+        }
+        return this;
+    }
+
+    /**
+     * @return interval between the navigation solutions, ms, or
+     * {@link #NAVIGATION_RATE_UNCHANGED}
+     */
+    public int getNavigationRateMs() {
+        return mNavigationRateMs;
+    }
+
+    public boolean isNavigationRateSet() {
+        return mNavigationRateMs != NAVIGATION_RATE_UNCHANGED;
+    }
+
+    public ReceiverConfiguration setNavigationRateMs(int rateMs) {
+        if (rateMs < 0) throw new IllegalArgumentException();
+        mNavigationRateMs = rateMs;
+        return this;
+    }
+
+    public boolean isSbasEnabled() {
+        return mSbasEnabled;
+    }
+
+    public ReceiverConfiguration setSbasEnabled(boolean enabled) {
+        mSbasEnabled = enabled;
+        return this;
+    }
+
+    public boolean isStaticNavigationEnabled() {
+        return mStaticNavigationEnabled;
+    }
+
+    public ReceiverConfiguration setStaticNavigationEnabled(boolean enabled) {
+        mStaticNavigationEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * @return false if a SiRF receiver should be switched to the binary protocol
+     */
+    public boolean isNmeaEnabled() {
+        return mNmeaEnabled;
+    }
+
+    public ReceiverConfiguration setNmeaEnabled(boolean enabled) {
+        mNmeaEnabled = enabled;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "sentences: 0x" + Integer.toHexString(mSentences)
+                + " rate: " + (isNavigationRateSet() ? mNavigationRateMs + " ms" : "unchanged")
+                + " sbas: " + mSbasEnabled
+                + " static: " + mStaticNavigationEnabled
+                + " nmea: " + mNmeaEnabled;
+    }
+}
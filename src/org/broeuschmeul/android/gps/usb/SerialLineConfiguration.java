@@ -191,6 +191,16 @@ public class SerialLineConfiguration {
         return mStopBits;
     }
 
+    /**
+     * @return the number of bits on the line per character, including start,
+     * parity and stop bits. 1.5 stop bits are rounded up.
+     */
+    public int getBitsPerCharacter() {
+        final int stopBits;
+        stopBits = mStopBits == StopBits.STOP_BITS_1 ? 1 : 2;
+        return 1 + mDataBits + (mParity == Parity.NONE ? 0 : 1) + stopBits;
+    }
+
     /**
      * Sets the data transfer rate
      * @param baudrate Data transfer rate: 300 - 230400
@@ -198,7 +208,7 @@ public class SerialLineConfiguration {
      * @throws IllegalArgumentException
      */
     public SerialLineConfiguration setBaudrate(int baudrate) throws IllegalArgumentException {
-        if (mBaudrate < 300 || mBaudrate > 3000000) {
+        if (baudrate < 300 || baudrate > 3000000) {
             throw new IllegalArgumentException();
         }
 
@@ -287,7 +297,7 @@ public class SerialLineConfiguration {
                 setBaudrate(Integer.valueOf(baudrate));
             }
             setDataBits(Integer.valueOf(m.group(2)));
-            setParity(Parity.valueOfChar(m.group(3).charAt(3)));
+            setParity(Parity.valueOfChar(m.group(3).charAt(0)));
             setStopBits(StopBits.valueOfString(m.group(4)));
         }else {
             setBaudrate(Integer.valueOf(coding.toString()));
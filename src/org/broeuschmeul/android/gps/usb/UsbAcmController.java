@@ -44,7 +44,6 @@ public class UsbAcmController extends UsbSerialController {
 
     private UsbSerialInputStream inputStream = null;
     private UsbSerialOutputStream outputStream = null;
-    private UsbSerialInterruptListener interruptListener = null;
 
     private final SerialLineConfiguration mSerialLineConfiguration;
 
@@ -249,26 +248,41 @@ public class UsbAcmController extends UsbSerialController {
             throw new UsbControllerException("claimInterface(mDataInterface) failed");
         }
 
-        boolean confValid;
-        final SerialLineConfiguration conf = new SerialLineConfiguration(mSerialLineConfiguration);
-        confValid = acmGetLineCoding(conf);
-        if (confValid) {
-            Log.i(TAG, "Serial line configuration: " + conf.toString());
-        }
+        mSerialNumber = mUsbConnection.getSerial();
+        Log.v(TAG, "(ACM) USB serial: " + mSerialNumber);
 
-        if (!mSerialLineConfiguration.isAutoBaudrateDetectionEnabled()) {
-            if (!acmSetLineCoding()) {
-                Log.d(TAG, "setLineCoding() failed");
+        mAttachProfile = findQuickAttachProfile();
+        if (mAttachProfile != null) {
+            /* Known device: line coding only */
+            if (mSerialLineConfiguration.isAutoBaudrateDetectionEnabled()) {
+                mSerialLineConfiguration.set(mAttachProfile.getLineConfiguration());
+            }
+            if (acmSetLineCoding()) {
+                Log.i(TAG, "Quick attach with profile " + mAttachProfile);
+            }else {
+                Log.d(TAG, "Quick attach: setLineCoding() failed");
+                mAttachProfile = null;
             }
         }
 
+        if (mAttachProfile == null) {
+            boolean confValid;
+            final SerialLineConfiguration conf = new SerialLineConfiguration(mSerialLineConfiguration);
+            confValid = acmGetLineCoding(conf);
+            if (confValid) {
+                Log.i(TAG, "Serial line configuration: " + conf.toString());
+            }
+
+            if (!mSerialLineConfiguration.isAutoBaudrateDetectionEnabled()) {
+                if (!acmSetLineCoding()) {
+                    Log.d(TAG, "setLineCoding() failed");
+                }
+            }
+        }
 
         inputStream = new UsbSerialInputStream(mUsbConnection, mAcmConfig.mBulkInEndpoint);
         outputStream = new UsbSerialOutputStream(mUsbConnection, mAcmConfig.mBulkOutEndpoint);
-
-        Log.v(TAG, "(ACM) USB serial: " + mUsbConnection.getSerial());
-        //interruptListener = new Pl2303InterruptListener(mUsbConnection, mInterruptEndpoint);
-        //interruptListener.start();
+        inputStream.setStatusEndpoint(mAcmConfig.mInterruptEndpoint, STATUS_FORMAT_CDC);
     }
 
     @Override
@@ -276,9 +290,8 @@ public class UsbAcmController extends UsbSerialController {
 
         if (!isAttached()) return;
 
-        if (interruptListener != null) {
-            interruptListener.cancel();
-        }
+        inputStream.stopAsyncRead();
+        outputStream.close();
 
         mUsbConnection.releaseInterface(mAcmConfig.mCommunicationInterface);
         mUsbConnection.releaseInterface(mAcmConfig.mDataInterface);
@@ -300,6 +313,11 @@ public class UsbAcmController extends UsbSerialController {
         return outputStream;
     }
 
+    @Override
+    public String getDeviceVariant() {
+        return "acm";
+    }
+
     @Override
     public SerialLineConfiguration getSerialLineConfiguration() {
         return new SerialLineConfiguration(mSerialLineConfiguration);
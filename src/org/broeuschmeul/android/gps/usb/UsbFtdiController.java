@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2013 Alexey Illarionov
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb;
+
+import android.annotation.TargetApi;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
+
+/**
+ * FTDI FT232R/FT232BM, FT2232, FT4232H, FT232H and FT-X bridges.
+ * <p>
+ * Every bulk-in packet starts with 2 modem/line status bytes. The chip sends
+ * a packet when its buffer is full, when the event character is received,
+ * or when the latency timer expires (16 ms by default). The status bytes are
+ * stripped by the input stream and by the native reader.
+ */
+@TargetApi(12)
+public class UsbFtdiController extends UsbSerialController {
+
+    // Debugging
+    private static final String TAG = UsbFtdiController.class.getSimpleName();
+    private static final boolean D = BuildConfig.DEBUG & true;
+
+    private static final int FTDI_INIT_TIMEOUT_MS = 2000;
+
+    /* Modem and line status bytes at the start of every bulk-in packet */
+    public static final int STATUS_HEADER_SIZE = 2;
+
+    public static final int DEFAULT_LATENCY_TIMER_MS = 16;
+    public static final int MIN_LATENCY_TIMER_MS = 1;
+    public static final int MAX_LATENCY_TIMER_MS = 255;
+
+    public static final int EVENT_CHAR_DISABLED = -1;
+
+    /* Vendor requests */
+    private static final int FTDI_SIO_RESET = 0x00;
+    private static final int FTDI_SIO_SET_MODEM_CTRL = 0x01;
+    private static final int FTDI_SIO_SET_FLOW_CTRL = 0x02;
+    private static final int FTDI_SIO_SET_BAUDRATE = 0x03;
+    private static final int FTDI_SIO_SET_DATA = 0x04;
+    private static final int FTDI_SIO_SET_EVENT_CHAR = 0x06;
+    private static final int FTDI_SIO_SET_LATENCY_TIMER = 0x09;
+
+    private static final int FTDI_SIO_RESET_SIO = 0;
+
+    /* DTR and RTS high */
+    private static final int FTDI_SIO_SET_DTR_RTS_HIGH = 0x0303;
+
+    private static final int FTDI_SIO_DISABLE_FLOW_CTRL = 0x0000;
+
+    /* 48 MHz clock / 16 */
+    private static final int FTDI_BAUD_BASE = 3000000;
+
+    /* Fractional part of the divisor in 1/8, encoded */
+    private static final int FTDI_DIVISOR_FRAC_CODE[] = {0, 3, 2, 4, 1, 5, 6, 7};
+
+    private UsbDeviceConnection mUsbConnection;
+    private final UsbInterface mUsbInterface;
+    private UsbEndpoint mBulkInEndpoint = null;
+    private UsbEndpoint mBulkOutEndpoint = null;
+    private final SerialLineConfiguration mSerialLineConfiguration;
+    private final String mVariant;
+
+    /* wIndex of the requests: 0 on single port chips, 1 (port A) on FT2232 and FT4232H */
+    private final int mPortIndex;
+
+    private int mLatencyTimerMs = DEFAULT_LATENCY_TIMER_MS;
+    private int mEventChar = EVENT_CHAR_DISABLED;
+
+    private UsbSerialInputStream inputStream = null;
+    private UsbSerialOutputStream outputStream = null;
+
+    public UsbFtdiController(UsbManager usbManager, UsbDevice usbDevice)
+            throws UsbControllerException {
+        super(usbManager, usbDevice);
+
+        final int endpointCount;
+
+        mVariant = probeVariant(usbDevice);
+        if (mVariant == null) {
+            throw new UsbControllerException("probe() failed");
+        }
+
+        if (usbDevice.getInterfaceCount() < 1) {
+            throw new UsbControllerException("getInterfaceCount() < 1");
+        }
+        mPortIndex = usbDevice.getInterfaceCount() > 1 ? 1 : 0;
+
+        mUsbInterface = usbDevice.getInterface(0);
+        endpointCount = mUsbInterface.getEndpointCount();
+        for (int i=0; i < endpointCount; i++) {
+            final UsbEndpoint e = mUsbInterface.getEndpoint(i);
+            if (e.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) continue;
+            if (e.getDirection() == UsbConstants.USB_DIR_IN) {
+                mBulkInEndpoint = e;
+            }else {
+                mBulkOutEndpoint = e;
+            }
+        }
+
+        if (mBulkInEndpoint == null) {
+            throw new UsbControllerException("Bulk data input endpoint not found");
+        }else if (mBulkOutEndpoint == null) {
+            throw new UsbControllerException("Bulk data output endpoint not found");
+        }else if (mBulkInEndpoint.getMaxPacketSize() <= STATUS_HEADER_SIZE) {
+            throw new UsbControllerException("Invalid bulk input max packet size");
+        }
+
+        mSerialLineConfiguration = new SerialLineConfiguration();
+    }
+
+    public static boolean probe(UsbDevice d) {
+        return probeVariant(d) != null;
+    }
+
+    /**
+     * @return chip variant, null if the device is not supported
+     */
+    private static String probeVariant(UsbDevice d) {
+        final int vid, pid;
+        String variant = null;
+
+        vid = d.getVendorId();
+        pid = d.getProductId();
+
+        /* Keep in sync device_filter.xml */
+        if (vid == 0x0403) {
+            switch (pid) {
+                case 0x6001: /* FT232R, FT232BM */
+                    variant = "ft232r";
+                    break;
+                case 0x6010:
+                    variant = "ft2232";
+                    break;
+                case 0x6011:
+                    variant = "ft4232h";
+                    break;
+                case 0x6014:
+                    variant = "ft232h";
+                    break;
+                case 0x6015: /* FT230X, FT231X, FT234XD */
+                    variant = "ftx";
+                    break;
+            }
+        }
+
+        if (D) Log.v(TAG, "Probe for " + vid + ":" + pid + " " + (variant != null ? "passed"  : "failed"));
+
+        return variant;
+    }
+
+    public synchronized boolean isAttached() {
+        return inputStream != null;
+    }
+
+    @Override
+    public synchronized void attach() throws UsbControllerException {
+
+        if (isAttached()) return;
+
+        if (!mUsbManager.hasPermission(mUsbDevice)) {
+            throw new UsbControllerException("no permission");
+        }
+
+        mUsbConnection = mUsbManager.openDevice(mUsbDevice);
+        if (mUsbConnection == null) {
+            throw new UsbControllerException("openDevice() failed");
+        }
+
+        if (mUsbConnection.claimInterface(mUsbInterface, true) == false) {
+            mUsbConnection.close();
+            mUsbConnection = null;
+            throw new UsbControllerException("claimInterface() failed");
+        }
+
+        mSerialNumber = mUsbConnection.getSerial();
+        Log.v(TAG, "(FTDI) USB serial: " + mSerialNumber);
+
+        mAttachProfile = findQuickAttachProfile();
+        if (mAttachProfile != null) {
+            /* Known device: no reset, latency timer, event character and line coding only */
+            if (mSerialLineConfiguration.isAutoBaudrateDetectionEnabled()) {
+                mSerialLineConfiguration.set(mAttachProfile.getLineConfiguration());
+            }
+            if (ftdiSetLatencyTimer() && ftdiSetEventChar() && ftdiSetLineCoding()) {
+                Log.i(TAG, "Quick attach with profile " + mAttachProfile);
+            }else {
+                Log.d(TAG, "Quick attach: vendor request failed");
+                mAttachProfile = null;
+            }
+        }
+
+        if (mAttachProfile == null) {
+            if (!ftdiInit()) {
+                mUsbConnection.releaseInterface(mUsbInterface);
+                mUsbConnection.close();
+                mUsbConnection = null;
+                throw new UsbControllerException("ftdiInit() failed");
+            }
+            if (!mSerialLineConfiguration.isAutoBaudrateDetectionEnabled()) {
+                if (!ftdiSetLineCoding()) {
+                    Log.d(TAG, "ftdiSetLineCoding() failed");
+                }
+            }
+        }
+
+        inputStream = new UsbSerialInputStream(mUsbConnection, mBulkInEndpoint,
+                UsbSerialInputStream.DEFAULT_READ_TIMEOUT_MS, STATUS_HEADER_SIZE);
+        outputStream = new UsbSerialOutputStream(mUsbConnection, mBulkOutEndpoint);
+    }
+
+    @Override
+    public synchronized void detach() {
+
+        if (!isAttached()) return;
+
+        inputStream.stopAsyncRead();
+        outputStream.close();
+        inputStream = null;
+        outputStream = null;
+
+        mUsbConnection.releaseInterface(mUsbInterface);
+        mUsbConnection.close();
+        mUsbConnection = null;
+    }
+
+    @Override
+    public synchronized UsbSerialInputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public synchronized UsbSerialOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public String getDeviceVariant() {
+        return mVariant;
+    }
+
+    @Override
+    public synchronized SerialLineConfiguration getSerialLineConfiguration() {
+        return new SerialLineConfiguration(mSerialLineConfiguration);
+    }
+
+    @Override
+    public synchronized void setSerialLineConfiguration(final SerialLineConfiguration config) {
+        if (mSerialLineConfiguration.equals(config)) return;
+        mSerialLineConfiguration.set(config);
+        if (isAttached()) {
+            ftdiSetLineCoding();
+        }
+    }
+
+    /**
+     * Set the latency timer: time after which the chip sends a partially
+     * filled packet. Lower values reduce the fix latency at the cost of more
+     * USB transfers.
+     * @param ms 1 - 255 ms
+     */
+    public synchronized void setLatencyTimer(int ms) {
+        if (ms < MIN_LATENCY_TIMER_MS || ms > MAX_LATENCY_TIMER_MS) {
+            throw new IllegalArgumentException();
+        }
+        if (mLatencyTimerMs == ms) return;
+        mLatencyTimerMs = ms;
+        if (isAttached()) ftdiSetLatencyTimer();
+    }
+
+    public synchronized int getLatencyTimer() {
+        return mLatencyTimerMs;
+    }
+
+    /**
+     * Set the event character: the chip sends the packet as soon as the
+     * character is received. '\n' flushes every NMEA sentence without
+     * waiting for the latency timer.
+     * @param c character 0 - 255, or {@link #EVENT_CHAR_DISABLED}
+     */
+    public synchronized void setEventChar(int c) {
+        if ((c != EVENT_CHAR_DISABLED) && (c < 0 || c > 0xff)) {
+            throw new IllegalArgumentException();
+        }
+        if (mEventChar == c) return;
+        mEventChar = c;
+        if (isAttached()) ftdiSetEventChar();
+    }
+
+    public synchronized int getEventChar() {
+        return mEventChar;
+    }
+
+    /**
+     * @return SIO_SET_BAUDRATE divisor: 14-bit integer part and 3-bit
+     * fractional part in 1/8, wValue in the low 16 bits
+     */
+    static int encodeBaudrateDivisor(int baudrate) {
+        final int divisor8;
+        int divisor;
+
+        if (baudrate <= 0) throw new IllegalArgumentException();
+
+        /* FTDI_BAUD_BASE / baudrate in 1/8, rounded */
+        divisor8 = (int)((16L * FTDI_BAUD_BASE + baudrate) / (2L * baudrate));
+        divisor = (divisor8 >> 3) | (FTDI_DIVISOR_FRAC_CODE[divisor8 & 0x07] << 14);
+
+        /* 3 Mbaud and 2 Mbaud */
+        if (divisor == 1) {
+            divisor = 0;
+        }else if (divisor == 0x4001) {
+            divisor = 1;
+        }
+        return divisor;
+    }
+
+    private boolean ftdiInit() {
+        final int write = UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR;
+        final int tmout = FTDI_INIT_TIMEOUT_MS;
+
+        if ((mUsbConnection.controlTransfer(write, FTDI_SIO_RESET,
+                FTDI_SIO_RESET_SIO, mPortIndex, null, 0, tmout) < 0)
+            || (mUsbConnection.controlTransfer(write, FTDI_SIO_SET_FLOW_CTRL,
+                0, FTDI_SIO_DISABLE_FLOW_CTRL | mPortIndex, null, 0, tmout) < 0)
+            || (mUsbConnection.controlTransfer(write, FTDI_SIO_SET_MODEM_CTRL,
+                FTDI_SIO_SET_DTR_RTS_HIGH, mPortIndex, null, 0, tmout) < 0)
+            ) return false;
+
+        return ftdiSetLatencyTimer() && ftdiSetEventChar();
+    }
+
+    private boolean ftdiSetLatencyTimer() {
+        if (D) Log.v(TAG, "SetLatencyTimer " + mLatencyTimerMs + " ms");
+        return mUsbConnection.controlTransfer(
+                UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR,
+                FTDI_SIO_SET_LATENCY_TIMER,
+                mLatencyTimerMs,
+                mPortIndex,
+                null, 0, FTDI_INIT_TIMEOUT_MS) >= 0;
+    }
+
+    private boolean ftdiSetEventChar() {
+        final int value;
+
+        value = mEventChar == EVENT_CHAR_DISABLED ? 0 : (0x100 | mEventChar);
+        if (D) Log.v(TAG, "SetEventChar 0x" + Integer.toHexString(value));
+        return mUsbConnection.controlTransfer(
+                UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR,
+                FTDI_SIO_SET_EVENT_CHAR,
+                value,
+                mPortIndex,
+                null, 0, FTDI_INIT_TIMEOUT_MS) >= 0;
+    }
+
+    private boolean ftdiSetLineCoding() {
+        final int write = UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR;
+        final int divisor, divisorIndex, data;
+
+        Log.d(TAG, "SetLineCoding " + mSerialLineConfiguration.toString());
+
+        divisor = encodeBaudrateDivisor(mSerialLineConfiguration.getBaudrate());
+        divisorIndex = mPortIndex == 0
+                ? (divisor >> 16)
+                : ((divisor >> 8) & 0xff00) | mPortIndex;
+
+        /* FTDI and PSTN parity and stop bits codes are the same */
+        data = mSerialLineConfiguration.getDataBits()
+                | (mSerialLineConfiguration.getParity().getPstnCode() << 8)
+                | (mSerialLineConfiguration.getStopBits().getPstnCode() << 11);
+
+        if ((mUsbConnection.controlTransfer(write, FTDI_SIO_SET_BAUDRATE,
+                divisor & 0xffff, divisorIndex, null, 0, 1000) < 0)
+            || (mUsbConnection.controlTransfer(write, FTDI_SIO_SET_DATA,
+                data, mPortIndex, null, 0, 1000) < 0)
+            ) return false;
+
+        return true;
+    }
+
+}
@@ -48,7 +48,6 @@ public class UsbPl2303Controller extends UsbSerialController {
 
 	private UsbSerialInputStream inputStream = null;
 	private UsbSerialOutputStream outputStream = null;
-	private UsbSerialInterruptListener interruptListener = null;
 
 
 	public UsbPl2303Controller(UsbManager usbManager, UsbDevice usbDevice)
@@ -158,6 +157,38 @@ public class UsbPl2303Controller extends UsbSerialController {
 				throw new UsbControllerException("claimInterface() failed");
 			}
 		}
+
+		mSerialNumber = mUsbConnection.getSerial();
+		Log.v(TAG, "(PL2303) USB serial: " + mSerialNumber);
+
+		mAttachProfile = findQuickAttachProfile();
+		if ((mAttachProfile == null) || !quickAttach(mAttachProfile)) {
+			mAttachProfile = null;
+			fullAttach();
+		}
+
+		inputStream = new UsbSerialInputStream(mUsbConnection, mBulkInEndpoint);
+		outputStream = new UsbSerialOutputStream(mUsbConnection, mBulkOutEndpoint);
+		inputStream.setStatusEndpoint(mInterruptEndpoint, STATUS_FORMAT_PL2303);
+	}
+
+	/**
+	 * Known device: the vendor init sequence is skipped, only the line
+	 * coding is set
+	 */
+	private boolean quickAttach(DeviceProfileStore.Profile profile) {
+		if (mSerialLineConfiguration.isAutoBaudrateDetectionEnabled()) {
+			mSerialLineConfiguration.set(profile.getLineConfiguration());
+		}
+		if (!pl2303SetLineCoding()) {
+			Log.d(TAG, "Quick attach: pl2303SetLineCoding() failed");
+			return false;
+		}
+		Log.i(TAG, "Quick attach with profile " + profile);
+		return true;
+	}
+
+	private void fullAttach() throws UsbControllerException {
 		if (!pl2303Reset()) {
 			detach();
 			throw new UsbControllerException("pl2303Reset() failed");
@@ -179,14 +210,11 @@ public class UsbPl2303Controller extends UsbSerialController {
 		        Log.d(TAG, "pl2303SetLineCoding() failed");
 		    }
 		}
+	}
 
-		inputStream = new UsbSerialInputStream(mUsbConnection, mBulkInEndpoint);
-		outputStream = new UsbSerialOutputStream(mUsbConnection, mBulkOutEndpoint);
-
-		Log.v(TAG, "(PL2303) USB serial: " + mUsbConnection.getSerial());
-
-		//interruptListener = new Pl2303InterruptListener(mUsbConnection, mInterruptEndpoint);
-		//interruptListener.start();
+	@Override
+	public String getDeviceVariant() {
+		return isPl2303Hx ? "pl2303hx" : "pl2303";
 	}
 
 	@Override
@@ -194,14 +222,11 @@ public class UsbPl2303Controller extends UsbSerialController {
 
 		if ( ! isAttached() ) return;
 
+		if (inputStream != null) inputStream.stopAsyncRead();
+		if (outputStream != null) outputStream.close();
 		inputStream = null;
 		outputStream = null;
 
-		if (interruptListener != null) {
-			interruptListener.cancel();
-			interruptListener = null;
-		}
-
 		if (mUsbConnection != null) {
 			if (mUsbInterfaces != null) {
 				for (int i=0; i< mUsbInterfaces.length; ++i) {
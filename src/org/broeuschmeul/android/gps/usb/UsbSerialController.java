@@ -25,6 +25,7 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbManager;
 import android.hardware.usb.UsbRequest;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
@@ -35,7 +36,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 
 public abstract class UsbSerialController {
 
@@ -46,6 +51,22 @@ public abstract class UsbSerialController {
     protected UsbManager mUsbManager;
 	protected UsbDevice mUsbDevice;
 
+	protected DeviceProfileStore mProfileStore;
+	protected boolean mQuickAttachEnabled = true;
+
+	/* Serial number, read on attach() */
+	protected String mSerialNumber;
+
+	/* Profile used by the last attach(). null if attached with full initialization */
+	protected DeviceProfileStore.Profile mAttachProfile;
+
+	/* Serial state notifications of the interrupt endpoint */
+	public static final int STATUS_FORMAT_NONE = 0;
+	/* CDC PSTN SERIAL_STATE */
+	public static final int STATUS_FORMAT_CDC = 1;
+	/* PL2303: UART state at offset 8, no header check */
+	public static final int STATUS_FORMAT_PL2303 = 2;
+
 	public UsbSerialController(UsbManager usbManager,
 			UsbDevice usbDevice) throws UsbControllerException {
 		this.mUsbDevice = usbDevice;
@@ -86,53 +107,55 @@ public abstract class UsbSerialController {
 	    return mUsbDevice;
 	}
 
-	protected static class UsbSerialInterruptListener extends Thread {
+	/**
+	 * @return controller chip variant, stored in the device profile
+	 */
+	public abstract String getDeviceVariant();
 
-		private boolean cancelRequested = false;
-		private UsbDeviceConnection mUsbConnection;
-		private ByteBuffer buffer;
-		private UsbRequest request;
+	/**
+	 * Set store of the device profiles used for quick attach
+	 */
+	public synchronized void setDeviceProfileStore(DeviceProfileStore store) {
+		mProfileStore = store;
+	}
 
-		public UsbSerialInterruptListener(UsbDeviceConnection connection, UsbEndpoint endpoint) {
-			this.mUsbConnection = connection;
-			this.setName("PL2303InterruptListener");
-			buffer =  ByteBuffer.allocate(endpoint.getMaxPacketSize());
-			request = new UsbRequest();
-			request.initialize(connection, endpoint);
-		}
+	/**
+	 * Enable or disable the use of the stored profile on next attach()
+	 */
+	public synchronized void setQuickAttachEnabled(boolean enabled) {
+		mQuickAttachEnabled = enabled;
+	}
 
-		@Override
-		public void run() {
-			mainloop: while(!cancelRequested()) {
-				request.queue(buffer, buffer.capacity());
-				if (mUsbConnection.requestWait() == request) {
-					if (D) Log.v(TAG, "Interrupt received: " + buffer.toString() +
-							Arrays.toString(buffer.array()));
-					synchronized(this) {
-						try {
-							this.wait(100);
-						} catch (InterruptedException e) {
-							break mainloop;
-						}
-						if (cancelRequested) break mainloop;
-					}
-				}else {
-					Log.e(TAG, "requestWait failed, exiting");
-					break mainloop;
-				}
-			}
-			Log.d(TAG, "Pl2303InterruptListener thread stopped");
-		}
+	/**
+	 * @return profile used by the last attach(), null if the device was
+	 * attached with the full initialization sequence
+	 */
+	public synchronized DeviceProfileStore.Profile getAttachProfile() {
+		return mAttachProfile;
+	}
 
-		public synchronized void cancel() {
-			cancelRequested = true;
-			this.notify();
-		}
+	/**
+	 * @return device profile key. Contains serial number after attach()
+	 */
+	public synchronized String getDeviceProfileKey() {
+		return DeviceProfileStore.getKey(mUsbDevice, mSerialNumber);
+	}
 
-		private synchronized boolean cancelRequested() {
-			return this.cancelRequested;
-		}
+	/**
+	 * @return stored profile usable for quick attach, or null
+	 */
+	protected DeviceProfileStore.Profile findQuickAttachProfile() {
+		final DeviceProfileStore.Profile profile;
+
+		if (!mQuickAttachEnabled || (mProfileStore == null)) return null;
 
+		profile = mProfileStore.get(getDeviceProfileKey());
+		if (profile == null) return null;
+		if (!getDeviceVariant().equals(profile.getVariant())) {
+			Log.i(TAG, "Device variant changed, ignoring profile " + profile);
+			return null;
+		}
+		return profile;
 	}
 
 	@KeepClassMembers
@@ -142,17 +165,95 @@ public abstract class UsbSerialController {
         public int getMaxPacketSize();
 
         public int getEndpointAddress();
+
+        /**
+         * @return number of status bytes at the start of every max packet
+         * size packet of the bulk-in transfers, 0 if none
+         */
+        public int getPacketHeaderSize();
+
+        /**
+         * @return address of the interrupt endpoint with the serial state
+         * notifications, -1 if none
+         */
+        public int getStatusEndpointAddress();
+
+        public int getStatusEndpointMaxPacketSize();
+
+        /**
+         * @return format of the serial state notifications, {@link #STATUS_FORMAT_CDC} etc.
+         */
+        public int getStatusFormat();
+	}
+
+	/**
+	 * Removes the packet headers of the bulk-in transfer in place
+	 * @return number of data bytes left at offset
+	 */
+	static int stripPacketHeaders(byte[] buf, int offset, int length,
+			int maxPacketSize, int headerSize) {
+		final int end = offset + length;
+		int dst = offset;
+
+		for (int pkt = offset; pkt < end; pkt += maxPacketSize) {
+			final int payload = Math.min(maxPacketSize, end - pkt) - headerSize;
+			if (payload <= 0) continue;
+			System.arraycopy(buf, pkt + headerSize, buf, dst, payload);
+			dst += payload;
+		}
+		return dst - offset;
+	}
+
+	/**
+	 * Removes the packet headers of the bulk-in transfer between position
+	 * and limit in place. The limit is set to the end of the data.
+	 */
+	static void stripPacketHeaders(ByteBuffer buf, int maxPacketSize, int headerSize) {
+		final int start = buf.position();
+		final int end = buf.limit();
+		int dst = start;
+
+		for (int pkt = start; pkt < end; pkt += maxPacketSize) {
+			final int pktEnd = Math.min(pkt + maxPacketSize, end);
+			for (int i = pkt + headerSize; i < pktEnd; ++i) {
+				buf.put(dst++, buf.get(i));
+			}
+		}
+		buf.limit(dst);
 	}
 
 	public class UsbSerialInputStream extends InputStream implements UsbSerialStream {
 
-		private static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+		public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
 		private int mTimeout = DEFAULT_READ_TIMEOUT_MS;
 
+		/* Status bytes at the start of every received packet */
+		private int mPacketHeaderSize;
+
+		/* Serial state notifications, read by the native reader */
+		private UsbEndpoint mStatusEndpoint;
+		private int mStatusFormat = STATUS_FORMAT_NONE;
+
+		/**
+		 * Default number of requests kept queued by the asynchronous reader
+		 */
+		public static final int DEFAULT_ASYNC_REQUEST_COUNT = 4;
+
+		/**
+		 * Default size of the asynchronous reader requests, in max packet sizes
+		 */
+		public static final int DEFAULT_ASYNC_REQUEST_PACKETS = 8;
+
 		private UsbDeviceConnection mUsbConnection;
 		private UsbEndpoint mUsbEndpoint;
 		private byte rcvPkt[] = null;
 
+		/* Bytes of rcvPkt not yet returned by read() */
+		private int mRcvPktPos;
+		private int mRcvPktLen;
+
+		private AsyncReader mAsyncReader;
+
 		protected UsbSerialInputStream() {
 		}
 
@@ -160,9 +261,25 @@ public abstract class UsbSerialController {
 				UsbEndpoint bulkInEndpoint,
 				int writeTmoutMs
 				) {
+			this(connection, bulkInEndpoint, writeTmoutMs, 0);
+		}
+
+		/**
+		 * @param packetHeaderSize status bytes at the start of every
+		 * packet, removed from the received data
+		 */
+		public UsbSerialInputStream(UsbDeviceConnection connection,
+				UsbEndpoint bulkInEndpoint,
+				int readTmoutMs,
+				int packetHeaderSize
+				) {
+			if (packetHeaderSize < 0 || packetHeaderSize >= bulkInEndpoint.getMaxPacketSize()) {
+				throw new IllegalArgumentException();
+			}
 			mUsbConnection = connection;
 			mUsbEndpoint = bulkInEndpoint;
-			mTimeout = writeTmoutMs;
+			mTimeout = readTmoutMs;
+			mPacketHeaderSize = packetHeaderSize;
 			rcvPkt = new byte[mUsbEndpoint.getMaxPacketSize()];
 		}
 
@@ -186,12 +303,77 @@ public abstract class UsbSerialController {
 		    return mUsbEndpoint.getAddress();
 		}
 
+		@Override
+		public int getPacketHeaderSize() {
+		    return mPacketHeaderSize;
+		}
+
+		/**
+		 * Set the interrupt endpoint with the serial state notifications
+		 * @param format {@link #STATUS_FORMAT_CDC} etc.
+		 */
+		public synchronized void setStatusEndpoint(UsbEndpoint interruptEndpoint, int format) {
+		    mStatusEndpoint = interruptEndpoint;
+		    mStatusFormat = interruptEndpoint == null ? STATUS_FORMAT_NONE : format;
+		}
+
+		@Override
+		public synchronized int getStatusEndpointAddress() {
+		    return mStatusEndpoint == null ? -1 : mStatusEndpoint.getAddress();
+		}
+
+		@Override
+		public synchronized int getStatusEndpointMaxPacketSize() {
+		    return mStatusEndpoint == null ? 0 : mStatusEndpoint.getMaxPacketSize();
+		}
+
+		@Override
+		public synchronized int getStatusFormat() {
+		    return mStatusFormat;
+		}
+
+		/**
+		 * Bulk-in transfer with the packet headers removed. Packets
+		 * without data are skipped until the read timeout.
+		 */
+		private int bulkRead(byte[] dst, int length) throws IOException {
+			final long deadline;
+			int rcvd;
+
+			if (mPacketHeaderSize == 0) {
+				rcvd = mUsbConnection.bulkTransfer(mUsbEndpoint, dst, length, mTimeout);
+				if (rcvd < 0) throw new IOException("bulkTransfer() error");
+				return rcvd;
+			}
+
+			deadline = SystemClock.uptimeMillis() + mTimeout;
+			do {
+				rcvd = mUsbConnection.bulkTransfer(mUsbEndpoint, dst, length, mTimeout);
+				if (rcvd < 0) throw new IOException("bulkTransfer() error");
+				rcvd = stripPacketHeaders(dst, 0, rcvd,
+						mUsbEndpoint.getMaxPacketSize(), mPacketHeaderSize);
+			}while (rcvd == 0 && SystemClock.uptimeMillis() < deadline);
+
+			return rcvd;
+		}
+
 		@Override
 		public int read() throws IOException {
 			synchronized(this) {
-				int rcvd = read(rcvPkt, 0, 1);
-				if (rcvd == 0) throw new IOException("timeout");
-				return rcvPkt[0] & 0xff;
+				if (mRcvPktPos == mRcvPktLen) {
+					int rcvd = bulkRead(rcvPkt, rcvPkt.length);
+					if (rcvd == 0) throw new IOException("timeout");
+					mRcvPktPos = 0;
+					mRcvPktLen = rcvd;
+				}
+				return rcvPkt[mRcvPktPos++] & 0xff;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized(this) {
+				return mRcvPktLen - mRcvPktPos;
 			}
 		}
 
@@ -200,19 +382,28 @@ public abstract class UsbSerialController {
 			int rcvd;
 
 			synchronized(this) {
-				if (offset == 0) {
-					rcvd = mUsbConnection.bulkTransfer(mUsbEndpoint, buffer,
-							count, mTimeout);
-					if (rcvd < 0) throw new IOException("bulkTransfer() error");
+				if (mRcvPktPos != mRcvPktLen) {
+					/* Bytes left from read() */
+					rcvd = Math.min(count, mRcvPktLen - mRcvPktPos);
+					System.arraycopy(rcvPkt, mRcvPktPos, buffer, offset, rcvd);
+					mRcvPktPos += rcvd;
+					return rcvd;
+				}
+
+				if (offset == 0 && (mPacketHeaderSize == 0 || count >= rcvPkt.length)) {
+					rcvd = bulkRead(buffer, count);
 					//if (D) Log.d(TAG, "Received " + rcvd + " bytes aligned");
 					return rcvd;
+				}else if (mPacketHeaderSize != 0) {
+					/* The whole packet is read: bytes left are kept for the next read */
+					rcvd = bulkRead(rcvPkt, rcvPkt.length);
+					mRcvPktPos = Math.min(count, rcvd);
+					mRcvPktLen = rcvd;
+					System.arraycopy(rcvPkt, 0, buffer, offset, mRcvPktPos);
+					return mRcvPktPos;
 				}else {
-					rcvd = mUsbConnection.bulkTransfer(mUsbEndpoint,
-							rcvPkt,
-							Math.min(count, rcvPkt.length),
-							mTimeout);
-					if (rcvd < 0) throw new IOException("bulkTransfer() error");
-					else if (rcvd > 0) {
+					rcvd = bulkRead(rcvPkt, Math.min(count, rcvPkt.length));
+					if (rcvd > 0) {
 						System.arraycopy(rcvPkt, 0, buffer, offset, rcvd);
 					}
 					if (D) Log.d(TAG, "Received " + rcvd + " bytes");
@@ -220,6 +411,175 @@ public abstract class UsbSerialController {
 				}
 			}
 		}
+
+		/**
+		 * Starts asynchronous reader with default parameters
+		 * @see #startAsyncRead(AsyncReadCallback, int, int)
+		 */
+		public void startAsyncRead(AsyncReadCallback callback) {
+			startAsyncRead(callback, DEFAULT_ASYNC_REQUEST_COUNT,
+					DEFAULT_ASYNC_REQUEST_PACKETS * mUsbEndpoint.getMaxPacketSize());
+		}
+
+		/**
+		 * Starts a thread that keeps {@code requestCount} {@link UsbRequest}s
+		 * with direct buffers queued against the bulk-in endpoint and passes
+		 * completed buffers to {@code callback}.
+		 * <p>
+		 * The reader thread owns {@link UsbDeviceConnection#requestWait()} of
+		 * the connection: no other requests should be queued on it. Blocking
+		 * reads and the native reader must not be used while the asynchronous
+		 * reader is active.
+		 *
+		 * @param callback called on the reader thread
+		 * @param requestCount number of queued requests
+		 * @param requestSize size of each request. Rounded down to a multiple of max packet size
+		 */
+		public void startAsyncRead(AsyncReadCallback callback, int requestCount, int requestSize) {
+			if (callback == null) throw new NullPointerException();
+			if (requestCount <= 0) throw new IllegalArgumentException();
+			synchronized(this) {
+				if (mAsyncReader != null) throw new IllegalStateException("already started");
+				mAsyncReader = new AsyncReader(callback, requestCount, requestSize);
+				mAsyncReader.start();
+			}
+		}
+
+		/**
+		 * Stops asynchronous reader and waits for the completion of the queued requests
+		 */
+		public void stopAsyncRead() {
+			final AsyncReader reader;
+			synchronized(this) {
+				reader = mAsyncReader;
+				mAsyncReader = null;
+			}
+			if (reader == null) return;
+			reader.cancel();
+			if (reader != Thread.currentThread()) {
+				try {
+					reader.join();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private class AsyncReader extends Thread {
+
+			private final AsyncReadCallback mCallback;
+			private final UsbRequest mRequests[];
+			private final ByteBuffer mBuffers[];
+			private final int mRequestSize;
+			private volatile boolean mCancelRequested;
+
+			public AsyncReader(AsyncReadCallback callback, int requestCount, int requestSize) {
+				final int maxPacketSize = mUsbEndpoint.getMaxPacketSize();
+				setName("UsbAsyncReader");
+				mCallback = callback;
+				mRequestSize = Math.max(maxPacketSize, requestSize - requestSize % maxPacketSize);
+				mRequests = new UsbRequest[requestCount];
+				mBuffers = new ByteBuffer[requestCount];
+				for (int i = 0; i < requestCount; ++i) {
+					mBuffers[i] = ByteBuffer.allocateDirect(mRequestSize);
+					mRequests[i] = new UsbRequest();
+					mRequests[i].setClientData(mBuffers[i]);
+				}
+			}
+
+			@Override
+			public void run() {
+				int queued = 0;
+				IOException error = null;
+
+				try {
+					for (UsbRequest r: mRequests) {
+						if (!r.initialize(mUsbConnection, mUsbEndpoint)) {
+							throw new IOException("UsbRequest.initialize() failed");
+						}
+						if (!r.queue((ByteBuffer)r.getClientData(), mRequestSize)) {
+							throw new IOException("UsbRequest.queue() failed");
+						}
+						queued += 1;
+					}
+
+					while (queued > 0) {
+						final UsbRequest r = mUsbConnection.requestWait();
+						if (r == null) {
+							if (!mCancelRequested) error = new IOException("requestWait() failed");
+							break;
+						}
+						if (!isOwnRequest(r)) {
+							Log.e(TAG, "Unexpected request completed: " + r);
+							continue;
+						}
+						queued -= 1;
+						if (mCancelRequested) continue;
+
+						final ByteBuffer buf = (ByteBuffer)r.getClientData();
+						buf.flip();
+						if (mPacketHeaderSize != 0) {
+							stripPacketHeaders(buf, mUsbEndpoint.getMaxPacketSize(), mPacketHeaderSize);
+						}
+						if (buf.hasRemaining()) mCallback.onDataReceived(buf);
+						buf.clear();
+
+						if (!r.queue(buf, mRequestSize)) {
+							throw new IOException("UsbRequest.queue() failed");
+						}
+						queued += 1;
+					}
+				}catch (IOException ie) {
+					error = ie;
+				}finally {
+					if (queued > 0) {
+						/* Reap cancelled requests before closing them */
+						for (UsbRequest r: mRequests) r.cancel();
+						while (queued > 0) {
+							final UsbRequest r = mUsbConnection.requestWait();
+							if (r == null) break;
+							if (isOwnRequest(r)) queued -= 1;
+						}
+					}
+					for (UsbRequest r: mRequests) r.close();
+				}
+
+				if (error != null) {
+					Log.e(TAG, "Async reader stopped: " + error.getMessage());
+					mCallback.onReadError(error);
+				}
+			}
+
+			public void cancel() {
+				mCancelRequested = true;
+				for (UsbRequest r: mRequests) r.cancel();
+			}
+
+			private boolean isOwnRequest(UsbRequest r) {
+				for (UsbRequest own: mRequests) {
+					if (own == r) return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Consumer of the {@link UsbSerialInputStream} asynchronous reader
+	 */
+	public interface AsyncReadCallback {
+
+		/**
+		 * Called on the reader thread for every completed transfer
+		 * @param buf received data between position and limit. The buffer is
+		 * requeued after return and must not be retained.
+		 */
+		void onDataReceived(ByteBuffer buf);
+
+		/**
+		 * Called on the reader thread when the reader is stopped on error
+		 */
+		void onReadError(IOException e);
 	}
 
 	public class UsbSerialOutputStream extends OutputStream implements UsbSerialStream {
@@ -227,9 +587,22 @@ public abstract class UsbSerialController {
 		private static final int DEFAULT_WRITE_TIMEOUT_MS = 2000;
 		private int mTimeout = DEFAULT_WRITE_TIMEOUT_MS;
 
+		/**
+		 * Maximum number of write requests waiting in the asynchronous writer queue
+		 */
+		public static final int WRITE_QUEUE_SIZE = 64;
+
 		private UsbDeviceConnection mUsbConnection;
 		private UsbEndpoint mUsbEndpoint;
 		private byte sndPkt[] = null;
+		private final byte mSingleByte[] = new byte[1];
+
+		private final BlockingQueue<WriteRequest> mWriteQueue =
+				new ArrayBlockingQueue<WriteRequest>(WRITE_QUEUE_SIZE);
+
+		// Guarded by this
+		private AsyncWriter mAsyncWriter;
+		private boolean mClosed;
 
 		public UsbSerialOutputStream(UsbDeviceConnection connection,
 				UsbEndpoint bulkOutEndpoint,
@@ -261,25 +634,252 @@ public abstract class UsbSerialController {
             return mUsbEndpoint.getAddress();
         }
 
+        @Override
+        public int getPacketHeaderSize() {
+            return 0;
+        }
+
+        @Override
+        public int getStatusEndpointAddress() {
+            return -1;
+        }
+
+        @Override
+        public int getStatusEndpointMaxPacketSize() {
+            return 0;
+        }
+
+        @Override
+        public int getStatusFormat() {
+            return STATUS_FORMAT_NONE;
+        }
+
 		@Override
 		public void write(int arg0) throws IOException {
-			write(new byte[] { (byte) arg0 } );
+			synchronized(this) {
+				mSingleByte[0] = (byte)arg0;
+				write(mSingleByte, 0, 1);
+			}
 		}
 
+		/**
+		 * Writes data and waits for the completion of the transfer.
+		 * Goes through the asynchronous writer queue when the writer is
+		 * running to keep the order of the written data.
+		 */
 		@Override
 		public void write(byte[] buffer, int offset, int count) throws IOException {
+			final WriteRequest req;
+
 			synchronized(this) {
-				while(count>0) {
-					/* XXX: timeout */
-					int length = count > sndPkt.length ? sndPkt.length : count;
-					System.arraycopy(buffer, offset, sndPkt, 0, length);
-					int snd = mUsbConnection.bulkTransfer(mUsbEndpoint, sndPkt, length, mTimeout);
-					if (snd<0) throw new IOException("bulkTransfer() failed");
-					count -= snd;
-					offset += snd;
+				if (mClosed) throw new IOException("closed");
+				if (mAsyncWriter == null) {
+					writeDirect(buffer, offset, count);
+					return;
+				}
+				req = new WriteRequest(buffer, offset, count, null);
+				req.mCompletion = new CountDownLatch(1);
+				try {
+					mWriteQueue.put(req);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted");
 				}
 			}
+
+			try {
+				req.mCompletion.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted");
+			}
+			if (req.mError != null) throw req.mError;
+		}
+
+		/**
+		 * Queues data for the asynchronous writer without waiting for the
+		 * transfer. The data is copied, the buffer can be reused after return.
+		 * Small writes are coalesced into max packet size transfers.
+		 *
+		 * @param callback called on the writer thread on completion. Can be null
+		 * @return false if the write queue is full
+		 * @throws IOException if the stream is closed
+		 */
+		public boolean writeAsync(byte[] buffer, int offset, int count,
+				WriteCallback callback) throws IOException {
+			if ((offset | count) < 0 || count > buffer.length - offset) {
+				throw new IndexOutOfBoundsException();
+			}
+			synchronized(this) {
+				if (mClosed) throw new IOException("closed");
+				if (mAsyncWriter == null) {
+					mAsyncWriter = new AsyncWriter();
+					mAsyncWriter.start();
+				}
+				return mWriteQueue.offer(new WriteRequest(buffer, offset, count, callback));
+			}
+		}
+
+		/**
+		 * Stops the asynchronous writer. Queued requests that have not
+		 * been sent are completed with error.
+		 */
+		@Override
+		public void close() {
+			final AsyncWriter writer;
+			synchronized(this) {
+				if (mClosed) return;
+				mClosed = true;
+				writer = mAsyncWriter;
+				mAsyncWriter = null;
+			}
+			if (writer != null) {
+				writer.interrupt();
+				if (writer != Thread.currentThread()) {
+					try {
+						writer.join();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			for (WriteRequest req = mWriteQueue.poll(); req != null; req = mWriteQueue.poll()) {
+				req.complete(new IOException("closed"));
+			}
 		}
+
+		private void writeDirect(byte[] buffer, int offset, int count) throws IOException {
+			while(count>0) {
+				int length = count > sndPkt.length ? sndPkt.length : count;
+				System.arraycopy(buffer, offset, sndPkt, 0, length);
+				int snd = mUsbConnection.bulkTransfer(mUsbEndpoint, sndPkt, length, mTimeout);
+				if (snd<0) throw new IOException("bulkTransfer() failed");
+				count -= snd;
+				offset += snd;
+			}
+		}
+
+		private class WriteRequest {
+			final byte mData[];
+			final WriteCallback mCallback;
+			int mPos;
+
+			/* Set for synchronous writes */
+			CountDownLatch mCompletion;
+			IOException mError;
+
+			public WriteRequest(byte[] buffer, int offset, int count, WriteCallback callback) {
+				mData = Arrays.copyOfRange(buffer, offset, offset + count);
+				mCallback = callback;
+				mPos = 0;
+			}
+
+			public void complete(IOException error) {
+				mError = error;
+				if (mCallback != null) {
+					if (error == null) {
+						mCallback.onWriteCompleted(mData.length);
+					}else {
+						mCallback.onWriteError(error);
+					}
+				}
+				if (mCompletion != null) mCompletion.countDown();
+			}
+		}
+
+		private class AsyncWriter extends Thread {
+
+			/* Packet being coalesced */
+			private final byte mPkt[];
+			private int mPktLen;
+
+			/* Requests copied into mPkt, completed after the transfer */
+			private final ArrayList<WriteRequest> mCopied = new ArrayList<WriteRequest>();
+
+			/* Partially copied request */
+			private WriteRequest mCurrent;
+
+			public AsyncWriter() {
+				setName("UsbAsyncWriter");
+				mPkt = new byte[mUsbEndpoint.getMaxPacketSize()];
+			}
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WriteRequest req = mWriteQueue.take();
+						do {
+							mCurrent = req;
+							while (req.mPos < req.mData.length) {
+								final int length = Math.min(mPkt.length - mPktLen,
+										req.mData.length - req.mPos);
+								System.arraycopy(req.mData, req.mPos, mPkt, mPktLen, length);
+								mPktLen += length;
+								req.mPos += length;
+								if (mPktLen == mPkt.length) flush();
+								if (mCurrent == null) break;
+							}
+							if (mCurrent != null) {
+								mCopied.add(req);
+								mCurrent = null;
+							}
+							req = mWriteQueue.poll();
+						}while (req != null);
+						if (mPktLen > 0) flush();
+					}
+				}catch (InterruptedException ie) {
+					if (D) Log.v(TAG, "Async writer interrupted");
+				}finally {
+					final IOException closed = new IOException("closed");
+					if (mCurrent != null) mCurrent.complete(closed);
+					for (WriteRequest r: mCopied) r.complete(closed);
+					mCopied.clear();
+				}
+			}
+
+			/**
+			 * Sends coalesced packet. On error, the requests with data in the
+			 * packet are completed with error, the partially copied one included.
+			 */
+			private void flush() {
+				IOException error = null;
+				while (mPktLen > 0) {
+					int snd = mUsbConnection.bulkTransfer(mUsbEndpoint, mPkt, mPktLen, mTimeout);
+					if (snd < 0) {
+						error = new IOException("bulkTransfer() failed");
+						break;
+					}
+					/* bulkTransfer() with offset requires API 18 */
+					System.arraycopy(mPkt, snd, mPkt, 0, mPktLen - snd);
+					mPktLen -= snd;
+				}
+				mPktLen = 0;
+
+				for (WriteRequest r: mCopied) r.complete(error);
+				mCopied.clear();
+				if (error != null && mCurrent != null) {
+					mCurrent.complete(error);
+					mCurrent = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Completion callback of {@link UsbSerialOutputStream#writeAsync}
+	 */
+	public interface WriteCallback {
+
+		/**
+		 * Called on the writer thread when all the data has been transferred
+		 */
+		void onWriteCompleted(int count);
+
+		/**
+		 * Called on the writer thread on transfer error or when the stream is closed
+		 */
+		void onWriteError(IOException e);
 	}
 
 }
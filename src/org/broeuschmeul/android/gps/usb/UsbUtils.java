@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UsbUtils {
 
@@ -41,16 +42,106 @@ public class UsbUtils {
     private static final String TAG = UsbUtils.class.getSimpleName();
     private static final boolean DBG = BuildConfig.DEBUG & true;
 
+    /* Maximum number of cached probe results */
+    private static final int PROBE_CACHE_SIZE = 64;
 
-    public static boolean isInUsbDeviceFilter(UsbDevice d, Resources appResources) {
-        int type;
-        XmlResourceParser parser;
-        boolean match = false;
+    private static final Object sLock = new Object();
 
-        parser = appResources.getXml(R.xml.device_filter);
-        try {
-            for (type=parser.getEventType();
-                    !match && (type != XmlResourceParser.END_DOCUMENT);
+    // Guarded by sLock
+    private static DeviceFilter sDeviceFilter;
+
+    /* Probe results keyed by device identity. Guarded by sLock */
+    private static final HashMap<String, ControllerType> sProbeCache =
+            new HashMap<String, ControllerType>();
+
+    private enum ControllerType {
+        NONE,
+        PL2303,
+        FTDI,
+        ACM
+    }
+
+    /**
+     * res/xml/device_filter.xml compiled into a matcher indexed by vendor ID
+     */
+    public static final class DeviceFilter {
+
+        private static final class Entry {
+            final int vendorId;
+            final int productId;
+            final int deviceClass;
+            final int deviceSubclass;
+            final int deviceProtocol;
+
+            Entry(int vendorId, int productId, int deviceClass,
+                    int deviceSubclass, int deviceProtocol) {
+                this.vendorId = vendorId;
+                this.productId = productId;
+                this.deviceClass = deviceClass;
+                this.deviceSubclass = deviceSubclass;
+                this.deviceProtocol = deviceProtocol;
+            }
+
+            boolean matches(UsbDevice d) {
+                return ((vendorId < 0) || (d.getVendorId() == vendorId))
+                        && ((productId < 0) || (d.getProductId() == productId))
+                        && ((deviceClass < 0) || (d.getDeviceClass() == deviceClass))
+                        && ((deviceSubclass < 0) || (d.getDeviceSubclass() == deviceSubclass))
+                        && ((deviceProtocol < 0) || (d.getDeviceProtocol() == deviceProtocol));
+            }
+        }
+
+        private static final Entry[] EMPTY = new Entry[0];
+
+        /* Entries with vendor-id, keyed by vendor ID */
+        private final HashMap<Integer, Entry[]> mByVendor;
+
+        /* Entries without vendor-id */
+        private final Entry[] mAnyVendor;
+
+        private DeviceFilter(List<Entry> entries) {
+            final HashMap<Integer, ArrayList<Entry>> byVendor = new HashMap<Integer, ArrayList<Entry>>();
+            final ArrayList<Entry> anyVendor = new ArrayList<Entry>();
+
+            for (Entry e: entries) {
+                if (e.vendorId < 0) {
+                    anyVendor.add(e);
+                }else {
+                    ArrayList<Entry> l = byVendor.get(e.vendorId);
+                    if (l == null) {
+                        l = new ArrayList<Entry>(2);
+                        byVendor.put(e.vendorId, l);
+                    }
+                    l.add(e);
+                }
+            }
+
+            mByVendor = new HashMap<Integer, Entry[]>(byVendor.size());
+            for (Map.Entry<Integer, ArrayList<Entry>> e: byVendor.entrySet()) {
+                mByVendor.put(e.getKey(), e.getValue().toArray(EMPTY));
+            }
+            mAnyVendor = anyVendor.toArray(EMPTY);
+        }
+
+        public boolean matches(UsbDevice d) {
+            final Entry[] vendorEntries = mByVendor.get(d.getVendorId());
+            if (vendorEntries != null) {
+                for (Entry e: vendorEntries) {
+                    if (e.matches(d)) return true;
+                }
+            }
+            for (Entry e: mAnyVendor) {
+                if (e.matches(d)) return true;
+            }
+            return false;
+        }
+
+        static DeviceFilter parse(XmlResourceParser parser)
+                throws XmlPullParserException, IOException {
+            final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+            for (int type=parser.getEventType();
+                    type != XmlResourceParser.END_DOCUMENT;
                     type = parser.next()) {
                 int count;
                 int vendorId = -1;
@@ -59,15 +150,20 @@ public class UsbUtils {
                 int deviceSubclass = -1;
                 int deviceProtocol = -1;
 
-
                 if (type != XmlResourceParser.START_TAG) continue;
-                if ("usb-device".equals(parser.getName())) continue;
+                if (!"usb-device".equals(parser.getName())) continue;
 
                 count = parser.getAttributeCount();
                 for(int i=0; i<count; ++i) {
                     String name = parser.getAttributeName(i);
                     // All attribute values are ints
-                    int value = Integer.parseInt(parser.getAttributeValue(i));
+                    int value;
+                    try {
+                        value = Integer.parseInt(parser.getAttributeValue(i));
+                    }catch (NumberFormatException nfe) {
+                        Log.e(TAG, "Invalid device filter attribute " + name);
+                        continue;
+                    }
 
                     if ("vendor-id".equals(name)) {
                         vendorId = value;
@@ -81,25 +177,41 @@ public class UsbUtils {
                         deviceProtocol = value;
                     }
                 }
-                match = ((vendorId < 0)  || (d.getVendorId() == vendorId)
-                        && ((productId < 0) || (d.getProductId() == productId) )
-                        && ((deviceClass < 0) || (d.getDeviceClass() == deviceClass) )
-                        && ((deviceSubclass < 0) || (d.getDeviceSubclass() == deviceSubclass))
-                        && ((deviceProtocol < 0) || (d.getDeviceProtocol() == deviceProtocol))
-                        );
+                entries.add(new Entry(vendorId, productId, deviceClass, deviceSubclass, deviceProtocol));
+            }
+
+            return new DeviceFilter(entries);
+        }
+    }
+
+    /**
+     * @return device filter compiled from res/xml/device_filter.xml. Parsed on first call
+     */
+    public static DeviceFilter getDeviceFilter(Resources appResources) {
+        synchronized (sLock) {
+            if (sDeviceFilter == null) {
+                final XmlResourceParser parser = appResources.getXml(R.xml.device_filter);
+                try {
+                    sDeviceFilter = DeviceFilter.parse(parser);
+                } catch (XmlPullParserException e) {
+                    e.printStackTrace();
+                    sDeviceFilter = new DeviceFilter(new ArrayList<DeviceFilter.Entry>(0));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    sDeviceFilter = new DeviceFilter(new ArrayList<DeviceFilter.Entry>(0));
+                } finally {
+                    parser.close();
+                }
             }
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            return sDeviceFilter;
         }
+    }
 
-        return match;
+    public static boolean isInUsbDeviceFilter(UsbDevice d, Resources appResources) {
+        return getDeviceFilter(appResources).matches(d);
     }
 
-    public static List<UsbDevice> findSupportedDevices(UsbManager usbManager) {
+    public static List<UsbDevice> findSupportedDevices(UsbManager usbManager, Resources appResources) {
         final ArrayList<UsbDevice> supportedList;
         final HashMap<String, UsbDevice> deviceList;
 
@@ -107,19 +219,81 @@ public class UsbUtils {
         supportedList = new ArrayList<UsbDevice>(deviceList.size());
 
         for (UsbDevice d: deviceList.values()) {
-            if (probeDevice(usbManager, d) != null) {
+            if (probeDevice(usbManager, d, appResources) != null) {
                 supportedList.add(d);
             }
         }
         return supportedList;
     }
 
-    public static UsbSerialController probeDevice(UsbManager usbManager, UsbDevice d) {
-        if (DBG) Log.d(TAG, "probeDevice() device=" + d.toString());
-        try {
-            final UsbPl2303Controller c = new UsbPl2303Controller(usbManager, d);
-            return c;
-        }catch(UsbControllerException ignore) { }
+    /**
+     * Creates controller for the device. The result of the probe is cached
+     * until {@link #onDeviceDetached(UsbDevice)}: unsupported devices are
+     * rejected without walking their interfaces again.
+     */
+    public static UsbSerialController probeDevice(UsbManager usbManager, UsbDevice d,
+            Resources appResources) {
+        final String key = getDeviceKey(d);
+        final long startTs = System.nanoTime();
+        ControllerType type;
+        UsbSerialController controller;
+
+        synchronized (sLock) {
+            type = sProbeCache.get(key);
+        }
+
+        if (type == null) {
+            controller = probeControllers(usbManager, d, isInUsbDeviceFilter(d, appResources));
+            if (controller instanceof UsbPl2303Controller) {
+                type = ControllerType.PL2303;
+            }else if (controller instanceof UsbFtdiController) {
+                type = ControllerType.FTDI;
+            }else if (controller instanceof UsbAcmController) {
+                type = ControllerType.ACM;
+            }else {
+                type = ControllerType.NONE;
+            }
+            synchronized (sLock) {
+                if (sProbeCache.size() >= PROBE_CACHE_SIZE) sProbeCache.clear();
+                sProbeCache.put(key, type);
+            }
+            if (DBG) Log.d(TAG, "probeDevice() device=" + d.getDeviceName() + " type: " + type
+                    + " probe time: " + (System.nanoTime() - startTs) / 1000 + " us");
+        }else {
+            controller = createController(usbManager, d, type, appResources);
+            if (DBG) Log.d(TAG, "probeDevice() device=" + d.getDeviceName() + " type: " + type
+                    + " (cached) time: " + (System.nanoTime() - startTs) / 1000 + " us");
+        }
+
+        return controller;
+    }
+
+    /**
+     * Drops cached probe result of the detached device
+     */
+    public static void onDeviceDetached(UsbDevice d) {
+        synchronized (sLock) {
+            sProbeCache.remove(getDeviceKey(d));
+        }
+    }
+
+    /**
+     * @param inDeviceFilter device matches res/xml/device_filter.xml. Other
+     * devices can only be composite devices with an ACM interface.
+     */
+    private static UsbSerialController probeControllers(UsbManager usbManager, UsbDevice d,
+            boolean inDeviceFilter) {
+        if (inDeviceFilter) {
+            try {
+                final UsbPl2303Controller c = new UsbPl2303Controller(usbManager, d);
+                return c;
+            }catch(UsbControllerException ignore) { }
+
+            try {
+                final UsbFtdiController c = new UsbFtdiController(usbManager, d);
+                return c;
+            }catch(UsbControllerException ignore) { }
+        }
 
         try {
             final UsbAcmController c = new UsbAcmController(usbManager, d);
@@ -129,4 +303,34 @@ public class UsbUtils {
        return null;
     }
 
+    private static UsbSerialController createController(UsbManager usbManager,
+            UsbDevice d, ControllerType type, Resources appResources) {
+        try {
+            switch (type) {
+                case PL2303:
+                    return new UsbPl2303Controller(usbManager, d);
+                case FTDI:
+                    return new UsbFtdiController(usbManager, d);
+                case ACM:
+                    return new UsbAcmController(usbManager, d);
+                case NONE:
+                default:
+                    return null;
+            }
+        }catch (UsbControllerException e) {
+            Log.e(TAG, "Cached probe result " + type + " is not valid: " + e.getMessage());
+            onDeviceDetached(d);
+            return probeDevice(usbManager, d, appResources);
+        }
+    }
+
+    /**
+     * Device name (bus/address) is reused after detach: vendor, product and
+     * class are part of the key to not match a different device
+     */
+    private static String getDeviceKey(UsbDevice d) {
+        return d.getDeviceName() + ":" + d.getVendorId() + ":" + d.getProductId()
+                + ":" + d.getDeviceClass() + ":" + d.getInterfaceCount();
+    }
+
 }
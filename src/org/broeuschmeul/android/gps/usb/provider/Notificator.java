@@ -75,6 +75,8 @@ public class Notificator {
             if (UsbGpsConverter.ACTION_USB_ATTACHED.equals(action)) {
                 onUsbAttached();
             }else if (UsbGpsConverter.ACTION_USB_DETACHED.equals(action)) {
+                /* Other receivers are still connected */
+                if (intent.getIntExtra(UsbGpsConverter.EXTRA_CONNECTED_RECEIVERS, 0) > 0) return;
                 onUsbDetached();
             }else if (UsbGpsConverter.ACTION_AUTOCONF_STARTED.equals(action)) {
                 onAutoconfStarted();
@@ -39,9 +39,11 @@ import android.preference.SwitchPreference;
 import android.text.TextUtils;
 import android.widget.BaseAdapter;
 
+import org.broeuschmeul.android.gps.usb.ReceiverConfiguration;
 import org.broeuschmeul.android.gps.usb.SerialLineConfiguration;
 import org.broeuschmeul.android.gps.usb.SerialLineConfiguration.Parity;
 import org.broeuschmeul.android.gps.usb.SerialLineConfiguration.StopBits;
+import org.broeuschmeul.android.gps.usb.UsbFtdiController;
 import org.broeuschmeul.android.gps.usb.provider.DataLoggerConfiguration.Format;
 
 /**
@@ -80,6 +82,7 @@ public class SettingsFragment extends PreferenceFragment {
 
     private EditTextPreference mMockGpsNamePreference, mConnectionRetriesPreference;
     private PreferenceScreen mGpsLocationProviderPreference;
+    private ListPreference mNavigationRatePreference;
 
     private UsbSerialSettings mUsbSerialSettings;
     private DataLoggerSettings mDataLoggerSettings;
@@ -107,6 +110,7 @@ public class SettingsFragment extends PreferenceFragment {
         mMockGpsNamePreference = (EditTextPreference)findPreference(UsbGpsProviderService.PREF_MOCK_GPS_NAME);
         mConnectionRetriesPreference = (EditTextPreference)findPreference(UsbGpsProviderService.PREF_CONNECTION_RETRIES);
         mGpsLocationProviderPreference = (PreferenceScreen)findPreference(UsbGpsProviderService.PREF_GPS_LOCATION_PROVIDER);
+        mNavigationRatePreference = (ListPreference)findPreference(UsbGpsProviderService.PREF_SIRF_NAVIGATION_RATE);
 
         Preference pref = findPreference(UsbGpsProviderService.PREF_ABOUT);
         pref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
@@ -148,6 +152,7 @@ public class SettingsFragment extends PreferenceFragment {
         mMockGpsNamePreference = null;
         mConnectionRetriesPreference = null;
         mGpsLocationProviderPreference = null;
+        mNavigationRatePreference = null;
     }
 
     @Override
@@ -179,6 +184,8 @@ public class SettingsFragment extends PreferenceFragment {
         mConnectionRetriesPreference.setSummary(resources.getQuantityString(
                 R.plurals.pref_connection_retries_summary, connRetries, connRetries));
 
+        mNavigationRatePreference.setSummary(mNavigationRatePreference.getEntry());
+
         if (sharedPref.getBoolean(UsbGpsProviderService.PREF_REPLACE_STD_GPS, true)){
             mGpsLocationProviderPreference.setSummary(R.string.pref_gps_location_provider_summary);
         } else {
@@ -203,7 +210,8 @@ public class SettingsFragment extends PreferenceFragment {
                 } else {
                     mCallbacks.stopGpsProviderService();
                 }
-            } else if (UsbGpsProviderService.PREF_SIRF_ENABLE_GLL.equals(key)
+            } else if (UsbGpsProviderService.PREF_SIRF_GPS.equals(key)
+                    || UsbGpsProviderService.PREF_SIRF_ENABLE_GLL.equals(key)
                     || UsbGpsProviderService.PREF_SIRF_ENABLE_GGA.equals(key)
                     || UsbGpsProviderService.PREF_SIRF_ENABLE_RMC.equals(key)
                     || UsbGpsProviderService.PREF_SIRF_ENABLE_VTG.equals(key)
@@ -216,6 +224,9 @@ public class SettingsFragment extends PreferenceFragment {
             ){
                 final boolean enabled = sharedPreferences.getBoolean(key, false);
                 mCallbacks.setSirfFeature(key, enabled);
+            } else if (UsbGpsProviderService.PREF_SIRF_NAVIGATION_RATE.equals(key)) {
+                /* The service rereads the whole configuration */
+                mCallbacks.setSirfFeature(key, true);
             }
             updateDevicePreferenceList();
         }
@@ -225,8 +236,14 @@ public class SettingsFragment extends PreferenceFragment {
 
         public static final String PREF_USB_SERIAL_AUTO_BAUDRATE_VALUE = "auto";
 
+        public static final String PREF_USB_FTDI_EVENT_CHAR_VALUE_LF = "lf";
+
+        public static final int DEFAULT_FTDI_LATENCY_TIMER_MS = 4;
+
         private final PreferenceScreen mSettingsPref;
         private final ListPreference mBaudratePref, mDataBitsPref, mParityPref, mStopBitsPref;
+        private final ListPreference mReaderModePref, mUpshiftPref;
+        private final ListPreference mFtdiLatencyTimerPref, mFtdiEventCharPref;
 
         public UsbSerialSettings(PreferenceGroup rootScreen) {
             mSettingsPref = (PreferenceScreen)rootScreen.findPreference(UsbGpsProviderService.PREF_USB_SERIAL_SETTINGS);
@@ -235,6 +252,10 @@ public class SettingsFragment extends PreferenceFragment {
             mDataBitsPref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_SERIAL_DATA_BITS);
             mParityPref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_SERIAL_PARITY);
             mStopBitsPref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_SERIAL_STOP_BITS);
+            mReaderModePref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_READER_MODE);
+            mUpshiftPref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_SERIAL_UPSHIFT_BAUDRATE);
+            mFtdiLatencyTimerPref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_FTDI_LATENCY_TIMER);
+            mFtdiEventCharPref = (ListPreference)mSettingsPref.findPreference(UsbGpsProviderService.PREF_USB_FTDI_EVENT_CHAR);
         }
 
 
@@ -243,6 +264,10 @@ public class SettingsFragment extends PreferenceFragment {
                     || UsbGpsProviderService.PREF_USB_SERIAL_DATA_BITS.equals(key)
                     || UsbGpsProviderService.PREF_USB_SERIAL_PARITY.equals(key)
                     || UsbGpsProviderService.PREF_USB_SERIAL_STOP_BITS.equals(key)
+                    || UsbGpsProviderService.PREF_USB_READER_MODE.equals(key)
+                    || UsbGpsProviderService.PREF_USB_SERIAL_UPSHIFT_BAUDRATE.equals(key)
+                    || UsbGpsProviderService.PREF_USB_FTDI_LATENCY_TIMER.equals(key)
+                    || UsbGpsProviderService.PREF_USB_FTDI_EVENT_CHAR.equals(key)
                     );
         }
 
@@ -255,6 +280,10 @@ public class SettingsFragment extends PreferenceFragment {
             mDataBitsPref.setSummary(mDataBitsPref.getEntry());
             mParityPref.setSummary(mParityPref.getEntry());
             mStopBitsPref.setSummary(mStopBitsPref.getEntry());
+            mReaderModePref.setSummary(mReaderModePref.getEntry());
+            mUpshiftPref.setSummary(mUpshiftPref.getEntry());
+            mFtdiLatencyTimerPref.setSummary(mFtdiLatencyTimerPref.getEntry());
+            mFtdiEventCharPref.setSummary(mFtdiEventCharPref.getEntry());
         }
 
         public static SerialLineConfiguration readConf(SharedPreferences prefs) {
@@ -292,6 +321,61 @@ public class SettingsFragment extends PreferenceFragment {
             return serialConf;
         }
 
+        public static UsbGpsConverter.UsbReaderMode readUsbReaderMode(SharedPreferences prefs) {
+            final String mode;
+
+            mode = prefs.getString(UsbGpsProviderService.PREF_USB_READER_MODE, null);
+            if (mode == null) return UsbGpsConverter.UsbReaderMode.SYNC;
+
+            try {
+                return UsbGpsConverter.UsbReaderMode.valueOfPrefsEntry(mode);
+            }catch (IllegalArgumentException iae) {
+                return UsbGpsConverter.UsbReaderMode.SYNC;
+            }
+        }
+
+        /**
+         * @return receiver baudrate to set after the lock, 0 - disabled
+         */
+        public static int readUpshiftBaudrate(SharedPreferences prefs) {
+            final String baudrate;
+
+            baudrate = prefs.getString(UsbGpsProviderService.PREF_USB_SERIAL_UPSHIFT_BAUDRATE, null);
+            if (baudrate == null) return 0;
+
+            try {
+                return Integer.valueOf(baudrate);
+            }catch (NumberFormatException nfe) {
+                return 0;
+            }
+        }
+
+        public static int readFtdiLatencyTimer(SharedPreferences prefs) {
+            final String latency;
+            final int ms;
+
+            latency = prefs.getString(UsbGpsProviderService.PREF_USB_FTDI_LATENCY_TIMER, null);
+            if (latency == null) return DEFAULT_FTDI_LATENCY_TIMER_MS;
+
+            try {
+                ms = Integer.valueOf(latency);
+            }catch (NumberFormatException nfe) {
+                return DEFAULT_FTDI_LATENCY_TIMER_MS;
+            }
+            if (ms < UsbFtdiController.MIN_LATENCY_TIMER_MS
+                    || ms > UsbFtdiController.MAX_LATENCY_TIMER_MS) {
+                return DEFAULT_FTDI_LATENCY_TIMER_MS;
+            }
+            return ms;
+        }
+
+        public static int readFtdiEventChar(SharedPreferences prefs) {
+            final String c;
+
+            c = prefs.getString(UsbGpsProviderService.PREF_USB_FTDI_EVENT_CHAR, null);
+            return PREF_USB_FTDI_EVENT_CHAR_VALUE_LF.equals(c) ? '\n' : UsbFtdiController.EVENT_CHAR_DISABLED;
+        }
+
     }
 
     public static class DataLoggerSettings {
@@ -394,4 +478,51 @@ public class SettingsFragment extends PreferenceFragment {
 
     }
 
+    public static class ReceiverSettings {
+
+        public static ReceiverConfiguration readConf(SharedPreferences prefs) {
+            final ReceiverConfiguration conf = new ReceiverConfiguration();
+
+            conf.setEnabled(prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_GPS, false));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_GGA,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_GGA, true));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_RMC,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_RMC, true));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_GLL,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_GLL, false));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_VTG,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_VTG, false));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_GSA,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_GSA, false));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_GSV,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_GSV, false));
+            conf.setSentenceEnabled(ReceiverConfiguration.NMEA_ZDA,
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_ZDA, false));
+            /* GST: accuracy of the fix, always on where supported */
+            conf.setSbasEnabled(prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_SBAS, true));
+            conf.setNmeaEnabled(prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_NMEA, true));
+            conf.setStaticNavigationEnabled(
+                    prefs.getBoolean(UsbGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION, false));
+            conf.setNavigationRateMs(readNavigationRate(prefs));
+
+            return conf;
+        }
+
+        /**
+         * @return ms, or {@link ReceiverConfiguration#NAVIGATION_RATE_UNCHANGED}
+         */
+        public static int readNavigationRate(SharedPreferences prefs) {
+            final String rate;
+
+            rate = prefs.getString(UsbGpsProviderService.PREF_SIRF_NAVIGATION_RATE, null);
+            if (rate == null) return ReceiverConfiguration.NAVIGATION_RATE_UNCHANGED;
+
+            try {
+                return Math.max(Integer.valueOf(rate), ReceiverConfiguration.NAVIGATION_RATE_UNCHANGED);
+            }catch (NumberFormatException nfe) {
+                return ReceiverConfiguration.NAVIGATION_RATE_UNCHANGED;
+            }
+        }
+    }
+
 }
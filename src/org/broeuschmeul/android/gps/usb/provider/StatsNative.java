@@ -8,6 +8,7 @@ class StatsNative {
 
     private long mReceivedBytes;
     private long mReceivedJunk;
+    private long mFirstReceivedByteTs;
     private long mLastReceivedByteTs;
 
     private long mNmeaLastMsgTs;
@@ -25,10 +26,57 @@ class StatsNative {
 
     private long mSirfLastMsgTs;
     private long mSirfTotal;
+    private long mSirfMid2;
+    private long mSirfMid4;
+    private long mSirfMid7;
     private long mSirfMid41;
+    private long mSirfOther;
+    private long mSirfTrackedSvs;
+    private long mSirfTrackedCn0Avg;
 
     private long mUbloxLastMsgTs;
     private long mUbloxTotal;
+    private long mUbloxNavPvt;
+    private long mUbloxNavPosllh;
+    private long mUbloxNavVelned;
+    private long mUbloxNavTimeutc;
+    private long mUbloxNavSol;
+    private long mUbloxNavStatus;
+    private long mUbloxAck;
+    private long mUbloxOther;
+
+    private long mReaderIoctls;
+    private long mReaderReaps;
+    private long mReaderBytes;
+    private long mReaderStatusPackets;
+    private long mReaderHandoffs;
+    private long mReaderHandoffLatencyUsTotal;
+    private long mReaderHandoffLatencyUsMax;
+
+    private long mSchedWakeups;
+    private long mSchedSleepUs;
+    private long mSchedDelayedReads;
+    private long mSchedAddedLatencyUsTotal;
+    private long mSchedAddedLatencyUsMax;
+    private long mSchedCycleUs;
+    private long mSchedBurstIntervalUs;
+    private long mSchedBurstDurationUs;
+
+    private long mFixes;
+    private long mFixesClosedEarly;
+    private long mFixEpochEndMisses;
+    private long mFixLatencyUsTotal;
+    private long mFixLatencyUsMax;
+
+    private long mLineNotifications;
+    private long mLineOverruns;
+    private long mLineParityErrors;
+    private long mLineFramingErrors;
+    private long mLineBreaks;
+
+    private long mReplugTs;
+    private long mFirstFixTs;
+    private long mReconnectFailures;
 
     public StatsNative() {
     }
@@ -61,18 +109,186 @@ class StatsNative {
         return mNmeaTotal + mSirfTotal + mUbloxTotal;
     }
 
+    public long getReaderIoctls() {
+        return mReaderIoctls;
+    }
+
+    public long getReaderReaps() {
+        return mReaderReaps;
+    }
+
+    /**
+     * @return average number of data bytes per completed USB transfer
+     */
+    public double getReaderBytesPerReap() {
+        return mReaderReaps == 0 ? 0 : (double)mReaderBytes / mReaderReaps;
+    }
+
+    /**
+     * @return number of received packets with the bridge status bytes only
+     * (FTDI latency timer expirations on an idle line)
+     */
+    public long getReaderStatusPackets() {
+        return mReaderStatusPackets;
+    }
+
+    /**
+     * @return average latency between the completion of the USB transfer and the
+     * delivery of the data to the parser, in microseconds
+     */
+    public long getReaderHandoffLatencyUsAvg() {
+        return mReaderHandoffs == 0 ? 0 : mReaderHandoffLatencyUsTotal / mReaderHandoffs;
+    }
+
+    public long getReaderHandoffLatencyUsMax() {
+        return mReaderHandoffLatencyUsMax;
+    }
+
+    /**
+     * @return reader thread wakeups per second since start of the stream
+     */
+    public double getSchedulerWakeupsPerSecond() {
+        final long duration = mLastReceivedByteTs - mStartTs;
+        return duration <= 0 ? 0 : 1000.0 * mSchedWakeups / duration;
+    }
+
+    /**
+     * @return average time the data stayed in the device while the reader thread
+     * slept, in microseconds
+     */
+    public long getSchedulerAddedLatencyUsAvg() {
+        return mSchedDelayedReads == 0 ? 0 : mSchedAddedLatencyUsTotal / mSchedDelayedReads;
+    }
+
+    public long getSchedulerAddedLatencyUsMax() {
+        return mSchedAddedLatencyUsMax;
+    }
+
+    public long getSchedulerCycleUs() {
+        return mSchedCycleUs;
+    }
+
+    public long getSchedulerBurstIntervalUs() {
+        return mSchedBurstIntervalUs;
+    }
+
+    public long getSchedulerBurstDurationUs() {
+        return mSchedBurstDurationUs;
+    }
+
+    public long getFixes() {
+        return mFixes;
+    }
+
+    /**
+     * @return number of NMEA fixes published on the learned last sentence of
+     * the epoch, without waiting for the next epoch
+     */
+    public long getFixesClosedEarly() {
+        return mFixesClosedEarly;
+    }
+
+    /**
+     * @return number of sentences received after the learned end of the
+     * epoch. Each one drops the learned end
+     */
+    public long getFixEpochEndMisses() {
+        return mFixEpochEndMisses;
+    }
+
+    /**
+     * @return average time from the first sentence of the fix to the
+     * publication of the location, in microseconds
+     */
+    public long getFixLatencyUsAvg() {
+        return mFixes == 0 ? 0 : mFixLatencyUsTotal / mFixes;
+    }
+
+    public long getFixLatencyUsMax() {
+        return mFixLatencyUsMax;
+    }
+
+    /**
+     * @return number of serial state notifications received from the
+     * interrupt endpoint (CDC ACM, PL2303)
+     */
+    public long getLineNotifications() {
+        return mLineNotifications;
+    }
+
+    /**
+     * @return number of notifications with the UART overrun flag: bytes lost
+     * by the bridge
+     */
+    public long getLineOverruns() {
+        return mLineOverruns;
+    }
+
+    public long getLineParityErrors() {
+        return mLineParityErrors;
+    }
+
+    /**
+     * @return number of notifications with the framing error flag. Usually a
+     * wrong baudrate
+     */
+    public long getLineFramingErrors() {
+        return mLineFramingErrors;
+    }
+
+    public long getLineBreaks() {
+        return mLineBreaks;
+    }
+
+    /**
+     * @return time from the device attach to the first received byte, in
+     * milliseconds. -1 if unknown
+     */
+    public long getReplugToFirstByteMs() {
+        if ((mReplugTs == 0) || (mReceivedBytes == 0)) return -1;
+        return Math.max(0, mFirstReceivedByteTs - mReplugTs);
+    }
+
+    /**
+     * @return time from the device attach to the first valid location, in
+     * milliseconds. -1 if unknown
+     */
+    public long getReplugToFirstFixMs() {
+        if ((mReplugTs == 0) || (mFirstFixTs == 0)) return -1;
+        return Math.max(0, mFirstFixTs - mReplugTs);
+    }
+
+    public long getReconnectFailures() {
+        return mReconnectFailures;
+    }
+
     public synchronized void set(final StatsNative src) {
-        setStats(src.mStartTs, src.mLastReceivedByteTs, src.mReceivedBytes, src.mReceivedJunk);
+        setStats(src.mStartTs, src.mFirstReceivedByteTs, src.mLastReceivedByteTs,
+                src.mReceivedBytes, src.mReceivedJunk);
         setNmeaStats(mNmeaLastMsgTs, mNmeaTotal, mNmeaGga, mNmeaRmc, mNmeaGll, mNmeaGst,
                 mNmeaGsa, mNmeaVtg, mNmeaZda, mNmeaGsv, mNmeaPubx, mNmeaOther);
-        setSirfStats(mSirfLastMsgTs, mSirfTotal, mSirfMid41);
-        setUbloxStats(mUbloxLastMsgTs, mUbloxTotal);
+        setSirfStats(mSirfLastMsgTs, mSirfTotal, mSirfMid2, mSirfMid4, mSirfMid7,
+                mSirfMid41, mSirfOther, mSirfTrackedSvs, mSirfTrackedCn0Avg);
+        setUbloxStats(mUbloxLastMsgTs, mUbloxTotal, mUbloxNavPvt, mUbloxNavPosllh,
+                mUbloxNavVelned, mUbloxNavTimeutc, mUbloxNavSol, mUbloxNavStatus,
+                mUbloxAck, mUbloxOther);
+        setReaderStats(src.mReaderIoctls, src.mReaderReaps, src.mReaderBytes,
+                src.mReaderStatusPackets, src.mReaderHandoffs, src.mReaderHandoffLatencyUsTotal, src.mReaderHandoffLatencyUsMax);
+        setSchedulerStats(src.mSchedWakeups, src.mSchedSleepUs, src.mSchedDelayedReads,
+                src.mSchedAddedLatencyUsTotal, src.mSchedAddedLatencyUsMax, src.mSchedCycleUs,
+                src.mSchedBurstIntervalUs, src.mSchedBurstDurationUs);
+        setFixStats(src.mFixes, src.mFixesClosedEarly, src.mFixEpochEndMisses,
+                src.mFixLatencyUsTotal, src.mFixLatencyUsMax);
+        setLineStatusStats(src.mLineNotifications, src.mLineOverruns, src.mLineParityErrors,
+                src.mLineFramingErrors, src.mLineBreaks);
+        setReconnectStats(src.mReplugTs, src.mFirstFixTs, src.mReconnectFailures);
     }
 
     // used by native code
     @Keep
-    void setStats(long startTs, long lastByteTs, long rcvdBytes, long rcvdJunk) {
+    void setStats(long startTs, long firstByteTs, long lastByteTs, long rcvdBytes, long rcvdJunk) {
         mStartTs = startTs;
+        mFirstReceivedByteTs = firstByteTs;
         mLastReceivedByteTs = lastByteTs;
         mReceivedBytes = rcvdBytes;
         mReceivedJunk = rcvdJunk;
@@ -98,16 +314,89 @@ class StatsNative {
 
     // used by native code
     @Keep
-    void setSirfStats(long lastMsgTs, long total, long mid41) {
+    void setSirfStats(long lastMsgTs, long total, long mid2, long mid4, long mid7,
+            long mid41, long other, long trackedSvs, long trackedCn0Avg) {
         mSirfLastMsgTs = lastMsgTs;
         mSirfTotal = total;
+        mSirfMid2 = mid2;
+        mSirfMid4 = mid4;
+        mSirfMid7 = mid7;
         mSirfMid41 = mid41;
+        mSirfOther = other;
+        mSirfTrackedSvs = trackedSvs;
+        mSirfTrackedCn0Avg = trackedCn0Avg;
     }
 
     // used by native code
     @Keep
-    void setUbloxStats(long lastMsgTs, long total) {
+    void setUbloxStats(long lastMsgTs, long total, long navPvt, long navPosllh,
+            long navVelned, long navTimeutc, long navSol, long navStatus,
+            long ack, long other) {
         mUbloxLastMsgTs = lastMsgTs;
         mUbloxTotal = total;
+        mUbloxNavPvt = navPvt;
+        mUbloxNavPosllh = navPosllh;
+        mUbloxNavVelned = navVelned;
+        mUbloxNavTimeutc = navTimeutc;
+        mUbloxNavSol = navSol;
+        mUbloxNavStatus = navStatus;
+        mUbloxAck = ack;
+        mUbloxOther = other;
+    }
+
+    // used by native code
+    @Keep
+    void setReaderStats(long ioctls, long reaps, long bytes, long statusPackets,
+            long handoffs, long handoffLatencyUsTotal, long handoffLatencyUsMax) {
+        mReaderIoctls = ioctls;
+        mReaderReaps = reaps;
+        mReaderBytes = bytes;
+        mReaderStatusPackets = statusPackets;
+        mReaderHandoffs = handoffs;
+        mReaderHandoffLatencyUsTotal = handoffLatencyUsTotal;
+        mReaderHandoffLatencyUsMax = handoffLatencyUsMax;
+    }
+
+    // used by native code
+    @Keep
+    void setSchedulerStats(long wakeups, long sleepUs, long delayedReads,
+            long addedLatencyUsTotal, long addedLatencyUsMax, long cycleUs,
+            long burstIntervalUs, long burstDurationUs) {
+        mSchedWakeups = wakeups;
+        mSchedSleepUs = sleepUs;
+        mSchedDelayedReads = delayedReads;
+        mSchedAddedLatencyUsTotal = addedLatencyUsTotal;
+        mSchedAddedLatencyUsMax = addedLatencyUsMax;
+        mSchedCycleUs = cycleUs;
+        mSchedBurstIntervalUs = burstIntervalUs;
+        mSchedBurstDurationUs = burstDurationUs;
+    }
+
+    // used by native code
+    @Keep
+    void setFixStats(long fixes, long closedEarly, long epochEndMisses,
+            long latencyUsTotal, long latencyUsMax) {
+        mFixes = fixes;
+        mFixesClosedEarly = closedEarly;
+        mFixEpochEndMisses = epochEndMisses;
+        mFixLatencyUsTotal = latencyUsTotal;
+        mFixLatencyUsMax = latencyUsMax;
+    }
+
+    // used by native code
+    @Keep
+    void setLineStatusStats(long notifications, long overruns, long parityErrors,
+            long framingErrors, long breaks) {
+        mLineNotifications = notifications;
+        mLineOverruns = overruns;
+        mLineParityErrors = parityErrors;
+        mLineFramingErrors = framingErrors;
+        mLineBreaks = breaks;
+    }
+
+    void setReconnectStats(long replugTs, long firstFixTs, long reconnectFailures) {
+        mReplugTs = replugTs;
+        mFirstFixTs = firstFixTs;
+        mReconnectFailures = reconnectFailures;
     }
-}
\ No newline at end of file
+}
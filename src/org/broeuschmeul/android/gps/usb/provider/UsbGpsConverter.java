@@ -13,11 +13,16 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.ConditionVariable;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.broeuschmeul.android.gps.usb.AutobaudTask;
+import org.broeuschmeul.android.gps.usb.DeviceProfileStore;
+import org.broeuschmeul.android.gps.usb.ReceiverConfigTask;
+import org.broeuschmeul.android.gps.usb.ReceiverConfiguration;
 import org.broeuschmeul.android.gps.usb.SerialLineConfiguration;
+import org.broeuschmeul.android.gps.usb.UsbFtdiController;
 import org.broeuschmeul.android.gps.usb.UsbSerialController;
 import org.broeuschmeul.android.gps.usb.UsbSerialController.UsbControllerException;
 import org.broeuschmeul.android.gps.usb.UsbSerialController.UsbSerialInputStream;
@@ -28,8 +33,9 @@ import org.broeuschmeul.android.gps.usb.provider.MockLocationProvider.Status;
 import proguard.annotation.Keep;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 public class UsbGpsConverter {
@@ -65,9 +71,72 @@ public class UsbGpsConverter {
         RECONNECTING
     };
 
+    /**
+     * Strategy used by the native code to read the bulk-in endpoint
+     */
+    public static enum UsbReaderMode {
+
+        /** One synchronous bulk transfer per packet */
+        SYNC(0, "sync"),
+
+        /** Several asynchronous bulk transfers (URBs) kept in flight */
+        ASYNC_URB(1, "async_urb"),
+
+        /** No reader thread, transfers land directly in the parser buffer */
+        INLINE(2, "inline")
+
+        ;
+
+        private final int mNativeCode;
+        private final String mPrefsEntryValue;
+
+        private UsbReaderMode(int nativeCode, String prefsEntryValue) {
+            mNativeCode = nativeCode;
+            mPrefsEntryValue = prefsEntryValue;
+        }
+
+        public int getNativeCode() {
+            return mNativeCode;
+        }
+
+        public String getPrefsEntryValue() {
+            return mPrefsEntryValue;
+        }
+
+        public static UsbReaderMode valueOfPrefsEntry(String entryValue) {
+            for (UsbReaderMode m: values()) {
+                if (m.getPrefsEntryValue().equals(entryValue)) return m;
+            }
+            throw new IllegalArgumentException();
+        }
+    }
+
     public static final String ACTION_USB_DEVICE_ATTACHED = "org.broeuschmeul.android.gps.usb.provider.ACTION_USB_DEVICE_ATTACHED";
 
-    public static final int RECONNECT_TIMEOUT_MS = 2000;
+    /**
+     * Bounds of the reconnect backoff after connection failures. The
+     * reconnect is also woken up by the attach and permission events.
+     */
+    public static final int RECONNECT_BACKOFF_MIN_MS = 250;
+    public static final int RECONNECT_BACKOFF_MAX_MS = 8000;
+
+    /* Maximum number of the simultaneously connected receivers */
+    public static final int MAX_RECEIVERS = 4;
+
+    /**
+     * Failover: fix interval assumed until measured, and the delay after the
+     * expected fix of the primary receiver before it is considered failed
+     */
+    public static final int DEFAULT_FIX_INTERVAL_MS = 1000;
+    public static final int FAILOVER_MARGIN_MS = 250;
+
+    /* Receiver index (int) in the ACTION_USB_*, ACTION_AUTOCONF_* and ACTION_VALID_* broadcasts */
+    public final static String EXTRA_RECEIVER =
+            "org.broeuschmeul.android.gps.usb.provider.UsbGpsConverter.EXTRA_RECEIVER";
+
+    /* Number of the connected receivers (int) in ACTION_USB_ATTACHED and ACTION_USB_DETACHED */
+    public final static String EXTRA_CONNECTED_RECEIVERS =
+            "org.broeuschmeul.android.gps.usb.provider.UsbGpsConverter.EXTRA_CONNECTED_RECEIVERS";
 
     private final Context mContext;
     final UsbReceiver mUsbReceiver;
@@ -122,6 +191,92 @@ public class UsbGpsConverter {
         mUsbReceiver.setDataLoggerConfiguration(conf);
     }
 
+    /**
+     * Set receiver output configuration. Applied immediately on the connected
+     * receivers and after the stream lock on connect
+     */
+    public void setReceiverConfiguration(ReceiverConfiguration conf) {
+        mUsbReceiver.setReceiverConfiguration(conf);
+    }
+
+    /**
+     * Set native USB reader mode. Applied on next connect
+     */
+    public void setUsbReaderMode(UsbReaderMode mode) {
+        mUsbReceiver.setUsbReaderMode(mode);
+    }
+
+    /**
+     * Set latency timer of the FTDI bridges, 1 - 255 ms. Applied immediately
+     */
+    public void setFtdiLatencyTimer(int ms) {
+        mUsbReceiver.setFtdiLatencyTimer(ms);
+    }
+
+    /**
+     * Set event character of the FTDI bridges. Applied immediately
+     * @param c character, or {@link UsbFtdiController#EVENT_CHAR_DISABLED}
+     */
+    public void setFtdiEventChar(int c) {
+        mUsbReceiver.setFtdiEventChar(c);
+    }
+
+    /**
+     * Raise the port speed of the receiver to baudrate after the autobaud or
+     * profile lock. Applied on next connect.
+     * @param baudrate target rate, 0 to disable
+     */
+    public void setUpshiftBaudrate(int baudrate) {
+        mUsbReceiver.setUpshiftBaudrate(baudrate);
+    }
+
+    /**
+     * Hot-standby failover. When enabled, the location provider is switched
+     * to another connected receiver with a valid fix as soon as the primary
+     * receiver loses its fix or stops sending data. Otherwise the receivers
+     * are switched only on disconnect.
+     */
+    public void setFailoverEnabled(boolean enabled) {
+        mUsbReceiver.setFailoverEnabled(enabled);
+    }
+
+    /**
+     * @return number of primary receiver switches
+     */
+    public long getFailoverCount() {
+        return mUsbReceiver.getFailoverCount();
+    }
+
+    /**
+     * @return number of the active receivers
+     */
+    public int getReceiverCount() {
+        return mUsbReceiver.getReceiverCount();
+    }
+
+    /**
+     * @return index of the receiver reporting to the location provider, -1 if none
+     */
+    public int getPrimaryReceiver() {
+        return mUsbReceiver.getPrimaryReceiver();
+    }
+
+    /**
+     * @return statistics of the receiver, null if the receiver index is not in use
+     */
+    @Nullable
+    public StatsNative getStats(int receiver) {
+        return mUsbReceiver.getStats(receiver);
+    }
+
+    /**
+     * @return last valid location received from the receiver, null if none
+     */
+    @Nullable
+    public Location getLastLocation(int receiver) {
+        return mUsbReceiver.getLastLocation(receiver);
+    }
+
     private class UsbReceiver {
 
         final String ACTION_USB_PERMISSION = UsbReceiver.class.getName() + ".USB_PERMISSION";
@@ -134,19 +289,65 @@ public class UsbGpsConverter {
         @GuardedBy("UsbReceiver.this.mLock")
         private final DataLoggerConfiguration mDataLoggerConfiguration;
 
+        @GuardedBy("UsbReceiver.this.mLock")
+        private final ReceiverConfiguration mReceiverConfiguration;
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private UsbReaderMode mUsbReaderMode;
+
+        /* Receiver port speed set after the stream lock, 0 - disabled */
+        @GuardedBy("UsbReceiver.this.mLock")
+        private int mUpshiftBaudrate;
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private int mFtdiLatencyTimerMs;
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private int mFtdiEventChar;
+
         private UsbManager mUsbManager;
 
+        private final DeviceProfileStore mDeviceProfileStore;
+
         final ConditionVariable mIsUsbDeviceReadyCondvar;
 
+        /* One independent native pipeline per receiver, indexed by receiver number */
         @GuardedBy("UsbReceiver.this.mLock")
-        private volatile UsbServiceThread mServiceThread;
+        private final UsbServiceThread[] mServiceThreads;
+
+        /* Guards the primary receiver switch. Leaf lock: taken from the read
+         * path under the service thread monitor, no other locks inside */
+        final Object mPrimaryLock = new Object();
+
+        /* Receiver reporting to the location provider */
+        @GuardedBy("UsbReceiver.this.mPrimaryLock")
+        private volatile UsbServiceThread mPrimaryThread;
+
+        private volatile boolean mFailoverEnabled;
+
+        @GuardedBy("UsbReceiver.this.mPrimaryLock")
+        private volatile long mFailoverCount;
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private boolean mIsStarted;
 
         public UsbReceiver() {
             this.mUsbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
 
             mSerialLineConfiguration = new SerialLineConfiguration();
             mDataLoggerConfiguration = new DataLoggerConfiguration();
+            mReceiverConfiguration = new ReceiverConfiguration();
+            mUsbReaderMode = UsbReaderMode.SYNC;
+            mUpshiftBaudrate = 0;
+            mFtdiLatencyTimerMs = UsbFtdiController.DEFAULT_LATENCY_TIMER_MS;
+            mFtdiEventChar = UsbFtdiController.EVENT_CHAR_DISABLED;
             mIsUsbDeviceReadyCondvar = new ConditionVariable(false);
+            mDeviceProfileStore = new DeviceProfileStore(mContext);
+            mServiceThreads = new UsbServiceThread[MAX_RECEIVERS];
+            mPrimaryThread = null;
+            mFailoverEnabled = false;
+            mFailoverCount = 0;
+            mIsStarted = false;
 
             if (mUsbManager == null) throw new IllegalStateException("USB not available");
         }
@@ -166,8 +367,27 @@ public class UsbGpsConverter {
         public void setDataLoggerConfiguration(DataLoggerConfiguration conf) {
             synchronized(UsbReceiver.this.mLock) {
                 mDataLoggerConfiguration.set(conf);
-                if (mUsbReceiver.mServiceThread != null) {
-                    mUsbReceiver.mServiceThread.refreshDataLoggerCofiguration();
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t != null) t.refreshDataLoggerCofiguration();
+                }
+            }
+        }
+
+        public void setReceiverConfiguration(ReceiverConfiguration conf) {
+            synchronized(UsbReceiver.this.mLock) {
+                mReceiverConfiguration.set(conf);
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t != null && t.isConnected()) t.startReceiverConfig();
+                }
+            }
+        }
+
+        public void setUsbReaderMode(UsbReaderMode mode) {
+            if (mode == null) throw new NullPointerException();
+            synchronized(UsbReceiver.this.mLock) {
+                mUsbReaderMode = mode;
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t != null) t.native_set_usb_reader_mode(mode.getNativeCode());
                 }
             }
         }
@@ -181,6 +401,7 @@ public class UsbGpsConverter {
 
         public void start() {
             final IntentFilter f;
+            final List<UsbDevice> devices;
             f = new IntentFilter();
             f.addAction(ACTION_USB_DEVICE_ATTACHED);
             f.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
@@ -189,22 +410,32 @@ public class UsbGpsConverter {
             mContext.registerReceiver(mUsbStateListener, f);
 
             synchronized(UsbReceiver.this.mLock) {
-                mServiceThread = new UsbServiceThread();
-                mServiceThread.start();
+                mIsStarted = true;
+                /* Receiver 0 reports the provider status until a device is connected */
+                final UsbServiceThread t = startServiceThread(0);
+                synchronized(mPrimaryLock) {
+                    mPrimaryThread = t;
+                }
             }
 
-            try {
-                final UsbDevice d = UsbUtils.findSupportedDevices(mUsbManager).get(0);
-                requestPermission(d);
-            }catch (IndexOutOfBoundsException ignore) { }
-
+            devices = UsbUtils.findSupportedDevices(mUsbManager, mContext.getResources());
+            for (int i = 0; i < Math.min(devices.size(), MAX_RECEIVERS); ++i) {
+                requestPermission(devices.get(i));
+            }
         }
 
         public void stop() {
             mContext.unregisterReceiver(mUsbStateListener);
             synchronized(UsbReceiver.this.mLock) {
-                mServiceThread.cancel();
-                mServiceThread = null;
+                mIsStarted = false;
+                for (int i = 0; i < mServiceThreads.length; ++i) {
+                    if (mServiceThreads[i] == null) continue;
+                    mServiceThreads[i].cancel();
+                    mServiceThreads[i] = null;
+                }
+                synchronized(mPrimaryLock) {
+                    mPrimaryThread = null;
+                }
                 mIsUsbDeviceReadyCondvar.open();
             }
         }
@@ -219,14 +450,256 @@ public class UsbGpsConverter {
             mIsUsbDeviceReadyCondvar.block();
         }
 
+        public void setFailoverEnabled(boolean enabled) {
+            mFailoverEnabled = enabled;
+        }
+
+        public void setUpshiftBaudrate(int baudrate) {
+            synchronized(UsbReceiver.this.mLock) {
+                mUpshiftBaudrate = baudrate;
+            }
+        }
+
+        public void setFtdiLatencyTimer(int ms) {
+            if (ms < UsbFtdiController.MIN_LATENCY_TIMER_MS
+                    || ms > UsbFtdiController.MAX_LATENCY_TIMER_MS) {
+                throw new IllegalArgumentException();
+            }
+            synchronized(UsbReceiver.this.mLock) {
+                mFtdiLatencyTimerMs = ms;
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t != null) applyFtdiSettings(t.getController());
+                }
+            }
+        }
+
+        public void setFtdiEventChar(int c) {
+            synchronized(UsbReceiver.this.mLock) {
+                mFtdiEventChar = c;
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t != null) applyFtdiSettings(t.getController());
+                }
+            }
+        }
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private void applyFtdiSettings(@Nullable UsbSerialController controller) {
+            final UsbFtdiController ftdi;
+
+            if (DBG) assertTrue(Thread.holdsLock(mLock));
+            if (!(controller instanceof UsbFtdiController)) return;
+            ftdi = (UsbFtdiController)controller;
+            ftdi.setLatencyTimer(mFtdiLatencyTimerMs);
+            ftdi.setEventChar(mFtdiEventChar);
+        }
+
+        public long getFailoverCount() {
+            return mFailoverCount;
+        }
+
+        /**
+         * @return number of the receiver slots in use, including the
+         * receivers waiting for reconnect
+         */
+        public int getReceiverCount() {
+            int cnt = 0;
+            synchronized(UsbReceiver.this.mLock) {
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t != null) cnt += 1;
+                }
+            }
+            return cnt;
+        }
+
+        /**
+         * @return index of the receiver reporting to the location provider, -1 if none
+         */
+        public int getPrimaryReceiver() {
+            final UsbServiceThread primary = mPrimaryThread;
+            return primary == null ? -1 : primary.mReceiverIdx;
+        }
+
+        @Nullable
+        public StatsNative getStats(int receiver) {
+            final UsbServiceThread t = getServiceThread(receiver);
+            return t == null ? null : t.getStats();
+        }
+
+        @Nullable
+        public Location getLastLocation(int receiver) {
+            final UsbServiceThread t = getServiceThread(receiver);
+            return t == null ? null : t.getLastLocation();
+        }
+
+        /**
+         * Queues data for the primary receiver. Does not wait for the USB transfer.
+         */
         @SuppressWarnings("unused")
         public void write(byte[] buffer, int offset, int count) throws IOException {
+            write(getPrimaryReceiver(), buffer, offset, count);
+        }
+
+        /**
+         * Queues data for the receiver. Does not wait for the USB transfer.
+         */
+        public void write(int receiver, byte[] buffer, int offset, int count) throws IOException {
+            final UsbServiceThread serviceThread = getServiceThread(receiver);
+            if (serviceThread == null) throw new IOException("not connected");
+            serviceThread.write(buffer, offset, count);
+        }
+
+        @Nullable
+        private UsbServiceThread getServiceThread(int receiver) {
+            if (receiver < 0 || receiver >= MAX_RECEIVERS) return null;
             synchronized(UsbReceiver.this.mLock) {
-                if (mServiceThread == null) throw new IOException("not connected");
-                mServiceThread.write(buffer, offset, count);
+                return mServiceThreads[receiver];
             }
         }
 
+        @GuardedBy("UsbReceiver.this.mLock")
+        private UsbServiceThread startServiceThread(int receiver) {
+            final UsbServiceThread t;
+            if (DBG) assertTrue(Thread.holdsLock(mLock));
+            t = new UsbServiceThread(receiver);
+            t.native_set_usb_reader_mode(mUsbReaderMode.getNativeCode());
+            mServiceThreads[receiver] = t;
+            t.start();
+            return t;
+        }
+
+        /**
+         * @return thread connected to the device, null if none
+         */
+        @GuardedBy("UsbReceiver.this.mLock")
+        @Nullable
+        private UsbServiceThread findServiceThread(UsbDevice device) {
+            if (DBG) assertTrue(Thread.holdsLock(mLock));
+            for (UsbServiceThread t: mServiceThreads) {
+                if (t == null) continue;
+                final UsbSerialController controller = t.getController();
+                if (controller != null && device.equals(controller.getDevice())) return t;
+            }
+            return null;
+        }
+
+        /**
+         * @return idle thread without controller, null if none
+         */
+        @GuardedBy("UsbReceiver.this.mLock")
+        @Nullable
+        private UsbServiceThread findIdleServiceThread() {
+            if (DBG) assertTrue(Thread.holdsLock(mLock));
+            for (UsbServiceThread t: mServiceThreads) {
+                if (t != null && !t.cancelRequested && t.getController() == null) return t;
+            }
+            return null;
+        }
+
+        /**
+         * Updates the ready state and the location provider status after
+         * the connection state change of a receiver. Switches the primary
+         * receiver to a connected one if the current has no connection.
+         */
+        void onReceiverStateChanged() {
+            boolean connected = false;
+            synchronized(UsbReceiver.this.mLock) {
+                if (!mIsStarted) return;
+                UsbServiceThread candidate = null;
+                for (UsbServiceThread t: mServiceThreads) {
+                    if (t == null || !t.isConnected()) continue;
+                    connected = true;
+                    /* Prefer a receiver with a valid fix */
+                    if (candidate == null
+                            || (!candidate.hasValidFix() && t.hasValidFix())) {
+                        candidate = t;
+                    }
+                }
+
+                synchronized(mPrimaryLock) {
+                    if ((candidate != null)
+                            && (mPrimaryThread == null || !mPrimaryThread.isConnected())) {
+                        switchPrimaryThread(candidate, "link down", SystemClock.uptimeMillis());
+                    }
+                }
+
+                if (connected) {
+                    mIsUsbDeviceReadyCondvar.open();
+                    mLocationProvider.setDeviceStatus(Status.TEMPORARILY_UNAVAILABLE);
+                } else {
+                    mIsUsbDeviceReadyCondvar.close();
+                    mLocationProvider.setDeviceStatus(Status.OUT_OF_SERVICE);
+                }
+            }
+        }
+
+        /**
+         * Called by the standby receiver on each valid fix. Makes it primary if
+         * the current primary receiver has failed.
+         * @return true if the standby is the primary receiver now
+         */
+        boolean failoverTo(UsbServiceThread standby, long now) {
+            final UsbServiceThread primary = mPrimaryThread;
+            final String reason;
+
+            if (primary == standby) return true;
+            reason = getPrimaryFailure(primary, now);
+            if (reason == null) return false;
+
+            synchronized(mPrimaryLock) {
+                if (mPrimaryThread != primary) return mPrimaryThread == standby;
+                switchPrimaryThread(standby, reason, now);
+            }
+            return true;
+        }
+
+        /**
+         * Checks the fix validity and liveness of the primary receiver.
+         * @return failure description, null if the receiver works
+         */
+        @Nullable
+        private String getPrimaryFailure(@Nullable UsbServiceThread primary, long now) {
+            final int fixIntervalMs;
+
+            if (primary == null) return "no receiver";
+            if (!primary.isConnected()) return "link down";
+            if (primary.mFixLostTs != 0) return "no fix";
+
+            fixIntervalMs = primary.mFixIntervalMs;
+            if (now - primary.mLastValidFixTs <= fixIntervalMs + FAILOVER_MARGIN_MS) return null;
+
+            /* Missed fix. Data stream liveness from the native read loop */
+            if (now - primary.mLastReceivedByteTs > fixIntervalMs) {
+                return "link silent";
+            }else {
+                return "fix timeout";
+            }
+        }
+
+        @GuardedBy("UsbReceiver.this.mPrimaryLock")
+        private void switchPrimaryThread(UsbServiceThread newPrimary, String reason, long now) {
+            final UsbServiceThread oldPrimary;
+            final long failureTs;
+
+            if (DBG) assertTrue(Thread.holdsLock(mPrimaryLock));
+
+            oldPrimary = mPrimaryThread;
+            mPrimaryThread = newPrimary;
+            if (oldPrimary == null || oldPrimary == newPrimary || oldPrimary.mLastValidFixTs == 0) {
+                Log.i(TAG, "Primary receiver: " + newPrimary.mReceiverIdx);
+                return;
+            }
+
+            mFailoverCount += 1;
+            if (oldPrimary.mFixLostTs != 0) {
+                failureTs = oldPrimary.mFixLostTs;
+            }else {
+                failureTs = oldPrimary.mLastValidFixTs + oldPrimary.mFixIntervalMs;
+            }
+            /* Gap is logged on the first location published by the new primary */
+            newPrimary.mGapStartTs = oldPrimary.mLastValidFixTs;
+            Log.i(TAG, "Failover " + oldPrimary.mReceiverIdx + " -> " + newPrimary.mReceiverIdx
+                    + " (" + reason + "), switchover latency: " + Math.max(0, now - failureTs) + " ms");
+        }
 
         private void requestPermission(UsbDevice d) {
             if (DBG) {
@@ -265,33 +738,55 @@ public class UsbGpsConverter {
 
         void onUsbDeviceAttached(UsbDevice device) {
             if (DBG) Log.d(TAG, "onUsbDeviceAttached() device=" + device.toString());
-            if (UsbUtils.probeDevice(mUsbManager, device) != null) {
+            if (UsbUtils.probeDevice(mUsbManager, device, mContext.getResources()) != null) {
+                synchronized(UsbReceiver.this.mLock) {
+                    final UsbServiceThread t = findIdleServiceThread();
+                    if (t != null) t.onDeviceEvent(true);
+                }
                 requestPermission(device);
             }
         }
 
         void onUsbDeviceDetached(UsbDevice device) {
             if (DBG) Log.d(TAG, "onUsbDeviceDetached() device=" + device.toString());
+            UsbUtils.onDeviceDetached(device);
             synchronized(UsbReceiver.this.mLock) {
-                if (mServiceThread == null) return;
-                UsbSerialController controller = mServiceThread.getController();
-                if (controller == null) return;
-                if (!device.equals(controller.getDevice())) return;
-
-                mServiceThread.setController(null);
+                final UsbServiceThread t = findServiceThread(device);
+                if (t == null) return;
+                t.setController(null);
             }
         }
 
         void onUsbPermissionGranted(UsbDevice device) {
             if (DBG) Log.d(TAG, "onUsbPermissionGranted() device=" + device.toString());
             synchronized(UsbReceiver.this.mLock) {
-                if (mServiceThread == null) return;
-                UsbSerialController controller = mServiceThread.getController();
-                if (controller != null) return;
-                controller = UsbUtils.probeDevice(mUsbManager, device);
+                UsbServiceThread t;
+                if (!mIsStarted) return;
+                if (findServiceThread(device) != null) return;
+
+                t = findIdleServiceThread();
+                if (t == null) {
+                    int freeSlot = -1;
+                    for (int i = 0; i < mServiceThreads.length; ++i) {
+                        if (mServiceThreads[i] == null) {
+                            freeSlot = i;
+                            break;
+                        }
+                    }
+                    if (freeSlot < 0) {
+                        Log.i(TAG, "Too many receivers, " + device.getDeviceName() + " ignored");
+                        return;
+                    }
+                    t = startServiceThread(freeSlot);
+                }
+
+                final UsbSerialController controller = UsbUtils.probeDevice(mUsbManager, device, mContext.getResources());
                 if (controller == null) return;
+                controller.setDeviceProfileStore(mDeviceProfileStore);
+                applyFtdiSettings(controller);
 
-                mServiceThread.setController(controller);
+                t.onDeviceEvent(false);
+                t.setController(controller);
             }
         }
 
@@ -301,6 +796,8 @@ public class UsbGpsConverter {
             @Keep
             protected volatile long mObject;
 
+            final int mReceiverIdx;
+
             @GuardedBy("UsbReceiver.this.mLock")
             private volatile UsbSerialInputStream mInputStream;
 
@@ -324,18 +821,79 @@ public class UsbGpsConverter {
             @GuardedBy("UsbReceiver.this.mLock")
             private volatile AutobaudTask mAutobaudThread;
 
+            @GuardedBy("UsbReceiver.this.mLock")
+            private volatile ReceiverConfigTask mConfigThread;
+
+            /* Protocols received at the locked baudrate, 0 - unknown */
+            @GuardedBy("UsbReceiver.this.mLock")
+            private int mReceivedProtocols;
+
+            /* Baudrate upshift failed on the current controller */
+            @GuardedBy("UsbReceiver.this.mLock")
+            private boolean mUpshiftFailed;
+
+            /* Set by the attach and permission events to wake up the reconnect */
+            @GuardedBy("this")
+            private boolean mReconnectWakeupRequested;
+
+            /* Current reconnect backoff, 0 after a successful connection */
+            private int mReconnectBackoffMs;
+
+            private volatile long mReconnectFailures;
+
+            /* Time of the device attach or permission event, SystemClock.uptimeMillis()
+             * time base (CLOCK_MONOTONIC, as the native stats). 0 - unknown */
+            private volatile long mReplugTs;
+
+            /* Time of the first valid location after mReplugTs. 0 - not yet received */
+            private volatile long mFirstFixTs;
+
             private final Location mReportedLocation = new Location("");
             private final Bundle mReportedLocationBundle = new Bundle(1);
 
-            public UsbServiceThread() {
+            @GuardedBy("this")
+            private boolean mHasReportedLocation;
+
+            /* Failover signals, SystemClock.uptimeMillis() time base */
+
+            /* Time of the last valid fix. 0 - none */
+            volatile long mLastValidFixTs;
+
+            /* Time the fix or the link was lost. 0 - fix is valid */
+            volatile long mFixLostTs;
+
+            /* Measured interval between the valid fixes */
+            volatile int mFixIntervalMs;
+
+            /* Last valid fix of the previous primary receiver. 0 - no failover gap pending */
+            volatile long mGapStartTs;
+
+            /* Time of the last received byte, written by the native read loop every 100 ms at most */
+            @Keep
+            volatile long mLastReceivedByteTs;
+
+            public UsbServiceThread(int receiverIdx) {
+                mReceiverIdx = receiverIdx;
+                mHasReportedLocation = false;
+                mLastValidFixTs = 0;
+                mFixLostTs = 0;
+                mFixIntervalMs = DEFAULT_FIX_INTERVAL_MS;
+                mGapStartTs = 0;
                 mInputStream = null;
                 mOutputStream = null;
                 mConnectionState = TransportState.IDLE;
                 cancelRequested = false;
                 mUsbController = null;
                 mAutobaudThread = null;
+                mConfigThread = null;
+                mReceivedProtocols = 0;
                 mIsControllerSet = new ConditionVariable(false);
                 mFirstValidLocationReceived = false;
+                mReconnectWakeupRequested = false;
+                mReconnectBackoffMs = 0;
+                mReconnectFailures = 0;
+                mReplugTs = 0;
+                mFirstFixTs = 0;
                 native_create();
             }
 
@@ -346,6 +904,7 @@ public class UsbGpsConverter {
                     mUsbController.detach();
                 }
                 mUsbController = controller;
+                mUpshiftFailed = false;
                 mFirstValidLocationReceived = false;
                 if (controller != null) mIsControllerSet.open();
             }
@@ -358,15 +917,37 @@ public class UsbGpsConverter {
             public void cancel() {
                 if (DBG) assertTrue(Thread.holdsLock(mLock));
                 cancelRequested = true;
+                native_cancel_read_loop();
                 setController(null);
+                /* Wake up connect() and the reconnect wait */
+                mIsControllerSet.open();
+                wakeupReconnect();
             }
 
             /**
-             * Write to the connected OutStream.
+             * Device attach or permission event. Starts the replug latency
+             * measurement and wakes up the reconnect.
+             * @param isAttach true on device attach, false on permission grant
+             */
+            public void onDeviceEvent(boolean isAttach) {
+                if (isAttach || (mReplugTs == 0) || (mFirstFixTs != 0)) {
+                    mReplugTs = SystemClock.uptimeMillis();
+                    mFirstFixTs = 0;
+                }
+                wakeupReconnect();
+            }
+
+            private synchronized void wakeupReconnect() {
+                mReconnectWakeupRequested = true;
+                notifyAll();
+            }
+
+            /**
+             * Queue data to the asynchronous writer of the connected OutStream.
              * @param buffer  The bytes to write
              */
             public void write(byte[] buffer, int offset, int count) throws IOException {
-                OutputStream os;
+                UsbSerialOutputStream os;
                 synchronized(UsbReceiver.this.mLock) {
                     if (mConnectionState != TransportState.CONNECTED) {
                         Log.e(TAG, "write() error: not connected");
@@ -374,21 +955,37 @@ public class UsbGpsConverter {
                     }
                     os = mOutputStream;
                 }
-                os.write(buffer, offset, count);
+                if (!os.writeAsync(buffer, offset, count, null)) {
+                    throw new IOException("write queue full");
+                }
+            }
+
+            public boolean isConnected() {
+                return mConnectionState == TransportState.CONNECTED;
+            }
+
+            public boolean hasValidFix() {
+                return mLastValidFixTs != 0 && mFixLostTs == 0;
+            }
+
+            @Nullable
+            public synchronized Location getLastLocation() {
+                return mHasReportedLocation ? new Location(mReportedLocation) : null;
             }
 
             public StatsNative getStats() {
                 StatsNative dst = new StatsNative();
                 synchronized (dst) {
                     native_get_stats(dst);
+                    dst.setReconnectStats(mReplugTs, mFirstFixTs, mReconnectFailures);
                 }
                 return dst;
             }
 
             @Override
             public void run() {
-                Log.i(TAG, "BEGIN UsbToLocalSocket-USB");
-                setName("UsbToLocalSocket-USB");
+                Log.i(TAG, "BEGIN UsbToLocalSocket-USB" + mReceiverIdx);
+                setName("UsbToLocalSocket-USB" + mReceiverIdx);
                 try {
                     setState(TransportState.CONNECTING);
                     while (true) {
@@ -396,28 +993,39 @@ public class UsbGpsConverter {
                         connectLoop();
 
                         setState(TransportState.CONNECTED);
-                        mBroadcastManager.sendBroadcast(new Intent(ACTION_USB_ATTACHED));
-                        mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STARTED));
+                        sendConnectionBroadcast(ACTION_USB_ATTACHED);
+                        sendBroadcast(ACTION_AUTOCONF_STARTED);
 
                         startInitBaudrate();
                         native_read_loop(mInputStream, mOutputStream);
+                        stopReceiverConfig();
                         throwIfCancelRequested();
 
-                        synchronized(this) {
-                            setState(TransportState.RECONNECTING);
-                            mBroadcastManager.sendBroadcast(new Intent(ACTION_USB_DETACHED));
-                            wait(RECONNECT_TIMEOUT_MS);
+                        setState(TransportState.RECONNECTING);
+                        sendConnectionBroadcast(ACTION_USB_DETACHED);
+
+                        /* Reconnect at once after a working session: connect() waits for
+                         * the device on detach. Back off if nothing was received */
+                        if (getStats().getReceivedBytes() == 0) {
+                            waitReconnectBackoff();
+                        }else {
+                            mReconnectBackoffMs = 0;
                         }
                     }
                 }catch(CancelRequestedException cre) {
-                }catch (InterruptedException ie) {
-                    if (DBG) Log.v(TAG, "interrupted");
                 }finally {
                     synchronized(UsbReceiver.this.mLock) {
                         if (mAutobaudThread != null) {
                             mAutobaudThread.interrupt();
                         }
+                        stopReceiverConfig();
+                        /* Free the receiver slot */
+                        if (mServiceThreads[mReceiverIdx] == this) mServiceThreads[mReceiverIdx] = null;
+                        synchronized(mPrimaryLock) {
+                            if (mPrimaryThread == this) mPrimaryThread = null;
+                        }
                     }
+                    setState(TransportState.IDLE);
                 }
             }
 
@@ -445,10 +1053,15 @@ public class UsbGpsConverter {
                     boolean hasSpeed
                     ) {
 
+                /* Read path: no shared lock, only the primary receiver reports to the provider */
+                final long now = SystemClock.uptimeMillis();
+                boolean isPrimary = (mPrimaryThread == this);
                 try {
                     if (!isValid) {
                         if (DBG) Log.v(TAG, "loc: null");
-                        mLocationProvider.setLocation(null);
+                        mHasReportedLocation = false;
+                        if (mFixLostTs == 0) mFixLostTs = now;
+                        if (isPrimary) mLocationProvider.setLocation(null);
                         return;
                     }
 
@@ -474,11 +1087,32 @@ public class UsbGpsConverter {
                         mReportedLocation.setExtras(mReportedLocationBundle);
                     }
 
-                    mLocationProvider.setLocation(mReportedLocation);
+                    mHasReportedLocation = true;
+                    if (mLastValidFixTs != 0 && mFixLostTs == 0) {
+                        final long interval = now - mLastValidFixTs;
+                        if (interval > 0 && interval < 10 * DEFAULT_FIX_INTERVAL_MS) {
+                            mFixIntervalMs = (int)((3 * mFixIntervalMs + interval) / 4);
+                        }
+                    }
+                    mLastValidFixTs = now;
+                    mFixLostTs = 0;
+
+                    if (!isPrimary && mFailoverEnabled) isPrimary = failoverTo(this, now);
+                    if (isPrimary) {
+                        mLocationProvider.setLocation(mReportedLocation);
+                        if (mGapStartTs != 0) {
+                            Log.i(TAG, "Failover gap: " + (now - mGapStartTs) + " ms");
+                            mGapStartTs = 0;
+                        }
+                    }
 
                     if (!mFirstValidLocationReceived) {
                         mFirstValidLocationReceived = true;
-                        mBroadcastManager.sendBroadcast(new Intent(ACTION_VALID_LOCATION_RECEIVED));
+                        if ((mReplugTs != 0) && (mFirstFixTs == 0)) {
+                            mFirstFixTs = SystemClock.uptimeMillis();
+                            Log.i(TAG, "Replug to first fix: " + (mFirstFixTs - mReplugTs) + " ms");
+                        }
+                        sendBroadcast(ACTION_VALID_LOCATION_RECEIVED);
                     }
 
                     if (DBG) Log.v(TAG, "loc: " + mReportedLocation);
@@ -491,10 +1125,14 @@ public class UsbGpsConverter {
             @Keep
             void onGpsMessageReceived(java.nio.ByteBuffer buf, int start, int size, int type) {
                 if (DBG) Log.v(TAG, "msg " + type + " start/size: " + start + " " + size);
-                synchronized(UsbReceiver.this.mLock) {
-                    if (mAutobaudThread != null) {
-                        mAutobaudThread.onGpsMessageReceived(buf, start, size, type);
-                    }
+                /* Read path: volatile read, no UsbReceiver lock */
+                final AutobaudTask autobaudThread = mAutobaudThread;
+                final ReceiverConfigTask configThread = mConfigThread;
+                if (autobaudThread != null) {
+                    autobaudThread.onGpsMessageReceived(buf, start, size, type);
+                }
+                if (configThread != null) {
+                    configThread.onGpsMessageReceived(buf, start, size, type);
                 }
             }
 
@@ -505,25 +1143,54 @@ public class UsbGpsConverter {
             }
 
             void refreshDataLoggerCofiguration(DataLoggerConfiguration conf) {
+                /* Separate log files for each receiver */
+                final String prefix = mReceiverIdx == 0 ? conf.getFilePrefix()
+                        : conf.getFilePrefix() + "_" + (mReceiverIdx + 1);
                 native_datalogger_configure(
                         conf.isEnabled(),
                         conf.getFormat().getNativeCode(),
                         conf.getStorageDir(),
-                        conf.getFilePrefix());
+                        prefix);
             }
 
-            private synchronized void setState(TransportState state) {
-                TransportState oldState = mConnectionState;
-                mConnectionState = state;
-                if (DBG) Log.d(TAG, "setState() " + oldState + " -> " + state);
+            private void setState(TransportState state) {
+                final TransportState oldState;
+                synchronized(this) {
+                    oldState = mConnectionState;
+                    mConnectionState = state;
+                }
+                if (oldState == TransportState.CONNECTED && state != TransportState.CONNECTED
+                        && mFixLostTs == 0) {
+                    mFixLostTs = SystemClock.uptimeMillis();
+                }
+                if (DBG) Log.d(TAG, "setState() " + mReceiverIdx + ": " + oldState + " -> " + state);
 
-                if (mConnectionState == TransportState.CONNECTED) {
-                    mIsUsbDeviceReadyCondvar.open();
-                    mLocationProvider.setDeviceStatus(Status.TEMPORARILY_UNAVAILABLE);
-                } else {
-                    mIsUsbDeviceReadyCondvar.close();
-                    mLocationProvider.setDeviceStatus(Status.OUT_OF_SERVICE);
+                /* Takes mLock: not under the monitor of this thread */
+                onReceiverStateChanged();
+            }
+
+            private void sendBroadcast(String action) {
+                mBroadcastManager.sendBroadcast(new Intent(action)
+                        .putExtra(EXTRA_RECEIVER, mReceiverIdx));
+            }
+
+            private void sendConnectionBroadcast(String action) {
+                int connected = 0;
+                synchronized(UsbReceiver.this.mLock) {
+                    for (UsbServiceThread t: mServiceThreads) {
+                        if (t != null && t.isConnected()) connected += 1;
+                    }
                 }
+                mBroadcastManager.sendBroadcast(new Intent(action)
+                        .putExtra(EXTRA_RECEIVER, mReceiverIdx)
+                        .putExtra(EXTRA_CONNECTED_RECEIVERS, connected));
+            }
+
+            private void refreshSerialLineRate() {
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+                if (mUsbController == null) return;
+                final SerialLineConfiguration conf = mUsbController.getSerialLineConfiguration();
+                native_set_serial_line_rate(conf.getBaudrate(), conf.getBitsPerCharacter());
             }
 
             private void throwIfCancelRequested() throws CancelRequestedException {
@@ -534,8 +1201,18 @@ public class UsbGpsConverter {
 
             private void startInitBaudrate() {
                 synchronized(UsbReceiver.this.mLock) {
-                    if (mUsbController.getSerialLineConfiguration().isAutoBaudrateDetectionEnabled()) {
+                    mReceivedProtocols = 0;
+                    if (mUsbController.getAttachProfile() != null) {
+                        /* Quick attach: check the stored configuration on the first messages */
+                        refreshDataLoggerCofiguration(new DataLoggerConfiguration().setEnabled(false));
+                        native_msg_rcvd_cb(true);
+                        mAutobaudThread = AutobaudTask.createVerification(mContext, mUsbController,
+                                mAutobaudThreadCallbacks, mUsbController.getAttachProfile().getUpshiftBaudrate());
+                        mAutobaudThread.setName("ProfileVerifyThread");
+                        mAutobaudThread.start();
+                    }else if (mUsbController.getSerialLineConfiguration().isAutoBaudrateDetectionEnabled()) {
                         refreshDataLoggerCofiguration(new DataLoggerConfiguration().setEnabled(false));
+                        native_msg_rcvd_cb(true);
                         mAutobaudThread = new AutobaudTask(mContext, mUsbController, mAutobaudThreadCallbacks);
                         mAutobaudThread.setName("AutobaudThread");
                         mAutobaudThread.start();
@@ -549,23 +1226,193 @@ public class UsbGpsConverter {
                 @Override
                 public void onAutobaudCompleted(boolean isSuccessful, int baudrate) {
                     synchronized(UsbReceiver.this.mLock) {
+                        final AutobaudTask task = mAutobaudThread;
                         if (DBG) Log.v(TAG, "onAutobaudCompleted() " +
                                 (isSuccessful ? "successful" : "failed") + " " + baudrate);
                         mAutobaudThread = null;
                         native_msg_rcvd_cb(false);
-                        mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STOPPED));
-                        if (!isSuccessful) {
+                        if (isSuccessful && (task != null) && (task.getReceivedProtocols() != 0)) {
+                            mReceivedProtocols = task.getReceivedProtocols();
+                        }
+                        if ((task != null) && task.isUpshift()) {
+                            onUpshiftCompleted(isSuccessful, baudrate);
+                            return;
+                        }
+                        sendBroadcast(ACTION_AUTOCONF_STOPPED);
+                        if (!isSuccessful && (task != null) && task.isVerification()
+                                && !cancelRequested && (mUsbController != null)) {
+                            /* Stale profile: reconnect with the full initialization */
+                            Log.i(TAG, "Device profile verification failed");
+                            mDeviceProfileStore.remove(mUsbController.getDeviceProfileKey());
+                            mUsbController.setQuickAttachEnabled(false);
+                            mUsbController.detach();
+                        }else if (!isSuccessful) {
                             // XXX: report error
                             UsbServiceThread.this.cancel();
                         }else {
+                            if ((task != null) && (mUsbController != null)) saveDeviceProfile(task);
+                            refreshSerialLineRate();
                             mDataLoggerConfiguration.createStorageDir();
                             refreshDataLoggerCofiguration();
                             native_datalogger_start();
+                            if (!startUpshift()) startReceiverConfig();
                         }
                     }
                 }
+
+                @Override
+                public int readJunkSample(int[] histogram) {
+                    return native_read_junk_sample(histogram);
+                }
             };
 
+            /**
+             * Raises the port speed of the receiver after the stream lock
+             * if the upshift is enabled and has not failed on this device
+             * @return true if the upshift is started
+             */
+            @GuardedBy("UsbReceiver.this.mLock")
+            private boolean startUpshift() {
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+                if ((mUpshiftBaudrate <= 0) || mUpshiftFailed || (mUsbController == null)) return false;
+                if (mUsbController.getSerialLineConfiguration().getBaudrate() >= mUpshiftBaudrate) return false;
+
+                native_msg_rcvd_cb(true);
+                mAutobaudThread = AutobaudTask.createUpshift(mContext, mUsbController,
+                        mAutobaudThreadCallbacks, mUpshiftBaudrate, getReceiverProtocols());
+                mAutobaudThread.setName("BaudrateUpshiftThread");
+                mAutobaudThread.start();
+                return true;
+            }
+
+            /**
+             * @return protocols received from the device: at the locked
+             * baudrate, from the device profile, or NMEA if unknown
+             */
+            @GuardedBy("UsbReceiver.this.mLock")
+            private int getReceiverProtocols() {
+                final DeviceProfileStore.Profile profile;
+                int protocols;
+
+                protocols = mReceivedProtocols;
+                profile = mUsbController != null ? mUsbController.getAttachProfile() : null;
+                if ((protocols == 0) && (profile != null)) protocols = profile.getProtocols();
+                if (protocols == 0) protocols = DeviceProfileStore.PROTOCOL_NMEA;
+                return protocols;
+            }
+
+            /**
+             * Sends the receiver output configuration if enabled. Restarts
+             * the configuration in progress. Not started while the baudrate
+             * detection or the upshift is running: started on its completion.
+             */
+            @GuardedBy("UsbReceiver.this.mLock")
+            void startReceiverConfig() {
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+                if (!mReceiverConfiguration.isEnabled() || (mUsbController == null)
+                        || (mAutobaudThread != null)) return;
+
+                stopReceiverConfig();
+                Log.i(TAG, "Receiver configuration: " + mReceiverConfiguration);
+                native_msg_rcvd_cb(true);
+                mConfigThread = new ReceiverConfigTask(mUsbController,
+                        new ReceiverConfiguration(mReceiverConfiguration),
+                        getReceiverProtocols(), mConfigThreadCallbacks);
+                mConfigThread.setName("ReceiverConfigThread");
+                mConfigThread.start();
+            }
+
+            private void stopReceiverConfig() {
+                synchronized(UsbReceiver.this.mLock) {
+                    final ReceiverConfigTask task = mConfigThread;
+                    if (task == null) return;
+                    mConfigThread = null;
+                    task.interrupt();
+                    if (mAutobaudThread == null) native_msg_rcvd_cb(false);
+                }
+            }
+
+            private final ReceiverConfigTask.Callbacks mConfigThreadCallbacks = new ReceiverConfigTask.Callbacks() {
+                @Override
+                public void onReceiverConfigured(int acked, int rejected, int unanswered) {
+                    synchronized(UsbReceiver.this.mLock) {
+                        /* Restarted or stopped: the next task reports */
+                        if (mConfigThread != Thread.currentThread()) return;
+                        if (DBG) Log.v(TAG, "onReceiverConfigured() acked: " + acked
+                                + " rejected: " + rejected + " unanswered: " + unanswered);
+                        mConfigThread = null;
+                        if (mAutobaudThread == null) native_msg_rcvd_cb(false);
+                    }
+                }
+            };
+
+            @GuardedBy("UsbReceiver.this.mLock")
+            private void onUpshiftCompleted(boolean isSuccessful, int baudrate) {
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+                if (isSuccessful) {
+                    /* Rolled back to the old rate: do not retry on this device */
+                    if (baudrate != mUpshiftBaudrate) mUpshiftFailed = true;
+                    saveDeviceProfileUpshift(baudrate == mUpshiftBaudrate ? baudrate : 0);
+                    refreshSerialLineRate();
+                    startReceiverConfig();
+                }else if (!cancelRequested && (mUsbController != null)) {
+                    /* Stream lost at both rates: reconnect with autobaud */
+                    Log.i(TAG, "Baudrate upshift failed, reconnecting");
+                    mUpshiftFailed = true;
+                    mUsbController.detach();
+                }
+            }
+
+            @GuardedBy("UsbReceiver.this.mLock")
+            private void saveDeviceProfile(AutobaudTask task) {
+                final DeviceProfileStore.Profile oldProfile;
+                final String key;
+                SerialLineConfiguration conf;
+                int protocols, upshiftBaudrate;
+
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+
+                key = mUsbController.getDeviceProfileKey();
+                oldProfile = mUsbController.getAttachProfile();
+                protocols = task.getReceivedProtocols();
+                if ((protocols == 0) && (oldProfile != null)) protocols = oldProfile.getProtocols();
+
+                conf = mUsbController.getSerialLineConfiguration();
+                upshiftBaudrate = 0;
+                if ((oldProfile != null) && (oldProfile.getUpshiftBaudrate() > 0)
+                        && (conf.getBaudrate() == oldProfile.getUpshiftBaudrate())) {
+                    /* Locked at the upshifted rate: keep the power-on rate */
+                    conf = oldProfile.getLineConfiguration();
+                    upshiftBaudrate = oldProfile.getUpshiftBaudrate();
+                }
+
+                mDeviceProfileStore.put(new DeviceProfileStore.Profile(key,
+                        conf,
+                        protocols,
+                        mUsbController.getDeviceVariant(),
+                        upshiftBaudrate));
+            }
+
+            /**
+             * Stores the upshift result in the device profile saved on the lock
+             * @param baudrate receiver rate after the upshift, 0 - rolled back
+             */
+            @GuardedBy("UsbReceiver.this.mLock")
+            private void saveDeviceProfileUpshift(int baudrate) {
+                final DeviceProfileStore.Profile profile;
+
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+
+                profile = mDeviceProfileStore.get(mUsbController.getDeviceProfileKey());
+                if ((profile == null) || (profile.getUpshiftBaudrate() == baudrate)) return;
+
+                mDeviceProfileStore.put(new DeviceProfileStore.Profile(profile.getKey(),
+                        profile.getLineConfiguration(),
+                        profile.getProtocols(),
+                        profile.getVariant(),
+                        baudrate));
+            }
+
             private void connect() throws UsbControllerException, CancelRequestedException {
 
                 mIsControllerSet.block();
@@ -575,8 +1422,11 @@ public class UsbGpsConverter {
                     if (mUsbController == null) throw new UsbControllerException("");
 
                     if (DBG) Log.v(TAG, "attach(). "+ mUsbController.getSerialLineConfiguration().toString());
+                    /* Drop the connection left by a failed read loop */
+                    mUsbController.detach();
                     mUsbController.setSerialLineConfiguration(mSerialLineConfiguration);
                     mUsbController.attach();
+                    refreshSerialLineRate();
                     mInputStream = mUsbController.getInputStream();
                     mOutputStream = mUsbController.getOutputStream();
                 }
@@ -590,19 +1440,48 @@ public class UsbGpsConverter {
                 while(true) {
                     try {
                         connect();
+                        synchronized(this) {
+                            mReconnectWakeupRequested = false;
+                        }
                         return;
                     }catch (UsbControllerException e) {
-                        synchronized(this) {
-                            throwIfCancelRequested();
-                            setState(TransportState.RECONNECTING);
-                            try {
-                                wait(RECONNECT_TIMEOUT_MS);
-                            } catch(InterruptedException ie) {
-                                throwIfCancelRequested();
-                            }
+                        throwIfCancelRequested();
+                        Log.d(TAG, "connect() failed: " + e.getMessage());
+                        setState(TransportState.RECONNECTING);
+                        waitReconnectBackoff();
+                    }
+                }
+            }
+
+            /**
+             * Waits for the current backoff interval or for an attach/permission
+             * event, then doubles the backoff up to RECONNECT_BACKOFF_MAX_MS.
+             */
+            private void waitReconnectBackoff() throws CancelRequestedException {
+                mReconnectFailures += 1;
+                mReconnectBackoffMs = Math.min(RECONNECT_BACKOFF_MAX_MS,
+                        Math.max(RECONNECT_BACKOFF_MIN_MS, 2 * mReconnectBackoffMs));
+                if (DBG) Log.v(TAG, "reconnect in " + mReconnectBackoffMs + " ms");
+
+                final long deadline = SystemClock.uptimeMillis() + mReconnectBackoffMs;
+                synchronized(this) {
+                    /* Do not take mLock here: it is held by the callers of wakeupReconnect() */
+                    while (!mReconnectWakeupRequested && !cancelRequested) {
+                        final long remaining = deadline - SystemClock.uptimeMillis();
+                        if (remaining <= 0) break;
+                        try {
+                            wait(remaining);
+                        }catch (InterruptedException ie) {
+                            break;
                         }
                     }
+                    if (mReconnectWakeupRequested) {
+                        /* Device is back: do not carry the backoff over */
+                        mReconnectWakeupRequested = false;
+                        mReconnectBackoffMs = 0;
+                    }
                 }
+                throwIfCancelRequested();
             }
 
             private class CancelRequestedException extends Exception {
@@ -611,9 +1490,17 @@ public class UsbGpsConverter {
 
             private native void native_create();
             private native void native_read_loop(UsbSerialInputStream inputStream, UsbSerialOutputStream outputStream);
+            /* Read loop on a non-USB source: "fd:<n>", "tty:<path>", "file:<path>", "tcp://<host>:<port>".
+             * Not called from java yet, used by the bench/replay host harness */
+            @SuppressWarnings("unused")
+            private native void native_read_loop_uri(String uri);
+            private native void native_cancel_read_loop();
             private native void native_destroy();
             private native void native_get_stats(StatsNative dst);
+            private native int native_read_junk_sample(int[] histogram);
             private native synchronized void native_msg_rcvd_cb(boolean activate);
+            native void native_set_usb_reader_mode(int mode);
+            private native void native_set_serial_line_rate(int baudrate, int bitsPerChar);
 
             // TODO: notify user on errors
             native void native_datalogger_configure(boolean enabled, int format, String tracksDir, String filePrefix);
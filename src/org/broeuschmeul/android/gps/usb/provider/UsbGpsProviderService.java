@@ -55,6 +55,7 @@ public class UsbGpsProviderService extends Service {
 	public static final String PREF_GPS_LOCATION_PROVIDER = "gpsLocationProviderKey";
 	public static final String PREF_REPLACE_STD_GPS = "replaceStdtGps";
 	public static final String PREF_FORCE_ENABLE_PROVIDER = "forceEnableProvider";
+	public static final String PREF_RECEIVER_FAILOVER = "receiverFailover";
 	public static final String PREF_MOCK_GPS_NAME = "mockGpsName";
 	public static final String PREF_CONNECTION_RETRIES = "connectionRetries";
 	public static final String PREF_LOG_RAW_DATA_SCREEN = "logRawDataScreen";
@@ -68,6 +69,10 @@ public class UsbGpsProviderService extends Service {
 	public static final String PREF_USB_SERIAL_PARITY = "usbSerialParity";
 	public static final String PREF_USB_SERIAL_STOP_BITS = "usbSerialStopBits";
 	public static final String PREF_USB_SERIAL_LAST_KNOWN_AUTO_BAUDRATE = "usbSerialLastKnownAutoBaudrate";
+	public static final String PREF_USB_READER_MODE = "usbReaderMode";
+	public static final String PREF_USB_SERIAL_UPSHIFT_BAUDRATE = "usbSerialUpshiftBaudrate";
+	public static final String PREF_USB_FTDI_LATENCY_TIMER = "usbFtdiLatencyTimer";
+	public static final String PREF_USB_FTDI_EVENT_CHAR = "usbFtdiEventChar";
 	public static final String PREF_ABOUT = "about";
 
 	public static final String PREF_SIRF_GPS = "sirfGps";
@@ -81,6 +86,7 @@ public class UsbGpsProviderService extends Service {
 	public static final String PREF_SIRF_ENABLE_SBAS = "enableSBAS";
 	public static final String PREF_SIRF_ENABLE_NMEA = "enableNMEA";
 	public static final String PREF_SIRF_ENABLE_STATIC_NAVIGATION = "enableStaticNavigation";
+	public static final String PREF_SIRF_NAVIGATION_RATE = "navigationRate";
 
 	private Notificator mNotificator;
 	private UsbGpsConverter mConverter;
@@ -151,6 +157,12 @@ public class UsbGpsProviderService extends Service {
         mConverter.setLocationProvider(provider);
         mConverter.setDataLoggerConfiguration(dataLoggerConf);
         mConverter.setSerialLineConfiguration(usbSerialLineConf);
+        mConverter.setUsbReaderMode(SettingsFragment.UsbSerialSettings.readUsbReaderMode(prefs));
+        mConverter.setFailoverEnabled(prefs.getBoolean(PREF_RECEIVER_FAILOVER, false));
+        mConverter.setUpshiftBaudrate(SettingsFragment.UsbSerialSettings.readUpshiftBaudrate(prefs));
+        mConverter.setFtdiLatencyTimer(SettingsFragment.UsbSerialSettings.readFtdiLatencyTimer(prefs));
+        mConverter.setFtdiEventChar(SettingsFragment.UsbSerialSettings.readFtdiEventChar(prefs));
+        mConverter.setReceiverConfiguration(SettingsFragment.ReceiverSettings.readConf(prefs));
         mConverter.start();
 
         startForeground(Notificator.FOREGROUND_NOTIFICATION_ID,
@@ -165,7 +177,9 @@ public class UsbGpsProviderService extends Service {
 
     private void processConfigureSirfGps(Bundle extras) {
         if (!isServiceStarted()) return;
-        //mGpsManager.enableSirfConfig(extras);
+        /* The changed feature is already saved: apply the whole configuration */
+        mConverter.setReceiverConfiguration(SettingsFragment.ReceiverSettings.readConf(
+                PreferenceManager.getDefaultSharedPreferences(this)));
     }
 
     private void stop() {